@@ -0,0 +1,63 @@
+package mx.araco.miguel.n26.benchmarks;
+
+import mx.araco.miguel.n26.services.EpochClock;
+import mx.araco.miguel.n26.services.SamplingStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.StatisticsService;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading the {@code system} clock vs. the {@code coarse} one, by itself and on the hot path of the
+ * {@code synchronized} engine
+ *
+ * @author MiguelAraCo
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class ClockBenchmark {
+	@Param( { "system", "coarse" } )
+	public String clock;
+
+	private SamplingStatisticsServiceConfiguration configuration;
+	private EpochClock epochClock;
+	private SamplingStatisticsService statisticsService;
+	private long timestamp;
+
+	@Setup
+	public void setUp() {
+		this.configuration = new SamplingStatisticsServiceConfiguration();
+		this.configuration.setSamplingPeriod( Duration.parse( "PT60S" ) );
+		this.configuration.setSamplePeriod( Duration.parse( "PT0.05S" ) );
+		this.configuration.getClock().setType( SamplingStatisticsServiceConfiguration.Clock.Type.valueOf( this.clock.toUpperCase() ) );
+		this.epochClock = this.configuration.getEpochClock();
+		this.statisticsService = new SamplingStatisticsService( this.configuration );
+	}
+
+	@Setup( Level.Iteration )
+	public void setUpIteration() {
+		// Old enough not to be in the future, recent enough to stay in the sampling period during the iteration
+		this.timestamp = System.currentTimeMillis() - 1000;
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.configuration.stopEpochClock();
+	}
+
+	@Benchmark
+	public long read() {
+		return this.epochClock.nanos();
+	}
+
+	@Benchmark
+	public StatisticsService.RegisterResult register() {
+		return this.statisticsService.register( 1265, 2, this.timestamp );
+	}
+}
@@ -0,0 +1,75 @@
+package mx.araco.miguel.n26.benchmarks;
+
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.services.SamplingStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.StatisticsService;
+import mx.araco.miguel.n26.services.VirtualEpochClock;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the exact edge of the {@code synchronized} engine, against the other way to get statistics exact to the
+ * millisecond: samples of a millisecond. Runs on a {@link VirtualEpochClock}, so the oldest sample is always full
+ * and partially outside the sampling period: the statistics are requested at a fixed moment, and each transaction
+ * registered moves the clock 10 microseconds (100,000 transactions per second)
+ *
+ * @author MiguelAraCo
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class ExactEdgeBenchmark {
+	private static final long STEP_NANOS = 10_000;
+
+	@Param( { "PT60S" } )
+	public String samplingPeriod;
+	@Param( { "PT0.05S", "PT0.001S" } )
+	public String samplePeriod;
+	@Param( { "false", "true" } )
+	public boolean exactEdge;
+
+	private VirtualEpochClock clock;
+	private StatisticsService statisticsService;
+	/**
+	 * Amounts in cents
+	 */
+	private long[] amounts;
+	private int index;
+
+	@Setup
+	public void setUp() {
+		this.clock = new VirtualEpochClock( Instant.parse( "2018-06-24T00:00:00Z" ) );
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.parse( this.samplingPeriod ) );
+		configuration.setSamplePeriod( Duration.parse( this.samplePeriod ) );
+		configuration.setExactEdge( this.exactEdge );
+		configuration.setEpochClock( this.clock );
+		this.statisticsService = new SamplingStatisticsService( configuration );
+		BigDecimal[] amounts = StatisticsServices.createAmounts();
+		this.amounts = new long[ amounts.length ];
+		for ( int i = 0; i < amounts.length; i++ ) this.amounts[ i ] = amounts[ i ].unscaledValue().longValue();
+
+		// A whole sampling period of transactions, and then the edge half a millisecond into a sample
+		for ( long i = Duration.parse( this.samplingPeriod ).toNanos() / STEP_NANOS; i > 0; i-- ) register();
+		this.clock.advanceNanos( 500_000 );
+	}
+
+	@Benchmark
+	public StatisticsService.RegisterResult register() {
+		this.clock.advanceNanos( STEP_NANOS );
+		return this.statisticsService.register( this.amounts[ this.index++ & ( this.amounts.length - 1 ) ], 2, this.clock.millis() );
+	}
+
+	@Benchmark
+	public Statistics get() {
+		return this.statisticsService.get();
+	}
+}
@@ -0,0 +1,70 @@
+package mx.araco.miguel.n26.benchmarks;
+
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.services.StatisticsService;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of {@link StatisticsService#get()} on its own, and while other threads keep registering transactions
+ *
+ * @author MiguelAraCo
+ */
+@BenchmarkMode( Mode.SampleTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Group )
+public class GetUnderWritesBenchmark {
+	@Param( { "synchronized", "concurrent", "pipelined" } )
+	public String engine;
+	@Param( { "PT60S" } )
+	public String samplingPeriod;
+	@Param( { "PT0.05S" } )
+	public String samplePeriod;
+
+	private StatisticsService statisticsService;
+
+	@State( Scope.Thread )
+	public static class Writer {
+		BigDecimal[] amounts = StatisticsServices.createAmounts();
+		int index;
+	}
+
+	@Setup
+	public void setUp() {
+		this.statisticsService = StatisticsServices.create( this.engine, this.samplingPeriod, this.samplePeriod );
+		// Fill the window so the readers have something to aggregate
+		BigDecimal[] amounts = StatisticsServices.createAmounts();
+		for ( int i = 0; i < 100_000; i++ ) this.statisticsService.register( StatisticsServices.createTransaction( amounts, i ) );
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		StatisticsServices.stop( this.statisticsService );
+	}
+
+	@Benchmark
+	@Group( "idle" )
+	@GroupThreads( 1 )
+	public Statistics getIdle() {
+		return this.statisticsService.get();
+	}
+
+	@Benchmark
+	@Group( "underWrites" )
+	@GroupThreads( 1 )
+	public Statistics get() {
+		return this.statisticsService.get();
+	}
+
+	@Benchmark
+	@Group( "underWrites" )
+	@GroupThreads( 3 )
+	public StatisticsService.RegisterResult register( Writer writer ) {
+		return this.statisticsService.register( StatisticsServices.createTransaction( writer.amounts, writer.index++ ) );
+	}
+}
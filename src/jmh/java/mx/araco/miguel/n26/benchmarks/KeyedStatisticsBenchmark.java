@@ -0,0 +1,122 @@
+package mx.araco.miguel.n26.benchmarks;
+
+import mx.araco.miguel.n26.models.KeyedStatistics;
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.Transaction;
+import mx.araco.miguel.n26.services.KeyedStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Costs of the {@link KeyedStatisticsService} depending on the number of keys: registering a transaction of a
+ * random key (with 4 threads, so the shards are contended), getting the statistics of a key, and getting the top
+ * keys by sum. The memory each active key takes, and each idle key before and after being evicted, is printed
+ * when each trial finishes
+ *
+ * @author MiguelAraCo
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class KeyedStatisticsBenchmark {
+	@Param( { "1000", "100000" } )
+	public int keys;
+
+	private KeyedStatisticsService service;
+	private BigDecimal[] amounts;
+	private String[] names;
+
+	@State( Scope.Thread )
+	public static class Index {
+		private int value = (int) Thread.currentThread().getId() * 7919;
+	}
+
+	@Setup
+	public void setUp() {
+		this.service = createService( "PT60S", "PT5S", this.keys );
+		this.amounts = StatisticsServices.createAmounts();
+		this.names = createNames( this.keys );
+
+		Instant now = Instant.now();
+		for ( int i = 0; i < this.keys; i++ ) this.service.register( new Transaction( this.amounts[ i & ( this.amounts.length - 1 ) ], now, this.names[ i ] ) );
+	}
+
+	@Benchmark
+	@Threads( 4 )
+	public Object register( Index index ) {
+		int i = index.value++;
+		return this.service.register( new Transaction( this.amounts[ i & ( this.amounts.length - 1 ) ], Instant.now(), this.names[ ( i & Integer.MAX_VALUE ) % this.keys ] ) );
+	}
+
+	@Benchmark
+	public Statistics get( Index index ) {
+		return this.service.get( this.names[ ( index.value++ & Integer.MAX_VALUE ) % this.keys ] );
+	}
+
+	@Benchmark
+	public List<KeyedStatistics> top10() {
+		return this.service.getTop( 10 );
+	}
+
+	/**
+	 * Measures the footprint with a sampling period 10 times shorter (and buckets 10 times shorter too, so each
+	 * key has the same number of buckets as the default configuration), so the keys expire quickly. Only with
+	 * enough keys for the GC noise to be negligible
+	 */
+	@TearDown
+	public void printFootprint() throws InterruptedException {
+		this.service = null;
+		if ( this.keys < 100_000 ) return;
+
+		long before = usedMemory();
+		KeyedStatisticsService service = createService( "PT6S", "PT0.5S", this.keys );
+		Instant now = Instant.now();
+		// The names are created here, since they are part of each key's footprint
+		for ( int i = 0; i < this.keys; i++ ) service.register( new Transaction( BigDecimal.ONE, now, createName( i ) ) );
+		long active = usedMemory() - before;
+
+		Thread.sleep( 7000 );
+		long idle = usedMemory() - before;
+		service.getTop( 1 );
+		long evicted = usedMemory() - before;
+
+		System.out.printf( "%nFootprint with %d keys (%d kept): %d bytes per active key, %d bytes per idle key, %d bytes per evicted key%n",
+			this.keys, service.getKeyCount(), active / this.keys, idle / this.keys, evicted / this.keys );
+	}
+
+	private static KeyedStatisticsService createService( String samplingPeriod, String bucketPeriod, int keys ) {
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.parse( samplingPeriod ) );
+		configuration.getKeyed().setBucketPeriod( Duration.parse( bucketPeriod ) );
+		configuration.getKeyed().setMaxKeys( keys * 2 );
+		return new KeyedStatisticsService( configuration );
+	}
+
+	private static String[] createNames( int keys ) {
+		String[] names = new String[ keys ];
+		for ( int i = 0; i < keys; i++ ) names[ i ] = createName( i );
+		return names;
+	}
+
+	/**
+	 * @return a name shaped like a merchant id
+	 */
+	private static String createName( int key ) {
+		return String.format( "merchant-%08d", key );
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for ( int i = 0; i < 3; i++ ) System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,72 @@
+package mx.araco.miguel.n26.benchmarks;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.services.StatisticsService;
+import mx.araco.miguel.n26.services.StatisticsServiceMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of the {@link StatisticsServiceMetrics} instrumentation: the engines with metrics disabled vs.
+ * recording them in a registry, with and without percentile histograms
+ *
+ * @author MiguelAraCo
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class MetricsBenchmark {
+	@Param( { "synchronized", "concurrent" } )
+	public String engine;
+	@Param( { "disabled", "enabled", "histograms" } )
+	public String metrics;
+
+	private StatisticsService statisticsService;
+	private BigDecimal[] amounts;
+	private int index;
+
+	@Setup
+	public void setUp() {
+		StatisticsServiceMetrics metrics;
+		switch ( this.metrics ) {
+			case "enabled":
+				metrics = new StatisticsServiceMetrics( new SimpleMeterRegistry() );
+				break;
+			case "histograms":
+				// Same as setting management.metrics.distribution.percentiles-histogram.statistics=true
+				SimpleMeterRegistry registry = new SimpleMeterRegistry();
+				registry.config().meterFilter( new MeterFilter() {
+					@Override
+					public DistributionStatisticConfig configure( Meter.Id id, DistributionStatisticConfig config ) {
+						return DistributionStatisticConfig.builder().percentilesHistogram( true ).build().merge( config );
+					}
+				} );
+				metrics = new StatisticsServiceMetrics( registry );
+				break;
+			default:
+				metrics = StatisticsServiceMetrics.disabled();
+		}
+
+		this.statisticsService = StatisticsServices.create( this.engine, "PT60S", "PT0.05S", metrics );
+		this.amounts = StatisticsServices.createAmounts();
+	}
+
+	@Benchmark
+	public StatisticsService.RegisterResult register() {
+		return this.statisticsService.register( StatisticsServices.createTransaction( this.amounts, this.index++ ) );
+	}
+
+	@Benchmark
+	public Statistics get() {
+		return this.statisticsService.get();
+	}
+}
@@ -0,0 +1,86 @@
+package mx.araco.miguel.n26.benchmarks;
+
+import mx.araco.miguel.n26.models.QuantileSketch;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Costs of the {@link QuantileSketch}es kept by the samples: adding an amount, merging (and unmerging) a sample
+ * into the sketch of the ring, merging the whole ring from scratch (what the service avoids), and estimating a
+ * quantile. The memory the sketches take, depending on the number of transactions of each sample, is printed
+ * when each trial finishes
+ *
+ * @author MiguelAraCo
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class QuantileSketchBenchmark {
+	/**
+	 * Samples of 50ms in a 60s ring
+	 */
+	private static final int BUCKETS = 1201;
+
+	@Param( { "10", "100", "1000" } )
+	public int transactionsPerBucket;
+
+	private BigDecimal[] amounts;
+	private QuantileSketch[] buckets;
+	private QuantileSketch window;
+	private int index;
+
+	@Setup
+	public void setUp() {
+		this.amounts = StatisticsServices.createAmounts();
+		this.buckets = new QuantileSketch[ BUCKETS ];
+		this.window = new QuantileSketch();
+		for ( int bucket = 0; bucket < BUCKETS; bucket++ ) {
+			this.buckets[ bucket ] = createBucket( bucket );
+			this.window.add( this.buckets[ bucket ] );
+		}
+	}
+
+	private QuantileSketch createBucket( int bucket ) {
+		QuantileSketch sketch = new QuantileSketch();
+		for ( int i = 0; i < this.transactionsPerBucket; i++ ) sketch.add( this.amounts[ ( bucket * this.transactionsPerBucket + i ) % this.amounts.length ].doubleValue() );
+		return sketch;
+	}
+
+	@Benchmark
+	public void add() {
+		this.window.add( this.amounts[ this.index++ & ( this.amounts.length - 1 ) ].doubleValue() );
+	}
+
+	@Benchmark
+	public QuantileSketch mergeBucket() {
+		QuantileSketch bucket = this.buckets[ this.index++ % BUCKETS ];
+		this.window.remove( bucket );
+		this.window.add( bucket );
+		return this.window;
+	}
+
+	@Benchmark
+	public double mergeRing() {
+		QuantileSketch ring = new QuantileSketch();
+		for ( QuantileSketch bucket : this.buckets ) ring.add( bucket );
+		return ring.getQuantile( 0.99 );
+	}
+
+	@Benchmark
+	public double quantile() {
+		return this.window.getQuantile( 0.99 );
+	}
+
+	@TearDown
+	public void printFootprint() {
+		long buckets = 0;
+		for ( QuantileSketch bucket : this.buckets ) buckets += bucket.getFootprint();
+		System.out.printf( "%nSketch footprint with %d transactions per bucket: %d bytes per bucket, %d bytes for the ring, %d bytes for its sketch%n",
+			this.transactionsPerBucket, buckets / BUCKETS, buckets, this.window.getFootprint() );
+	}
+}
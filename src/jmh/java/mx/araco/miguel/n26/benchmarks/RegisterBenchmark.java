@@ -0,0 +1,57 @@
+package mx.araco.miguel.n26.benchmarks;
+
+import mx.araco.miguel.n26.services.StatisticsService;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link StatisticsService#register} with one and several writers
+ *
+ * @author MiguelAraCo
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class RegisterBenchmark {
+	@Param( { "synchronized", "concurrent", "pipelined" } )
+	public String engine;
+	@Param( { "PT60S" } )
+	public String samplingPeriod;
+	@Param( { "PT0.05S" } )
+	public String samplePeriod;
+
+	private StatisticsService statisticsService;
+
+	@State( Scope.Thread )
+	public static class Writer {
+		BigDecimal[] amounts = StatisticsServices.createAmounts();
+		int index;
+	}
+
+	@Setup
+	public void setUp() {
+		this.statisticsService = StatisticsServices.create( this.engine, this.samplingPeriod, this.samplePeriod );
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		StatisticsServices.stop( this.statisticsService );
+	}
+
+	@Benchmark
+	@Threads( 1 )
+	public StatisticsService.RegisterResult registerSingleThreaded( Writer writer ) {
+		return this.statisticsService.register( StatisticsServices.createTransaction( writer.amounts, writer.index++ ) );
+	}
+
+	@Benchmark
+	@Threads( 4 )
+	public StatisticsService.RegisterResult registerMultiThreaded( Writer writer ) {
+		return this.statisticsService.register( StatisticsServices.createTransaction( writer.amounts, writer.index++ ) );
+	}
+}
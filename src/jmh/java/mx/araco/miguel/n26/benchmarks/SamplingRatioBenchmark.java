@@ -0,0 +1,50 @@
+package mx.araco.miguel.n26.benchmarks;
+
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.services.StatisticsService;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sweep over sample period / sampling period ratios (i.e. the number of samples kept by the engines), measuring
+ * the cost of registering transactions and of getting the statistics
+ *
+ * @author MiguelAraCo
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class SamplingRatioBenchmark {
+	@Param( { "synchronized", "concurrent" } )
+	public String engine;
+	@Param( { "PT60S" } )
+	public String samplingPeriod;
+	@Param( { "PT1S", "PT0.1S", "PT0.05S", "PT0.01S", "PT0.001S" } )
+	public String samplePeriod;
+
+	private StatisticsService statisticsService;
+	private BigDecimal[] amounts;
+	private int index;
+
+	@Setup
+	public void setUp() {
+		this.statisticsService = StatisticsServices.create( this.engine, this.samplingPeriod, this.samplePeriod );
+		this.amounts = StatisticsServices.createAmounts();
+		for ( int i = 0; i < 100_000; i++ ) this.statisticsService.register( StatisticsServices.createTransaction( this.amounts, i ) );
+	}
+
+	@Benchmark
+	public StatisticsService.RegisterResult register() {
+		return this.statisticsService.register( StatisticsServices.createTransaction( this.amounts, this.index++ ) );
+	}
+
+	@Benchmark
+	public Statistics get() {
+		return this.statisticsService.get();
+	}
+}
@@ -0,0 +1,187 @@
+package mx.araco.miguel.n26.benchmarks;
+
+import mx.araco.miguel.n26.Application;
+import mx.araco.miguel.n26.FastStartApplication;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold start of {@link Application} vs. {@link FastStartApplication}, each one in a new JVM: time until
+ * {@code GET /statistics} answers, and resident memory at that moment (the {@code rssKilobytes} counter, read
+ * from {@code /proc}, so only on Linux; JMH adds it up over the measurement iterations, so it needs to be divided by
+ * their count). With {@code cds} the JVM maps a dynamic class data sharing archive
+ * recorded by a previous run of the same application (JDK 13 or newer).
+ * <p>
+ * Runs the thin jar built by the {@code fast-start} profile:
+ * {@code mvn -P fast-start,benchmarks -DskipTests verify -Djmh.args="StartupBenchmark"}
+ *
+ * @author MiguelAraCo
+ */
+// Average time with iterations shorter than a start, so each iteration starts the application exactly once (aux
+// counters aren't reported in single shot mode)
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 1, time = 1, timeUnit = TimeUnit.MILLISECONDS )
+@Measurement( iterations = 10, time = 1, timeUnit = TimeUnit.MILLISECONDS )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class StartupBenchmark {
+	private static final Path JAR = Paths.get( "target", "fast-start", "n26-challenge-fast-start.jar" );
+	private static final long READY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos( 60 );
+
+	@Param( { "spring", "fast-start" } )
+	public String application;
+	@Param( { "false", "true" } )
+	public boolean cds;
+
+	private Path archive;
+	private Path log;
+	private Process process;
+
+	@AuxCounters( AuxCounters.Type.EVENTS )
+	@State( Scope.Thread )
+	public static class Footprint {
+		public long rssKilobytes;
+	}
+
+	@Setup( Level.Trial )
+	public void setUp() throws Exception {
+		if ( ! Files.exists( JAR ) ) throw new IllegalStateException( JAR + " is missing, the benchmarks need to run with the fast-start profile" );
+		this.log = Files.createTempFile( "n26-startup", ".log" );
+		if ( ! this.cds ) return;
+
+		String version = System.getProperty( "java.specification.version" );
+		if ( version.startsWith( "1." ) || Integer.parseInt( version ) < 13 ) throw new IllegalStateException( "Dynamic CDS archives need JDK 13 or newer" );
+
+		// Training run, the archive is written when the JVM exits
+		this.archive = Files.createTempFile( "n26-startup", ".jsa" );
+		Files.delete( this.archive );
+		int port = getFreePort();
+		Process training = launch( port, "-XX:ArchiveClassesAtExit=" + this.archive );
+		awaitReady( port );
+		postTransaction( port );
+		stop( training );
+		if ( ! Files.exists( this.archive ) ) throw new IllegalStateException( "The CDS archive wasn't written" );
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown() throws IOException {
+		if ( this.archive != null ) Files.deleteIfExists( this.archive );
+		Files.deleteIfExists( this.log );
+	}
+
+	@Benchmark
+	public void start( Footprint footprint ) throws Exception {
+		int port = getFreePort();
+		this.process = this.cds ? launch( port, "-XX:SharedArchiveFile=" + this.archive ) : launch( port );
+		awaitReady( port );
+		footprint.rssKilobytes = getRssKilobytes( this.process );
+	}
+
+	@TearDown( Level.Invocation )
+	public void stopProcess() throws InterruptedException {
+		if ( this.process != null ) stop( this.process );
+		this.process = null;
+	}
+
+	private Process launch( int port, String... jvmArgs ) throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add( Paths.get( System.getProperty( "java.home" ), "bin", "java" ).toString() );
+		for ( String jvmArg : jvmArgs ) command.add( jvmArg );
+		command.add( "-cp" );
+		command.add( JAR.toString() );
+		if ( "spring".equals( this.application ) ) {
+			// Spring 5.0 defines its proxies through reflection on ClassLoader
+			if ( ! System.getProperty( "java.specification.version" ).startsWith( "1." ) ) command.add( "--add-opens=java.base/java.lang=ALL-UNNAMED" );
+			command.add( Application.class.getName() );
+		} else {
+			command.add( FastStartApplication.class.getName() );
+		}
+		command.add( "--server.port=" + port );
+
+		return new ProcessBuilder( command )
+			.redirectErrorStream( true )
+			.redirectOutput( this.log.toFile() )
+			.start();
+	}
+
+	private static void stop( Process process ) throws InterruptedException {
+		// SIGTERM, so the JVM exits normally (and writes the CDS archive of the training run)
+		process.destroy();
+		if ( ! process.waitFor( 30, TimeUnit.SECONDS ) ) process.destroyForcibly().waitFor();
+	}
+
+	private static int getFreePort() throws IOException {
+		try ( ServerSocket socket = new ServerSocket( 0 ) ) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static void awaitReady( int port ) throws Exception {
+		URL url = new URL( "http://localhost:" + port + "/statistics" );
+		long start = System.nanoTime();
+		while ( true ) {
+			try {
+				HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+				if ( connection.getResponseCode() == 200 ) return;
+			} catch ( IOException e ) {
+				// Not listening yet
+			}
+			if ( System.nanoTime() - start > READY_TIMEOUT_NANOS ) throw new IllegalStateException( "The application didn't start" );
+			Thread.sleep( 1 );
+		}
+	}
+
+	private static void postTransaction( int port ) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL( "http://localhost:" + port + "/transactions" ).openConnection();
+		connection.setRequestMethod( "POST" );
+		connection.setRequestProperty( "Content-Type", "application/json" );
+		connection.setDoOutput( true );
+		try ( OutputStream output = connection.getOutputStream() ) {
+			output.write( ( "{ \"amount\": 12.65, \"timestamp\": " + System.currentTimeMillis() + " }" ).getBytes( StandardCharsets.UTF_8 ) );
+		}
+		connection.getResponseCode();
+	}
+
+	/**
+	 * @return the resident set size of the process, 0 if it can't be read
+	 */
+	private static long getRssKilobytes( Process process ) throws IOException {
+		File status = new File( "/proc/" + getPid( process ) + "/status" );
+		if ( ! status.exists() ) return 0;
+
+		for ( String line : Files.readAllLines( status.toPath(), StandardCharsets.UTF_8 ) ) {
+			if ( line.startsWith( "VmRSS:" ) ) return Long.parseLong( line.replaceAll( "[^0-9]", "" ) );
+		}
+		return 0;
+	}
+
+	private static long getPid( Process process ) {
+		try {
+			// Process.pid() from Java 9 on
+			return (Long) Process.class.getMethod( "pid" ).invoke( process );
+		} catch ( ReflectiveOperationException e ) {
+			try {
+				Field pid = process.getClass().getDeclaredField( "pid" );
+				pid.setAccessible( true );
+				return pid.getInt( process );
+			} catch ( ReflectiveOperationException e2 ) {
+				return - 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package mx.araco.miguel.n26.benchmarks;
+
+import mx.araco.miguel.n26.models.Statistics;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of adding an amount to a {@link Statistics} vs. merging a whole sample into it
+ *
+ * @author MiguelAraCo
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class StatisticsBenchmark {
+	private BigDecimal[] amounts;
+	private Statistics[] samples;
+	private int index;
+
+	private Statistics accumulator;
+
+	@Setup
+	public void setUp() {
+		this.amounts = StatisticsServices.createAmounts();
+		this.samples = new Statistics[ this.amounts.length ];
+		for ( int i = 0; i < this.amounts.length; i++ ) {
+			this.samples[ i ] = new Statistics();
+			for ( int j = 0; j < 10; j++ ) this.samples[ i ].add( this.amounts[ ( i + j ) % this.amounts.length ] );
+		}
+	}
+
+	@Setup( Level.Iteration )
+	public void resetAccumulator() {
+		this.accumulator = new Statistics();
+	}
+
+	@Benchmark
+	public Statistics addAmount() {
+		this.accumulator.add( this.amounts[ this.index++ & ( this.amounts.length - 1 ) ] );
+		return this.accumulator;
+	}
+
+	@Benchmark
+	public Statistics addSample() {
+		this.accumulator.add( this.samples[ this.index++ & ( this.samples.length - 1 ) ] );
+		return this.accumulator;
+	}
+
+	@Benchmark
+	public BigDecimal addAmountAndGetAvg() {
+		this.accumulator.add( this.amounts[ this.index++ & ( this.amounts.length - 1 ) ] );
+		return this.accumulator.getAvg();
+	}
+}
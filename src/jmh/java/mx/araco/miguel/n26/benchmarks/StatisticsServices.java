@@ -0,0 +1,76 @@
+package mx.araco.miguel.n26.benchmarks;
+
+import mx.araco.miguel.n26.models.Transaction;
+import mx.araco.miguel.n26.services.ConcurrentSamplingStatisticsService;
+import mx.araco.miguel.n26.services.PipelinedStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.StatisticsService;
+import mx.araco.miguel.n26.services.StatisticsServiceMetrics;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Random;
+
+/**
+ * Helpers shared by the benchmarks
+ *
+ * @author MiguelAraCo
+ */
+final class StatisticsServices {
+	private static final int AMOUNTS = 1024;
+
+	private StatisticsServices() {}
+
+	/**
+	 * Creates the statistics engine with the name used by the {@code mx.araco.miguel.n26.engine} property
+	 */
+	static StatisticsService create( String engine, String samplingPeriod, String samplePeriod ) {
+		return create( engine, samplingPeriod, samplePeriod, StatisticsServiceMetrics.disabled() );
+	}
+
+	static StatisticsService create( String engine, String samplingPeriod, String samplePeriod, StatisticsServiceMetrics metrics ) {
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.parse( samplingPeriod ) );
+		configuration.setSamplePeriod( Duration.parse( samplePeriod ) );
+
+		switch ( engine ) {
+			case "synchronized":
+				return new SamplingStatisticsService( configuration, metrics );
+			case "concurrent":
+				return new ConcurrentSamplingStatisticsService( configuration, metrics );
+			case "pipelined":
+				PipelinedStatisticsService pipelined = new PipelinedStatisticsService( configuration, metrics );
+				pipelined.start();
+				return pipelined;
+			default:
+				throw new IllegalArgumentException( "Unknown engine: " + engine );
+		}
+	}
+
+	/**
+	 * Stops the background threads of the engine, if any, so they don't interfere with the next benchmarks
+	 */
+	static void stop( StatisticsService statisticsService ) throws InterruptedException {
+		if ( statisticsService instanceof PipelinedStatisticsService ) ( (PipelinedStatisticsService) statisticsService ).stop();
+	}
+
+	/**
+	 * @return random two-decimal amounts between 0.01 and 1000.00
+	 */
+	static BigDecimal[] createAmounts() {
+		Random random = new Random( 42 );
+		BigDecimal[] amounts = new BigDecimal[ AMOUNTS ];
+		for ( int i = 0; i < AMOUNTS; i++ ) amounts[ i ] = BigDecimal.valueOf( 1 + random.nextInt( 100_000 ), 2 );
+		return amounts;
+	}
+
+	/**
+	 * @return a transaction with one of the amounts provided that happened right now, like the ones received by
+	 * the REST API
+	 */
+	static Transaction createTransaction( BigDecimal[] amounts, int index ) {
+		return new Transaction( amounts[ index & ( AMOUNTS - 1 ) ], Instant.now() );
+	}
+}
@@ -0,0 +1,108 @@
+package mx.araco.miguel.n26.benchmarks;
+
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.StatisticsService;
+import mx.araco.miguel.n26.tcp.TransactionListener;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of {@link TransactionListener}: each client thread keeps its own connection, and writes a batch of
+ * frames before reading their answers, like a producer that acknowledges transactions per batch. Scores are in
+ * transactions per second
+ *
+ * @author MiguelAraCo
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class TcpIngestionBenchmark {
+	private static final int BATCH = 1024;
+
+	@Param( { "synchronized", "concurrent", "pipelined" } )
+	public String engine;
+
+	private StatisticsService statisticsService;
+	private TransactionListener listener;
+
+	@State( Scope.Thread )
+	public static class Client {
+		SocketChannel channel;
+		ByteBuffer frames = ByteBuffer.allocateDirect( BATCH * TransactionListener.FRAME_SIZE );
+		ByteBuffer answers = ByteBuffer.allocateDirect( BATCH );
+		BigDecimal[] amounts = StatisticsServices.createAmounts();
+		int index;
+
+		@Setup
+		public void connect( TcpIngestionBenchmark benchmark ) throws IOException {
+			this.channel = SocketChannel.open( new InetSocketAddress( "localhost", benchmark.listener.getPort() ) );
+			this.channel.socket().setTcpNoDelay( true );
+		}
+
+		@TearDown
+		public void close() throws IOException {
+			this.channel.close();
+		}
+	}
+
+	@Setup
+	public void setUp() throws IOException {
+		this.statisticsService = StatisticsServices.create( this.engine, "PT60S", "PT0.05S" );
+
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.getTcp().setPort( 0 );
+		configuration.getTcp().setWorkers( Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 ) );
+		this.listener = new TransactionListener( this.statisticsService, configuration );
+		this.listener.start();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		this.listener.stop();
+		StatisticsServices.stop( this.statisticsService );
+	}
+
+	@Benchmark
+	@Threads( 1 )
+	@OperationsPerInvocation( BATCH )
+	public byte sendBatchSingleClient( Client client ) throws IOException {
+		return sendBatch( client );
+	}
+
+	@Benchmark
+	@Threads( 4 )
+	@OperationsPerInvocation( BATCH )
+	public byte sendBatchMultipleClients( Client client ) throws IOException {
+		return sendBatch( client );
+	}
+
+	private static byte sendBatch( Client client ) throws IOException {
+		long now = System.currentTimeMillis();
+		ByteBuffer frames = client.frames;
+		frames.clear();
+		for ( int i = 0; i < BATCH; i++ ) {
+			BigDecimal amount = client.amounts[ client.index++ & ( client.amounts.length - 1 ) ];
+			frames.putLong( amount.movePointRight( Statistics.SCALE ).longValue() ).putLong( now );
+		}
+		frames.flip();
+		while ( frames.hasRemaining() ) client.channel.write( frames );
+
+		ByteBuffer answers = client.answers;
+		answers.clear();
+		while ( answers.hasRemaining() ) {
+			if ( client.channel.read( answers ) < 0 ) throw new IOException( "The listener closed the connection" );
+		}
+		return answers.get( BATCH - 1 );
+	}
+}
@@ -0,0 +1,62 @@
+package mx.araco.miguel.n26.benchmarks;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import mx.araco.miguel.n26.models.Transaction;
+import mx.araco.miguel.n26.services.StatisticsService;
+import mx.araco.miguel.n26.web.TransactionParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of decoding and registering the body of {@code POST /transactions}, with the {@link TransactionParser}
+ * against Jackson. Run it with {@code -prof gc} to compare the allocation rates
+ *
+ * @author MiguelAraCo
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class TransactionDecodingBenchmark {
+	@Param( { "synchronized" } )
+	public String engine;
+
+	private StatisticsService statisticsService;
+	private ObjectReader reader;
+	private TransactionParser parser;
+	private byte[] body;
+
+	@Setup
+	public void setUp() {
+		this.statisticsService = StatisticsServices.create( this.engine, "PT60S", "PT0.05S" );
+		// Same configuration the application uses
+		this.reader = new ObjectMapper()
+			.registerModule( new JavaTimeModule() )
+			.disable( DeserializationFeature.READ_DATE_TIMESTAMPS_AS_NANOSECONDS )
+			.readerFor( Transaction.class );
+		this.parser = new TransactionParser();
+		this.body = ( "{\"amount\": 12.65, \"timestamp\": " + Instant.now().toEpochMilli() + "}" ).getBytes( StandardCharsets.UTF_8 );
+	}
+
+	@Benchmark
+	public StatisticsService.RegisterResult parser() throws IOException {
+		if ( ! this.parser.parse( new ByteArrayInputStream( this.body ) ) ) throw new IllegalStateException();
+		return this.statisticsService.register( this.parser.getAmount(), this.parser.getScale(), this.parser.getTimestamp() );
+	}
+
+	@Benchmark
+	public StatisticsService.RegisterResult jackson() throws IOException {
+		Transaction transaction = this.reader.readValue( new ByteArrayInputStream( this.body ) );
+		return this.statisticsService.register( transaction );
+	}
+}
@@ -0,0 +1,132 @@
+package mx.araco.miguel.n26.benchmarks;
+
+import mx.araco.miguel.n26.services.SamplingStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.StatisticsService;
+import mx.araco.miguel.n26.services.TransactionLog;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Latency {@link TransactionLog} adds to {@link SamplingStatisticsService#register}, with the log flushed in the
+ * background as it would be in production, and time it takes to recover the statistics from the log after a restart
+ * (see {@link Recovery})
+ *
+ * @author MiguelAraCo
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class TransactionLogBenchmark {
+	@Param( { "false", "true" } )
+	public boolean persistence;
+
+	private Path directory;
+	private TransactionLog log;
+	private SamplingStatisticsService statisticsService;
+
+	private BigDecimal[] amounts;
+	private int index;
+
+	@Setup
+	public void setUp() throws IOException {
+		this.directory = Files.createTempDirectory( "transaction-log-benchmark" );
+
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.ofSeconds( 60 ) );
+		configuration.setSamplePeriod( Duration.ofMillis( 50 ) );
+		configuration.getPersistence().setEnabled( this.persistence );
+		configuration.getPersistence().setDirectory( this.directory.toString() );
+
+		this.statisticsService = new SamplingStatisticsService( configuration );
+		if ( this.persistence ) {
+			this.log = new TransactionLog( configuration );
+			this.log.startFlushing();
+			this.statisticsService.setTransactionLog( this.log );
+		}
+		this.amounts = StatisticsServices.createAmounts();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		if ( this.log != null ) this.log.close();
+		delete( this.directory );
+	}
+
+	@Benchmark
+	public StatisticsService.RegisterResult register() {
+		BigDecimal amount = this.amounts[ this.index++ & ( this.amounts.length - 1 ) ];
+		return this.statisticsService.register( amount.unscaledValue().longValue(), amount.scale(), System.currentTimeMillis() );
+	}
+
+	/**
+	 * Recovery of a log with {@link Recovery#TRANSACTIONS} transactions spread over a second, by a new log and
+	 * service each time, like a restart would. The log is only read, so every invocation recovers the same
+	 * transactions while they are in the sampling period
+	 */
+	@BenchmarkMode( Mode.AverageTime )
+	@OutputTimeUnit( TimeUnit.MILLISECONDS )
+	@Warmup( iterations = 3, time = 2 )
+	@Measurement( iterations = 5, time = 2 )
+	@Fork( 1 )
+	@State( Scope.Benchmark )
+	public static class Recovery {
+		private static final int TRANSACTIONS = 200_000;
+
+		private Path directory;
+		private SamplingStatisticsServiceConfiguration configuration;
+
+		@Setup
+		public void setUp() throws IOException {
+			this.directory = Files.createTempDirectory( "transaction-log-recovery-benchmark" );
+
+			this.configuration = new SamplingStatisticsServiceConfiguration();
+			this.configuration.setSamplingPeriod( Duration.ofSeconds( 60 ) );
+			this.configuration.setSamplePeriod( Duration.ofMillis( 50 ) );
+			this.configuration.getPersistence().setEnabled( true );
+			this.configuration.getPersistence().setDirectory( this.directory.toString() );
+			this.configuration.getPersistence().setSegmentSize( 1024 * 1024 );
+
+			TransactionLog log = new TransactionLog( this.configuration );
+			SamplingStatisticsService statisticsService = new SamplingStatisticsService( this.configuration );
+			statisticsService.setTransactionLog( log );
+			long now = System.currentTimeMillis();
+			for ( int i = 0; i < TRANSACTIONS; i++ ) statisticsService.register( 1 + i % 100_000, 2, now - i % 1000 );
+			log.close();
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			delete( this.directory );
+		}
+
+		@Benchmark
+		public long recover() throws IOException {
+			TransactionLog log = new TransactionLog( this.configuration );
+			try {
+				SamplingStatisticsService statisticsService = new SamplingStatisticsService( this.configuration );
+				statisticsService.setTransactionLog( log );
+				return statisticsService.recover();
+			} finally {
+				log.close();
+			}
+		}
+	}
+
+	private static void delete( Path directory ) throws IOException {
+		try ( Stream<Path> files = Files.walk( directory ) ) {
+			files.sorted( Comparator.reverseOrder() ).forEach( path -> path.toFile().delete() );
+		}
+	}
+}
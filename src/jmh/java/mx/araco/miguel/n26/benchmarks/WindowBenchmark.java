@@ -0,0 +1,55 @@
+package mx.araco.miguel.n26.benchmarks;
+
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.services.SamplingStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of {@link SamplingStatisticsService#get(Duration)} for windows of different lengths. It should grow
+ * with the number of resolutions crossed, not with the number of samples in the window. With {@code off-heap}
+ * the buckets of the resolutions are scanned from direct buffers instead of {@link Statistics} objects
+ *
+ * @author MiguelAraCo
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class WindowBenchmark {
+	@Param( { "PT1S", "PT10S", "PT1M", "PT10M", "PT1H" } )
+	public String window;
+	@Param( { "heap", "off-heap" } )
+	public String storage;
+
+	private SamplingStatisticsService statisticsService;
+	private Duration duration;
+
+	@Setup
+	public void setUp() {
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.parse( "PT60S" ) );
+		configuration.setSamplePeriod( Duration.parse( "PT0.05S" ) );
+		configuration.setMaxWindow( Duration.parse( "PT1H" ) );
+		configuration.setWindowResolutions( Arrays.asList( Duration.parse( "PT1S" ), Duration.parse( "PT1M" ) ) );
+		configuration.setWindowStorage( "off-heap".equals( this.storage ) ? SamplingStatisticsServiceConfiguration.WindowStorage.OFF_HEAP : SamplingStatisticsServiceConfiguration.WindowStorage.HEAP );
+
+		this.statisticsService = new SamplingStatisticsService( configuration );
+		BigDecimal[] amounts = StatisticsServices.createAmounts();
+		for ( int i = 0; i < 10_000; i++ ) this.statisticsService.register( StatisticsServices.createTransaction( amounts, i ) );
+
+		this.duration = Duration.parse( this.window );
+	}
+
+	@Benchmark
+	public Statistics get() {
+		return this.statisticsService.get( this.duration );
+	}
+}
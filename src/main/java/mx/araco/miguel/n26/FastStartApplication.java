@@ -0,0 +1,129 @@
+package mx.araco.miguel.n26;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.undertow.Undertow;
+import io.undertow.server.handlers.BlockingHandler;
+import mx.araco.miguel.n26.services.SamplingStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.web.FastStartHandler;
+import mx.araco.miguel.n26.web.StatisticsSnapshotPublisher;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.ConfigurationPropertySources;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.MutablePropertySources;
+import org.springframework.core.env.PropertiesPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.core.env.SystemEnvironmentPropertySource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Alternative entry point that serves {@code GET /statistics} and {@code POST /transactions} straight on Undertow
+ * (see {@link FastStartHandler}), without Spring's application context: no component scanning, auto-configuration
+ * nor Spring MVC. It starts several times faster and with less memory than {@link Application}, for nodes that are
+ * started on demand (e.g. when autoscaling).
+ * <p>
+ * It only wires the {@code synchronized} engine ({@link SamplingStatisticsService}) and those two routes, so the
+ * rest of the endpoints (statistics by key, batches, streams, cluster...), the write-ahead log and the metrics
+ * aren't available. The configuration is read from {@code application.properties}, overridden by environment
+ * variables, system properties and {@code --name=value} arguments, and bound with the same rules Spring Boot uses
+ * ({@code server.port} included).
+ *
+ * @author MiguelAraCo
+ */
+public class FastStartApplication {
+	private static final String PROPERTIES_FILE = "application.properties";
+	private static final int DEFAULT_PORT = 8080;
+
+	private final SamplingStatisticsServiceConfiguration configuration;
+	private final SamplingStatisticsService statisticsService;
+	private final Undertow server;
+
+	public FastStartApplication( String... args ) throws IOException {
+		Binder binder = createBinder( args );
+
+		this.configuration = new SamplingStatisticsServiceConfiguration();
+		binder.bind( "mx.araco.miguel.n26", Bindable.ofInstance( this.configuration ) );
+
+		ObjectMapper objectMapper = createObjectMapper();
+		this.statisticsService = new SamplingStatisticsService( this.configuration );
+		StatisticsSnapshotPublisher snapshotPublisher = new StatisticsSnapshotPublisher( this.statisticsService, objectMapper, this.configuration );
+
+		this.server = Undertow.builder()
+			.addHttpListener( binder.bind( "server.port", Integer.class ).orElse( DEFAULT_PORT ), "0.0.0.0" )
+			.setHandler( new BlockingHandler( new FastStartHandler( this.statisticsService, snapshotPublisher, objectMapper ) ) )
+			.build();
+	}
+
+	public static void main( String[] args ) throws IOException {
+		FastStartApplication application = new FastStartApplication( args );
+		Runtime.getRuntime().addShutdownHook( new Thread( application::stop, "fast-start-shutdown" ) );
+		application.start();
+	}
+
+	public void start() throws IOException {
+		this.statisticsService.start();
+		this.server.start();
+	}
+
+	public void stop() {
+		this.server.stop();
+		this.statisticsService.stopRotation();
+		this.configuration.stopEpochClock();
+	}
+
+	/**
+	 * @return the port the server is bound to (e.g. when it was configured with port 0)
+	 */
+	public int getPort() {
+		return ( (InetSocketAddress) this.server.getListenerInfo().get( 0 ).getAddress() ).getPort();
+	}
+
+	private static Binder createBinder( String[] args ) throws IOException {
+		Map<String, Object> arguments = new HashMap<>();
+		for ( String arg : args ) {
+			if ( ! arg.startsWith( "--" ) ) continue;
+
+			int separator = arg.indexOf( '=' );
+			if ( separator < 0 ) arguments.put( arg.substring( 2 ), "" );
+			else arguments.put( arg.substring( 2, separator ), arg.substring( separator + 1 ) );
+		}
+
+		Properties defaults = new Properties();
+		try ( InputStream input = FastStartApplication.class.getClassLoader().getResourceAsStream( PROPERTIES_FILE ) ) {
+			if ( input != null ) defaults.load( input );
+		}
+
+		// Same precedence as Spring Boot's
+		MutablePropertySources sources = new MutablePropertySources();
+		sources.addLast( new MapPropertySource( "commandLineArgs", arguments ) );
+		sources.addLast( new PropertiesPropertySource( StandardEnvironment.SYSTEM_PROPERTIES_PROPERTY_SOURCE_NAME, System.getProperties() ) );
+		sources.addLast( new SystemEnvironmentPropertySource( StandardEnvironment.SYSTEM_ENVIRONMENT_PROPERTY_SOURCE_NAME, new HashMap<>( System.getenv() ) ) );
+		sources.addLast( new PropertiesPropertySource( PROPERTIES_FILE, defaults ) );
+		return new Binder( ConfigurationPropertySources.from( sources ) );
+	}
+
+	/**
+	 * @return a mapper with the configuration Spring Boot and {@code application.properties} give to the one used
+	 * by the controllers
+	 */
+	private static ObjectMapper createObjectMapper() {
+		return new ObjectMapper()
+			.registerModule( new JavaTimeModule() )
+			.disable( DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES )
+			.disable( DeserializationFeature.READ_DATE_TIMESTAMPS_AS_NANOSECONDS )
+			.disable( SerializationFeature.WRITE_DATE_TIMESTAMPS_AS_NANOSECONDS )
+			.disable( SerializationFeature.WRITE_DATES_AS_TIMESTAMPS )
+			.disable( MapperFeature.DEFAULT_VIEW_INCLUSION );
+	}
+}
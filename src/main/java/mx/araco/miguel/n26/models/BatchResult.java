@@ -0,0 +1,43 @@
+package mx.araco.miguel.n26.models;
+
+/**
+ * Counts of the results of registering a batch of transactions
+ *
+ * @author MiguelAraCo
+ */
+public class BatchResult {
+	private long registered = 0L;
+	private long discarded = 0L;
+	private long rejected = 0L;
+
+	public void addRegistered() { this.registered++; }
+
+	public void addDiscarded() { this.discarded++; }
+
+	public void addRejected() { this.rejected++; }
+
+	public void addRegistered( long count ) { this.registered += count; }
+
+	public void addDiscarded( long count ) { this.discarded += count; }
+
+	public void add( BatchResult result ) {
+		this.registered += result.registered;
+		this.discarded += result.discarded;
+		this.rejected += result.rejected;
+	}
+
+	/**
+	 * @return number of transactions registered
+	 */
+	public long getRegistered() { return registered; }
+
+	/**
+	 * @return number of transactions discarded for being outside of the statistics period
+	 */
+	public long getDiscarded() { return discarded; }
+
+	/**
+	 * @return number of transactions rejected for being invalid (e.g. having a timestamp of the future)
+	 */
+	public long getRejected() { return rejected; }
+}
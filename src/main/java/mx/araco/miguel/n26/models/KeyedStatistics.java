@@ -0,0 +1,20 @@
+package mx.araco.miguel.n26.models;
+
+/**
+ * Statistics of the transactions of a key
+ *
+ * @author MiguelAraCo
+ */
+public class KeyedStatistics {
+	private final String key;
+	private final Statistics statistics;
+
+	public KeyedStatistics( String key, Statistics statistics ) {
+		this.key = key;
+		this.statistics = statistics;
+	}
+
+	public String getKey() { return key; }
+
+	public Statistics getStatistics() { return statistics; }
+}
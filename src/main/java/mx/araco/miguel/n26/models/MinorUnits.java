@@ -0,0 +1,66 @@
+package mx.araco.miguel.n26.models;
+
+import java.math.BigDecimal;
+
+/**
+ * Conversions of amounts to and from the {@code long} minor units (see {@link Statistics#SCALE}) the statistics
+ * accumulate them in, and the overflow check of their sums, shared by every structure that keeps amounts that way.
+ *
+ * @author MiguelAraCo
+ */
+public final class MinorUnits {
+	/**
+	 * Returned by the conversions for amounts that can't be represented in minor units. It can't be the result of
+	 * a conversion itself
+	 */
+	public static final long NO_UNITS = Long.MIN_VALUE;
+
+	private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L };
+	/**
+	 * Amounts with more digits than this may not fit in a long once they are converted to minor units
+	 */
+	private static final int MAX_PRECISION = 16;
+
+	private MinorUnits() {}
+
+	/**
+	 * @return the amount in minor units, or {@link #NO_UNITS} if it has more decimals than {@link Statistics#SCALE}
+	 * or it's too big
+	 */
+	public static long of( BigDecimal amount ) {
+		return amount.precision() <= MAX_PRECISION ? of( amount.unscaledValue().longValue(), amount.scale() ) : NO_UNITS;
+	}
+
+	/**
+	 * Same as {@link #of(BigDecimal)}, for an amount given as its unscaled value and scale
+	 */
+	public static long of( long amount, int scale ) {
+		if ( scale < 0 || scale > Statistics.SCALE ) return NO_UNITS;
+
+		long factor = POWERS_OF_TEN[ Statistics.SCALE - scale ];
+		if ( amount > Long.MAX_VALUE / factor || amount <= Long.MIN_VALUE / factor ) return NO_UNITS;
+
+		return amount * factor;
+	}
+
+	/**
+	 * @param scale
+	 * 	decimals the amount was received with, at most {@link Statistics#SCALE}
+	 * @return the amount with the decimals it was received with
+	 */
+	public static BigDecimal toBigDecimal( long units, int scale ) {
+		// Amounts are always exact with the scale they were received with, so no rounding is needed
+		return BigDecimal.valueOf( units / POWERS_OF_TEN[ Statistics.SCALE - scale ], scale );
+	}
+
+	/**
+	 * Same overflow check {@link Math#addExact(long, long)} does, without having to catch an exception
+	 *
+	 * @param sum
+	 * 	{@code a + b}
+	 * @return whether {@code a + b} overflowed
+	 */
+	public static boolean overflows( long a, long b, long sum ) {
+		return ( ( a ^ sum ) & ( b ^ sum ) ) < 0;
+	}
+}
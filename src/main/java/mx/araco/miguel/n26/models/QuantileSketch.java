@@ -0,0 +1,180 @@
+package mx.araco.miguel.n26.models;
+
+/**
+ * Mergeable sketch of the distribution of a set of amounts, to estimate their quantiles (e.g. the median or the
+ * 99th percentile) without keeping the amounts themselves.
+ * <p>
+ * It follows the DDSketch approach: amounts are counted in logarithmic bins, so the quantiles estimated have a
+ * relative error of at most {@link QuantileSketch#RELATIVE_ACCURACY} regardless of the distribution. Sketches
+ * are merged (and unmerged) by adding (or subtracting) the counts of their bins.
+ * <p>
+ * Only the bins that were used are stored, as two parallel arrays sorted by bin, so a sketch with few amounts
+ * takes little memory. Emptying a sketch keeps its arrays, so sketches that are reused don't allocate again
+ * once they reach the number of bins their amounts usually span.
+ *
+ * @author MiguelAraCo
+ */
+public class QuantileSketch {
+	/**
+	 * Max relative error of the quantiles estimated
+	 */
+	public static final double RELATIVE_ACCURACY = 0.01;
+
+	private static final double GAMMA = ( 1 + RELATIVE_ACCURACY ) / ( 1 - RELATIVE_ACCURACY );
+	private static final double LOG_GAMMA = Math.log( GAMMA );
+	/**
+	 * Amounts smaller than this (in absolute value) are counted as zeros
+	 */
+	private static final double MIN_VALUE = 1e-9;
+	/**
+	 * Added to the bin of the amounts so the keys of positive amounts are always positive, and the ones of
+	 * negative amounts negative. The bin of {@link QuantileSketch#MIN_VALUE} is around -1036
+	 */
+	private static final int KEY_OFFSET = 2048;
+	private static final int ZERO_KEY = 0;
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18 };
+	private static final int[] NO_KEYS = {};
+	private static final long[] NO_COUNTS = {};
+
+	/**
+	 * Keys of the bins used, in ascending order (which is also the order of their amounts)
+	 */
+	private int[] keys = NO_KEYS;
+	private long[] counts = NO_COUNTS;
+	private int size;
+	private long count;
+
+	public void add( double amount ) {
+		addToBin( getKey( amount ), 1 );
+	}
+
+	/**
+	 * Adds an amount given as its unscaled value and scale (see {@link Statistics#add(long, int)})
+	 */
+	public void add( long amount, int scale ) {
+		if ( scale >= 0 && scale < POWERS_OF_TEN.length ) add( amount / POWERS_OF_TEN[ scale ] );
+		else add( amount * Math.pow( 10, - scale ) );
+	}
+
+	/**
+	 * Adds the amounts of another sketch to this one
+	 */
+	public void add( QuantileSketch sketch ) {
+		merge( sketch, 1 );
+	}
+
+	/**
+	 * Removes the amounts of a sketch that was previously added to this one
+	 */
+	public void remove( QuantileSketch sketch ) {
+		merge( sketch, - 1 );
+	}
+
+	/**
+	 * Empties the sketch, keeping the memory it already allocated
+	 */
+	public void reset() {
+		this.size = 0;
+		this.count = 0;
+	}
+
+	/**
+	 * @return the number of amounts in the sketch
+	 */
+	public long getCount() { return count; }
+
+	/**
+	 * Estimates a quantile of the amounts in the sketch
+	 *
+	 * @param quantile
+	 * 	between 0 and 1 (e.g. 0.99 for the 99th percentile)
+	 * @return an amount within {@link QuantileSketch#RELATIVE_ACCURACY} of the actual quantile, or
+	 * {@link Double#NaN} if the sketch is empty
+	 */
+	public double getQuantile( double quantile ) {
+		if ( this.count == 0 ) return Double.NaN;
+
+		long rank = (long) ( quantile * ( this.count - 1 ) );
+		long accumulated = 0;
+		for ( int i = 0; i < this.size; i++ ) {
+			accumulated += this.counts[ i ];
+			if ( accumulated > rank ) return getAmount( this.keys[ i ] );
+		}
+		return getAmount( this.keys[ this.size - 1 ] );
+	}
+
+	/**
+	 * @return an estimation of the bytes the sketch takes in the heap (object headers and arrays included)
+	 */
+	public long getFootprint() {
+		// Object header + fields, and the header + elements of each array
+		return 32 + ( 16 + 4L * this.keys.length ) + ( 16 + 8L * this.counts.length );
+	}
+
+	private void merge( QuantileSketch sketch, int sign ) {
+		int position = 0;
+		for ( int i = 0; i < sketch.size; i++ ) {
+			int key = sketch.keys[ i ];
+			while ( position < this.size && this.keys[ position ] < key ) position++;
+
+			long count = sign * sketch.counts[ i ];
+			if ( position < this.size && this.keys[ position ] == key ) this.counts[ position ] += count;
+			else insert( position, key, count );
+		}
+		this.count += sign * sketch.count;
+	}
+
+	private void addToBin( int key, long count ) {
+		int low = 0;
+		int high = this.size - 1;
+		while ( low <= high ) {
+			int middle = ( low + high ) >>> 1;
+			int current = this.keys[ middle ];
+			if ( current < key ) low = middle + 1;
+			else if ( current > key ) high = middle - 1;
+			else {
+				this.counts[ middle ] += count;
+				this.count += count;
+				return;
+			}
+		}
+
+		insert( low, key, count );
+		this.count += count;
+	}
+
+	private void insert( int position, int key, long count ) {
+		if ( this.size == this.keys.length ) {
+			int capacity = Math.max( 4, this.size * 2 );
+			int[] keys = new int[ capacity ];
+			long[] counts = new long[ capacity ];
+			System.arraycopy( this.keys, 0, keys, 0, this.size );
+			System.arraycopy( this.counts, 0, counts, 0, this.size );
+			this.keys = keys;
+			this.counts = counts;
+		}
+
+		System.arraycopy( this.keys, position, this.keys, position + 1, this.size - position );
+		System.arraycopy( this.counts, position, this.counts, position + 1, this.size - position );
+		this.keys[ position ] = key;
+		this.counts[ position ] = count;
+		this.size++;
+	}
+
+	private static int getKey( double amount ) {
+		double magnitude = Math.abs( amount );
+		if ( ! ( magnitude >= MIN_VALUE ) ) return ZERO_KEY;
+
+		int key = (int) Math.ceil( Math.log( magnitude ) / LOG_GAMMA ) + KEY_OFFSET;
+		return amount > 0 ? key : - key;
+	}
+
+	private static double getAmount( int key ) {
+		if ( key == ZERO_KEY ) return 0;
+
+		// The middle of the bin (in relative terms), so the error is the same to both of its ends
+		double magnitude = 2 * Math.pow( GAMMA, Math.abs( key ) - KEY_OFFSET ) / ( GAMMA + 1 );
+		return key > 0 ? magnitude : - magnitude;
+	}
+}
@@ -0,0 +1,41 @@
+package mx.araco.miguel.n26.models;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.time.Duration;
+
+/**
+ * Sample and sampling periods the statistics are currently calculated with, and whether the sample period follows
+ * the rate of transactions. Fields left null when changing them keep their current value
+ *
+ * @author MiguelAraCo
+ */
+@JsonInclude( JsonInclude.Include.NON_NULL )
+public class SamplingLayout {
+	@JsonFormat( shape = JsonFormat.Shape.STRING )
+	private Duration samplePeriod;
+	@JsonFormat( shape = JsonFormat.Shape.STRING )
+	private Duration samplingPeriod;
+	private Boolean adaptive;
+
+	public SamplingLayout() {}
+
+	public SamplingLayout( Duration samplePeriod, Duration samplingPeriod, Boolean adaptive ) {
+		this.samplePeriod = samplePeriod;
+		this.samplingPeriod = samplingPeriod;
+		this.adaptive = adaptive;
+	}
+
+	public Duration getSamplePeriod() { return samplePeriod; }
+
+	public void setSamplePeriod( Duration samplePeriod ) { this.samplePeriod = samplePeriod; }
+
+	public Duration getSamplingPeriod() { return samplingPeriod; }
+
+	public void setSamplingPeriod( Duration samplingPeriod ) { this.samplingPeriod = samplingPeriod; }
+
+	public Boolean getAdaptive() { return adaptive; }
+
+	public void setAdaptive( Boolean adaptive ) { this.adaptive = adaptive; }
+}
@@ -1,58 +1,429 @@
 package mx.araco.miguel.n26.models;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.Map;
 
 /**
+ * Statistics (sum, average, min, max and count) of a set of amounts.
+ * <p>
+ * Amounts are accumulated as {@code long} minor units (e.g. cents, see {@link Statistics#SCALE}) so adding
+ * them doesn't allocate. If an amount can't be represented that way (it has more decimals than
+ * {@link Statistics#SCALE} or it's too big) or the sum overflows, the statistics switch to {@link BigDecimal}
+ * arithmetic until the amounts that needed it are removed (see {@link Statistics#remove(Statistics)}).
+ * <p>
+ * The amounts are counted by the number of decimals they were received with, so the sum keeps the highest number
+ * of decimals of the amounts it currently includes, as if they were added up as {@link BigDecimal}s.
+ * <p>
+ * The average is only calculated when it's read. Quantiles aren't calculated by the statistics themselves, they
+ * are set by the services that keep a {@link QuantileSketch} of the amounts.
+ *
  * @author MiguelAraCo
  */
+@JsonPropertyOrder( { "avg", "sum", "min", "max", "count", "quantiles" } )
 public class Statistics {
-	private BigDecimal avg = new BigDecimal( "0" );
-	private BigDecimal sum = new BigDecimal( "0" );
-	private BigDecimal min = null;
-	private BigDecimal max = null;
-	private Long count = 0L;
+	/**
+	 * Number of decimals of the minor units used to accumulate amounts
+	 */
+	public static final int SCALE = 2;
+
+	private long count = 0L;
+
+	// Fixed point representation, the scales keep track of the decimals the amounts were received with
+	private long sumUnits;
+	private long minUnits;
+	private int minScale;
+	private long maxUnits;
+	private int maxScale;
+
+	// Number of amounts with 0, 1 and 2 decimals that could be represented in minor units. The rest of the amounts
+	// (only possible in the BigDecimal representation) aren't counted
+	private long scale0Count;
+	private long scale1Count;
+	private long scale2Count;
+
+	// BigDecimal representation
+	private boolean decimal = false;
+	private BigDecimal sum;
+	private BigDecimal min;
+	private BigDecimal max;
+
+	private BigDecimal avg;
+
+	private Map<String, BigDecimal> quantiles;
 
 	public void add( BigDecimal occurrence ) {
+		this.avg = null;
+
+		int scale = occurrence.scale();
+		long units = MinorUnits.of( occurrence );
+		if ( ! this.decimal ) {
+			if ( units != MinorUnits.NO_UNITS && addUnits( units, scale ) ) return;
+			toDecimal();
+		}
+
 		if ( this.min == null || occurrence.compareTo( this.min ) < 0 ) this.min = occurrence;
 		if ( this.max == null || occurrence.compareTo( this.max ) > 0 ) this.max = occurrence;
 		this.count++;
 		this.sum = this.sum.add( occurrence );
-		this.avg = this.sum.divide( new BigDecimal( this.count ), 2, RoundingMode.HALF_EVEN );
+		if ( units != MinorUnits.NO_UNITS ) countScale( scale, 1 );
+	}
+
+	/**
+	 * Adds an amount given as its unscaled value and scale, so callers that already parsed it don't need to
+	 * create a {@link BigDecimal}. Equivalent to {@code add( BigDecimal.valueOf( amount, scale ) )}
+	 */
+	public void add( long amount, int scale ) {
+		if ( ! this.decimal ) {
+			long units = MinorUnits.of( amount, scale );
+			if ( units != MinorUnits.NO_UNITS ) {
+				this.avg = null;
+				if ( addUnits( units, scale ) ) return;
+			}
+		}
+
+		add( BigDecimal.valueOf( amount, scale ) );
+	}
+
+	/**
+	 * Adds a sample of statistics expressed in minor units (see {@link Statistics#SCALE})
+	 *
+	 * @param count
+	 * 	number of amounts in the sample, if 0 the sample is ignored
+	 * @param sum
+	 * 	sum of the amounts of the sample
+	 * @param min
+	 * 	minimum amount of the sample
+	 * @param max
+	 * 	maximum amount of the sample
+	 */
+	public void addUnits( long count, long sum, long min, long max ) {
+		if ( count == 0 ) return;
+		this.avg = null;
+
+		addUnits( count, sum, SCALE, min, SCALE, max, SCALE );
+	}
+
+	/**
+	 * Same as {@link #addUnits(long, long, long, long)}, for amounts received with fewer decimals than
+	 * {@link Statistics#SCALE}
+	 *
+	 * @param sumScale
+	 * 	highest number of decimals of the amounts of the sample
+	 * @param minScale
+	 * 	decimals the minimum amount was received with
+	 * @param maxScale
+	 * 	decimals the maximum amount was received with
+	 */
+	public void addUnits( long count, long sum, int sumScale, long min, int minScale, long max, int maxScale ) {
+		if ( count == 0 ) return;
+		this.avg = null;
+
+		if ( ! this.decimal && accumulate( count, sum, min, minScale, max, maxScale ) ) {
+			countScale( sumScale, count );
+			return;
+		}
+
+		Statistics sample = new Statistics();
+		sample.accumulate( count, sum, min, minScale, max, maxScale );
+		sample.countScale( sumScale, count );
+		add( sample );
+	}
+
+	private boolean addUnits( long units, int scale ) {
+		if ( ! accumulate( 1, units, units, scale, units, scale ) ) return false;
+
+		countScale( scale, 1 );
+		return true;
+	}
+
+	private boolean accumulate( long count, long sum, long min, int minScale, long max, int maxScale ) {
+		long newSum = this.sumUnits + sum;
+		if ( MinorUnits.overflows( this.sumUnits, sum, newSum ) ) return false;
+
+		if ( this.count == 0 || min < this.minUnits ) {
+			this.minUnits = min;
+			this.minScale = minScale;
+		}
+		if ( this.count == 0 || max > this.maxUnits ) {
+			this.maxUnits = max;
+			this.maxScale = maxScale;
+		}
+		this.sumUnits = newSum;
+		this.count += count;
+		return true;
+	}
+
+	private void countScale( int scale, long count ) {
+		switch ( scale ) {
+			case 0:
+				this.scale0Count += count;
+				break;
+			case 1:
+				this.scale1Count += count;
+				break;
+			default:
+				this.scale2Count += count;
+		}
+	}
+
+	private void countScales( Statistics sample, long sign ) {
+		this.scale0Count += sign * sample.scale0Count;
+		this.scale1Count += sign * sample.scale1Count;
+		this.scale2Count += sign * sample.scale2Count;
+	}
+
+	/**
+	 * @return the highest number of decimals of the amounts counted
+	 */
+	private int getSumScale() {
+		if ( this.scale2Count != 0 ) return 2;
+		return this.scale1Count != 0 ? 1 : 0;
 	}
 
 	public void add( Statistics sample ) {
+		this.avg = null;
+
+		if ( ! this.decimal && ! sample.decimal ) {
+			if ( sample.count == 0 ) return;
+			if ( accumulate( sample.count, sample.sumUnits, sample.minUnits, sample.minScale, sample.maxUnits, sample.maxScale ) ) {
+				countScales( sample, 1 );
+				return;
+			}
+		}
+		if ( ! this.decimal ) toDecimal();
+
 		if ( sample.getMin() != null ) {
-			if ( this.getMin() == null || sample.getMin().compareTo( this.getMin() ) < 0 ) this.setMin( sample.getMin() );
+			if ( this.min == null || sample.getMin().compareTo( this.min ) < 0 ) this.min = sample.getMin();
 		}
 
 		if ( sample.getMax() != null ) {
-			if ( this.getMax() == null || sample.getMax().compareTo( this.getMax() ) > 0 ) this.setMax( sample.getMax() );
+			if ( this.max == null || sample.getMax().compareTo( this.max ) > 0 ) this.max = sample.getMax();
+		}
+
+		this.sum = this.sum.add( sample.getSum() );
+		this.count += sample.getCount();
+		countScales( sample, 1 );
+	}
+
+	/**
+	 * Removes the sum and count of a sample previously added to these statistics. The min and max can't be
+	 * reverted so they are left untouched, use {@link Statistics#setExtremes(Statistics, Statistics)} to replace
+	 * them.
+	 * <p>
+	 * The sum goes back to the decimals of the amounts left, and to minor units once all of them can be represented
+	 * that way again
+	 */
+	public void remove( Statistics sample ) {
+		this.avg = null;
+		countScales( sample, - 1 );
+
+		if ( ! this.decimal && ! sample.decimal ) {
+			long newSum = this.sumUnits - sample.sumUnits;
+			// Same overflow check Math.subtractExact does
+			if ( ( ( this.sumUnits ^ sample.sumUnits ) & ( this.sumUnits ^ newSum ) ) >= 0 ) {
+				this.sumUnits = newSum;
+				this.count -= sample.count;
+				if ( this.count == 0 ) clearAmounts();
+				return;
+			}
+		}
+		if ( ! this.decimal ) toDecimal();
+
+		this.sum = this.sum.subtract( sample.getSum() );
+		this.count -= sample.getCount();
+		if ( this.count == 0 ) clearAmounts();
+		else if ( this.scale0Count + this.scale1Count + this.scale2Count == this.count ) toUnits();
+	}
+
+	/**
+	 * Replaces the min and max with the ones of the samples provided
+	 *
+	 * @param minSample
+	 * 	statistics holding the min to use, null if there's none
+	 * @param maxSample
+	 * 	statistics holding the max to use, null if there's none
+	 */
+	public void setExtremes( Statistics minSample, Statistics maxSample ) {
+		if ( ! this.decimal && minSample != null && ! minSample.decimal && maxSample != null && ! maxSample.decimal ) {
+			this.minUnits = minSample.minUnits;
+			this.minScale = minSample.minScale;
+			this.maxUnits = maxSample.maxUnits;
+			this.maxScale = maxSample.maxScale;
+			return;
+		}
+		if ( minSample == null && maxSample == null && this.count == 0 ) return;
+
+		toDecimal();
+		this.min = minSample != null ? minSample.getMin() : null;
+		this.max = maxSample != null ? maxSample.getMax() : null;
+	}
+
+	/**
+	 * Compares the min of these statistics with the one of another statistics. Both need to have amounts
+	 */
+	public int compareMinTo( Statistics other ) {
+		if ( ! this.decimal && ! other.decimal ) return Long.compare( this.minUnits, other.minUnits );
+		return getMin().compareTo( other.getMin() );
+	}
+
+	/**
+	 * Compares the max of these statistics with the one of another statistics. Both need to have amounts
+	 */
+	public int compareMaxTo( Statistics other ) {
+		if ( ! this.decimal && ! other.decimal ) return Long.compare( this.maxUnits, other.maxUnits );
+		return getMax().compareTo( other.getMax() );
+	}
+
+	/**
+	 * Switches the statistics to {@link BigDecimal} arithmetic
+	 */
+	private void toDecimal() {
+		if ( this.decimal ) return;
+
+		this.sum = getSum();
+		this.min = getMin();
+		this.max = getMax();
+		this.decimal = true;
+	}
+
+	/**
+	 * Switches the statistics back to minor units, if the sum can be represented that way. Extremes that can't
+	 * (they are the ones of amounts already removed) are dropped, so the next amount added replaces them
+	 */
+	private void toUnits() {
+		long sumUnits = toUnits( this.sum );
+		if ( sumUnits == MinorUnits.NO_UNITS ) return;
+
+		long minUnits = this.min != null && this.min.scale() >= 0 && this.min.scale() <= SCALE ? toUnits( this.min ) : MinorUnits.NO_UNITS;
+		long maxUnits = this.max != null && this.max.scale() >= 0 && this.max.scale() <= SCALE ? toUnits( this.max ) : MinorUnits.NO_UNITS;
+		this.sumUnits = sumUnits;
+		this.minUnits = minUnits != MinorUnits.NO_UNITS ? minUnits : Long.MAX_VALUE;
+		this.minScale = minUnits != MinorUnits.NO_UNITS ? this.min.scale() : SCALE;
+		this.maxUnits = maxUnits != MinorUnits.NO_UNITS ? maxUnits : Long.MIN_VALUE;
+		this.maxScale = maxUnits != MinorUnits.NO_UNITS ? this.max.scale() : SCALE;
+		this.decimal = false;
+		this.sum = null;
+		this.min = null;
+		this.max = null;
+	}
+
+	/**
+	 * @return the amount in minor units, or {@link #NO_UNITS} if it has more decimals or doesn't fit in a long
+	 */
+	private static long toUnits( BigDecimal amount ) {
+		try {
+			return amount.movePointRight( SCALE ).longValueExact();
+		} catch ( ArithmeticException e ) {
+			return MinorUnits.NO_UNITS;
 		}
+	}
+
+	/**
+	 * Empties the amounts, keeping the quantiles
+	 */
+	private void clearAmounts() {
+		this.count = 0L;
+		this.sumUnits = 0L;
+		this.scale0Count = 0L;
+		this.scale1Count = 0L;
+		this.scale2Count = 0L;
+		this.decimal = false;
+		this.sum = null;
+		this.min = null;
+		this.max = null;
+		this.avg = null;
+	}
 
-		this.setSum( this.getSum().add( sample.getSum() ) );
-		this.setCount( this.getCount() + sample.getCount() );
-		if ( this.getCount() != 0 ) this.setAvg( this.getSum().divide( new BigDecimal( this.getCount() ), 2, RoundingMode.HALF_EVEN ) );
+	/**
+	 * Returns the statistics to their initial (empty) state so the object can be reused
+	 */
+	public void reset() {
+		clearAmounts();
+		this.quantiles = null;
+	}
+
+	public BigDecimal getAvg() {
+		if ( this.avg != null ) return this.avg;
+		if ( this.count == 0 ) return BigDecimal.ZERO;
+		if ( this.decimal ) return this.sum.divide( BigDecimal.valueOf( this.count ), 2, RoundingMode.HALF_EVEN );
 
+		return BigDecimal.valueOf( divideHalfEven( this.sumUnits, this.count ), SCALE );
 	}
 
-	public BigDecimal getAvg() { return avg; }
+	private static long divideHalfEven( long dividend, long divisor ) {
+		long quotient = dividend / divisor;
+		long remainder = Math.abs( dividend % divisor );
+
+		// Compare the remainder against half the divisor without overflowing
+		long comparison = remainder - ( divisor - remainder );
+		if ( comparison > 0 || ( comparison == 0 && ( quotient & 1 ) != 0 ) ) {
+			quotient += dividend < 0 ? - 1 : 1;
+		}
+		return quotient;
+	}
 
 	public void setAvg( BigDecimal avg ) { this.avg = avg; }
 
-	public BigDecimal getSum() { return sum; }
+	public BigDecimal getSum() {
+		if ( this.decimal ) return this.sum;
+		if ( this.count == 0 ) return BigDecimal.ZERO;
 
-	public void setSum( BigDecimal sum ) { this.sum = sum; }
+		return MinorUnits.toBigDecimal( this.sumUnits, getSumScale() );
+	}
 
-	public BigDecimal getMin() { return min; }
+	public void setSum( BigDecimal sum ) {
+		toDecimal();
+		this.sum = sum;
+	}
 
-	public void setMin( BigDecimal min ) { this.min = min; }
+	public BigDecimal getMin() {
+		if ( this.decimal ) return this.min;
+		if ( this.count == 0 ) return null;
 
-	public BigDecimal getMax() { return max; }
+		return MinorUnits.toBigDecimal( this.minUnits, this.minScale );
+	}
 
-	public void setMax( BigDecimal max ) { this.max = max; }
+	public void setMin( BigDecimal min ) {
+		toDecimal();
+		this.min = min;
+	}
+
+	public BigDecimal getMax() {
+		if ( this.decimal ) return this.max;
+		if ( this.count == 0 ) return null;
+
+		return MinorUnits.toBigDecimal( this.maxUnits, this.maxScale );
+	}
+
+	public void setMax( BigDecimal max ) {
+		toDecimal();
+		this.max = max;
+	}
 
 	public Long getCount() { return count; }
 
-	public void setCount( Long count ) { this.count = count; }
+	/**
+	 * @return estimations of quantiles of the amounts, by name (e.g. {@code p99}), or null if they weren't
+	 * calculated
+	 */
+	@JsonInclude( JsonInclude.Include.NON_NULL )
+	public Map<String, BigDecimal> getQuantiles() { return quantiles; }
+
+	public void setQuantiles( Map<String, BigDecimal> quantiles ) { this.quantiles = quantiles; }
+
+	/**
+	 * @return true if no amounts have been added to the statistics
+	 */
+	@JsonIgnore
+	public boolean isEmpty() { return this.count == 0 && ( ! this.decimal || this.min == null ); }
+
+	public void setCount( Long count ) {
+		toDecimal();
+		this.count = count;
+	}
 }
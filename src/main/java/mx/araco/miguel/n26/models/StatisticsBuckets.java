@@ -0,0 +1,223 @@
+package mx.araco.miguel.n26.models;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Statistics of a set of buckets of time, keyed by their bucket number (the number of bucket periods elapsed since
+ * the epoch), so the buckets of different nodes can be merged bucket by bucket.
+ * <p>
+ * Buckets can be written to (and read from) a compact binary form: bucket numbers are delta encoded, and counts
+ * and amounts (in minor units, see {@link Statistics#SCALE}) are written as variable length integers, followed by
+ * a byte with the decimals of the sum, min and max (so they're read back with the decimals they were received with),
+ * so a bucket usually takes less than 20 bytes. Buckets with amounts that can't be represented in minor units are
+ * written with their {@link BigDecimal}s instead.
+ *
+ * @author MiguelAraCo
+ */
+public class StatisticsBuckets {
+	/**
+	 * "N26B", followed by the version of the format
+	 */
+	private static final int MAGIC = 0x4E323642;
+	private static final int VERSION = 2;
+
+	private static final byte UNITS = 0;
+	private static final byte DECIMALS = 1;
+
+	/**
+	 * Bits of each scale in the byte of the scales of a bucket of {@link #UNITS}
+	 */
+	private static final int SCALE_BITS = 2;
+	private static final int SCALE_MASK = ( 1 << SCALE_BITS ) - 1;
+
+	private final long periodNanos;
+	private final NavigableMap<Long, Statistics> buckets = new TreeMap<>();
+
+	/**
+	 * @param periodNanos
+	 * 	period of time each bucket covers
+	 */
+	public StatisticsBuckets( long periodNanos ) {
+		this.periodNanos = periodNanos;
+	}
+
+	public long getPeriodNanos() { return periodNanos; }
+
+	/**
+	 * @return the statistics of each bucket, by bucket number
+	 */
+	public NavigableMap<Long, Statistics> getBuckets() { return Collections.unmodifiableNavigableMap( this.buckets ); }
+
+	/**
+	 * Adds the statistics of a bucket, merging them with the ones already added for the same bucket (if any).
+	 * Empty statistics are ignored
+	 */
+	public void add( long bucket, Statistics statistics ) {
+		if ( statistics.isEmpty() ) return;
+
+		Statistics current = this.buckets.get( bucket );
+		if ( current == null ) {
+			current = new Statistics();
+			this.buckets.put( bucket, current );
+		}
+		current.add( statistics );
+	}
+
+	/**
+	 * Merges the buckets provided with these ones, bucket by bucket
+	 *
+	 * @throws IllegalArgumentException
+	 * 	if the buckets have a different period
+	 */
+	public void add( StatisticsBuckets other ) {
+		if ( other.periodNanos != this.periodNanos ) throw new IllegalArgumentException( "Only buckets with the same period can be merged" );
+
+		for ( Map.Entry<Long, Statistics> bucket : other.buckets.entrySet() ) add( bucket.getKey(), bucket.getValue() );
+	}
+
+	/**
+	 * @param oldestBucket
+	 * 	number of the oldest bucket to include
+	 * @return the statistics of the buckets from the one provided on
+	 */
+	public Statistics getStatistics( long oldestBucket ) {
+		Statistics aggregate = new Statistics();
+		for ( Statistics bucket : this.buckets.tailMap( oldestBucket, true ).values() ) aggregate.add( bucket );
+		return aggregate;
+	}
+
+	public void writeTo( OutputStream output ) throws IOException {
+		DataOutputStream data = new DataOutputStream( output );
+		data.writeInt( MAGIC );
+		data.writeByte( VERSION );
+		writeVarLong( data, this.periodNanos );
+		writeVarLong( data, this.buckets.size() );
+
+		long previous = 0;
+		for ( Map.Entry<Long, Statistics> bucket : this.buckets.entrySet() ) {
+			Statistics statistics = bucket.getValue();
+			writeVarLong( data, zigZag( bucket.getKey() - previous ) );
+			writeVarLong( data, statistics.getCount() );
+			previous = bucket.getKey();
+
+			BigDecimal sum = statistics.getSum();
+			BigDecimal min = statistics.getMin();
+			BigDecimal max = statistics.getMax();
+			if ( isUnits( sum ) && isUnits( min ) && isUnits( max ) ) {
+				data.writeByte( UNITS );
+				writeVarLong( data, zigZag( toUnits( sum ) ) );
+				writeVarLong( data, zigZag( toUnits( min ) ) );
+				writeVarLong( data, zigZag( toUnits( max ) ) );
+				data.writeByte( sum.scale() | min.scale() << SCALE_BITS | max.scale() << 2 * SCALE_BITS );
+			} else {
+				data.writeByte( DECIMALS );
+				writeDecimal( data, sum );
+				writeDecimal( data, min );
+				writeDecimal( data, max );
+			}
+		}
+		data.flush();
+	}
+
+	/**
+	 * @throws IOException
+	 * 	if the input isn't in the format written by {@link StatisticsBuckets#writeTo(OutputStream)}
+	 */
+	public static StatisticsBuckets readFrom( InputStream input ) throws IOException {
+		DataInputStream data = new DataInputStream( input );
+		if ( data.readInt() != MAGIC || data.readByte() != VERSION ) throw new IOException( "Not a snapshot of statistics buckets" );
+
+		StatisticsBuckets snapshot = new StatisticsBuckets( readVarLong( data ) );
+		long size = readVarLong( data );
+
+		long bucket = 0;
+		for ( long i = 0; i < size; i++ ) {
+			bucket += unZigZag( readVarLong( data ) );
+			long count = readVarLong( data );
+
+			Statistics statistics = new Statistics();
+			byte type = data.readByte();
+			if ( type == UNITS ) {
+				long sum = unZigZag( readVarLong( data ) );
+				long min = unZigZag( readVarLong( data ) );
+				long max = unZigZag( readVarLong( data ) );
+				int scales = data.readByte();
+				int sumScale = scales & SCALE_MASK;
+				int minScale = scales >> SCALE_BITS & SCALE_MASK;
+				int maxScale = scales >> 2 * SCALE_BITS & SCALE_MASK;
+				if ( sumScale > Statistics.SCALE || minScale > Statistics.SCALE || maxScale > Statistics.SCALE ) throw new IOException( "Invalid decimals of a bucket: " + scales );
+				statistics.addUnits( count, sum, sumScale, min, minScale, max, maxScale );
+			} else if ( type == DECIMALS ) {
+				statistics.setSum( readDecimal( data ) );
+				statistics.setMin( readDecimal( data ) );
+				statistics.setMax( readDecimal( data ) );
+				statistics.setCount( count );
+			} else {
+				throw new IOException( "Unknown type of bucket: " + type );
+			}
+			snapshot.buckets.put( bucket, statistics );
+		}
+		return snapshot;
+	}
+
+	private static boolean isUnits( BigDecimal amount ) {
+		return amount != null && amount.scale() <= Statistics.SCALE && amount.scale() >= 0 && amount.precision() - amount.scale() <= 16;
+	}
+
+	private static long toUnits( BigDecimal amount ) {
+		return amount.movePointRight( Statistics.SCALE ).longValueExact();
+	}
+
+	private static void writeDecimal( DataOutputStream data, BigDecimal amount ) throws IOException {
+		byte[] unscaled = amount.unscaledValue().toByteArray();
+		data.writeInt( amount.scale() );
+		writeVarLong( data, unscaled.length );
+		data.write( unscaled );
+	}
+
+	private static BigDecimal readDecimal( DataInputStream data ) throws IOException {
+		int scale = data.readInt();
+		byte[] unscaled = new byte[ (int) readVarLong( data ) ];
+		data.readFully( unscaled );
+		return new BigDecimal( new BigInteger( unscaled ), scale );
+	}
+
+	private static long zigZag( long value ) {
+		return ( value << 1 ) ^ ( value >> 63 );
+	}
+
+	private static long unZigZag( long value ) {
+		return ( value >>> 1 ) ^ - ( value & 1 );
+	}
+
+	/**
+	 * Writes 7 bits per byte, the highest bit tells if more bytes follow
+	 */
+	private static void writeVarLong( DataOutputStream data, long value ) throws IOException {
+		while ( ( value & ~0x7FL ) != 0 ) {
+			data.writeByte( (int) ( ( value & 0x7F ) | 0x80 ) );
+			value >>>= 7;
+		}
+		data.writeByte( (int) value );
+	}
+
+	private static long readVarLong( DataInputStream data ) throws IOException {
+		long value = 0;
+		for ( int shift = 0; shift < 64; shift += 7 ) {
+			byte current = data.readByte();
+			value |= (long) ( current & 0x7F ) << shift;
+			if ( ( current & 0x80 ) == 0 ) return value;
+		}
+		throw new IOException( "Malformed variable length integer" );
+	}
+}
@@ -17,17 +17,29 @@ public class Transaction {
 	private final BigDecimal amount;
 	@NotNull
 	private final Instant timestamp;
+	/**
+	 * Optional key (e.g. a merchant or account id) to group the transaction's statistics by
+	 */
+	private final String key;
+
+	public Transaction( BigDecimal amount, Instant timestamp ) {
+		this( amount, timestamp, null );
+	}
 
 	@JsonCreator
 	public Transaction(
 		@JsonProperty( "amount" ) BigDecimal amount,
-		@JsonProperty( "timestamp" ) Instant timestamp
+		@JsonProperty( "timestamp" ) Instant timestamp,
+		@JsonProperty( "key" ) String key
 	) {
 		this.amount = amount;
 		this.timestamp = timestamp;
+		this.key = key;
 	}
 
 	public BigDecimal getAmount() { return amount; }
 
 	public Instant getTimestamp() { return timestamp; }
+
+	public String getKey() { return key; }
 }
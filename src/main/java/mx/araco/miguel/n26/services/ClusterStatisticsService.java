@@ -0,0 +1,201 @@
+package mx.araco.miguel.n26.services;
+
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.StatisticsBuckets;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregates the statistics of several nodes, each one receiving part of the transactions (e.g. behind a load
+ * balancer), so the statistics of the whole cluster can be served by any node that enables it (see
+ * {@link SamplingStatisticsServiceConfiguration.Cluster}).
+ * <p>
+ * Peers are polled in the background, once per poll interval, for the snapshot of their samples (see
+ * {@link StatisticsService#getBuckets()}), which they serve in the binary form of {@link StatisticsBuckets}. The
+ * snapshots are merged with the samples of the local {@link StatisticsService} bucket by bucket, and only the
+ * buckets still in the sampling period when the statistics are requested are included, so a snapshot never
+ * brings back transactions that expired since it was taken. Snapshots older than the max staleness (e.g. of a
+ * peer that went down) are left out, so the statistics of the cluster miss at most the transactions a peer
+ * received since its last snapshot, up to the max staleness.
+ * <p>
+ * Every node needs to use the same sample period, peers with a different one are left out. Nodes don't need
+ * any coordination besides their list of peers: each aggregating node polls the others on its own.
+ *
+ * @author MiguelAraCo
+ */
+@Service
+@ConditionalOnProperty( prefix = "mx.araco.miguel.n26.cluster", name = "enabled", havingValue = "true" )
+public class ClusterStatisticsService {
+	/**
+	 * Path, relative to the base URL of a peer, of the snapshot of its samples
+	 */
+	public static final String BUCKETS_PATH = "/cluster/buckets";
+	/**
+	 * Media type of the snapshots, in the binary form of {@link StatisticsBuckets}
+	 */
+	public static final String BUCKETS_MEDIA_TYPE = "application/vnd.n26.statistics-buckets";
+
+	/**
+	 * Statistics of the cluster, and the peers included in them
+	 */
+	public static final class Aggregate {
+		private final Statistics statistics;
+		private final int peers;
+		private final int totalPeers;
+		private final long stalenessMillis;
+
+		Aggregate( Statistics statistics, int peers, int totalPeers, long stalenessMillis ) {
+			this.statistics = statistics;
+			this.peers = peers;
+			this.totalPeers = totalPeers;
+			this.stalenessMillis = stalenessMillis;
+		}
+
+		public Statistics getStatistics() { return statistics; }
+
+		/**
+		 * @return number of peers whose snapshots were included
+		 */
+		public int getPeers() { return peers; }
+
+		public int getTotalPeers() { return totalPeers; }
+
+		/**
+		 * @return age of the oldest snapshot included
+		 */
+		public long getStalenessMillis() { return stalenessMillis; }
+	}
+
+	private static final class Snapshot {
+		private final StatisticsBuckets buckets;
+		/**
+		 * {@link System#nanoTime()} of the moment the snapshot was received
+		 */
+		private final long receivedAt;
+
+		Snapshot( StatisticsBuckets buckets, long receivedAt ) {
+			this.buckets = buckets;
+			this.receivedAt = receivedAt;
+		}
+	}
+
+	private final StatisticsService statisticsService;
+	private final List<String> peers;
+	private final long samplingPeriodNanos;
+	private final EpochClock clock;
+	private final long pollIntervalNanos;
+	private final long maxStalenessNanos;
+
+	private final ConcurrentMap<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService poller;
+
+	@Autowired
+	public ClusterStatisticsService( StatisticsService statisticsService, SamplingStatisticsServiceConfiguration configuration ) {
+		SamplingStatisticsServiceConfiguration.Cluster cluster = configuration.getCluster();
+
+		this.statisticsService = statisticsService;
+		this.peers = new ArrayList<>( cluster.getPeers() );
+		this.samplingPeriodNanos = configuration.getSamplingPeriod().toNanos();
+		this.clock = configuration.getEpochClock();
+		this.pollIntervalNanos = cluster.getPollInterval().toNanos();
+		this.maxStalenessNanos = cluster.getMaxStaleness().toNanos();
+	}
+
+	@PostConstruct
+	public void startPolling() {
+		if ( this.poller != null || this.peers.isEmpty() ) return;
+
+		this.poller = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread thread = new Thread( runnable, "cluster-poller" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		this.poller.scheduleWithFixedDelay( this::poll, 0, this.pollIntervalNanos, TimeUnit.NANOSECONDS );
+	}
+
+	@PreDestroy
+	public void stopPolling() {
+		if ( this.poller == null ) return;
+
+		this.poller.shutdownNow();
+		this.poller = null;
+	}
+
+	/**
+	 * Requests a snapshot from every peer, one after the other. The peers that fail to answer within a poll
+	 * interval keep their previous snapshot, until it gets too old
+	 */
+	public void poll() {
+		for ( String peer : this.peers ) {
+			try {
+				this.snapshots.put( peer, new Snapshot( fetch( peer ), System.nanoTime() ) );
+			} catch ( IOException e ) {
+				// Retried on the next poll
+			}
+		}
+	}
+
+	private StatisticsBuckets fetch( String peer ) throws IOException {
+		int timeout = (int) Math.max( 1, TimeUnit.NANOSECONDS.toMillis( this.pollIntervalNanos ) );
+
+		HttpURLConnection connection = (HttpURLConnection) new URL( peer + BUCKETS_PATH ).openConnection();
+		connection.setConnectTimeout( timeout );
+		connection.setReadTimeout( timeout );
+		connection.setRequestProperty( "Accept", BUCKETS_MEDIA_TYPE );
+		try {
+			if ( connection.getResponseCode() != HttpURLConnection.HTTP_OK ) throw new IOException( "The peer answered with " + connection.getResponseCode() );
+			try ( InputStream body = connection.getInputStream() ) {
+				return StatisticsBuckets.readFrom( body );
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * @return the statistics of the sampling period of the local node plus the peers with a recent snapshot
+	 */
+	public Aggregate get() {
+		long now = this.clock.nanos();
+		long receivedAfter = System.nanoTime() - this.maxStalenessNanos;
+
+		StatisticsBuckets buckets = this.statisticsService.getBuckets();
+		int included = 0;
+		long oldestSnapshot = Long.MAX_VALUE;
+		for ( String peer : this.peers ) {
+			Snapshot snapshot = this.snapshots.get( peer );
+			if ( snapshot == null || snapshot.receivedAt - receivedAfter < 0 ) continue;
+
+			try {
+				buckets.add( snapshot.buckets );
+			} catch ( IllegalArgumentException e ) {
+				// A different sample period
+				continue;
+			}
+			included++;
+			oldestSnapshot = Math.min( oldestSnapshot, snapshot.receivedAt );
+		}
+
+		// Same rule the engines use for their own samples
+		long period = buckets.getPeriodNanos();
+		long oldestBucket = now / period - this.samplingPeriodNanos / period;
+		long staleness = included == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - oldestSnapshot );
+		return new Aggregate( buckets.getStatistics( oldestBucket ), included, this.peers.size(), staleness );
+	}
+}
@@ -0,0 +1,55 @@
+package mx.araco.miguel.n26.services;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EpochClock} that reads the system clock once per tick in a background thread, so reading it is a single
+ * volatile read instead of a call to the system clock and an {@link java.time.Instant}.
+ * <p>
+ * It returns the end of the current tick, so it usually runs ahead of the system clock by up to one tick and at worst
+ * samples expire one tick early (which is negligible next to the sample period). It can still fall behind when the
+ * ticker thread isn't scheduled on time (e.g. a GC pause or a busy CPU), so {@link #preciseNanos()} reads the system
+ * clock too: the services use it before taking a transaction as one of the future.
+ *
+ * @author MiguelAraCo
+ */
+public class CoarseEpochClock implements EpochClock {
+	private final long tickNanos;
+	private final ScheduledExecutorService ticker;
+
+	private volatile long nanos;
+
+	public CoarseEpochClock( Duration tick ) {
+		if ( tick.isNegative() || tick.isZero() ) throw new IllegalArgumentException( "The tick needs to be positive" );
+
+		this.tickNanos = tick.toNanos();
+		this.nanos = EpochNanos.now() + this.tickNanos;
+		this.ticker = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread thread = new Thread( runnable, "epoch-clock" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		this.ticker.scheduleAtFixedRate( this::tick, this.tickNanos, this.tickNanos, TimeUnit.NANOSECONDS );
+	}
+
+	private void tick() {
+		this.nanos = EpochNanos.now() + this.tickNanos;
+	}
+
+	@Override
+	public long nanos() {
+		return this.nanos;
+	}
+
+	@Override
+	public long preciseNanos() {
+		return Math.max( this.nanos, EpochNanos.now() );
+	}
+
+	public void stop() {
+		this.ticker.shutdownNow();
+	}
+}
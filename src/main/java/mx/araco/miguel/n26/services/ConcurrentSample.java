@@ -0,0 +1,148 @@
+package mx.araco.miguel.n26.services;
+
+import mx.araco.miguel.n26.models.Statistics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics sample that can be updated concurrently without locking.
+ * <p>
+ * Amounts are stored as {@code long} minor units (cents) in striped cells: {@link LongAdder}s for the sum
+ * and count, and CAS loops for the min and max. Amounts that can't be represented that way (more than two
+ * decimals, or bigger than {@link ConcurrentSample#MAX_UNITS}) are stored in an overflow {@link Statistics}
+ * guarded by the sample's monitor.
+ * <p>
+ * The decimals the amounts were received with are kept like {@link Statistics} keeps them: the highest number of
+ * them for the sum, and the ones of the min and max packed in the low bits of their cells, below the units (so
+ * the cells still compare by amount).
+ * <p>
+ * The sum of a sample could only overflow if more than ~8 million transactions of the maximum amount were
+ * registered in the same sample.
+ *
+ * @author MiguelAraCo
+ */
+class ConcurrentSample {
+	static final long MAX_UNITS = 1L << 40;
+
+	/**
+	 * Bits of the min and max cells below the units, holding the decimals of the amount
+	 */
+	private static final int SCALE_BITS = 2;
+	private static final long SCALE_MASK = ( 1L << SCALE_BITS ) - 1;
+
+	private final long number;
+
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong min = new AtomicLong( Long.MAX_VALUE );
+	private final AtomicLong max = new AtomicLong( Long.MIN_VALUE );
+	private final AtomicInteger sumScale = new AtomicInteger();
+
+	private Statistics overflow;
+
+	ConcurrentSample( long number ) {
+		this.number = number;
+	}
+
+	/**
+	 * @return the number of sample periods elapsed since the epoch when this sample starts
+	 */
+	long getNumber() { return number; }
+
+	void add( BigDecimal amount ) {
+		int scale = amount.scale();
+		long units;
+		try {
+			units = amount.movePointRight( Statistics.SCALE ).longValueExact();
+		} catch ( ArithmeticException e ) {
+			addOverflow( amount );
+			return;
+		}
+		if ( scale < 0 || scale > Statistics.SCALE || units >= MAX_UNITS || units <= - MAX_UNITS ) {
+			addOverflow( amount );
+			return;
+		}
+
+		addUnits( units, scale );
+	}
+
+	/**
+	 * Adds an amount given as its unscaled value and scale (see {@link Statistics#add(long, int)})
+	 */
+	void add( long amount, int scale ) {
+		if ( scale < 0 || scale > Statistics.SCALE || amount >= MAX_UNITS || amount <= - MAX_UNITS ) {
+			add( BigDecimal.valueOf( amount, scale ) );
+			return;
+		}
+
+		long units = amount;
+		for ( int i = scale; i < Statistics.SCALE; i++ ) units *= 10;
+		if ( units >= MAX_UNITS || units <= - MAX_UNITS ) {
+			addOverflow( BigDecimal.valueOf( amount, scale ) );
+			return;
+		}
+
+		addUnits( units, scale );
+	}
+
+	private void addUnits( long units, int scale ) {
+		long cell = units << SCALE_BITS | scale;
+		updateMin( cell );
+		updateMax( cell );
+		updateSumScale( scale );
+		this.sum.add( units );
+		// The count is updated last so readers that see it also see the rest of the cells updated
+		this.count.increment();
+	}
+
+	private void updateMin( long cell ) {
+		long current = this.min.get();
+		while ( cell < current && ! this.min.compareAndSet( current, cell ) ) current = this.min.get();
+	}
+
+	private void updateMax( long cell ) {
+		long current = this.max.get();
+		while ( cell > current && ! this.max.compareAndSet( current, cell ) ) current = this.max.get();
+	}
+
+	private void updateSumScale( int scale ) {
+		int current = this.sumScale.get();
+		while ( scale > current && ! this.sumScale.compareAndSet( current, scale ) ) current = this.sumScale.get();
+	}
+
+	private synchronized void addOverflow( BigDecimal amount ) {
+		if ( this.overflow == null ) this.overflow = new Statistics();
+		this.overflow.add( amount );
+	}
+
+	/**
+	 * Adds statistics that were already aggregated (e.g. by a backfill), kept with the overflow
+	 */
+	synchronized void add( Statistics statistics ) {
+		if ( this.overflow == null ) this.overflow = new Statistics();
+		this.overflow.add( statistics );
+	}
+
+	/**
+	 * Adds the statistics of this sample to the aggregate provided
+	 */
+	void addTo( Statistics aggregate ) {
+		// The count is read first: the writers it counts updated the rest of the cells before it, so the min and max
+		// can only still be the initial ones if nothing was counted
+		long count = this.count.sum();
+		long sum = this.sum.sum();
+		int sumScale = this.sumScale.get();
+		long min = this.min.get();
+		long max = this.max.get();
+		if ( count != 0 && min != Long.MAX_VALUE && max != Long.MIN_VALUE ) {
+			aggregate.addUnits( count, sum, sumScale, min >> SCALE_BITS, (int) ( min & SCALE_MASK ), max >> SCALE_BITS, (int) ( max & SCALE_MASK ) );
+		}
+
+		synchronized ( this ) {
+			if ( this.overflow != null ) aggregate.add( this.overflow );
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package mx.araco.miguel.n26.services;
+
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.StatisticsBuckets;
+import mx.araco.miguel.n26.models.Transaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free implementation of {@link StatisticsService}. It follows the same sampling strategy (and has the
+ * same margin of error) as {@link SamplingStatisticsService}, but writers never block each other or readers.
+ * <p>
+ * Samples are kept in a ring of {@link ConcurrentSample}s. When a slot holds a sample that already fell outside
+ * the sampling period, the first writer that needs the slot replaces it with a new sample through a CAS, so
+ * rotating the samples doesn't need a global lock.
+ * <p>
+ * Enabled by setting {@code mx.araco.miguel.n26.engine=concurrent}.
+ *
+ * @author MiguelAraCo
+ */
+@Service
+@ConditionalOnProperty( prefix = "mx.araco.miguel.n26", name = "engine", havingValue = "concurrent" )
+public class ConcurrentSamplingStatisticsService implements StatisticsService {
+
+	private final long samplingPeriodNanos;
+	private final EpochClock clock;
+	private final long samplePeriodNanos;
+	private final int sampleSize;
+
+	/**
+	 * Ring of samples. The sample number {@code n} is stored in the slot {@code n % sampleSize}
+	 */
+	private final AtomicReferenceArray<ConcurrentSample> samples;
+	/**
+	 * Number of times the samples were modified, used to calculate the version of the statistics
+	 */
+	private final LongAdder modifications = new LongAdder();
+
+	private final StatisticsServiceMetrics metrics;
+
+	public ConcurrentSamplingStatisticsService( SamplingStatisticsServiceConfiguration configuration ) {
+		this( configuration, StatisticsServiceMetrics.disabled() );
+	}
+
+	@Autowired
+	public ConcurrentSamplingStatisticsService( SamplingStatisticsServiceConfiguration configuration, StatisticsServiceMetrics metrics ) {
+		this.samplingPeriodNanos = configuration.getSamplingPeriod().toNanos();
+		this.clock = configuration.getEpochClock();
+		this.samplePeriodNanos = configuration.getSamplePeriod().toNanos();
+
+		this.sampleSize = ( (int) ( this.samplingPeriodNanos / this.samplePeriodNanos ) ) + 1;
+		this.samples = new AtomicReferenceArray<>( this.sampleSize );
+
+		this.metrics = metrics;
+		this.metrics.registerWindowGauge( this, service -> service._get().getCount() );
+	}
+
+	public void reset() {
+		for ( int i = 0; i < this.sampleSize; i++ ) this.samples.set( i, null );
+		this.modifications.increment();
+	}
+
+	/**
+	 * Samples expire without the service doing anything, so the version changes with every sample period
+	 * besides every time a transaction is registered
+	 */
+	public long getVersion() {
+		return 31 * getSampleNumber( this.clock.nanos() ) + this.modifications.sum();
+	}
+
+	public Statistics get() {
+		long start = System.nanoTime();
+		Statistics statistics = _get();
+		this.metrics.recordGet( start );
+		return statistics;
+	}
+
+	/**
+	 * Returns the statistics of a window up to the sampling period. The samples are added one by one, the
+	 * service doesn't keep coarser buckets like {@link SamplingStatisticsService} does
+	 */
+	@Override
+	public Statistics get( Duration window ) {
+		if ( window.isNegative() || window.isZero() || window.toNanos() > this.samplingPeriodNanos ) {
+			throw new IllegalArgumentException( "The window needs to be positive and up to the sampling period" );
+		}
+
+		long start = System.nanoTime();
+		long now = this.clock.nanos();
+		Statistics statistics = _get( Math.max( getSampleNumber( now - window.toNanos() ) - 1, getSampleNumber( now ) - this.sampleSize ) );
+		this.metrics.recordGet( start );
+		return statistics;
+	}
+
+	private Statistics _get() {
+		return _get( getSampleNumber( this.clock.nanos() ) - this.sampleSize );
+	}
+
+	/**
+	 * @param oldestValidSample
+	 * 	samples with this number or older are excluded
+	 */
+	private Statistics _get( long oldestValidSample ) {
+
+		Statistics aggregate = new Statistics();
+		for ( int i = 0; i < this.sampleSize; i++ ) {
+			ConcurrentSample sample = this.samples.get( i );
+			if ( sample != null && sample.getNumber() > oldestValidSample ) sample.addTo( aggregate );
+		}
+		return aggregate;
+	}
+
+	@Override
+	public StatisticsBuckets getBuckets() {
+		StatisticsBuckets buckets = new StatisticsBuckets( this.samplePeriodNanos );
+
+		long newestSample = getSampleNumber( this.clock.nanos() );
+		for ( long sampleNumber = newestSample - this.sampleSize + 1; sampleNumber <= newestSample; sampleNumber++ ) {
+			ConcurrentSample sample = this.samples.get( (int) ( sampleNumber % this.sampleSize ) );
+			if ( sample == null || sample.getNumber() != sampleNumber ) continue;
+
+			Statistics statistics = new Statistics();
+			sample.addTo( statistics );
+			buckets.add( sampleNumber, statistics );
+		}
+		return buckets;
+	}
+
+	@Override
+	public long merge( StatisticsBuckets buckets ) {
+		if ( buckets.getPeriodNanos() != this.samplePeriodNanos ) throw new IllegalArgumentException( "The buckets need to have the sample period as their period" );
+
+		long newestSample = getSampleNumber( this.clock.nanos() );
+		long merged = 0;
+		for ( Map.Entry<Long, Statistics> bucket : buckets.getBuckets().subMap( newestSample - this.sampleSize, false, newestSample, true ).entrySet() ) {
+			ConcurrentSample sample = getSample( bucket.getKey() );
+			if ( sample == null ) continue;
+
+			sample.add( bucket.getValue() );
+			merged += bucket.getValue().getCount();
+		}
+		this.modifications.increment();
+		return merged;
+	}
+
+	public RegisterResult register( Transaction transaction ) {
+		long start = System.nanoTime();
+		RegisterResult result;
+		try {
+			result = _register( transaction );
+		} catch ( IllegalArgumentException e ) {
+			this.metrics.recordRejected( start );
+			throw e;
+		}
+		this.metrics.recordRegister( start, result );
+		return result;
+	}
+
+	private RegisterResult _register( Transaction transaction ) {
+		ConcurrentSample sample = getSampleToUpdate( EpochNanos.of( transaction.getTimestamp() ) );
+		if ( sample == null ) return RegisterResult.DISCARDED;
+
+		sample.add( transaction.getAmount() );
+		this.modifications.increment();
+
+		return RegisterResult.REGISTERED;
+	}
+
+	@Override
+	public RegisterResult register( long amount, int scale, long timestamp ) {
+		long start = System.nanoTime();
+		RegisterResult result;
+		try {
+			result = _register( amount, scale, timestamp );
+		} catch ( IllegalArgumentException e ) {
+			this.metrics.recordRejected( start );
+			throw e;
+		}
+		this.metrics.recordRegister( start, result );
+		return result;
+	}
+
+	private RegisterResult _register( long amount, int scale, long timestamp ) {
+		ConcurrentSample sample = getSampleToUpdate( EpochNanos.ofMillis( timestamp ) );
+		if ( sample == null ) return RegisterResult.DISCARDED;
+
+		sample.add( amount, scale );
+		this.modifications.increment();
+
+		return RegisterResult.REGISTERED;
+	}
+
+	/**
+	 * Returns the sample a transaction needs to be registered in, or null if the transaction needs to be discarded
+	 *
+	 * @param timestamp
+	 * 	epoch nanos of the transaction
+	 * @throws IllegalArgumentException
+	 * 	if the transaction happens in the future
+	 */
+	private ConcurrentSample getSampleToUpdate( long timestamp ) {
+		long now = this.clock.nanos();
+
+		if ( timestamp > now ) now = this.clock.preciseNanos();
+		if ( timestamp > now ) throw new IllegalArgumentException( "Transactions can't have timestamps of the future" );
+		if ( timestamp < now - this.samplingPeriodNanos ) return null;
+
+		long sampleNumber = getSampleNumber( timestamp );
+		if ( sampleNumber <= getSampleNumber( now ) - this.sampleSize ) return null;
+
+		// Null if a newer sample took the slot, so the transaction's sample is already outside the sampling period
+		return getSample( sampleNumber );
+	}
+
+	private ConcurrentSample getSample( long sampleNumber ) {
+		int index = (int) ( sampleNumber % this.sampleSize );
+
+		while ( true ) {
+			ConcurrentSample current = this.samples.get( index );
+			if ( current != null ) {
+				if ( current.getNumber() == sampleNumber ) return current;
+				if ( current.getNumber() > sampleNumber ) return null;
+			}
+
+			ConcurrentSample renewed = new ConcurrentSample( sampleNumber );
+			if ( this.samples.compareAndSet( index, current, renewed ) ) return renewed;
+		}
+	}
+
+	private long getSampleNumber( long epochNanos ) {
+		return epochNanos / this.samplePeriodNanos;
+	}
+
+}
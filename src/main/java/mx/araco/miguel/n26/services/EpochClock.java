@@ -0,0 +1,28 @@
+package mx.araco.miguel.n26.services;
+
+/**
+ * Source of the current moment for the statistics services, in nanoseconds since the epoch (see {@link EpochNanos}).
+ * The services read it on every request, so it's configurable (see
+ * {@link SamplingStatisticsServiceConfiguration#getEpochClock()}): the {@link #SYSTEM} clock, a
+ * {@link CoarseEpochClock} that's cheaper to read, or a {@link VirtualEpochClock} to drive them through simulated
+ * time.
+ *
+ * @author MiguelAraCo
+ */
+@FunctionalInterface
+public interface EpochClock {
+	/**
+	 * Reads the system clock on every call
+	 */
+	EpochClock SYSTEM = EpochNanos::now;
+
+	long nanos();
+
+	/**
+	 * Reads the current moment for a transaction that looks like one of the future, before rejecting it. Clocks that
+	 * can fall behind the system clock return the latest of both
+	 */
+	default long preciseNanos() {
+		return nanos();
+	}
+}
@@ -0,0 +1,41 @@
+package mx.araco.miguel.n26.services;
+
+import java.time.Instant;
+
+/**
+ * Conversions of timestamps to nanoseconds since the epoch, the unit the services calculate samples with.
+ * <p>
+ * A {@code long} of nanos covers until the year 2262, timestamps beyond that (in either direction) are saturated
+ * to {@link Long#MAX_VALUE} or {@link Long#MIN_VALUE}, so they still end up in the future or outside the
+ * sampling period instead of overflowing.
+ *
+ * @author MiguelAraCo
+ */
+final class EpochNanos {
+	private static final long NANOS_PER_SECOND = 1_000_000_000L;
+	private static final long NANOS_PER_MILLI = 1_000_000L;
+
+	private static final long MAX_SECONDS = Long.MAX_VALUE / NANOS_PER_SECOND - 1;
+	private static final long MAX_MILLIS = Long.MAX_VALUE / NANOS_PER_MILLI;
+
+	private EpochNanos() {}
+
+	static long of( Instant timestamp ) {
+		long seconds = timestamp.getEpochSecond();
+		if ( seconds > MAX_SECONDS ) return Long.MAX_VALUE;
+		if ( seconds < - MAX_SECONDS ) return Long.MIN_VALUE;
+
+		return seconds * NANOS_PER_SECOND + timestamp.getNano();
+	}
+
+	static long ofMillis( long millis ) {
+		if ( millis > MAX_MILLIS ) return Long.MAX_VALUE;
+		if ( millis < - MAX_MILLIS ) return Long.MIN_VALUE;
+
+		return millis * NANOS_PER_MILLI;
+	}
+
+	static long now() {
+		return of( Instant.now() );
+	}
+}
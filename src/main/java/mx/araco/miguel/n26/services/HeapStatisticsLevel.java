@@ -0,0 +1,50 @@
+package mx.araco.miguel.n26.services;
+
+import mx.araco.miguel.n26.models.Statistics;
+
+import java.math.BigDecimal;
+
+/**
+ * {@link StatisticsLevel} that keeps a {@link Statistics} per bucket
+ *
+ * @author MiguelAraCo
+ */
+class HeapStatisticsLevel extends StatisticsLevel {
+	private final Statistics[] buckets;
+
+	HeapStatisticsLevel( long periodNanos, long retentionNanos ) {
+		super( periodNanos, retentionNanos );
+		this.buckets = new Statistics[ this.size ];
+		for ( int i = 0; i < this.size; i++ ) this.buckets[ i ] = new Statistics();
+	}
+
+	@Override
+	protected void reset( int slot ) {
+		this.buckets[ slot ].reset();
+	}
+
+	@Override
+	protected void resetAll() {
+		for ( Statistics bucket : this.buckets ) bucket.reset();
+	}
+
+	@Override
+	protected void add( int slot, BigDecimal amount ) {
+		this.buckets[ slot ].add( amount );
+	}
+
+	@Override
+	protected void add( int slot, long amount, int scale ) {
+		this.buckets[ slot ].add( amount, scale );
+	}
+
+	@Override
+	protected void add( int slot, Statistics sample ) {
+		this.buckets[ slot ].add( sample );
+	}
+
+	@Override
+	protected void addTo( Statistics aggregate, int fromSlot, int toSlot ) {
+		for ( int slot = fromSlot; slot < toSlot; slot++ ) aggregate.add( this.buckets[ slot ] );
+	}
+}
@@ -0,0 +1,287 @@
+package mx.araco.miguel.n26.services;
+
+import mx.araco.miguel.n26.models.KeyedStatistics;
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.Transaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Statistics of the sampling period split by the key of the transactions (see {@link Transaction#getKey()}),
+ * e.g. by merchant or account.
+ * <p>
+ * Each key keeps a {@link KeyedWindow}: a ring of buckets packed in a single {@code long[]}, so a key costs a
+ * few hundred bytes regardless of the number of transactions it receives (see the README for the measured
+ * footprint). Buckets are coarser than the samples of {@link SamplingStatisticsService} (see
+ * {@link SamplingStatisticsServiceConfiguration.Keyed#setBucketPeriod(java.time.Duration)}) to keep that cost low,
+ * so the statistics of a key may include up to one bucket period of extra data.
+ * <p>
+ * Keys are spread across shards, each one an access ordered map guarded by its own monitor, so transactions of
+ * different keys rarely contend. Memory is capped by a max number of keys: when a shard exceeds its share, its
+ * least recently used key is evicted. Keys whose window fully expired are evicted lazily as well: every operation
+ * on a shard evicts up to {@link KeyedStatisticsService#EVICTIONS_PER_OPERATION} of them from its least recently
+ * used end, and {@link KeyedStatisticsService#getTop(int)} evicts every one it finds.
+ * <p>
+ * Amounts are accumulated in minor units (see {@link Statistics#SCALE}), amounts with more decimals are rounded
+ * half even.
+ *
+ * @author MiguelAraCo
+ */
+@Service
+public class KeyedStatisticsService {
+	/**
+	 * Max number of expired keys evicted by each operation on a shard
+	 */
+	static final int EVICTIONS_PER_OPERATION = 2;
+
+	private static final class Shard extends LinkedHashMap<String, KeyedWindow> {
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		Shard( int capacity ) {
+			super( 16, 0.75f, true );
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, KeyedWindow> eldest ) {
+			return this.size() > this.capacity;
+		}
+
+		/**
+		 * Evicts expired keys from the least recently used end of the shard
+		 */
+		void evictExpired( long bucket, int max ) {
+			Iterator<KeyedWindow> windows = this.values().iterator();
+			for ( int i = 0; i < max && windows.hasNext(); i++ ) {
+				if ( ! windows.next().isExpired( bucket ) ) return;
+				windows.remove();
+			}
+		}
+	}
+
+	private final long samplingPeriodNanos;
+	private final EpochClock clock;
+	private final long bucketPeriodNanos;
+	private final int size;
+	private final Shard[] shards;
+
+	@Autowired
+	public KeyedStatisticsService( SamplingStatisticsServiceConfiguration configuration ) {
+		SamplingStatisticsServiceConfiguration.Keyed keyed = configuration.getKeyed();
+		if ( keyed.getShards() <= 0 || keyed.getMaxKeys() <= 0 ) throw new IllegalArgumentException( "The number of shards and the max number of keys need to be positive" );
+
+		this.samplingPeriodNanos = configuration.getSamplingPeriod().toNanos();
+		this.clock = configuration.getEpochClock();
+		this.bucketPeriodNanos = keyed.getBucketPeriod().toNanos();
+		this.size = ( (int) ( this.samplingPeriodNanos / this.bucketPeriodNanos ) ) + 1;
+
+		int capacity = Math.max( 1, keyed.getMaxKeys() / keyed.getShards() );
+		this.shards = new Shard[ keyed.getShards() ];
+		for ( int i = 0; i < this.shards.length; i++ ) this.shards[ i ] = new Shard( capacity );
+	}
+
+	/**
+	 * Registers a transaction in the statistics of its key, following the same rules as
+	 * {@link StatisticsService#register(Transaction)}
+	 *
+	 * @throws IllegalArgumentException
+	 * 	if the transaction has no key, its timestamp is in the future, or its amount is too big
+	 */
+	public StatisticsService.RegisterResult register( Transaction transaction ) {
+		if ( transaction.getKey() == null ) throw new IllegalArgumentException( "The transaction has no key" );
+
+		long now = this.clock.nanos();
+		long timestamp = EpochNanos.of( transaction.getTimestamp() );
+		if ( timestamp > now ) now = this.clock.preciseNanos();
+		if ( timestamp > now ) throw new IllegalArgumentException( "Transactions can't have timestamps of the future" );
+
+		return register( transaction.getKey(), transaction.getAmount(), timestamp, now );
+	}
+
+	/**
+	 * Checks that an amount can be kept in the statistics of a key, so a transaction that's also registered
+	 * somewhere else can be rejected before it is
+	 *
+	 * @throws IllegalArgumentException
+	 * 	if the amount is too big
+	 */
+	public void checkAmount( BigDecimal amount ) {
+		toUnits( amount );
+	}
+
+	/**
+	 * Registers the transactions that have a key, all at the same moment. Transactions without a key, with a
+	 * timestamp in the future or with an amount too big are skipped
+	 *
+	 * @return number of transactions registered
+	 */
+	public int registerAll( Collection<Transaction> transactions ) {
+		long now = this.clock.preciseNanos();
+		int registered = 0;
+		for ( Transaction transaction : transactions ) {
+			if ( transaction.getKey() == null ) continue;
+
+			long timestamp = EpochNanos.of( transaction.getTimestamp() );
+			if ( timestamp > now ) continue;
+
+			try {
+				if ( register( transaction.getKey(), transaction.getAmount(), timestamp, now ) == StatisticsService.RegisterResult.REGISTERED ) registered++;
+			} catch ( IllegalArgumentException e ) {
+				// Amount too big, the other transactions can still be registered
+			}
+		}
+		return registered;
+	}
+
+	private StatisticsService.RegisterResult register( String key, BigDecimal amount, long timestamp, long now ) {
+		if ( timestamp < now - this.samplingPeriodNanos ) return StatisticsService.RegisterResult.DISCARDED;
+
+		long units = toUnits( amount );
+		long bucket = timestamp / this.bucketPeriodNanos;
+		long currentBucket = now / this.bucketPeriodNanos;
+		// The sampling period may not be a multiple of the bucket period, so the oldest edge may already be gone
+		if ( bucket <= currentBucket - this.size ) return StatisticsService.RegisterResult.DISCARDED;
+
+		Shard shard = getShard( key );
+		synchronized ( shard ) {
+			// Evicted before getting the window, so the window updated can't be evicted
+			shard.evictExpired( currentBucket, EVICTIONS_PER_OPERATION );
+
+			KeyedWindow window = shard.get( key );
+			if ( window == null ) {
+				window = new KeyedWindow( this.size, currentBucket );
+				shard.put( key, window );
+			} else {
+				window.rotate( currentBucket );
+			}
+
+			try {
+				window.add( bucket, units );
+			} catch ( ArithmeticException e ) {
+				throw new IllegalArgumentException( "The sum of the key overflows", e );
+			}
+		}
+		return StatisticsService.RegisterResult.REGISTERED;
+	}
+
+	/**
+	 * Returns the statistics of the transactions of a key registered during the sampling period. Keys that are
+	 * unknown (or were evicted) have empty statistics
+	 */
+	public Statistics get( String key ) {
+		long currentBucket = this.clock.nanos() / this.bucketPeriodNanos;
+
+		Statistics statistics = new Statistics();
+		Shard shard = getShard( key );
+		synchronized ( shard ) {
+			KeyedWindow window = shard.get( key );
+			if ( window != null ) {
+				window.rotate( currentBucket );
+				window.addTo( statistics );
+			}
+			shard.evictExpired( currentBucket, EVICTIONS_PER_OPERATION );
+		}
+		return statistics;
+	}
+
+	/**
+	 * Returns the keys with the highest sum during the sampling period, traversing every key once
+	 *
+	 * @param k
+	 * 	max number of keys to return
+	 * @return the statistics of up to {@code k} keys, ordered by their sum (descending)
+	 * @throws IllegalArgumentException
+	 * 	if {@code k} isn't positive
+	 */
+	public List<KeyedStatistics> getTop( int k ) {
+		if ( k <= 0 ) throw new IllegalArgumentException( "The number of keys needs to be positive" );
+
+		long currentBucket = this.clock.nanos() / this.bucketPeriodNanos;
+
+		// Min heap of the best keys found so far, the statistics are only calculated for the ones that enter it
+		PriorityQueue<Candidate> top = new PriorityQueue<>( k + 1 );
+		for ( Shard shard : this.shards ) {
+			synchronized ( shard ) {
+				// Iterating doesn't change the access order, so traversing the keys doesn't count as using them
+				Iterator<Map.Entry<String, KeyedWindow>> entries = shard.entrySet().iterator();
+				while ( entries.hasNext() ) {
+					Map.Entry<String, KeyedWindow> entry = entries.next();
+					KeyedWindow window = entry.getValue();
+					window.rotate( currentBucket );
+					if ( window.getCount() == 0 ) {
+						entries.remove();
+						continue;
+					}
+
+					if ( top.size() == k && window.getSum() <= top.peek().sum ) continue;
+
+					Statistics statistics = new Statistics();
+					window.addTo( statistics );
+					top.add( new Candidate( window.getSum(), new KeyedStatistics( entry.getKey(), statistics ) ) );
+					if ( top.size() > k ) top.poll();
+				}
+			}
+		}
+
+		List<KeyedStatistics> result = new ArrayList<>( top.size() );
+		while ( ! top.isEmpty() ) result.add( top.poll().statistics );
+		Collections.reverse( result );
+		return result;
+	}
+
+	/**
+	 * @return number of keys currently kept, including the expired ones that weren't evicted yet
+	 */
+	public int getKeyCount() {
+		int count = 0;
+		for ( Shard shard : this.shards ) {
+			synchronized ( shard ) {
+				count += shard.size();
+			}
+		}
+		return count;
+	}
+
+	private Shard getShard( String key ) {
+		int hash = key.hashCode();
+		// Spread the higher bits, the same way HashMap does
+		hash ^= hash >>> 16;
+		return this.shards[ Math.floorMod( hash, this.shards.length ) ];
+	}
+
+	private static long toUnits( BigDecimal amount ) {
+		try {
+			return amount.setScale( Statistics.SCALE, RoundingMode.HALF_EVEN ).unscaledValue().longValueExact();
+		} catch ( ArithmeticException e ) {
+			throw new IllegalArgumentException( "The amount is too big", e );
+		}
+	}
+
+	private static final class Candidate implements Comparable<Candidate> {
+		private final long sum;
+		private final KeyedStatistics statistics;
+
+		Candidate( long sum, KeyedStatistics statistics ) {
+			this.sum = sum;
+			this.statistics = statistics;
+		}
+
+		@Override
+		public int compareTo( Candidate other ) {
+			return Long.compare( this.sum, other.sum );
+		}
+	}
+}
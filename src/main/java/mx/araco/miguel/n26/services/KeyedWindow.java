@@ -0,0 +1,120 @@
+package mx.araco.miguel.n26.services;
+
+import mx.araco.miguel.n26.models.Statistics;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of the sampling period of a single key, kept in a ring of buckets packed in one {@code long[]}
+ * (count, sum, min and max of each bucket, in minor units, see {@link Statistics#SCALE}). The count and sum of
+ * the whole ring are maintained as buckets are updated and expire, so they can be read without traversing it.
+ * <p>
+ * The bucket number {@code n} (the number of bucket periods elapsed since the epoch) is stored in the slot
+ * {@code n % size}, the same way {@link SamplingStatisticsService} stores its samples. It isn't thread safe,
+ * {@link KeyedStatisticsService} guards it with the monitor of its shard.
+ *
+ * @author MiguelAraCo
+ */
+final class KeyedWindow {
+	private static final int COUNT = 0;
+	private static final int SUM = 1;
+	private static final int MIN = 2;
+	private static final int MAX = 3;
+	/**
+	 * Number of longs each bucket takes
+	 */
+	static final int FIELDS = 4;
+
+	private final long[] buckets;
+	private final int size;
+	/**
+	 * Bucket number of the newest bucket stored in the ring
+	 */
+	private long newestBucket;
+	private long count;
+	private long sum;
+
+	KeyedWindow( int size, long bucket ) {
+		this.size = size;
+		this.buckets = new long[ size * FIELDS ];
+		this.newestBucket = bucket;
+	}
+
+	/**
+	 * Clears the buckets that fell outside the ring
+	 *
+	 * @param bucket
+	 * 	number of the current bucket
+	 */
+	void rotate( long bucket ) {
+		if ( bucket <= this.newestBucket ) return;
+
+		if ( bucket - this.newestBucket >= this.size ) {
+			Arrays.fill( this.buckets, 0L );
+			this.count = 0;
+			this.sum = 0;
+		} else {
+			for ( long expired = this.newestBucket + 1; expired <= bucket; expired++ ) {
+				int offset = getOffset( expired );
+				this.count -= this.buckets[ offset + COUNT ];
+				this.sum -= this.buckets[ offset + SUM ];
+				this.buckets[ offset + COUNT ] = 0;
+				this.buckets[ offset + SUM ] = 0;
+			}
+		}
+		this.newestBucket = bucket;
+	}
+
+	/**
+	 * @return true if none of the buckets of the ring is still valid at the bucket provided
+	 */
+	boolean isExpired( long bucket ) {
+		return bucket - this.newestBucket >= this.size || ( bucket >= this.newestBucket && this.count == 0 );
+	}
+
+	/**
+	 * Adds an amount to a bucket. The window needs to be rotated first, and the bucket needs to be in the ring
+	 *
+	 * @param units
+	 * 	amount in minor units
+	 * @throws ArithmeticException
+	 * 	if the sum of the window or of the bucket overflows, before anything is updated
+	 */
+	void add( long bucket, long units ) {
+		int offset = getOffset( bucket );
+		// Negative amounts in other buckets may keep the sum of the window in range while the bucket's overflows
+		long sum = Math.addExact( this.sum, units );
+		long bucketSum = Math.addExact( this.buckets[ offset + SUM ], units );
+
+		long bucketCount = this.buckets[ offset + COUNT ];
+		this.buckets[ offset + SUM ] = bucketSum;
+		if ( bucketCount == 0 || units < this.buckets[ offset + MIN ] ) this.buckets[ offset + MIN ] = units;
+		if ( bucketCount == 0 || units > this.buckets[ offset + MAX ] ) this.buckets[ offset + MAX ] = units;
+		this.buckets[ offset + COUNT ] = bucketCount + 1;
+
+		this.count++;
+		this.sum = sum;
+	}
+
+	/**
+	 * Adds the buckets of the ring to the statistics provided. The window needs to be rotated first
+	 */
+	void addTo( Statistics statistics ) {
+		for ( int offset = 0; offset < this.buckets.length; offset += FIELDS ) {
+			statistics.addUnits( this.buckets[ offset + COUNT ], this.buckets[ offset + SUM ], this.buckets[ offset + MIN ], this.buckets[ offset + MAX ] );
+		}
+	}
+
+	long getNewestBucket() { return newestBucket; }
+
+	long getCount() { return count; }
+
+	/**
+	 * @return sum of the ring in minor units
+	 */
+	long getSum() { return sum; }
+
+	private int getOffset( long bucket ) {
+		return (int) ( bucket % this.size ) * FIELDS;
+	}
+}
@@ -0,0 +1,123 @@
+package mx.araco.miguel.n26.services;
+
+import mx.araco.miguel.n26.models.Statistics;
+
+import java.util.Arrays;
+
+/**
+ * Segment tree that keeps track of which of the samples of a ring holds the min and which the max, so they
+ * can be read in O(1) and updated in O(log n) when a sample changes or expires.
+ * <p>
+ * Each node stores the index of the sample holding the min (or max) of its subtree, or {@code -1} if none of
+ * the samples of the subtree has amounts.
+ *
+ * @author MiguelAraCo
+ */
+class MinMaxTree {
+	private static final int NONE = - 1;
+
+	private final Statistics[] samples;
+	private final int leaves;
+	private final int[] minTree;
+	private final int[] maxTree;
+
+	MinMaxTree( Statistics[] samples ) {
+		this.samples = samples;
+
+		int leaves = 1;
+		while ( leaves < samples.length ) leaves <<= 1;
+		this.leaves = leaves;
+
+		this.minTree = new int[ leaves * 2 ];
+		this.maxTree = new int[ leaves * 2 ];
+		clear();
+	}
+
+	/**
+	 * @return the sample holding the min of all the samples, or null if none of them has amounts
+	 */
+	Statistics getMinSample() {
+		return this.minTree[ 1 ] == NONE ? null : this.samples[ this.minTree[ 1 ] ];
+	}
+
+	/**
+	 * @return the sample holding the max of all the samples, or null if none of them has amounts
+	 */
+	Statistics getMaxSample() {
+		return this.maxTree[ 1 ] == NONE ? null : this.samples[ this.maxTree[ 1 ] ];
+	}
+
+	/**
+	 * @return the sample holding the min of all the samples but the one provided, or null if none of them has
+	 * amounts. Combines the siblings of the path from the sample to the root, so it takes O(log n)
+	 */
+	Statistics getMinSampleExcept( int index ) {
+		int min = NONE;
+		for ( int node = this.leaves + index; node > 1; node >>= 1 ) min = getMinIndex( min, this.minTree[ node ^ 1 ] );
+		return min == NONE ? null : this.samples[ min ];
+	}
+
+	/**
+	 * @return the sample holding the max of all the samples but the one provided, or null if none of them has
+	 * amounts
+	 */
+	Statistics getMaxSampleExcept( int index ) {
+		int max = NONE;
+		for ( int node = this.leaves + index; node > 1; node >>= 1 ) max = getMaxIndex( max, this.maxTree[ node ^ 1 ] );
+		return max == NONE ? null : this.samples[ max ];
+	}
+
+	/**
+	 * Marks every sample as empty
+	 */
+	void clear() {
+		Arrays.fill( this.minTree, NONE );
+		Arrays.fill( this.maxTree, NONE );
+	}
+
+	/**
+	 * Updates the tree after amounts were added to a sample. Since the min of a sample can only decrease (and
+	 * its max increase) the update stops as soon as an ancestor holds a better value
+	 */
+	void added( int index ) {
+		Statistics sample = this.samples[ index ];
+
+		for ( int node = this.leaves + index; node > 0; node >>= 1 ) {
+			int current = this.minTree[ node ];
+			if ( current != NONE && current != index && this.samples[ current ].compareMinTo( sample ) <= 0 ) break;
+			this.minTree[ node ] = index;
+		}
+
+		for ( int node = this.leaves + index; node > 0; node >>= 1 ) {
+			int current = this.maxTree[ node ];
+			if ( current != NONE && current != index && this.samples[ current ].compareMaxTo( sample ) >= 0 ) break;
+			this.maxTree[ node ] = index;
+		}
+	}
+
+	/**
+	 * Updates the tree after a sample was emptied
+	 */
+	void removed( int index ) {
+		int node = this.leaves + index;
+		this.minTree[ node ] = NONE;
+		this.maxTree[ node ] = NONE;
+
+		for ( node >>= 1; node > 0; node >>= 1 ) {
+			this.minTree[ node ] = getMinIndex( this.minTree[ node << 1 ], this.minTree[ ( node << 1 ) + 1 ] );
+			this.maxTree[ node ] = getMaxIndex( this.maxTree[ node << 1 ], this.maxTree[ ( node << 1 ) + 1 ] );
+		}
+	}
+
+	private int getMinIndex( int left, int right ) {
+		if ( left == NONE ) return right;
+		if ( right == NONE ) return left;
+		return this.samples[ left ].compareMinTo( this.samples[ right ] ) <= 0 ? left : right;
+	}
+
+	private int getMaxIndex( int left, int right ) {
+		if ( left == NONE ) return right;
+		if ( right == NONE ) return left;
+		return this.samples[ left ].compareMaxTo( this.samples[ right ] ) >= 0 ? left : right;
+	}
+}
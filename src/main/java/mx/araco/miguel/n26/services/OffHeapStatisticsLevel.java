@@ -0,0 +1,162 @@
+package mx.araco.miguel.n26.services;
+
+import mx.araco.miguel.n26.models.MinorUnits;
+import mx.araco.miguel.n26.models.Statistics;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link StatisticsLevel} that packs its buckets in a direct {@link ByteBuffer}, outside the heap, so a level of
+ * millions of buckets (e.g. a day at a resolution of milliseconds) doesn't make the heap (nor the collections)
+ * any bigger. Each bucket is a fixed struct of four {@code long}s: count, sum, min and max, in minor units (see
+ * {@link Statistics#SCALE}), the same layout {@link KeyedWindow} uses. Windows add them up in a sequential scan
+ * of the buffer.
+ * <p>
+ * Like with {@link KeyedWindow}, the amounts lose the number of decimals they were received with, they're
+ * returned with {@link Statistics#SCALE} decimals. A bucket whose amounts can't be represented in minor units
+ * (they have more decimals, or its sum overflows) is moved to a {@link Statistics} on the heap until it expires.
+ *
+ * @author MiguelAraCo
+ */
+class OffHeapStatisticsLevel extends StatisticsLevel {
+	private static final int COUNT = 0;
+	private static final int SUM = 8;
+	private static final int MIN = 16;
+	private static final int MAX = 24;
+	/**
+	 * Number of bytes each bucket takes
+	 */
+	static final int BUCKET_SIZE = 32;
+
+	/**
+	 * Count of the buckets moved to the heap
+	 */
+	private static final long SPILLED = - 1;
+
+	private final ByteBuffer buckets;
+	private final Map<Integer, Statistics> spilled = new HashMap<>();
+
+	OffHeapStatisticsLevel( long periodNanos, long retentionNanos ) {
+		super( periodNanos, retentionNanos );
+		if ( this.size > Integer.MAX_VALUE / BUCKET_SIZE ) throw new IllegalArgumentException( "Too many buckets for a resolution of " + periodNanos + "ns" );
+
+		this.buckets = ByteBuffer.allocateDirect( this.size * BUCKET_SIZE ).order( ByteOrder.nativeOrder() );
+	}
+
+	@Override
+	protected void reset( int slot ) {
+		int offset = slot * BUCKET_SIZE;
+		if ( this.buckets.getLong( offset + COUNT ) == SPILLED ) this.spilled.remove( slot );
+		this.buckets.putLong( offset + COUNT, 0 );
+	}
+
+	@Override
+	protected void resetAll() {
+		// Buckets without a count are empty, the rest of their fields are overwritten by the next amount
+		for ( int offset = 0; offset < this.size * BUCKET_SIZE; offset += BUCKET_SIZE ) this.buckets.putLong( offset + COUNT, 0 );
+		this.spilled.clear();
+	}
+
+	@Override
+	protected void add( int slot, BigDecimal amount ) {
+		long units = MinorUnits.of( amount );
+		if ( units == MinorUnits.NO_UNITS || ! addUnits( slot, 1, units, units, units ) ) spill( slot ).add( amount );
+	}
+
+	@Override
+	protected void add( int slot, long amount, int scale ) {
+		long units = MinorUnits.of( amount, scale );
+		if ( units == MinorUnits.NO_UNITS || ! addUnits( slot, 1, units, units, units ) ) spill( slot ).add( amount, scale );
+	}
+
+	@Override
+	protected void add( int slot, Statistics sample ) {
+		if ( sample.isEmpty() ) return;
+
+		long sum = MinorUnits.of( sample.getSum() );
+		long min = MinorUnits.of( sample.getMin() );
+		long max = MinorUnits.of( sample.getMax() );
+		if ( sum == MinorUnits.NO_UNITS || min == MinorUnits.NO_UNITS || max == MinorUnits.NO_UNITS || ! addUnits( slot, sample.getCount(), sum, min, max ) ) spill( slot ).add( sample );
+	}
+
+	@Override
+	protected void addTo( Statistics aggregate, int fromSlot, int toSlot ) {
+		long count = 0;
+		long sum = 0;
+		long min = 0;
+		long max = 0;
+		for ( int offset = fromSlot * BUCKET_SIZE; offset < toSlot * BUCKET_SIZE; offset += BUCKET_SIZE ) {
+			long bucketCount = this.buckets.getLong( offset + COUNT );
+			if ( bucketCount == 0 ) continue;
+			if ( bucketCount == SPILLED ) {
+				aggregate.add( this.spilled.get( offset / BUCKET_SIZE ) );
+				continue;
+			}
+
+			long bucketSum = this.buckets.getLong( offset + SUM );
+			long newSum = sum + bucketSum;
+			if ( MinorUnits.overflows( sum, bucketSum, newSum ) ) {
+				// The aggregate switches to BigDecimal arithmetic itself
+				aggregate.addUnits( count, sum, min, max );
+				count = 0;
+				newSum = bucketSum;
+			}
+
+			long bucketMin = this.buckets.getLong( offset + MIN );
+			long bucketMax = this.buckets.getLong( offset + MAX );
+			if ( count == 0 || bucketMin < min ) min = bucketMin;
+			if ( count == 0 || bucketMax > max ) max = bucketMax;
+			count += bucketCount;
+			sum = newSum;
+		}
+		aggregate.addUnits( count, sum, min, max );
+	}
+
+	/**
+	 * @return false if the sum of the bucket would overflow, so nothing was added
+	 */
+	private boolean addUnits( int slot, long count, long sum, long min, long max ) {
+		int offset = slot * BUCKET_SIZE;
+		long bucketCount = this.buckets.getLong( offset + COUNT );
+		if ( bucketCount == SPILLED ) return false;
+
+		if ( bucketCount == 0 ) {
+			this.buckets.putLong( offset + COUNT, count );
+			this.buckets.putLong( offset + SUM, sum );
+			this.buckets.putLong( offset + MIN, min );
+			this.buckets.putLong( offset + MAX, max );
+			return true;
+		}
+
+		long bucketSum = this.buckets.getLong( offset + SUM );
+		long newSum = bucketSum + sum;
+		if ( MinorUnits.overflows( bucketSum, sum, newSum ) ) return false;
+
+		this.buckets.putLong( offset + COUNT, bucketCount + count );
+		this.buckets.putLong( offset + SUM, newSum );
+		if ( min < this.buckets.getLong( offset + MIN ) ) this.buckets.putLong( offset + MIN, min );
+		if ( max > this.buckets.getLong( offset + MAX ) ) this.buckets.putLong( offset + MAX, max );
+		return true;
+	}
+
+	/**
+	 * Moves a bucket to the heap, if it isn't there already
+	 *
+	 * @return the statistics of the bucket on the heap
+	 */
+	private Statistics spill( int slot ) {
+		int offset = slot * BUCKET_SIZE;
+		long count = this.buckets.getLong( offset + COUNT );
+		if ( count == SPILLED ) return this.spilled.get( slot );
+
+		Statistics bucket = new Statistics();
+		bucket.addUnits( count, this.buckets.getLong( offset + SUM ), this.buckets.getLong( offset + MIN ), this.buckets.getLong( offset + MAX ) );
+		this.spilled.put( slot, bucket );
+		this.buckets.putLong( offset + COUNT, SPILLED );
+		return bucket;
+	}
+}
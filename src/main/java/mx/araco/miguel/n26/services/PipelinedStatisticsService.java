@@ -0,0 +1,361 @@
+package mx.araco.miguel.n26.services;
+
+import mx.araco.miguel.n26.models.BatchResult;
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.StatisticsBuckets;
+import mx.araco.miguel.n26.models.Transaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Implementation of {@link StatisticsService} with a single writer. Callers only validate the transactions
+ * (e.g. that their timestamps aren't in the future, and that they didn't expire) and publish them in a
+ * {@link TransactionRing}, so they never wait for a lock. A single consumer thread takes the transactions
+ * published since its last pass, in batches, and registers them in a {@link SamplingStatisticsService} holding its
+ * monitor once per batch, so the samples, the coarser buckets and the quantiles work the same way they do with the
+ * {@code synchronized} engine.
+ * <p>
+ * After every batch (and at least once per sample period, so expired samples are left out even without
+ * transactions) the consumer publishes a snapshot of the statistics, which {@link PipelinedStatisticsService#get()}
+ * returns without any lock. The statistics are then eventually consistent: a transaction for which
+ * {@link PipelinedStatisticsService#register(Transaction)} returned {@link RegisterResult#REGISTERED} is included
+ * once the consumer gets to it, usually within microseconds (see {@link PipelinedStatisticsService#flush()}).
+ * Windows other than the sampling period, and the buckets, are still read from the
+ * {@link SamplingStatisticsService}, so they only wait for the consumer.
+ * <p>
+ * The result of registering a transaction is decided by the caller, with the time it was registered, so a
+ * transaction whose sample expires before the consumer gets to it (at most by the time it spent in the ring) is
+ * left out of the statistics even though it was {@link RegisterResult#REGISTERED}. Transactions aren't appended to
+ * the {@link TransactionLog}.
+ * <p>
+ * Enabled by setting {@code mx.araco.miguel.n26.engine=pipelined}.
+ *
+ * @author MiguelAraCo
+ */
+@Service
+@ConditionalOnProperty( prefix = "mx.araco.miguel.n26", name = "engine", havingValue = "pipelined" )
+public class PipelinedStatisticsService implements StatisticsService {
+	private static final long FLUSH_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos( 50 );
+
+	/**
+	 * Statistics published by the consumer
+	 */
+	private static final class Snapshot {
+		private final Statistics statistics;
+		private final long version;
+		/**
+		 * Sequence of the last transaction included
+		 */
+		private final long sequence;
+		/**
+		 * Number of the newest sample when the statistics were calculated
+		 */
+		private final long sample;
+
+		Snapshot( Statistics statistics, long version, long sequence, long sample ) {
+			this.statistics = statistics;
+			this.version = version;
+			this.sequence = sequence;
+			this.sample = sample;
+		}
+	}
+
+	private final long samplingPeriodNanos;
+	private final EpochClock clock;
+	private final long samplePeriodNanos;
+	private final int sampleSize;
+	private final int maxBatch;
+
+	/**
+	 * Only updated by the consumer, readers of the sampling period use the snapshot instead
+	 */
+	private final SamplingStatisticsService samples;
+	private final TransactionRing ring;
+	private volatile Snapshot snapshot;
+
+	private final StatisticsServiceMetrics metrics;
+
+	private Thread consumer;
+	private volatile boolean consuming;
+
+	public PipelinedStatisticsService( SamplingStatisticsServiceConfiguration configuration ) {
+		this( configuration, StatisticsServiceMetrics.disabled() );
+	}
+
+	@Autowired
+	public PipelinedStatisticsService( SamplingStatisticsServiceConfiguration configuration, StatisticsServiceMetrics metrics ) {
+		this.samplingPeriodNanos = configuration.getSamplingPeriod().toNanos();
+		this.clock = configuration.getEpochClock();
+		this.samplePeriodNanos = configuration.getSamplePeriod().toNanos();
+		this.sampleSize = ( (int) ( this.samplingPeriodNanos / this.samplePeriodNanos ) ) + 1;
+		this.maxBatch = configuration.getPipeline().getMaxBatch();
+
+		// The consumer rotates the samples itself
+		this.samples = new SamplingStatisticsService( configuration, metrics );
+		this.ring = new TransactionRing( configuration.getPipeline().getRingSize() );
+		this.metrics = metrics;
+
+		synchronized ( this.samples ) {
+			publishSnapshot( - 1, this.clock.nanos() );
+		}
+	}
+
+	@PostConstruct
+	public void start() {
+		if ( this.consumer != null ) return;
+
+		this.consuming = true;
+		this.consumer = new Thread( this::consume, "statistics-consumer" );
+		this.consumer.setDaemon( true );
+		this.consumer.start();
+	}
+
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		if ( this.consumer == null ) return;
+
+		this.consuming = false;
+		LockSupport.unpark( this.consumer );
+		this.consumer.join();
+		this.consumer = null;
+	}
+
+	private void consume() {
+		try {
+			consumeUntilStopped();
+		} finally {
+			// So flush() fails instead of waiting forever
+			this.consuming = false;
+		}
+	}
+
+	private void consumeUntilStopped() {
+		long next = this.snapshot.sequence + 1;
+		// Never goes back, even if the clock falls behind the moments the batches were rotated to
+		long now = this.clock.nanos();
+		while ( this.consuming ) {
+			long last = this.ring.getAvailable( next, this.maxBatch );
+			now = Math.max( now, this.clock.nanos() );
+			if ( last >= next ) {
+				now = registerBatch( next, last, now );
+				next = last + 1;
+			} else if ( getSampleNumber( now ) != this.snapshot.sample ) {
+				// Samples expired since the last snapshot
+				synchronized ( this.samples ) {
+					publishSnapshot( next - 1, now );
+				}
+			} else {
+				this.ring.await( next, this.samplePeriodNanos - now % this.samplePeriodNanos );
+			}
+		}
+	}
+
+	/**
+	 * Rotates the samples to the newest timestamp of the batch if it's later than the moment provided: producers
+	 * accept timestamps up to {@link EpochClock#preciseNanos()}, which may be ahead of the coarse moment the consumer
+	 * read, and the sample of such a transaction would otherwise take the place of the oldest one still in use
+	 *
+	 * @return the moment the samples were rotated to
+	 */
+	private long registerBatch( long first, long last, long now ) {
+		for ( long sequence = first; sequence <= last; sequence++ ) now = Math.max( now, this.ring.getTimestamp( sequence ) );
+
+		synchronized ( this.samples ) {
+			this.samples.advance( now );
+			for ( long sequence = first; sequence <= last; sequence++ ) {
+				BigDecimal decimal = this.ring.getDecimal( sequence );
+				if ( decimal != null ) this.samples.apply( now, this.ring.getTimestamp( sequence ), decimal );
+				else this.samples.apply( now, this.ring.getTimestamp( sequence ), this.ring.getAmount( sequence ), this.ring.getScale( sequence ) );
+			}
+			publishSnapshot( last, now );
+		}
+		this.ring.release( last );
+		return now;
+	}
+
+	/**
+	 * Needs the monitor of the samples, so snapshots are published in the same order they are calculated
+	 */
+	private void publishSnapshot( long sequence, long now ) {
+		this.samples.advance( now );
+		this.snapshot = new Snapshot( this.samples.getLocked(), this.samples.getVersion(), sequence, getSampleNumber( now ) );
+	}
+
+	/**
+	 * Waits until the consumer registers every transaction published so far (e.g. by the caller), so they're
+	 * included in the statistics returned by {@link PipelinedStatisticsService#get()}
+	 *
+	 * @throws IllegalStateException
+	 * 	if the consumer isn't running
+	 */
+	public void flush() {
+		long last = this.ring.getClaimed() - 1;
+		while ( this.snapshot.sequence < last ) {
+			if ( ! this.consuming ) throw new IllegalStateException( "The consumer isn't running" );
+			LockSupport.parkNanos( FLUSH_PARK_NANOS );
+		}
+	}
+
+	public void reset() {
+		flush();
+		synchronized ( this.samples ) {
+			this.samples.reset();
+			publishSnapshot( this.snapshot.sequence, this.clock.nanos() );
+		}
+	}
+
+	public long getVersion() { return this.snapshot.version; }
+
+	public Statistics get() {
+		long start = System.nanoTime();
+		Snapshot snapshot = this.snapshot;
+
+		// Callers may modify the statistics
+		Statistics statistics = new Statistics();
+		statistics.add( snapshot.statistics );
+		statistics.setQuantiles( snapshot.statistics.getQuantiles() );
+		this.metrics.recordGet( start );
+		return statistics;
+	}
+
+	@Override
+	public Statistics get( Duration window ) {
+		return this.samples.get( window );
+	}
+
+	@Override
+	public StatisticsBuckets getBuckets() {
+		return this.samples.getBuckets();
+	}
+
+	/**
+	 * Merges the buckets right away, instead of through the consumer, and publishes new statistics
+	 */
+	@Override
+	public long merge( StatisticsBuckets buckets ) {
+		synchronized ( this.samples ) {
+			long merged = this.samples.merge( buckets );
+			publishSnapshot( this.snapshot.sequence, this.clock.nanos() );
+			return merged;
+		}
+	}
+
+	public RegisterResult register( Transaction transaction ) {
+		long start = System.nanoTime();
+		RegisterResult result;
+		try {
+			long timestamp = EpochNanos.of( transaction.getTimestamp() );
+			result = accept( timestamp, this.clock.nanos() ) ? enqueue( timestamp, transaction.getAmount() ) : RegisterResult.DISCARDED;
+		} catch ( IllegalArgumentException e ) {
+			this.metrics.recordRejected( start );
+			throw e;
+		}
+		this.metrics.recordRegister( start, result );
+		return result;
+	}
+
+	@Override
+	public RegisterResult register( long amount, int scale, long timestamp ) {
+		long start = System.nanoTime();
+		RegisterResult result;
+		try {
+			long timestampNanos = EpochNanos.ofMillis( timestamp );
+			if ( accept( timestampNanos, this.clock.nanos() ) ) {
+				this.ring.publish( this.ring.claim( 1 ), timestampNanos, amount, scale );
+				result = RegisterResult.REGISTERED;
+			} else {
+				result = RegisterResult.DISCARDED;
+			}
+		} catch ( IllegalArgumentException e ) {
+			this.metrics.recordRejected( start );
+			throw e;
+		}
+		this.metrics.recordRegister( start, result );
+		return result;
+	}
+
+	private RegisterResult enqueue( long timestamp, BigDecimal amount ) {
+		long sequence = this.ring.claim( 1 );
+		enqueue( sequence, timestamp, amount );
+		return RegisterResult.REGISTERED;
+	}
+
+	private void enqueue( long sequence, long timestamp, BigDecimal amount ) {
+		BigInteger unscaled = amount.unscaledValue();
+		if ( unscaled.bitLength() < Long.SIZE ) this.ring.publish( sequence, timestamp, unscaled.longValue(), amount.scale() );
+		else this.ring.publish( sequence, timestamp, amount );
+	}
+
+	/**
+	 * Validates every transaction first, and then claims the sequences of the ones registered at once (in chunks of
+	 * up to the size of the ring)
+	 */
+	@Override
+	public BatchResult registerAll( Collection<Transaction> transactions ) {
+		BatchResult result = new BatchResult();
+
+		// The whole batch is registered at the same moment, read precisely since it's read once
+		long now = this.clock.preciseNanos();
+		Transaction[] registered = new Transaction[ transactions.size() ];
+		long[] timestamps = new long[ transactions.size() ];
+		int count = 0;
+		for ( Transaction transaction : transactions ) {
+			long timestamp = EpochNanos.of( transaction.getTimestamp() );
+			try {
+				if ( ! accept( timestamp, now ) ) {
+					result.addDiscarded();
+					continue;
+				}
+			} catch ( IllegalArgumentException e ) {
+				result.addRejected();
+				continue;
+			}
+
+			registered[ count ] = transaction;
+			timestamps[ count ] = timestamp;
+			count++;
+			result.addRegistered();
+		}
+
+		for ( int from = 0; from < count; from += this.ring.getCapacity() ) {
+			int chunk = Math.min( count - from, this.ring.getCapacity() );
+			long first = this.ring.claim( chunk );
+			for ( int i = 0; i < chunk; i++ ) enqueue( first + i, timestamps[ from + i ], registered[ from + i ].getAmount() );
+		}
+		this.metrics.recordBatch( result );
+
+		return result;
+	}
+
+	/**
+	 * @param timestamp
+	 * 	epoch nanos of the transaction
+	 * @param now
+	 * 	epoch nanos of the moment the transaction is registered
+	 * @return whether the transaction needs to be registered, false if it needs to be discarded
+	 * @throws IllegalArgumentException
+	 * 	if the transaction happens in the future
+	 */
+	private boolean accept( long timestamp, long now ) {
+		if ( timestamp > now ) now = this.clock.preciseNanos();
+		if ( timestamp > now ) throw new IllegalArgumentException( "Transactions can't have timestamps of the future" );
+		if ( timestamp < now - this.samplingPeriodNanos ) return false;
+
+		// The sampling period may not be a multiple of the sample period, so the oldest edge may already be gone
+		return getSampleNumber( timestamp ) > getSampleNumber( now ) - this.sampleSize;
+	}
+
+	private long getSampleNumber( long epochNanos ) {
+		return epochNanos / this.samplePeriodNanos;
+	}
+}
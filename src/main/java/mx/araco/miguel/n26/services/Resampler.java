@@ -0,0 +1,195 @@
+package mx.araco.miguel.n26.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import mx.araco.miguel.n26.models.SamplingLayout;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Changes the sample and sampling periods of the {@link SamplingStatisticsService} while it runs (see
+ * {@link SamplingStatisticsService#reconfigure(Duration, Duration)}), either on request (through
+ * {@code /admin/sampling}) or adapting the sample period to the rate of transactions. Enabled by setting
+ * {@code mx.araco.miguel.n26.resampling.enabled=true}, and only with the {@code synchronized} engine.
+ * <p>
+ * In adaptive mode the rate of the last sampling period is checked once per interval, and the sample period is
+ * changed to the one that would hold about {@code target-per-sample} transactions: coarser samples (fewer of
+ * them to rotate) when the traffic is low, finer ones (a smaller margin of error) under high load. The sample
+ * periods considered are the multiples of {@code min-sample-period} up to {@code max-sample-period} (and the
+ * sampling period), and only the ones the finest window resolution is a longer multiple of. It's only changed
+ * once the current one is more than twice or less than half the one wanted, so a rate hovering around a boundary
+ * doesn't keep changing it.
+ * <p>
+ * Changes are counted by {@code statistics.resampling.changes}, tagged by {@code trigger} ({@code request} or
+ * {@code adaptive}), and the current sample period is published as {@code statistics.sample_period}.
+ * <p>
+ * Only the samples follow the new periods: the transaction log keeps replaying the sampling period configured,
+ * and the snapshots of {@code GET /statistics}, the stream and the statistics of the cluster keep using the sample
+ * and sampling periods configured (the nodes of a cluster need the same sample period anyway).
+ *
+ * @author MiguelAraCo
+ */
+@Component
+@ConditionalOnProperty( prefix = "mx.araco.miguel.n26.resampling", name = "enabled", havingValue = "true" )
+public class Resampler {
+	private final SamplingStatisticsService statisticsService;
+	private final long intervalNanos;
+	private final long targetPerSample;
+	private final long minSamplePeriodNanos;
+	private final long maxSamplePeriodNanos;
+	/**
+	 * Period the sample periods need to divide, 0 if there are no window resolutions
+	 */
+	private final long finestResolutionNanos;
+
+	private volatile boolean adaptive;
+
+	private final Counter requestCounter;
+	private final Counter adaptiveCounter;
+
+	private ScheduledExecutorService scheduler;
+
+	@Autowired
+	public Resampler( StatisticsService statisticsService, SamplingStatisticsServiceConfiguration configuration, MeterRegistry registry ) {
+		if ( ! ( statisticsService instanceof SamplingStatisticsService ) ) throw new IllegalStateException( "Resampling needs the synchronized engine" );
+
+		SamplingStatisticsServiceConfiguration.Resampling resampling = configuration.getResampling();
+		this.statisticsService = (SamplingStatisticsService) statisticsService;
+		this.adaptive = resampling.isAdaptive();
+		this.intervalNanos = resampling.getInterval().toNanos();
+		this.targetPerSample = resampling.getTargetPerSample();
+		this.minSamplePeriodNanos = resampling.getMinSamplePeriod().toNanos();
+		this.maxSamplePeriodNanos = resampling.getMaxSamplePeriod().toNanos();
+		if ( this.minSamplePeriodNanos <= 0 || this.maxSamplePeriodNanos < this.minSamplePeriodNanos ) {
+			throw new IllegalArgumentException( "The min sample period needs to be positive and up to the max sample period" );
+		}
+		if ( this.targetPerSample <= 0 ) throw new IllegalArgumentException( "The target of transactions per sample needs to be positive" );
+
+		List<Duration> resolutions = configuration.getWindowResolutions();
+		this.finestResolutionNanos = resolutions == null || resolutions.isEmpty() ? 0 : resolutions.get( 0 ).toNanos();
+		if ( this.finestResolutionNanos > 0 && ( this.finestResolutionNanos <= this.minSamplePeriodNanos || this.finestResolutionNanos % this.minSamplePeriodNanos != 0 ) ) {
+			throw new IllegalArgumentException( "The finest window resolution needs to be a multiple of the min sample period" );
+		}
+
+		this.requestCounter = changesCounter( registry, "request" );
+		this.adaptiveCounter = changesCounter( registry, "adaptive" );
+		Gauge
+			.builder( "statistics.sample_period", this.statisticsService, service -> service.getSamplePeriod().toNanos() / 1e9 )
+			.description( "Sample period the statistics are calculated with" )
+			.baseUnit( "seconds" )
+			.register( registry );
+	}
+
+	private static Counter changesCounter( MeterRegistry registry, String trigger ) {
+		return Counter
+			.builder( "statistics.resampling.changes" )
+			.description( "Changes of the sample or sampling periods" )
+			.tag( "trigger", trigger )
+			.register( registry );
+	}
+
+	@PostConstruct
+	public void start() {
+		if ( this.scheduler != null ) return;
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread thread = new Thread( runnable, "statistics-resampler" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		this.scheduler.scheduleWithFixedDelay( this::tick, this.intervalNanos, this.intervalNanos, TimeUnit.NANOSECONDS );
+	}
+
+	private void tick() {
+		if ( this.adaptive ) adapt();
+	}
+
+	@PreDestroy
+	public void stop() {
+		if ( this.scheduler == null ) return;
+
+		this.scheduler.shutdownNow();
+		this.scheduler = null;
+	}
+
+	public SamplingLayout getLayout() {
+		return new SamplingLayout( this.statisticsService.getSamplePeriod(), this.statisticsService.getSamplingPeriod(), this.adaptive );
+	}
+
+	/**
+	 * Changes the layout of the statistics. A sample period set while in adaptive mode is only kept until the next
+	 * interval
+	 *
+	 * @param layout
+	 * 	the fields left null keep their current value
+	 * @return the new layout
+	 * @throws IllegalArgumentException
+	 * 	if the statistics service can't use the periods provided
+	 */
+	public SamplingLayout change( SamplingLayout layout ) {
+		if ( layout.getSamplePeriod() != null || layout.getSamplingPeriod() != null ) {
+			synchronized ( this ) {
+				Duration samplePeriod = layout.getSamplePeriod() != null ? layout.getSamplePeriod() : this.statisticsService.getSamplePeriod();
+				Duration samplingPeriod = layout.getSamplingPeriod() != null ? layout.getSamplingPeriod() : this.statisticsService.getSamplingPeriod();
+				this.statisticsService.reconfigure( samplePeriod, samplingPeriod );
+			}
+			this.requestCounter.increment();
+		}
+		if ( layout.getAdaptive() != null ) this.adaptive = layout.getAdaptive();
+		return getLayout();
+	}
+
+	/**
+	 * Changes the sample period to the one that suits the rate of transactions of the last sampling period, if the
+	 * current one doesn't
+	 *
+	 * @return true if it was changed
+	 */
+	public boolean adapt() {
+		synchronized ( this ) {
+			Duration samplingPeriod = this.statisticsService.getSamplingPeriod();
+			long current = this.statisticsService.getSamplePeriod().toNanos();
+			long count = this.statisticsService.get().getCount();
+
+			// Sample period that would hold the target at the current rate
+			double wanted = count == 0 ? Double.MAX_VALUE : (double) this.targetPerSample * samplingPeriod.toNanos() / count;
+			if ( current <= 2 * wanted && current >= wanted / 2 ) return false;
+
+			long samplePeriod = getSamplePeriodNanos( wanted, samplingPeriod.toNanos() );
+			if ( samplePeriod == current ) return false;
+
+			this.statisticsService.reconfigure( Duration.ofNanos( samplePeriod ), samplingPeriod );
+		}
+		this.adaptiveCounter.increment();
+		return true;
+	}
+
+	/**
+	 * @return the longest of the sample periods considered that isn't longer than the one wanted, or the shortest one
+	 * if all of them are
+	 */
+	private long getSamplePeriodNanos( double wanted, long samplingPeriodNanos ) {
+		long longest = (long) Math.min( wanted, Math.min( this.maxSamplePeriodNanos, samplingPeriodNanos ) );
+		if ( longest <= this.minSamplePeriodNanos ) return this.minSamplePeriodNanos;
+		if ( this.finestResolutionNanos == 0 ) return longest / this.minSamplePeriodNanos * this.minSamplePeriodNanos;
+
+		// The finest resolution divided by the smallest divisor that fits
+		for ( long divisor = Math.max( 2, ( this.finestResolutionNanos + longest - 1 ) / longest ); this.finestResolutionNanos / divisor > this.minSamplePeriodNanos; divisor++ ) {
+			long samplePeriod = this.finestResolutionNanos / divisor;
+			if ( this.finestResolutionNanos % divisor == 0 && samplePeriod % this.minSamplePeriodNanos == 0 ) return samplePeriod;
+		}
+		return this.minSamplePeriodNanos;
+	}
+
+	public boolean isAdaptive() { return this.adaptive; }
+}
@@ -0,0 +1,171 @@
+package mx.araco.miguel.n26.services;
+
+import mx.araco.miguel.n26.models.MinorUnits;
+import mx.araco.miguel.n26.models.Statistics;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Amounts of a sample aggregated per millisecond, sorted by millisecond, so the part of the sample older than a
+ * given moment can be left out of the statistics (see
+ * {@link SamplingStatisticsServiceConfiguration#setExactEdge(boolean)}). There's a record per millisecond with
+ * transactions, however many of them it had, so a sample of {@code n} milliseconds holds {@code n + 1} records at
+ * most (more only if samples were merged into it by
+ * {@link SamplingStatisticsService#reconfigure(java.time.Duration, java.time.Duration)}).
+ * <p>
+ * Each record is a fixed struct of eight {@code long}s: millisecond, count, and the sum, min and max, in minor units
+ * (see {@link Statistics#SCALE}), each followed by the decimals it was received with (the highest number of them for
+ * the sum, like {@link Statistics} keeps them), packed in a single array. Amounts that can't be represented in minor units (they have
+ * more decimals, or a sum overflows) make the records inexact, and then the sample can only be used whole.
+ *
+ * @author MiguelAraCo
+ */
+class SampleRecords {
+	static final long NANOS_PER_MILLI = 1_000_000L;
+
+	private static final int MILLIS = 0;
+	private static final int COUNT = 1;
+	private static final int SUM = 2;
+	private static final int SUM_SCALE = 3;
+	private static final int MIN = 4;
+	private static final int MIN_SCALE = 5;
+	private static final int MAX = 6;
+	private static final int MAX_SCALE = 7;
+	private static final int RECORD_SIZE = 8;
+	private static final int INITIAL_RECORDS = 4;
+
+	private long[] records = new long[ INITIAL_RECORDS * RECORD_SIZE ];
+	private int size;
+	private boolean exact = true;
+
+	void add( long timestamp, BigDecimal amount ) {
+		addUnits( timestamp, MinorUnits.of( amount ), amount.scale() );
+	}
+
+	void add( long timestamp, long amount, int scale ) {
+		addUnits( timestamp, MinorUnits.of( amount, scale ), scale );
+	}
+
+	private void addUnits( long timestamp, long units, int scale ) {
+		if ( ! this.exact ) return;
+		if ( units == MinorUnits.NO_UNITS ) {
+			this.exact = false;
+			return;
+		}
+		add( Math.floorDiv( timestamp, NANOS_PER_MILLI ), 1, units, scale, units, scale, units, scale );
+	}
+
+	/**
+	 * Adds the records of another sample (e.g. merged into this one)
+	 */
+	void add( SampleRecords other ) {
+		if ( ! other.exact ) this.exact = false;
+		for ( int offset = 0; this.exact && offset < other.size * RECORD_SIZE; offset += RECORD_SIZE ) {
+			add( other.records[ offset + MILLIS ], other.records[ offset + COUNT ], other.records[ offset + SUM ], other.records[ offset + SUM_SCALE ], other.records[ offset + MIN ], other.records[ offset + MIN_SCALE ], other.records[ offset + MAX ], other.records[ offset + MAX_SCALE ] );
+		}
+	}
+
+	/**
+	 * Marks the records as inexact, for amounts added to the sample without their timestamps
+	 */
+	void addUntimed() {
+		this.exact = false;
+	}
+
+	private void add( long millis, long count, long sum, long sumScale, long min, long minScale, long max, long maxScale ) {
+		int record = find( millis );
+		if ( record < 0 ) {
+			record = - record - 1;
+			insert( record );
+			int offset = record * RECORD_SIZE;
+			this.records[ offset + MILLIS ] = millis;
+			this.records[ offset + COUNT ] = count;
+			this.records[ offset + SUM ] = sum;
+			this.records[ offset + SUM_SCALE ] = sumScale;
+			this.records[ offset + MIN ] = min;
+			this.records[ offset + MIN_SCALE ] = minScale;
+			this.records[ offset + MAX ] = max;
+			this.records[ offset + MAX_SCALE ] = maxScale;
+			return;
+		}
+
+		int offset = record * RECORD_SIZE;
+		long recordSum = this.records[ offset + SUM ];
+		long newSum = recordSum + sum;
+		if ( MinorUnits.overflows( recordSum, sum, newSum ) ) {
+			this.exact = false;
+			return;
+		}
+
+		this.records[ offset + COUNT ] += count;
+		this.records[ offset + SUM ] = newSum;
+		if ( sumScale > this.records[ offset + SUM_SCALE ] ) this.records[ offset + SUM_SCALE ] = sumScale;
+		if ( min < this.records[ offset + MIN ] ) {
+			this.records[ offset + MIN ] = min;
+			this.records[ offset + MIN_SCALE ] = minScale;
+		}
+		if ( max > this.records[ offset + MAX ] ) {
+			this.records[ offset + MAX ] = max;
+			this.records[ offset + MAX_SCALE ] = maxScale;
+		}
+	}
+
+	/**
+	 * @return the index of the record of the millisecond provided, or {@code -(insertion point) - 1} if there's none
+	 */
+	private int find( long millis ) {
+		// Transactions usually arrive in order, so the newest record is checked first
+		if ( this.size > 0 ) {
+			long newest = this.records[ ( this.size - 1 ) * RECORD_SIZE + MILLIS ];
+			if ( newest == millis ) return this.size - 1;
+			if ( newest < millis ) return - this.size - 1;
+		}
+
+		int low = 0;
+		int high = this.size - 1;
+		while ( low <= high ) {
+			int middle = ( low + high ) >>> 1;
+			long middleMillis = this.records[ middle * RECORD_SIZE + MILLIS ];
+			if ( middleMillis < millis ) low = middle + 1;
+			else if ( middleMillis > millis ) high = middle - 1;
+			else return middle;
+		}
+		return - low - 1;
+	}
+
+	private void insert( int record ) {
+		if ( ( this.size + 1 ) * RECORD_SIZE > this.records.length ) this.records = Arrays.copyOf( this.records, this.records.length * 2 );
+
+		int offset = record * RECORD_SIZE;
+		System.arraycopy( this.records, offset, this.records, offset + RECORD_SIZE, ( this.size - record ) * RECORD_SIZE );
+		this.size++;
+	}
+
+	/**
+	 * Adds the records of the milliseconds from the one provided on to the statistics provided
+	 *
+	 * @param fromMillis
+	 * 	epoch millis of the oldest record to add
+	 */
+	void addTo( Statistics aggregate, long fromMillis ) {
+		int first = find( fromMillis );
+		if ( first < 0 ) first = - first - 1;
+		for ( int offset = first * RECORD_SIZE; offset < this.size * RECORD_SIZE; offset += RECORD_SIZE ) {
+			aggregate.addUnits( this.records[ offset + COUNT ], this.records[ offset + SUM ], (int) this.records[ offset + SUM_SCALE ], this.records[ offset + MIN ], (int) this.records[ offset + MIN_SCALE ], this.records[ offset + MAX ], (int) this.records[ offset + MAX_SCALE ] );
+		}
+	}
+
+	/**
+	 * @return false if some amounts of the sample aren't in the records
+	 */
+	boolean isExact() { return this.exact; }
+
+	/**
+	 * Empties the records, keeping the memory they took for the next sample
+	 */
+	void reset() {
+		this.size = 0;
+		this.exact = true;
+	}
+}
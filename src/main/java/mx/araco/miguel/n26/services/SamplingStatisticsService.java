@@ -1,12 +1,29 @@
 package mx.araco.miguel.n26.services;
 
+import mx.araco.miguel.n26.models.BatchResult;
+import mx.araco.miguel.n26.models.QuantileSketch;
 import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.StatisticsBuckets;
 import mx.araco.miguel.n26.models.Transaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.time.Duration;
-import java.time.Instant;
-import java.util.*;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of {@link StatisticsService}. The statistics returned (and maintained by it)
@@ -20,7 +37,11 @@ import java.util.*;
  * The statistics returned by {@link SamplingStatisticsService#get()} are only about the
  * transactions registered during that time.
  * <p>
- * The service uses a sampling strategy to keep execution time and memory constant (O(1)).
+ * The service uses a sampling strategy to keep execution time and memory constant (O(1)). Samples
+ * are kept in a preallocated ring, and the slot of each sample is calculated directly from its
+ * timestamp, so no keys need to be built or traversed. The sum and count of the whole ring are
+ * updated as transactions are registered and samples expire, and a segment tree keeps track of
+ * the min and max, so getting the statistics doesn't depend on the number of samples either.
  * <p>
  * The drawback of this approach is that, depending on the time the statistics are requested,
  * the service may return statistics that include more data than the one received strictly in the
@@ -28,191 +49,889 @@ import java.util.*;
  * <p>
  * The margin of error will be determined by the configured sample period (the fragment of time
  * used by this service to store a statistics sample), and the frequency of transactions.
+ * <p>
+ * With the exact edge (see {@link SamplingStatisticsServiceConfiguration#setExactEdge(boolean)}) each sample also
+ * keeps its amounts aggregated per millisecond (see {@link SampleRecords}), and the oldest sample, the only one
+ * that can hold transactions older than the sampling period, is trimmed to it when the statistics are requested.
+ * The count, sum, min and max of the sampling period are then exact to the millisecond, while the rest of the
+ * samples are still added up whole. The quantiles still include the whole oldest sample, and so do the statistics
+ * of samples merged without timestamps (see {@link #merge(StatisticsBuckets)}) or with amounts of more than
+ * {@link Statistics#SCALE} decimals.
+ * <p>
+ * Besides the samples, the service can keep coarser buckets for longer (see
+ * {@link SamplingStatisticsServiceConfiguration#setWindowResolutions(List)}), to calculate the statistics of
+ * windows other than the sampling period with {@link SamplingStatisticsService#get(Duration)}. A window is
+ * split in whole buckets of the coarsest resolution that fits, and only its edges are calculated with finer
+ * buckets, so the number of buckets read grows with the number of resolutions instead of with the length of the
+ * window. The margin of error of a window is the period of the finest resolution that still keeps its oldest
+ * edge. The buckets can be kept outside the heap (see
+ * {@link SamplingStatisticsServiceConfiguration#setWindowStorage(SamplingStatisticsServiceConfiguration.WindowStorage)}),
+ * so long windows of fine resolutions don't grow the heap.
+ * <p>
+ * If quantiles are configured (see {@link SamplingStatisticsServiceConfiguration#setQuantiles(List)}), each
+ * sample also keeps a {@link QuantileSketch} of its amounts, and a sketch of the whole ring is maintained the
+ * same way the sum and count are, so the quantiles are estimated without merging the samples. Only the statistics
+ * of the sampling period include quantiles, not the ones of other windows.
+ * <p>
+ * Samples can be rotated by a background thread once per sample period (see
+ * {@link SamplingStatisticsServiceConfiguration#setBackgroundRotation(boolean)}), otherwise they are rotated
+ * by the requests themselves. Either way, expired samples are cleared and reused, never reallocated.
+ * <p>
+ * The current moment is read from the clock of the configuration (see
+ * {@link SamplingStatisticsServiceConfiguration#getEpochClock()}), so the service can also be driven through
+ * simulated time with a {@link VirtualEpochClock}.
+ * <p>
+ * If persistence is enabled (see {@link SamplingStatisticsServiceConfiguration.Persistence}), every transaction
+ * registered is appended to a {@link TransactionLog} first, and the transactions of the last sampling period are
+ * replayed from it when the service starts. Only the samples (and the part of the coarser buckets they cover) are
+ * recovered that way, not the rest of the max window.
+ * <p>
+ * Every call is serialized on the service's monitor. See {@link ConcurrentSamplingStatisticsService}
+ * for a lock-free alternative.
  *
  * @author MiguelAraCo
  */
 @Service
+@ConditionalOnProperty( prefix = "mx.araco.miguel.n26", name = "engine", havingValue = "synchronized", matchIfMissing = true )
 public class SamplingStatisticsService implements StatisticsService {
-	private final Duration samplePeriod;
-	private final Duration samplingPeriod;
-	private final int sampleSize;
-
-	private Map<Instant, Statistics> samples;
+	/**
+	 * Returned by {@link SamplingStatisticsService#getSampleToUpdate(long, long)} when a transaction is discarded
+	 */
+	private static final long NO_SAMPLE = Long.MIN_VALUE;
+	/**
+	 * Number of buckets of the next resolution each resolution (except the coarsest) keeps, at least
+	 */
+	private static final int COARSE_BUCKETS = 60;
+
+	/**
+	 * The sampling and sample periods (and everything sized after them) can change at runtime (see
+	 * {@link #reconfigure(Duration, Duration)}), so they're only read while holding the monitor
+	 */
+	private long samplingPeriodNanos;
+	private final EpochClock clock;
+	private long samplePeriodNanos;
+	private int sampleSize;
+	private final boolean backgroundRotation;
+	private final Duration configuredMaxWindow;
+	private volatile Duration maxWindow;
+	private final boolean offHeapWindows;
+	private final boolean exactEdge;
+
+	/**
+	 * Ring of samples. The sample number {@code n} (the number of sample periods elapsed since the epoch)
+	 * is stored in the slot {@code n % sampleSize}
+	 */
+	private Statistics[] samples;
+	/**
+	 * Sum and count of all the samples in the ring, maintained as samples are updated and expire
+	 */
+	private final Statistics window;
+	/**
+	 * Keeps track of the samples holding the min and max of the ring
+	 */
+	private MinMaxTree extremes;
+	/**
+	 * Coarser buckets kept to calculate the statistics of other windows, ordered from the finest to the coarsest
+	 */
+	private final StatisticsLevel[] levels;
+	/**
+	 * Quantiles returned with the statistics and their names, empty if they are disabled
+	 */
+	private final double[] quantiles;
+	private final String[] quantileNames;
+	/**
+	 * Sketches of the amounts of each sample, and of the whole ring. Null if quantiles are disabled
+	 */
+	private QuantileSketch[] sketches;
+	private final QuantileSketch windowSketch;
+	/**
+	 * Amounts of each sample per millisecond, to trim the oldest one to the sampling period. Null unless the exact
+	 * edge is enabled
+	 */
+	private SampleRecords[] records;
+	/**
+	 * Sample number of the newest sample stored in the ring. The ring only contains samples in between
+	 * {@code newestSample - sampleSize} (exclusive) and {@code newestSample} (inclusive)
+	 */
+	private long newestSample;
+	private boolean initialized;
+	/**
+	 * Incremented every time the statistics change. Only written while holding the monitor
+	 */
+	private volatile long version;
+
+	private final StatisticsServiceMetrics metrics;
+
+	/**
+	 * Guarded by the monitor of the service, so it's restarted atomically with the change of the sample period
+	 */
+	private ScheduledExecutorService rotator;
+	private TransactionLog log;
 
 	public SamplingStatisticsService( SamplingStatisticsServiceConfiguration configuration ) {
-		this.samplePeriod = configuration.getSamplePeriod();
-		this.samplingPeriod = configuration.getSamplingPeriod();
+		this( configuration, StatisticsServiceMetrics.disabled() );
+	}
+
+	@Autowired
+	public SamplingStatisticsService( SamplingStatisticsServiceConfiguration configuration, StatisticsServiceMetrics metrics ) {
+		this.samplingPeriodNanos = configuration.getSamplingPeriod().toNanos();
+		this.clock = configuration.getEpochClock();
+		this.samplePeriodNanos = configuration.getSamplePeriod().toNanos();
+
+		this.sampleSize = ( (int) ( this.samplingPeriodNanos / this.samplePeriodNanos ) ) + 1;
+		this.backgroundRotation = configuration.isBackgroundRotation();
+		this.samples = new Statistics[ this.sampleSize ];
+		for ( int i = 0; i < this.sampleSize; i++ ) this.samples[ i ] = new Statistics();
+		this.window = new Statistics();
+		this.extremes = new MinMaxTree( this.samples );
+		this.initialized = false;
+
+		this.configuredMaxWindow = configuration.getMaxWindow();
+		this.maxWindow = getMaxWindow( configuration.getSamplingPeriod() );
+		this.offHeapWindows = configuration.getWindowStorage() == SamplingStatisticsServiceConfiguration.WindowStorage.OFF_HEAP;
+		this.levels = createLevels( configuration.getWindowResolutions() );
+
+		List<Double> quantiles = configuration.getQuantiles() != null ? configuration.getQuantiles() : Collections.emptyList();
+		this.quantiles = new double[ quantiles.size() ];
+		this.quantileNames = new String[ quantiles.size() ];
+		for ( int i = 0; i < this.quantiles.length; i++ ) {
+			double quantile = quantiles.get( i );
+			if ( ! ( quantile >= 0 && quantile <= 1 ) ) throw new IllegalArgumentException( "Quantiles need to be between 0 and 1" );
+
+			this.quantiles[ i ] = quantile;
+			this.quantileNames[ i ] = "p" + BigDecimal.valueOf( quantile ).movePointRight( 2 ).stripTrailingZeros().toPlainString();
+		}
+		if ( this.quantiles.length > 0 ) {
+			this.sketches = new QuantileSketch[ this.sampleSize ];
+			for ( int i = 0; i < this.sampleSize; i++ ) this.sketches[ i ] = new QuantileSketch();
+			this.windowSketch = new QuantileSketch();
+		} else {
+			this.sketches = null;
+			this.windowSketch = null;
+		}
+
+		this.exactEdge = configuration.isExactEdge();
+		this.records = this.exactEdge ? createRecords( this.sampleSize ) : null;
+
+		this.metrics = metrics;
+		this.metrics.registerWindowGauge( this, SamplingStatisticsService::getWindowCount );
+	}
+
+	private static SampleRecords[] createRecords( int sampleSize ) {
+		SampleRecords[] records = new SampleRecords[ sampleSize ];
+		for ( int i = 0; i < sampleSize; i++ ) records[ i ] = new SampleRecords();
+		return records;
+	}
+
+	private Duration getMaxWindow( Duration samplingPeriod ) {
+		return this.configuredMaxWindow != null && this.configuredMaxWindow.compareTo( samplingPeriod ) > 0 ? this.configuredMaxWindow : samplingPeriod;
+	}
+
+	private StatisticsLevel[] createLevels( List<Duration> resolutions ) {
+		if ( resolutions == null || resolutions.isEmpty() ) return new StatisticsLevel[ 0 ];
+
+		long maxWindowNanos = this.maxWindow.toNanos();
+		StatisticsLevel[] levels = new StatisticsLevel[ resolutions.size() ];
+		long previousPeriod = this.samplePeriodNanos;
+		long retention = this.samplingPeriodNanos;
+		for ( int i = 0; i < levels.length; i++ ) {
+			long period = resolutions.get( i ).toNanos();
+			if ( period <= previousPeriod || period % previousPeriod != 0 ) {
+				throw new IllegalArgumentException( "Each window resolution needs to be a multiple of the previous one (or of the sample period)" );
+			}
+
+			if ( i == levels.length - 1 ) retention = Math.max( retention, maxWindowNanos );
+			else retention = Math.max( retention, Math.min( maxWindowNanos, COARSE_BUCKETS * resolutions.get( i + 1 ).toNanos() ) );
+
+			levels[ i ] = StatisticsLevel.create( period, retention, this.offHeapWindows );
+			previousPeriod = period;
+		}
+		return levels;
+	}
+
+	private long getWindowCount() {
+		synchronized ( this ) {
+			return this.initialized ? this.window.getCount() : 0L;
+		}
+	}
+
+	@Autowired( required = false )
+	public void setTransactionLog( TransactionLog log ) { this.log = log; }
+
+	@PostConstruct
+	public void start() throws IOException {
+		recover();
+		startRotation();
+	}
+
+	/**
+	 * Registers the transactions of the last sampling period appended to the transaction log by a previous run, if
+	 * there's a log. Needs to be called before registering any transaction
+	 *
+	 * @return number of transactions recovered
+	 */
+	public long recover() throws IOException {
+		if ( this.log == null ) return 0;
+
+		synchronized ( this ) {
+			long now = this.clock.nanos();
+			checkSamples( now );
+
+			return this.log.replay( now - this.samplingPeriodNanos, new TransactionLog.Visitor() {
+				@Override
+				public void visit( long timestamp, long amount, int scale ) {
+					long sample = getSampleToUpdate( timestamp, now );
+					if ( timestamp <= now && sample != NO_SAMPLE ) updateStatistics( sample, timestamp, amount, scale );
+				}
+
+				@Override
+				public void visit( long timestamp, BigDecimal amount ) {
+					long sample = getSampleToUpdate( timestamp, now );
+					if ( timestamp <= now && sample != NO_SAMPLE ) updateStatistics( sample, timestamp, amount );
+				}
+			} );
+		}
+	}
+
+	/**
+	 * Starts rotating the samples in the background, once per sample period, if the configuration enables it.
+	 * Requests then usually find the samples already rotated, instead of paying for it themselves (which can
+	 * mean resetting every sample after an idle gap)
+	 */
+	public void startRotation() {
+		synchronized ( this ) {
+			if ( ! this.backgroundRotation || this.rotator != null ) return;
+
+			this.rotator = Executors.newSingleThreadScheduledExecutor( runnable -> {
+				Thread thread = new Thread( runnable, "statistics-rotator" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+
+			// Align the ticks with the start of the samples
+			long nanosToNextSample = this.samplePeriodNanos - this.clock.nanos() % this.samplePeriodNanos;
+			this.rotator.scheduleAtFixedRate( this::rotate, nanosToNextSample, this.samplePeriodNanos, TimeUnit.NANOSECONDS );
+		}
+	}
+
+	@PreDestroy
+	public void stopRotation() {
+		synchronized ( this ) {
+			if ( this.rotator == null ) return;
 
-		this.sampleSize = ( (int) ( this.samplingPeriod.toNanos() / this.samplePeriod.toNanos() ) ) + 1;
-		this.samples = Collections.emptyMap();
+			this.rotator.shutdownNow();
+			this.rotator = null;
+		}
+	}
+
+	/**
+	 * Clears the samples that fell outside the sampling period, so they are ready to be reused
+	 */
+	public void rotate() {
+		synchronized ( this ) {
+			if ( this.initialized ) checkSamples( this.clock.nanos() );
+		}
 	}
 
 	public void reset() {
 		synchronized ( this ) {
-			this.samples = Collections.emptyMap();
+			if ( this.log != null ) {
+				try {
+					this.log.clear();
+				} catch ( IOException e ) {
+					throw new UncheckedIOException( e );
+				}
+			}
+			this.initialized = false;
+			for ( StatisticsLevel level : this.levels ) level.clear();
+			this.version++;
 		}
 	}
 
+	public long getVersion() { return this.version; }
+
 	public Statistics get() {
+		long start = System.nanoTime();
+		Statistics statistics;
 		synchronized ( this ) {
-			return _get();
+			this.metrics.recordLockWait( start );
+			statistics = _get();
 		}
+		this.metrics.recordGet( start );
+		return statistics;
 	}
 
 	private Statistics _get() {
-		if ( this.samples.size() == 0 ) return new Statistics();
+		if ( ! this.initialized ) {
+			Statistics empty = new Statistics();
+			if ( this.windowSketch != null ) empty.setQuantiles( getQuantiles( null ) );
+			return empty;
+		}
 
-		Instant now = Instant.now();
+		long now = this.clock.nanos();
 		checkSamples( now );
 
-		return getSamplesStatistics();
+		return this.records != null ? getExactStatistics( now ) : getSamplesStatistics();
 	}
 
-	private Statistics getSamplesStatistics() {
+	/**
+	 * Returns the statistics of the transactions registered during the window provided, instead of the sampling
+	 * period
+	 *
+	 * @param window
+	 * 	how far back to look, up to the max window configured
+	 * @throws IllegalArgumentException
+	 * 	if the window isn't positive or it's longer than the max window
+	 */
+	@Override
+	public Statistics get( Duration window ) {
+		if ( window.isNegative() || window.isZero() || window.compareTo( this.maxWindow ) > 0 ) {
+			throw new IllegalArgumentException( "The window needs to be positive and up to " + this.maxWindow );
+		}
+
+		long start = System.nanoTime();
+		Statistics statistics;
+		synchronized ( this ) {
+			this.metrics.recordLockWait( start );
+			statistics = _get( window.toNanos() );
+		}
+		this.metrics.recordGet( start );
+		return statistics;
+	}
+
+	private Statistics _get( long window ) {
+		if ( ! this.initialized ) return new Statistics();
+
+		long now = this.clock.nanos();
+		checkSamples( now );
+
+		// The finest resolution that still keeps the oldest edge of the window determines the margin of error
+		int edge = 0;
+		while ( edge < this.levels.length && getOldestNanos( edge ) > now - window ) edge++;
+
+		long from = floor( now - window, getPeriodNanos( edge ) );
+		long to = floor( now, this.samplePeriodNanos ) + this.samplePeriodNanos;
+
+		// Only the edges are calculated with each resolution, the rest of the window is left to the coarser ones
 		Statistics aggregate = new Statistics();
-		this.samples.forEach( ( key, sample ) -> aggregate.add( sample ) );
+		for ( int level = 0; level <= this.levels.length; level++ ) {
+			if ( level == this.levels.length ) {
+				addBucketsTo( aggregate, level, from, to );
+				break;
+			}
+
+			long coarserPeriod = getPeriodNanos( level + 1 );
+			long coarserFrom = floor( from + coarserPeriod - 1, coarserPeriod );
+			long coarserTo = floor( to, coarserPeriod );
+			if ( coarserFrom >= coarserTo ) {
+				addBucketsTo( aggregate, level, from, to );
+				break;
+			}
+
+			addBucketsTo( aggregate, level, from, coarserFrom );
+			addBucketsTo( aggregate, level, coarserTo, to );
+			from = coarserFrom;
+			to = coarserTo;
+		}
 		return aggregate;
 	}
 
-	public RegisterResult register( Transaction transaction ) {
+	@Override
+	public StatisticsBuckets getBuckets() {
+		StatisticsBuckets buckets;
 		synchronized ( this ) {
-			return _register( transaction );
+			buckets = new StatisticsBuckets( this.samplePeriodNanos );
+			if ( ! this.initialized ) return buckets;
+
+			checkSamples( this.clock.nanos() );
+			for ( long sample = this.newestSample - this.sampleSize + 1; sample <= this.newestSample; sample++ ) {
+				buckets.add( sample, this.samples[ getSampleIndex( sample ) ] );
+			}
 		}
+		return buckets;
 	}
 
-	private RegisterResult _register( Transaction transaction ) {
-		Instant now = Instant.now();
+	/**
+	 * Merges the statistics of the samples provided that are still in the sampling period. The quantiles don't
+	 * include their amounts, and they aren't appended to the transaction log.
+	 * <p>
+	 * The buckets may have a period other than the sample period (e.g. they were built before the sample period was
+	 * changed with {@link #reconfigure(Duration, Duration)}): each one is merged whole into the sample its last
+	 * nanosecond falls in (or the newest one), the same way {@code reconfigure} moves the samples
+	 */
+	@Override
+	public long merge( StatisticsBuckets buckets ) {
+		long merged = 0;
+		synchronized ( this ) {
+			long now = this.clock.nanos();
+			checkSamples( now );
+			long period = buckets.getPeriodNanos();
+			for ( Map.Entry<Long, Statistics> bucket : buckets.getBuckets().entrySet() ) {
+				if ( bucket.getKey() * period > now ) continue;
+
+				long sample = getSampleToMoveTo( bucket.getKey(), period, this.samplePeriodNanos, this.newestSample );
+				if ( sample <= this.newestSample - this.sampleSize ) continue;
+
+				int index = getSampleIndex( sample );
+				Statistics statistics = bucket.getValue();
+				this.samples[ index ].add( statistics );
+				this.window.add( statistics );
+				if ( this.records != null ) this.records[ index ].addUntimed();
+				for ( StatisticsLevel level : this.levels ) level.add( sample * this.samplePeriodNanos, statistics );
+				updated( index );
+				merged += statistics.getCount();
+			}
+		}
+		return merged;
+	}
 
-		if ( transactionHappensInTheFuture( transaction, now ) ) throw new IllegalArgumentException( "Transactions can't have timestamps of the future" );
+	/**
+	 * Changes the sample period and the sampling period without losing the transactions registered (as long as they
+	 * are still inside the new sampling period) and without stopping the service: the new ring is allocated before
+	 * taking the monitor, so requests only wait for the samples to be moved to it, a pass over the old ring.
+	 * <p>
+	 * Samples can't be split (the moment of each transaction isn't kept), so each one is moved whole into the new
+	 * sample its last nanosecond falls in (or the newest one, if that's in the future). When the samples get finer
+	 * their transactions then expire no sooner than they used to, and when they get coarser, they're simply merged
+	 * into the sample containing them. The coarser buckets of the other windows don't change. With the exact edge the
+	 * per-millisecond records move along with their samples, so only the oldest sample is trimmed: until the samples
+	 * moved to finer ones expire, the statistics can include transactions up to one old sample period older than the
+	 * sampling period, as they did without it.
+	 *
+	 * @throws IllegalArgumentException
+	 * 	if the sample period isn't positive, it's longer than the sampling period, the finest window resolution isn't
+	 * 	a multiple of it (longer than it), or there are window resolutions and the sampling period is longer than the max window
+	 */
+	public void reconfigure( Duration samplePeriod, Duration samplingPeriod ) {
+		long samplePeriodNanos = samplePeriod.toNanos();
+		long samplingPeriodNanos = samplingPeriod.toNanos();
+		if ( samplePeriodNanos <= 0 || samplingPeriodNanos < samplePeriodNanos ) throw new IllegalArgumentException( "The sample period needs to be positive and up to the sampling period" );
+		if ( this.levels.length > 0 ) {
+			long finestResolution = this.levels[ 0 ].getPeriodNanos();
+			if ( finestResolution <= samplePeriodNanos || finestResolution % samplePeriodNanos != 0 ) throw new IllegalArgumentException( "The window resolutions need to be multiples of the sample period" );
+			if ( samplingPeriod.compareTo( this.maxWindow ) > 0 ) throw new IllegalArgumentException( "The sampling period can't be longer than the max window, " + this.maxWindow );
+		}
+		if ( samplingPeriodNanos / samplePeriodNanos >= Integer.MAX_VALUE ) throw new IllegalArgumentException( "Too many samples for a sample period of " + samplePeriod );
+
+		int sampleSize = ( (int) ( samplingPeriodNanos / samplePeriodNanos ) ) + 1;
+		Statistics[] samples = new Statistics[ sampleSize ];
+		for ( int i = 0; i < sampleSize; i++ ) samples[ i ] = new Statistics();
+		MinMaxTree extremes = new MinMaxTree( samples );
+		QuantileSketch[] sketches = null;
+		if ( this.windowSketch != null ) {
+			sketches = new QuantileSketch[ sampleSize ];
+			for ( int i = 0; i < sampleSize; i++ ) sketches[ i ] = new QuantileSketch();
+		}
+		SampleRecords[] records = this.exactEdge ? createRecords( sampleSize ) : null;
 
-		checkSamples( now );
+		synchronized ( this ) {
+			if ( this.initialized ) {
+				long now = this.clock.nanos();
+				checkSamples( now );
+
+				long newestSample = now / samplePeriodNanos;
+				for ( long sample = this.newestSample - this.sampleSize + 1; sample <= this.newestSample; sample++ ) {
+					int index = getSampleIndex( sample );
+					if ( this.samples[ index ].isEmpty() ) continue;
+
+					long newSample = getSampleToMoveTo( sample, this.samplePeriodNanos, samplePeriodNanos, newestSample );
+					// A shorter sampling period leaves the oldest samples out, the rest of the ring keeps its totals
+					if ( newSample <= newestSample - sampleSize ) {
+						this.window.remove( this.samples[ index ] );
+						if ( sketches != null ) this.windowSketch.remove( this.sketches[ index ] );
+						continue;
+					}
+
+					int newIndex = (int) ( newSample % sampleSize );
+					if ( samples[ newIndex ].isEmpty() ) {
+						// Nothing was moved to the new sample yet, so the old one can take its place
+						samples[ newIndex ] = this.samples[ index ];
+						if ( sketches != null ) sketches[ newIndex ] = this.sketches[ index ];
+						if ( records != null ) records[ newIndex ] = this.records[ index ];
+					} else {
+						samples[ newIndex ].add( this.samples[ index ] );
+						if ( sketches != null ) sketches[ newIndex ].add( this.sketches[ index ] );
+						if ( records != null ) records[ newIndex ].add( this.records[ index ] );
+					}
+					extremes.added( newIndex );
+				}
+				this.newestSample = newestSample;
+			}
+
+			this.samplingPeriodNanos = samplingPeriodNanos;
+			this.samplePeriodNanos = samplePeriodNanos;
+			this.sampleSize = sampleSize;
+			this.samples = samples;
+			this.extremes = extremes;
+			this.sketches = sketches;
+			this.records = records;
+			if ( this.levels.length == 0 ) this.maxWindow = getMaxWindow( samplingPeriod );
+			this.version++;
+
+			// The ticks need to follow the new sample period. Restarted under the monitor, so a concurrent start or stop
+			// can't leave two rotators running, or none
+			if ( this.rotator != null ) {
+				stopRotation();
+				startRotation();
+			}
+		}
+	}
 
-		if ( transactionIsOutsideSamplingPeriod( transaction, now ) ) return RegisterResult.DISCARDED;
+	/**
+	 * @return the number of the sample (of {@code toPeriod}) that the last nanosecond of a sample (of
+	 * {@code fromPeriod}) falls in, or {@code newestSample} if that one is newer
+	 */
+	private static long getSampleToMoveTo( long sample, long fromPeriod, long toPeriod, long newestSample ) {
+		return Math.min( ( ( sample + 1 ) * fromPeriod - 1 ) / toPeriod, newestSample );
+	}
 
-		Instant sampleKey = getSampleKey( transaction.getTimestamp() ).orElseThrow( IllegalStateException::new );
-		updateStatistics( sampleKey, transaction );
+	public Duration getSamplePeriod() {
+		synchronized ( this ) {
+			return Duration.ofNanos( this.samplePeriodNanos );
+		}
+	}
 
-		return RegisterResult.REGISTERED;
+	public Duration getSamplingPeriod() {
+		synchronized ( this ) {
+			return Duration.ofNanos( this.samplingPeriodNanos );
+		}
 	}
 
-	private boolean transactionHappensInTheFuture( Transaction transaction, Instant now ) {
-		return transaction.getTimestamp().isAfter( now );
+	/**
+	 * @param level
+	 * 	0 for the samples, {@code n} for the {@code n - 1} level
+	 */
+	private long getPeriodNanos( int level ) {
+		return level == 0 ? this.samplePeriodNanos : this.levels[ level - 1 ].getPeriodNanos();
 	}
 
-	private boolean transactionIsOutsideSamplingPeriod( Transaction transaction, Instant now ) {
-		return now.minus( this.samplingPeriod ).isAfter( transaction.getTimestamp() );
+	private long getOldestNanos( int level ) {
+		return level == 0 ? ( this.newestSample - this.sampleSize + 1 ) * this.samplePeriodNanos : this.levels[ level - 1 ].getOldestNanos();
 	}
 
-	private void checkSamples( Instant now ) {
-		if ( this.samples.size() == 0 ) {
-			initializeSamples( now );
-		} else if ( outsideCurrentSamplingPeriod( now ) ) {
-			if ( allSamplesAreInvalid( now ) ) initializeSamples( now );
-			else renewSamples( now );
+	private void addBucketsTo( Statistics aggregate, int level, long from, long to ) {
+		if ( level > 0 ) {
+			this.levels[ level - 1 ].addTo( aggregate, from, to );
+			return;
 		}
+
+		long first = Math.max( from / this.samplePeriodNanos, this.newestSample - this.sampleSize + 1 );
+		long last = Math.min( to / this.samplePeriodNanos - 1, this.newestSample );
+		for ( long sample = first; sample <= last; sample++ ) aggregate.add( this.samples[ getSampleIndex( sample ) ] );
+	}
+
+	private static long floor( long nanos, long period ) {
+		return Math.floorDiv( nanos, period ) * period;
 	}
 
-	private void initializeSamples( Instant now ) {
-		this.samples = new LinkedHashMap<>( sampleSize, 0.75f, false );
+	private Statistics getSamplesStatistics() {
+		Statistics aggregate = new Statistics();
+		aggregate.add( this.window );
+		aggregate.setExtremes( this.extremes.getMinSample(), this.extremes.getMaxSample() );
+		if ( this.windowSketch != null ) aggregate.setQuantiles( getQuantiles( this.windowSketch ) );
+		return aggregate;
+	}
+
+	/**
+	 * Same as {@link #getSamplesStatistics()}, leaving out the part of the oldest sample that's older than the
+	 * sampling period
+	 */
+	private Statistics getExactStatistics( long now ) {
+		long oldestSample = this.newestSample - this.sampleSize + 1;
+		int edge = getSampleIndex( oldestSample );
+		long from = now - this.samplingPeriodNanos;
+		if ( oldestSample * this.samplePeriodNanos >= from || this.samples[ edge ].isEmpty() || ! this.records[ edge ].isExact() ) return getSamplesStatistics();
 
-		Instant sampleKey = now.minus( samplingPeriod );
-		for ( int i = 0; i < this.sampleSize; i++ ) {
-			this.samples.put( sampleKey, new Statistics() );
-			sampleKey = sampleKey.plus( samplePeriod );
+		Statistics inside = new Statistics();
+		// Records of whole milliseconds, the first one that's entirely inside the sampling period on
+		this.records[ edge ].addTo( inside, Math.floorDiv( from + SampleRecords.NANOS_PER_MILLI - 1, SampleRecords.NANOS_PER_MILLI ) );
+
+		Statistics aggregate = new Statistics();
+		aggregate.add( this.window );
+		aggregate.remove( this.samples[ edge ] );
+		aggregate.add( inside );
+
+		Statistics minSample = this.extremes.getMinSampleExcept( edge );
+		Statistics maxSample = this.extremes.getMaxSampleExcept( edge );
+		if ( ! inside.isEmpty() ) {
+			if ( minSample == null || inside.compareMinTo( minSample ) < 0 ) minSample = inside;
+			if ( maxSample == null || inside.compareMaxTo( maxSample ) > 0 ) maxSample = inside;
 		}
+		aggregate.setExtremes( minSample, maxSample );
+		if ( this.windowSketch != null ) aggregate.setQuantiles( getQuantiles( this.windowSketch ) );
+		return aggregate;
 	}
 
-	private boolean outsideCurrentSamplingPeriod( Instant now ) {
-		return getPenultimateSampleKey()
-			.map( penultimateSampleKey ->
-				now.minus( this.samplingPeriod ).isAfter( penultimateSampleKey )
-			)
-			.orElse( false );
+	/**
+	 * @param sketch
+	 * 	null if there are no amounts
+	 */
+	private Map<String, BigDecimal> getQuantiles( QuantileSketch sketch ) {
+		Map<String, BigDecimal> quantiles = new LinkedHashMap<>();
+		for ( int i = 0; i < this.quantiles.length; i++ ) {
+			double quantile = sketch != null ? sketch.getQuantile( this.quantiles[ i ] ) : Double.NaN;
+			// The estimations are rounded to the decimals of the amounts
+			quantiles.put( this.quantileNames[ i ], Double.isNaN( quantile ) ? null : BigDecimal.valueOf( quantile ).setScale( Statistics.SCALE, RoundingMode.HALF_EVEN ) );
+		}
+		return quantiles;
 	}
 
-	private Optional<Instant> getOldestSampleKey() {
-		//noinspection LoopStatementThatDoesntLoop
-		for ( Instant sampleKey : this.samples.keySet() ) {
-			return Optional.of( sampleKey );
+	public RegisterResult register( Transaction transaction ) {
+		long start = System.nanoTime();
+		RegisterResult result;
+		try {
+			synchronized ( this ) {
+				this.metrics.recordLockWait( start );
+				result = _register( transaction );
+			}
+		} catch ( IllegalArgumentException e ) {
+			this.metrics.recordRejected( start );
+			throw e;
 		}
-		return Optional.empty();
+		this.metrics.recordRegister( start, result );
+		return result;
 	}
 
-	private Optional<Instant> getPenultimateSampleKey() {
-		Iterator<Instant> keys = this.samples.keySet().iterator();
-		if ( keys.hasNext() ) {
-			// Discard last key
-			keys.next();
-			return Optional.of( keys.next() );
-		} else {
-			return Optional.empty();
+	private RegisterResult _register( Transaction transaction ) {
+		long now = this.clock.nanos();
+		long timestamp = EpochNanos.of( transaction.getTimestamp() );
+
+		if ( timestamp > now ) now = this.clock.preciseNanos();
+		if ( timestamp > now ) throw new IllegalArgumentException( "Transactions can't have timestamps of the future" );
+
+		checkSamples( now );
+
+		long sample = getSampleToUpdate( timestamp, now );
+		if ( sample == NO_SAMPLE ) return RegisterResult.DISCARDED;
+
+		if ( this.log != null ) this.log.append( now, timestamp, transaction.getAmount() );
+		updateStatistics( sample, timestamp, transaction.getAmount() );
+		return RegisterResult.REGISTERED;
+	}
+
+	@Override
+	public RegisterResult register( long amount, int scale, long timestamp ) {
+		long start = System.nanoTime();
+		RegisterResult result;
+		try {
+			synchronized ( this ) {
+				this.metrics.recordLockWait( start );
+				result = _register( amount, scale, timestamp );
+			}
+		} catch ( IllegalArgumentException e ) {
+			this.metrics.recordRejected( start );
+			throw e;
 		}
+		this.metrics.recordRegister( start, result );
+		return result;
 	}
 
-	private boolean allSamplesAreInvalid( Instant now ) {
-		return getNewestSampleKey()
-			.map( newestSampleKey ->
-				now.minus( this.samplingPeriod ).isAfter( newestSampleKey )
-			)
-			.orElseThrow( IllegalStateException::new );
+	private RegisterResult _register( long amount, int scale, long timestamp ) {
+		long now = this.clock.nanos();
+		long timestampNanos = EpochNanos.ofMillis( timestamp );
+
+		if ( timestampNanos > now ) now = this.clock.preciseNanos();
+		if ( timestampNanos > now ) throw new IllegalArgumentException( "Transactions can't have timestamps of the future" );
+
+		checkSamples( now );
+
+		long sample = getSampleToUpdate( timestampNanos, now );
+		if ( sample == NO_SAMPLE ) return RegisterResult.DISCARDED;
+
+		if ( this.log != null ) this.log.append( now, timestampNanos, amount, scale );
+		updateStatistics( sample, timestampNanos, amount, scale );
+		return RegisterResult.REGISTERED;
 	}
 
-	private Optional<Instant> getNewestSampleKey() {
-		Instant newestSampleKey = null;
+	public BatchResult registerAll( Collection<Transaction> transactions ) {
+		BatchResult result = new BatchResult();
+
+		long start = System.nanoTime();
+		synchronized ( this ) {
+			this.metrics.recordLockWait( start );
+
+			// The whole batch is registered at the same moment, read precisely since it's read once
+			long now = this.clock.preciseNanos();
+			checkSamples( now );
+
+			for ( Transaction transaction : transactions ) {
+				long timestamp = EpochNanos.of( transaction.getTimestamp() );
+				if ( timestamp > now ) {
+					result.addRejected();
+					continue;
+				}
+
+				long sample = getSampleToUpdate( timestamp, now );
+				if ( sample == NO_SAMPLE ) {
+					result.addDiscarded();
+					continue;
+				}
+
+				if ( this.log != null ) this.log.append( now, timestamp, transaction.getAmount() );
+				updateStatistics( sample, timestamp, transaction.getAmount() );
+				result.addRegistered();
+			}
+		}
+		this.metrics.recordBatch( result );
 
-		for ( Instant sampleKey : this.samples.keySet() ) newestSampleKey = sampleKey;
+		return result;
+	}
 
-		return Optional.ofNullable( newestSampleKey );
+	/**
+	 * Rotates the samples to the moment provided, before registering a batch of transactions with
+	 * {@link #apply(long, long, long, int)}. The caller needs to hold the monitor of the service
+	 */
+	void advance( long now ) {
+		checkSamples( now );
 	}
 
-	private void renewSamples( Instant now ) {
-		int removed = 0;
+	/**
+	 * Registers a transaction someone else already validated (see {@link PipelinedStatisticsService}), so a whole
+	 * batch of them can be registered while holding the monitor once. The caller needs to hold the monitor, and
+	 * to have called {@link #advance(long)} with the same moment
+	 *
+	 * @param timestamp
+	 * 	epoch nanos of the transaction, not after {@code now}
+	 * @return false if the sample of the transaction expired in the meantime, so it was discarded
+	 */
+	boolean apply( long now, long timestamp, long amount, int scale ) {
+		long sample = getSampleToUpdate( timestamp, now );
+		if ( sample == NO_SAMPLE ) return false;
+
+		updateStatistics( sample, timestamp, amount, scale );
+		return true;
+	}
 
-		Iterator<Instant> sampleStarts = this.samples.keySet().iterator();
-		while ( sampleStarts.hasNext() ) {
-			Instant sampleStart = sampleStarts.next();
-			if ( ! now.minus( samplingPeriod ).isAfter( sampleStart.plus( samplePeriod ) ) ) break;
+	/**
+	 * Same as {@link #apply(long, long, long, int)}, for amounts that don't fit in an unscaled long
+	 */
+	boolean apply( long now, long timestamp, BigDecimal amount ) {
+		long sample = getSampleToUpdate( timestamp, now );
+		if ( sample == NO_SAMPLE ) return false;
 
-			sampleStarts.remove();
-			removed++;
-		}
+		updateStatistics( sample, timestamp, amount );
+		return true;
+	}
+
+	/**
+	 * Same as {@link #get()}, for callers that already hold the monitor
+	 */
+	Statistics getLocked() {
+		return _get();
+	}
 
-		Instant newestSampleStart = getNewestSampleKey().orElseThrow( IllegalStateException::new );
-		for ( int i = 0; i < removed; i++ ) {
-			newestSampleStart = newestSampleStart.plus( samplePeriod );
-			this.samples.put( newestSampleStart, new Statistics() );
+	/**
+	 * Returns the number of the sample a transaction needs to be registered in, or {@link #NO_SAMPLE} if the
+	 * transaction needs to be discarded. The samples need to be checked before calling it
+	 *
+	 * @param timestamp
+	 * 	epoch nanos of the transaction, not in the future
+	 * @param now
+	 * 	epoch nanos of the moment the transaction is registered
+	 */
+	private long getSampleToUpdate( long timestamp, long now ) {
+		if ( timestamp < now - this.samplingPeriodNanos ) return NO_SAMPLE;
+
+		long sample = getSampleNumber( timestamp );
+		// The sampling period may not be a multiple of the sample period, so the oldest edge may already be gone
+		if ( sample <= this.newestSample - this.sampleSize ) return NO_SAMPLE;
+
+		return sample;
+	}
+
+	private void checkSamples( long now ) {
+		for ( StatisticsLevel level : this.levels ) level.rotate( now );
+
+		long currentSample = getSampleNumber( now );
+
+		if ( ! this.initialized ) {
+			initializeSamples( currentSample );
+		} else if ( currentSample > this.newestSample ) {
+			if ( allSamplesAreInvalid( currentSample ) ) initializeSamples( currentSample );
+			else renewSamples( currentSample );
 		}
 	}
 
-	private Optional<Instant> getSampleKey( Instant timestamp ) {
-		return getOldestSampleKey()
-			.flatMap( oldestSampleKey -> {
-				long delta = Duration.between( oldestSampleKey, timestamp ).toNanos();
-				int sampleKeyIndex = delta != 0 ? (int) ( delta / this.samplePeriod.toNanos() ) : 0;
+	private void initializeSamples( long currentSample ) {
+		for ( Statistics sample : this.samples ) sample.reset();
+		this.window.reset();
+		this.extremes.clear();
+		if ( this.sketches != null ) {
+			for ( QuantileSketch sketch : this.sketches ) sketch.reset();
+			this.windowSketch.reset();
+		}
+		if ( this.records != null ) {
+			for ( SampleRecords records : this.records ) records.reset();
+		}
 
-				return getSampleKey( sampleKeyIndex );
-			} );
+		this.newestSample = currentSample;
+		this.initialized = true;
+		this.version++;
+		this.metrics.recordSamplesInitialized();
 	}
 
-	private Optional<Instant> getSampleKey( int index ) {
-		// Is the index out of range?
-		if ( index >= this.samples.size() ) return Optional.empty();
+	private boolean allSamplesAreInvalid( long currentSample ) {
+		return currentSample - this.newestSample >= this.sampleSize;
+	}
 
-		Duration difference = Duration.ZERO;
-		for ( int i = 0; i < index; i++ ) {
-			difference = difference.plus( this.samplePeriod );
+	private void renewSamples( long currentSample ) {
+		// The slots of the samples that fall outside the sampling period are the ones the new samples take
+		for ( long sample = this.newestSample + 1; sample <= currentSample; sample++ ) {
+			int index = getSampleIndex( sample );
+			if ( this.samples[ index ].isEmpty() ) continue;
+
+			this.window.remove( this.samples[ index ] );
+			this.samples[ index ].reset();
+			this.extremes.removed( index );
+			if ( this.sketches != null ) {
+				this.windowSketch.remove( this.sketches[ index ] );
+				this.sketches[ index ].reset();
+			}
+			if ( this.records != null ) this.records[ index ].reset();
+			this.version++;
 		}
 
-		// Assign the difference to a different variable that is effectively final to use it inside lambda
-		Duration finalDifference = difference;
+		this.newestSample = currentSample;
+		this.metrics.recordSamplesRenewed();
+	}
 
-		return this
-			.getOldestSampleKey()
-			.map( oldestSampleKey -> oldestSampleKey.plus( finalDifference ) );
+	private long getSampleNumber( long epochNanos ) {
+		return epochNanos / this.samplePeriodNanos;
+	}
+
+	private int getSampleIndex( long sample ) {
+		return (int) ( sample % this.sampleSize );
+	}
+
+	private void updateStatistics( long sample, long timestamp, BigDecimal amount ) {
+		int index = getSampleIndex( sample );
+		this.samples[ index ].add( amount );
+		this.window.add( amount );
+		for ( StatisticsLevel level : this.levels ) level.add( timestamp, amount );
+		if ( this.sketches != null ) {
+			double value = amount.doubleValue();
+			this.sketches[ index ].add( value );
+			this.windowSketch.add( value );
+		}
+		if ( this.records != null ) this.records[ index ].add( timestamp, amount );
+		updated( index );
+	}
+
+	private void updateStatistics( long sample, long timestamp, long amount, int scale ) {
+		int index = getSampleIndex( sample );
+		this.samples[ index ].add( amount, scale );
+		this.window.add( amount, scale );
+		for ( StatisticsLevel level : this.levels ) level.add( timestamp, amount, scale );
+		if ( this.sketches != null ) {
+			this.sketches[ index ].add( amount, scale );
+			this.windowSketch.add( amount, scale );
+		}
+		if ( this.records != null ) this.records[ index ].add( timestamp, amount, scale );
+		updated( index );
 	}
 
-	private void updateStatistics( Instant sampleKey, Transaction transaction ) {
-		Statistics statistics = Optional.ofNullable( this.samples.get( sampleKey ) ).orElseThrow( IllegalArgumentException::new );
-		statistics.add( transaction.getAmount() );
+	private void updated( int index ) {
+		this.extremes.added( index );
+		this.version++;
 	}
 }
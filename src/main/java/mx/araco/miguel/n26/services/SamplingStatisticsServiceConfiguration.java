@@ -3,7 +3,10 @@ package mx.araco.miguel.n26.services;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import javax.annotation.PreDestroy;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author MiguelAraCo
@@ -13,6 +16,331 @@ import java.time.Duration;
 public class SamplingStatisticsServiceConfiguration {
 	private Duration samplePeriod;
 	private Duration samplingPeriod;
+	private boolean backgroundRotation;
+	private boolean exactEdge;
+	private Duration snapshotMinAge = Duration.ofMillis( 1 );
+	private Duration maxWindow;
+	private List<Duration> windowResolutions;
+	private WindowStorage windowStorage = WindowStorage.HEAP;
+	private List<Double> quantiles;
+	private final Keyed keyed = new Keyed();
+	private final Persistence persistence = new Persistence();
+	private final Cluster cluster = new Cluster();
+	private final Pipeline pipeline = new Pipeline();
+	private final Tcp tcp = new Tcp();
+	private final Backfill backfill = new Backfill();
+	private final Stream stream = new Stream();
+	private final Admission admission = new Admission();
+	private final Clock clock = new Clock();
+	private final Resampling resampling = new Resampling();
+	private EpochClock epochClock;
+
+	/**
+	 * Where the buckets of the window resolutions are kept: a {@link mx.araco.miguel.n26.models.Statistics} per
+	 * bucket on the heap, or packed in direct buffers outside it (see {@link OffHeapStatisticsLevel})
+	 */
+	public enum WindowStorage {
+		HEAP,
+		OFF_HEAP
+	}
+
+	/**
+	 * Configuration of the statistics by key (see {@link KeyedStatisticsService})
+	 */
+	public static class Keyed {
+		private Duration bucketPeriod = Duration.ofSeconds( 5 );
+		private int maxKeys = 100_000;
+		private int shards = 64;
+
+		public Duration getBucketPeriod() { return bucketPeriod; }
+
+		public void setBucketPeriod( Duration bucketPeriod ) { this.bucketPeriod = bucketPeriod; }
+
+		public int getMaxKeys() { return maxKeys; }
+
+		public void setMaxKeys( int maxKeys ) { this.maxKeys = maxKeys; }
+
+		public int getShards() { return shards; }
+
+		public void setShards( int shards ) { this.shards = shards; }
+	}
+
+	/**
+	 * Configuration of the write-ahead log of the transactions (see {@link TransactionLog})
+	 */
+	public static class Persistence {
+		private boolean enabled = false;
+		private String directory = "transactions";
+		private int segmentSize = 16 * 1024 * 1024;
+		private Duration segmentPeriod = Duration.ofSeconds( 15 );
+		private Duration flushInterval = Duration.ofMillis( 10 );
+
+		public boolean isEnabled() { return enabled; }
+
+		public void setEnabled( boolean enabled ) { this.enabled = enabled; }
+
+		public String getDirectory() { return directory; }
+
+		public void setDirectory( String directory ) { this.directory = directory; }
+
+		public int getSegmentSize() { return segmentSize; }
+
+		public void setSegmentSize( int segmentSize ) { this.segmentSize = segmentSize; }
+
+		public Duration getSegmentPeriod() { return segmentPeriod; }
+
+		public void setSegmentPeriod( Duration segmentPeriod ) { this.segmentPeriod = segmentPeriod; }
+
+		public Duration getFlushInterval() { return flushInterval; }
+
+		public void setFlushInterval( Duration flushInterval ) { this.flushInterval = flushInterval; }
+	}
+
+	/**
+	 * Configuration of the aggregation of the statistics of several nodes (see {@link ClusterStatisticsService})
+	 */
+	public static class Cluster {
+		private boolean enabled = false;
+		private List<String> peers = new ArrayList<>();
+		private Duration pollInterval = Duration.ofMillis( 500 );
+		private Duration maxStaleness = Duration.ofSeconds( 2 );
+
+		public boolean isEnabled() { return enabled; }
+
+		public void setEnabled( boolean enabled ) { this.enabled = enabled; }
+
+		public List<String> getPeers() { return peers; }
+
+		public void setPeers( List<String> peers ) { this.peers = peers; }
+
+		public Duration getPollInterval() { return pollInterval; }
+
+		public void setPollInterval( Duration pollInterval ) { this.pollInterval = pollInterval; }
+
+		public Duration getMaxStaleness() { return maxStaleness; }
+
+		public void setMaxStaleness( Duration maxStaleness ) { this.maxStaleness = maxStaleness; }
+	}
+
+	/**
+	 * Configuration of the {@code pipelined} engine (see {@link PipelinedStatisticsService})
+	 */
+	public static class Pipeline {
+		private int ringSize = 65536;
+		private int maxBatch = 1024;
+
+		public int getRingSize() { return ringSize; }
+
+		public void setRingSize( int ringSize ) { this.ringSize = ringSize; }
+
+		public int getMaxBatch() { return maxBatch; }
+
+		public void setMaxBatch( int maxBatch ) { this.maxBatch = maxBatch; }
+	}
+
+	/**
+	 * Configuration of the binary TCP listener (see {@link mx.araco.miguel.n26.tcp.TransactionListener})
+	 */
+	public static class Tcp {
+		private boolean enabled = false;
+		private int port = 8081;
+		private int workers = 1;
+		private int bufferSize = 64 * 1024;
+
+		public boolean isEnabled() { return enabled; }
+
+		public void setEnabled( boolean enabled ) { this.enabled = enabled; }
+
+		public int getPort() { return port; }
+
+		public void setPort( int port ) { this.port = port; }
+
+		public int getWorkers() { return workers; }
+
+		public void setWorkers( int workers ) { this.workers = workers; }
+
+		public int getBufferSize() { return bufferSize; }
+
+		public void setBufferSize( int bufferSize ) { this.bufferSize = bufferSize; }
+	}
+
+	/**
+	 * Configuration of the backfills of exported transactions (see
+	 * {@link mx.araco.miguel.n26.web.TransactionBackfill})
+	 */
+	public static class Backfill {
+		private boolean enabled = false;
+		private String directory = "backfill";
+		private long chunkSize = 8 * 1024 * 1024;
+		private int parallelism = 0;
+
+		public boolean isEnabled() { return enabled; }
+
+		public void setEnabled( boolean enabled ) { this.enabled = enabled; }
+
+		public String getDirectory() { return directory; }
+
+		public void setDirectory( String directory ) { this.directory = directory; }
+
+		public long getChunkSize() { return chunkSize; }
+
+		public void setChunkSize( long chunkSize ) { this.chunkSize = chunkSize; }
+
+		/**
+		 * @return number of threads that parse the chunks, 0 for one per processor
+		 */
+		public int getParallelism() { return parallelism; }
+
+		public void setParallelism( int parallelism ) { this.parallelism = parallelism; }
+	}
+
+	/**
+	 * Configuration of the stream of statistics (see {@link mx.araco.miguel.n26.web.StatisticsStream})
+	 */
+	public static class Stream {
+		private Duration interval;
+		private boolean onlyChanges = false;
+		private Duration heartbeatInterval = Duration.ofSeconds( 15 );
+		private int maxSubscribers = 10_000;
+
+		/**
+		 * @return interval between events, rounded down to whole sample periods. Null for every sample period
+		 */
+		public Duration getInterval() { return interval; }
+
+		public void setInterval( Duration interval ) { this.interval = interval; }
+
+		public boolean isOnlyChanges() { return onlyChanges; }
+
+		public void setOnlyChanges( boolean onlyChanges ) { this.onlyChanges = onlyChanges; }
+
+		public Duration getHeartbeatInterval() { return heartbeatInterval; }
+
+		public void setHeartbeatInterval( Duration heartbeatInterval ) { this.heartbeatInterval = heartbeatInterval; }
+
+		public int getMaxSubscribers() { return maxSubscribers; }
+
+		public void setMaxSubscribers( int maxSubscribers ) { this.maxSubscribers = maxSubscribers; }
+	}
+
+	/**
+	 * Configuration of the admission control of the transactions (see
+	 * {@link mx.araco.miguel.n26.web.AdmissionControl})
+	 */
+	public static class Admission {
+		private boolean enabled = false;
+		private int maxInFlight = 0;
+		private int reservedThreads = 4;
+		private Duration maxLockWait = Duration.ofMillis( 10 );
+		private Duration retryAfter = Duration.ofSeconds( 1 );
+
+		public boolean isEnabled() { return enabled; }
+
+		public void setEnabled( boolean enabled ) { this.enabled = enabled; }
+
+		/**
+		 * @return max number of requests registering transactions at once, 0 for every worker thread but the
+		 * reserved ones
+		 */
+		public int getMaxInFlight() { return maxInFlight; }
+
+		public void setMaxInFlight( int maxInFlight ) { this.maxInFlight = maxInFlight; }
+
+		public int getReservedThreads() { return reservedThreads; }
+
+		public void setReservedThreads( int reservedThreads ) { this.reservedThreads = reservedThreads; }
+
+		public Duration getMaxLockWait() { return maxLockWait; }
+
+		public void setMaxLockWait( Duration maxLockWait ) { this.maxLockWait = maxLockWait; }
+
+		public Duration getRetryAfter() { return retryAfter; }
+
+		public void setRetryAfter( Duration retryAfter ) { this.retryAfter = retryAfter; }
+	}
+
+	/**
+	 * Configuration of the clock the services read the current moment from (see {@link EpochClock})
+	 */
+	public static class Clock {
+		/**
+		 * {@code system} reads the system clock on every call, {@code coarse} once per tick (see
+		 * {@link CoarseEpochClock})
+		 */
+		public enum Type {
+			SYSTEM,
+			COARSE
+		}
+
+		private Type type = Type.SYSTEM;
+		private Duration tick = Duration.ofMillis( 1 );
+
+		public Type getType() { return type; }
+
+		public void setType( Type type ) { this.type = type; }
+
+		public Duration getTick() { return tick; }
+
+		public void setTick( Duration tick ) { this.tick = tick; }
+	}
+
+	/**
+	 * Configuration of the changes of the sample and sampling periods at runtime (see {@link Resampler})
+	 */
+	public static class Resampling {
+		private boolean enabled = false;
+		private boolean adaptive = false;
+		private Duration interval = Duration.ofSeconds( 10 );
+		private long targetPerSample = 100;
+		private Duration minSamplePeriod = Duration.ofMillis( 10 );
+		private Duration maxSamplePeriod = Duration.ofMillis( 1000 );
+
+		public boolean isEnabled() { return enabled; }
+
+		public void setEnabled( boolean enabled ) { this.enabled = enabled; }
+
+		public boolean isAdaptive() { return adaptive; }
+
+		public void setAdaptive( boolean adaptive ) { this.adaptive = adaptive; }
+
+		public Duration getInterval() { return interval; }
+
+		public void setInterval( Duration interval ) { this.interval = interval; }
+
+		/**
+		 * @return number of transactions the adaptive mode aims for each sample to hold
+		 */
+		public long getTargetPerSample() { return targetPerSample; }
+
+		public void setTargetPerSample( long targetPerSample ) { this.targetPerSample = targetPerSample; }
+
+		public Duration getMinSamplePeriod() { return minSamplePeriod; }
+
+		public void setMinSamplePeriod( Duration minSamplePeriod ) { this.minSamplePeriod = minSamplePeriod; }
+
+		public Duration getMaxSamplePeriod() { return maxSamplePeriod; }
+
+		public void setMaxSamplePeriod( Duration maxSamplePeriod ) { this.maxSamplePeriod = maxSamplePeriod; }
+	}
+
+	/**
+	 * Returns the clock shared by the services created with this configuration, the one set with
+	 * {@link #setEpochClock(EpochClock)} or otherwise the one {@link #getClock()} describes (created the first time
+	 * it's requested)
+	 */
+	public synchronized EpochClock getEpochClock() {
+		if ( this.epochClock == null ) {
+			this.epochClock = this.clock.getType() == Clock.Type.COARSE ? new CoarseEpochClock( this.clock.getTick() ) : EpochClock.SYSTEM;
+		}
+		return this.epochClock;
+	}
+
+	public synchronized void setEpochClock( EpochClock epochClock ) { this.epochClock = epochClock; }
+
+	@PreDestroy
+	public synchronized void stopEpochClock() {
+		if ( this.epochClock instanceof CoarseEpochClock ) ( (CoarseEpochClock) this.epochClock ).stop();
+	}
 
 	public Duration getSamplePeriod() { return samplePeriod; }
 
@@ -21,4 +349,61 @@ public class SamplingStatisticsServiceConfiguration {
 	public Duration getSamplingPeriod() { return samplingPeriod; }
 
 	public void setSamplingPeriod( Duration samplingPeriod ) { this.samplingPeriod = samplingPeriod; }
+
+	public boolean isBackgroundRotation() { return backgroundRotation; }
+
+	public void setBackgroundRotation( boolean backgroundRotation ) { this.backgroundRotation = backgroundRotation; }
+
+	public boolean isExactEdge() { return exactEdge; }
+
+	/**
+	 * Whether the statistics of the sampling period leave out the part of the oldest sample that's older than the
+	 * sampling period, to the millisecond, instead of including it whole (see {@link SampleRecords}). Only the
+	 * {@code synchronized} engine supports it
+	 */
+	public void setExactEdge( boolean exactEdge ) { this.exactEdge = exactEdge; }
+
+	public Duration getSnapshotMinAge() { return snapshotMinAge; }
+
+	/**
+	 * How long a snapshot of the statistics is served before a new one is calculated, even if transactions were
+	 * registered in the meantime (see {@code StatisticsSnapshotPublisher})
+	 */
+	public void setSnapshotMinAge( Duration snapshotMinAge ) { this.snapshotMinAge = snapshotMinAge; }
+
+	public Duration getMaxWindow() { return maxWindow; }
+
+	public void setMaxWindow( Duration maxWindow ) { this.maxWindow = maxWindow; }
+
+	public List<Duration> getWindowResolutions() { return windowResolutions; }
+
+	public void setWindowResolutions( List<Duration> windowResolutions ) { this.windowResolutions = windowResolutions; }
+
+	public WindowStorage getWindowStorage() { return windowStorage; }
+
+	public void setWindowStorage( WindowStorage windowStorage ) { this.windowStorage = windowStorage; }
+
+	public List<Double> getQuantiles() { return quantiles; }
+
+	public void setQuantiles( List<Double> quantiles ) { this.quantiles = quantiles; }
+
+	public Keyed getKeyed() { return keyed; }
+
+	public Persistence getPersistence() { return persistence; }
+
+	public Cluster getCluster() { return cluster; }
+
+	public Pipeline getPipeline() { return pipeline; }
+
+	public Tcp getTcp() { return tcp; }
+
+	public Backfill getBackfill() { return backfill; }
+
+	public Stream getStream() { return stream; }
+
+	public Admission getAdmission() { return admission; }
+
+	public Clock getClock() { return clock; }
+
+	public Resampling getResampling() { return resampling; }
 }
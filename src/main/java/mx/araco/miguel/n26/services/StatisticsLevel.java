@@ -0,0 +1,177 @@
+package mx.araco.miguel.n26.services;
+
+import mx.araco.miguel.n26.models.Statistics;
+
+import java.math.BigDecimal;
+
+/**
+ * Ring of statistics buckets of a fixed period, used by {@link SamplingStatisticsService} to keep coarser
+ * views of the transactions than its samples, for longer. Bucket {@code n} (the number of periods elapsed
+ * since the epoch) is stored in the slot {@code n % size}, the same way samples are.
+ * <p>
+ * Buckets are rotated lazily with {@link StatisticsLevel#rotate(long)}, and cleared and reused when they expire.
+ * The level isn't thread safe, it relies on the service's monitor.
+ * <p>
+ * Subclasses decide where the buckets are stored: {@link HeapStatisticsLevel} keeps a {@link Statistics} per
+ * bucket, {@link OffHeapStatisticsLevel} packs them outside the heap.
+ *
+ * @author MiguelAraCo
+ */
+abstract class StatisticsLevel {
+	private static final int NO_SLOT = - 1;
+
+	private final long periodNanos;
+	protected final int size;
+
+	/**
+	 * Number of the newest bucket of the ring. The ring only contains buckets in between
+	 * {@code newestBucket - size} (exclusive) and {@code newestBucket} (inclusive)
+	 */
+	private long newestBucket;
+	private boolean initialized;
+
+	/**
+	 * @param periodNanos
+	 * 	period of time each bucket covers
+	 * @param retentionNanos
+	 * 	how long the buckets need to be kept
+	 */
+	StatisticsLevel( long periodNanos, long retentionNanos ) {
+		long size = retentionNanos / periodNanos + 1;
+		if ( size > Integer.MAX_VALUE ) throw new IllegalArgumentException( "Too many buckets for a resolution of " + periodNanos + "ns" );
+
+		this.periodNanos = periodNanos;
+		this.size = (int) size;
+	}
+
+	/**
+	 * Creates a level with its buckets on the heap or outside it
+	 */
+	static StatisticsLevel create( long periodNanos, long retentionNanos, boolean offHeap ) {
+		return offHeap ? new OffHeapStatisticsLevel( periodNanos, retentionNanos ) : new HeapStatisticsLevel( periodNanos, retentionNanos );
+	}
+
+	long getPeriodNanos() { return this.periodNanos; }
+
+	/**
+	 * @return the epoch nanos at which the oldest bucket kept starts
+	 */
+	long getOldestNanos() {
+		return ( this.newestBucket - this.size + 1 ) * this.periodNanos;
+	}
+
+	/**
+	 * Clears the buckets that expired by the time provided
+	 *
+	 * @param now
+	 * 	epoch nanos of the current time
+	 */
+	void rotate( long now ) {
+		long currentBucket = now / this.periodNanos;
+
+		if ( ! this.initialized || currentBucket - this.newestBucket >= this.size ) {
+			resetAll();
+			this.newestBucket = currentBucket;
+			this.initialized = true;
+			return;
+		}
+
+		for ( long bucket = this.newestBucket + 1; bucket <= currentBucket; bucket++ ) reset( getSlot( bucket ) );
+		if ( currentBucket > this.newestBucket ) this.newestBucket = currentBucket;
+	}
+
+	/**
+	 * Discards every bucket, the next rotation starts the level from scratch
+	 */
+	void clear() {
+		this.initialized = false;
+	}
+
+	void add( long timestamp, BigDecimal amount ) {
+		int slot = getSlotOf( timestamp );
+		if ( slot != NO_SLOT ) add( slot, amount );
+	}
+
+	void add( long timestamp, long amount, int scale ) {
+		int slot = getSlotOf( timestamp );
+		if ( slot != NO_SLOT ) add( slot, amount, scale );
+	}
+
+	/**
+	 * Adds the statistics of a whole sample, which can't span more than one bucket since the period of the level is
+	 * a multiple of the sample period
+	 *
+	 * @param timestamp
+	 * 	epoch nanos at which the sample starts
+	 */
+	void add( long timestamp, Statistics sample ) {
+		int slot = getSlotOf( timestamp );
+		if ( slot != NO_SLOT ) add( slot, sample );
+	}
+
+	/**
+	 * Adds the statistics of the buckets in between two times to the aggregate provided. Buckets that aren't
+	 * kept anymore (or haven't started yet) are skipped
+	 *
+	 * @param from
+	 * 	epoch nanos (inclusive), aligned to the period of the level
+	 * @param to
+	 * 	epoch nanos (exclusive), aligned to the period of the level
+	 */
+	void addTo( Statistics aggregate, long from, long to ) {
+		if ( ! this.initialized ) return;
+
+		long first = Math.max( from / this.periodNanos, this.newestBucket - this.size + 1 );
+		long last = Math.min( to / this.periodNanos - 1, this.newestBucket );
+		if ( first > last ) return;
+
+		// The buckets are contiguous in the ring unless they wrap around its end
+		int firstSlot = getSlot( first );
+		int lastSlot = getSlot( last );
+		if ( firstSlot <= lastSlot ) {
+			addTo( aggregate, firstSlot, lastSlot + 1 );
+		} else {
+			addTo( aggregate, firstSlot, this.size );
+			addTo( aggregate, 0, lastSlot + 1 );
+		}
+	}
+
+	private int getSlotOf( long timestamp ) {
+		if ( ! this.initialized ) return NO_SLOT;
+
+		long bucket = timestamp / this.periodNanos;
+		if ( bucket > this.newestBucket || bucket <= this.newestBucket - this.size ) return NO_SLOT;
+
+		return getSlot( bucket );
+	}
+
+	private int getSlot( long bucket ) {
+		return (int) ( bucket % this.size );
+	}
+
+	/**
+	 * Empties the bucket of a slot
+	 */
+	protected abstract void reset( int slot );
+
+	/**
+	 * Empties every bucket
+	 */
+	protected abstract void resetAll();
+
+	protected abstract void add( int slot, BigDecimal amount );
+
+	protected abstract void add( int slot, long amount, int scale );
+
+	protected abstract void add( int slot, Statistics sample );
+
+	/**
+	 * Adds the statistics of the buckets of a range of slots to the aggregate provided
+	 *
+	 * @param fromSlot
+	 * 	inclusive
+	 * @param toSlot
+	 * 	exclusive
+	 */
+	protected abstract void addTo( Statistics aggregate, int fromSlot, int toSlot );
+}
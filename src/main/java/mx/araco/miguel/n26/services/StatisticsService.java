@@ -1,8 +1,15 @@
 package mx.araco.miguel.n26.services;
 
+import mx.araco.miguel.n26.models.BatchResult;
 import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.StatisticsBuckets;
 import mx.araco.miguel.n26.models.Transaction;
 
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+
 /**
  * Service in charge of calculating {@link Statistics} of the registered transactions.
  *
@@ -18,6 +25,50 @@ public interface StatisticsService {
 	 */
 	Statistics get();
 
+	/**
+	 * Returns the statistics of the transactions received during a window of time that ends now, instead of the
+	 * period of time the implementation uses by default
+	 *
+	 * @param window
+	 * 	how far back to look
+	 * @return statistics for the transactions registered during the window
+	 * @throws IllegalArgumentException
+	 * 	if the implementation doesn't support the window (e.g. it doesn't keep transactions for that long)
+	 */
+	default Statistics get( Duration window ) {
+		throw new IllegalArgumentException( "Windows aren't supported" );
+	}
+
+	/**
+	 * Returns the statistics of each sample of the period of time the implementation uses by default, keyed by
+	 * their sample number, so they can be merged with the ones of other nodes
+	 *
+	 * @return the non empty samples, with the sample period as their period
+	 */
+	StatisticsBuckets getBuckets();
+
+	/**
+	 * Merges statistics that were already aggregated per sample (e.g. by a backfill of an export of transactions)
+	 * into the ones of the service, with {@link Statistics#add(Statistics)}
+	 *
+	 * @param buckets
+	 * 	statistics keyed by sample number, with the sample period of the service as their period
+	 * @return the number of transactions merged. The ones of samples outside the period of time the implementation
+	 * uses by default are left out
+	 * @throws IllegalArgumentException
+	 * 	if the period of the buckets isn't the sample period of the service (and the implementation can't move them
+	 * 	to its samples, see {@link SamplingStatisticsService#merge(StatisticsBuckets)})
+	 */
+	long merge( StatisticsBuckets buckets );
+
+	/**
+	 * Returns a number that changes whenever the statistics returned by {@link StatisticsService#get()} may have
+	 * changed (e.g. because a transaction was registered or expired), so callers can cache them
+	 *
+	 * @return the version of the statistics of the service
+	 */
+	long getVersion();
+
 	/**
 	 * Possible results of calling {@link StatisticsService#register(Transaction)}
 	 */
@@ -35,4 +86,51 @@ public interface StatisticsService {
 	 * {@link RegisterResult#DISCARDED} if it was discarded
 	 */
 	RegisterResult register( Transaction transaction );
+
+	/**
+	 * Register a transaction whose amount and timestamp were already parsed into primitives, so no
+	 * {@link Transaction} needs to be created. It behaves exactly like {@link StatisticsService#register(Transaction)}
+	 *
+	 * @param amount
+	 * 	unscaled value of the amount of the transaction (e.g. 1265 for 12.65)
+	 * @param scale
+	 * 	number of decimals of the amount (e.g. 2 for 12.65)
+	 * @param timestamp
+	 * 	epoch millis of the transaction
+	 * @return {@link RegisterResult#REGISTERED} if the transaction was registered
+	 * {@link RegisterResult#DISCARDED} if it was discarded
+	 */
+	default RegisterResult register( long amount, int scale, long timestamp ) {
+		return register( new Transaction( BigDecimal.valueOf( amount, scale ), Instant.ofEpochMilli( timestamp ) ) );
+	}
+
+	/**
+	 * Register several transactions at once. Implementations may take advantage of this to group their
+	 * updates (e.g. to acquire their locks only once per batch)
+	 *
+	 * @param transactions
+	 * 	the transactions to register, not null
+	 * @return the number of transactions that were registered, discarded, or rejected (the ones for which
+	 * {@link StatisticsService#register(Transaction)} would have thrown an {@link IllegalArgumentException})
+	 */
+	default BatchResult registerAll( Collection<Transaction> transactions ) {
+		BatchResult result = new BatchResult();
+		for ( Transaction transaction : transactions ) {
+			try {
+				switch ( register( transaction ) ) {
+					case REGISTERED:
+						result.addRegistered();
+						break;
+					case DISCARDED:
+						result.addDiscarded();
+						break;
+					default:
+						throw new IllegalStateException();
+				}
+			} catch ( IllegalArgumentException e ) {
+				result.addRejected();
+			}
+		}
+		return result;
+	}
 }
@@ -0,0 +1,159 @@
+package mx.araco.miguel.n26.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import mx.araco.miguel.n26.models.BatchResult;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Instrumentation of the {@link StatisticsService} implementations. The meters are published through the
+ * registry Spring Boot Actuator configures (see the {@code /actuator/metrics} endpoint):
+ * <ul>
+ * <li>{@code statistics.register}, {@code statistics.get}: latency of the operations</li>
+ * <li>{@code statistics.lock.wait}: time spent waiting for the service's lock (if it has one)</li>
+ * <li>{@code statistics.transactions}: transactions received, tagged by {@code result}
+ * ({@code registered}, {@code discarded} or {@code rejected})</li>
+ * <li>{@code statistics.samples.rotations}: times the samples were rotated, tagged by {@code type}
+ * ({@code renewed} when only the expired samples were replaced, {@code initialized} when all of them were)</li>
+ * <li>{@code statistics.window.transactions}: transactions currently included in the statistics</li>
+ * </ul>
+ * The timers only keep their count, total and max, which is only a couple of {@link System#nanoTime()} calls and
+ * lock-free counter updates, so it can be left enabled under full load (about 200ns per transaction registered,
+ * see {@code MetricsBenchmark}). Percentile histograms of the timers are opt-in, through Spring Boot's
+ * {@code management.metrics.distribution.percentiles-histogram.statistics} property (see
+ * {@code application.properties}), since they add about 275ns more per transaction registered.
+ *
+ * @author MiguelAraCo
+ */
+@Component
+public class StatisticsServiceMetrics {
+	private static final Duration MIN_EXPECTED_LATENCY = Duration.ofNanos( 100 );
+	private static final Duration MAX_EXPECTED_LATENCY = Duration.ofSeconds( 1 );
+
+	private final MeterRegistry registry;
+
+	private final Timer registerTimer;
+	private final Timer getTimer;
+	private final Timer lockWaitTimer;
+
+	private final Counter registeredCounter;
+	private final Counter discardedCounter;
+	private final Counter rejectedCounter;
+
+	private final Counter renewedSamplesCounter;
+	private final Counter initializedSamplesCounter;
+
+	/**
+	 * Moving average of the lock waits, only updated while holding the lock
+	 */
+	private volatile long averageLockWaitNanos;
+
+	public StatisticsServiceMetrics( MeterRegistry registry ) {
+		this.registry = registry;
+
+		this.registerTimer = latencyTimer( "statistics.register", "Time taken to register a transaction" );
+		this.getTimer = latencyTimer( "statistics.get", "Time taken to get the statistics" );
+		this.lockWaitTimer = latencyTimer( "statistics.lock.wait", "Time spent waiting for the statistics service's lock" );
+
+		this.registeredCounter = transactionsCounter( "registered" );
+		this.discardedCounter = transactionsCounter( "discarded" );
+		this.rejectedCounter = transactionsCounter( "rejected" );
+
+		this.renewedSamplesCounter = rotationsCounter( "renewed" );
+		this.initializedSamplesCounter = rotationsCounter( "initialized" );
+	}
+
+	/**
+	 * @return metrics that aren't published anywhere, for services created outside of Spring
+	 */
+	public static StatisticsServiceMetrics disabled() {
+		// A composite registry without registries creates no-op meters
+		return new StatisticsServiceMetrics( new CompositeMeterRegistry() );
+	}
+
+	private Timer latencyTimer( String name, String description ) {
+		return Timer
+			.builder( name )
+			.description( description )
+			.minimumExpectedValue( MIN_EXPECTED_LATENCY )
+			.maximumExpectedValue( MAX_EXPECTED_LATENCY )
+			.register( this.registry );
+	}
+
+	private Counter transactionsCounter( String result ) {
+		return Counter
+			.builder( "statistics.transactions" )
+			.description( "Transactions received by the statistics service" )
+			.tag( "result", result )
+			.register( this.registry );
+	}
+
+	private Counter rotationsCounter( String type ) {
+		return Counter
+			.builder( "statistics.samples.rotations" )
+			.description( "Times the statistics samples were rotated" )
+			.tag( "type", type )
+			.register( this.registry );
+	}
+
+	/**
+	 * Publishes the number of transactions included in the statistics of a service
+	 */
+	<T> void registerWindowGauge( T service, ToDoubleFunction<T> windowTransactions ) {
+		Gauge
+			.builder( "statistics.window.transactions", service, windowTransactions )
+			.description( "Transactions currently included in the statistics" )
+			.register( this.registry );
+	}
+
+	void recordRegister( long startNanos, StatisticsService.RegisterResult result ) {
+		this.registerTimer.record( System.nanoTime() - startNanos, TimeUnit.NANOSECONDS );
+		if ( result == StatisticsService.RegisterResult.REGISTERED ) this.registeredCounter.increment();
+		else this.discardedCounter.increment();
+	}
+
+	void recordRejected( long startNanos ) {
+		this.registerTimer.record( System.nanoTime() - startNanos, TimeUnit.NANOSECONDS );
+		this.rejectedCounter.increment();
+	}
+
+	void recordBatch( BatchResult result ) {
+		this.registeredCounter.increment( result.getRegistered() );
+		this.discardedCounter.increment( result.getDiscarded() );
+		this.rejectedCounter.increment( result.getRejected() );
+	}
+
+	void recordGet( long startNanos ) {
+		this.getTimer.record( System.nanoTime() - startNanos, TimeUnit.NANOSECONDS );
+	}
+
+	/**
+	 * Needs to be called while holding the lock
+	 */
+	void recordLockWait( long startNanos ) {
+		long wait = System.nanoTime() - startNanos;
+		this.lockWaitTimer.record( wait, TimeUnit.NANOSECONDS );
+		this.averageLockWaitNanos += ( wait - this.averageLockWaitNanos ) / 8;
+	}
+
+	/**
+	 * @return exponential moving average of the recent lock waits (each one weighs 1/8), 0 if the service has no
+	 * lock
+	 */
+	public long getAverageLockWaitNanos() { return this.averageLockWaitNanos; }
+
+	void recordSamplesRenewed() {
+		this.renewedSamplesCounter.increment();
+	}
+
+	void recordSamplesInitialized() {
+		this.initializedSamplesCounter.increment();
+	}
+}
@@ -0,0 +1,362 @@
+package mx.araco.miguel.n26.services;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-ahead log of the transactions registered by a {@link SamplingStatisticsService}, so the statistics of the
+ * sampling period survive a restart (see {@link SamplingStatisticsServiceConfiguration.Persistence}).
+ * <p>
+ * Transactions are appended to memory-mapped segment files, so appending one is just copying 24 bytes (the
+ * timestamp, the unscaled amount and its scale) to memory. The segments are forced to disk by a background thread
+ * once per flush interval (group commit): a crash of the process loses nothing, since the operating system still
+ * has the pages, but a crash of the machine may lose the transactions appended since the last flush.
+ * <p>
+ * A new segment is started once per segment period (or when the current one is full), and the name of each
+ * segment is the moment it was started. That moment is never earlier than the timestamp of any transaction appended
+ * before it (the clock the moments are read from may fall behind the precise one the transactions were accepted
+ * with, so the log keeps the latest of both), so a segment expires once the next one was started more than a
+ * sampling period ago, and it's deleted by the background thread. Segments left by a previous run are replayed (see
+ * {@link TransactionLog#replay(long, Visitor)}) and deleted as soon as none of their transactions is in the
+ * sampling period.
+ *
+ * @author MiguelAraCo
+ */
+@Component
+@ConditionalOnProperty( prefix = "mx.araco.miguel.n26.persistence", name = "enabled", havingValue = "true" )
+public class TransactionLog {
+	/**
+	 * Receives the transactions replayed
+	 */
+	interface Visitor {
+		void visit( long timestamp, long amount, int scale );
+
+		/**
+		 * Receives the amounts that don't fit in a {@code long}
+		 */
+		void visit( long timestamp, BigDecimal amount );
+	}
+
+	private static final String EXTENSION = ".wal";
+	/**
+	 * Timestamp (epoch nanos), scale, length of the unscaled amount (0 if it's a {@code long}) and the amount
+	 */
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_SIZE = HEADER_SIZE + 8;
+
+	private static final class Segment {
+		private final Path path;
+		private final long startedAt;
+		private final FileChannel channel;
+		/**
+		 * Null for the segments of previous runs, which aren't appended to
+		 */
+		private final MappedByteBuffer buffer;
+		/**
+		 * Whether records were appended since the segment was last forced. Only accessed holding the log's monitor
+		 */
+		private boolean dirty;
+
+		Segment( Path path, long startedAt, FileChannel channel, MappedByteBuffer buffer ) {
+			this.path = path;
+			this.startedAt = startedAt;
+			this.channel = channel;
+			this.buffer = buffer;
+		}
+
+		void delete() throws IOException {
+			this.channel.close();
+			Files.deleteIfExists( this.path );
+		}
+	}
+
+	private final EpochClock clock;
+	private final Path directory;
+	private final int segmentSize;
+	private final long segmentPeriodNanos;
+	private final long samplingPeriodNanos;
+	private final long flushIntervalNanos;
+
+	/**
+	 * Segments that didn't expire yet, from the oldest to the current one (the last). Segments of previous runs are
+	 * included once they are replayed
+	 */
+	private final Deque<Segment> segments = new ArrayDeque<>();
+	/**
+	 * Segments left by a previous run, until they are replayed
+	 */
+	private final List<Path> previousSegments = new ArrayList<>();
+	/**
+	 * Latest moment (or timestamp, if it was later) a transaction was appended at, in epoch nanos. Only accessed
+	 * holding the log's monitor
+	 */
+	private long appendedAt = Long.MIN_VALUE;
+
+	private ScheduledExecutorService flusher;
+
+	@Autowired
+	public TransactionLog( SamplingStatisticsServiceConfiguration configuration ) throws IOException {
+		SamplingStatisticsServiceConfiguration.Persistence persistence = configuration.getPersistence();
+		if ( persistence.getSegmentSize() < RECORD_SIZE ) throw new IllegalArgumentException( "Segments need to fit at least one transaction" );
+
+		this.clock = configuration.getEpochClock();
+		this.directory = Paths.get( persistence.getDirectory() );
+		this.segmentSize = persistence.getSegmentSize();
+		this.segmentPeriodNanos = persistence.getSegmentPeriod().toNanos();
+		this.samplingPeriodNanos = configuration.getSamplingPeriod().toNanos();
+		this.flushIntervalNanos = persistence.getFlushInterval().toNanos();
+
+		Files.createDirectories( this.directory );
+		try ( DirectoryStream<Path> files = Files.newDirectoryStream( this.directory, "*" + EXTENSION ) ) {
+			for ( Path file : files ) this.previousSegments.add( file );
+		}
+		// The names are zero padded, so sorting them sorts the segments by the moment they were started
+		Collections.sort( this.previousSegments );
+	}
+
+	@PostConstruct
+	public void startFlushing() {
+		if ( this.flusher != null ) return;
+
+		this.flusher = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread thread = new Thread( runnable, "transaction-log-flusher" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		this.flusher.scheduleWithFixedDelay( this::flush, this.flushIntervalNanos, this.flushIntervalNanos, TimeUnit.NANOSECONDS );
+	}
+
+	/**
+	 * Stops flushing in the background, and forces and closes every segment. The segments are kept for the next
+	 * run
+	 */
+	@PreDestroy
+	public void close() throws IOException {
+		if ( this.flusher != null ) {
+			this.flusher.shutdownNow();
+			this.flusher = null;
+		}
+
+		synchronized ( this ) {
+			for ( Segment segment : this.segments ) {
+				if ( segment.buffer != null ) segment.buffer.force();
+				segment.channel.close();
+			}
+			this.segments.clear();
+		}
+	}
+
+	/**
+	 * Replays the transactions left by a previous run whose timestamps are, at least, the one provided. Segments
+	 * without any of those transactions are deleted. Needs to be called before appending any transaction
+	 *
+	 * @param from
+	 * 	epoch nanos of the oldest transaction to replay
+	 * @return number of transactions replayed
+	 */
+	long replay( long from, Visitor visitor ) throws IOException {
+		long replayed = 0;
+		for ( Path path : this.previousSegments ) {
+			long visited;
+			try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) ) {
+				visited = replay( channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ), from, visitor );
+			}
+
+			if ( visited == 0 ) {
+				Files.deleteIfExists( path );
+			} else {
+				synchronized ( this ) {
+					// Kept (and deleted) like the segments of this run, but never appended to
+					this.segments.addLast( new Segment( path, getStartedAt( path ), FileChannel.open( path, StandardOpenOption.READ ), null ) );
+				}
+			}
+			replayed += visited;
+		}
+		this.previousSegments.clear();
+		return replayed;
+	}
+
+	private static long getStartedAt( Path path ) {
+		String name = path.getFileName().toString();
+		try {
+			return Long.parseLong( name.substring( 0, name.length() - EXTENSION.length() ) );
+		} catch ( NumberFormatException e ) {
+			// Not named by the log, it expires along with the next segment
+			return Long.MIN_VALUE;
+		}
+	}
+
+	private static long replay( MappedByteBuffer buffer, long from, Visitor visitor ) {
+		long visited = 0;
+		while ( buffer.remaining() >= RECORD_SIZE ) {
+			long timestamp = buffer.getLong();
+			// The rest of the segment is still zeroed
+			if ( timestamp == 0 ) break;
+
+			int scale = buffer.getInt();
+			int length = buffer.getInt();
+			// Damaged by a crash of the machine, nothing after it can be trusted
+			if ( length < 0 || length > buffer.remaining() ) break;
+			if ( length == 0 ) {
+				long amount = buffer.getLong();
+				if ( timestamp < from ) continue;
+				visitor.visit( timestamp, amount, scale );
+			} else {
+				byte[] unscaled = new byte[ length ];
+				buffer.get( unscaled );
+				if ( timestamp < from ) continue;
+				visitor.visit( timestamp, new BigDecimal( new BigInteger( unscaled ), scale ) );
+			}
+			visited++;
+		}
+		return visited;
+	}
+
+	/**
+	 * Appends a registered transaction
+	 *
+	 * @param now
+	 * 	epoch nanos of the moment the transaction was registered
+	 * @param timestamp
+	 * 	epoch nanos of the transaction
+	 */
+	void append( long now, long timestamp, long amount, int scale ) {
+		synchronized ( this ) {
+			MappedByteBuffer buffer = getBuffer( now, timestamp, RECORD_SIZE );
+			int position = buffer.position();
+			buffer.putInt( position + 8, scale ).putInt( position + 12, 0 ).putLong( position + HEADER_SIZE, amount );
+			commit( buffer, position, timestamp, RECORD_SIZE );
+		}
+	}
+
+	void append( long now, long timestamp, BigDecimal amount ) {
+		BigInteger unscaled = amount.unscaledValue();
+		if ( unscaled.bitLength() < Long.SIZE ) {
+			append( now, timestamp, unscaled.longValue(), amount.scale() );
+			return;
+		}
+
+		byte[] bytes = unscaled.toByteArray();
+		synchronized ( this ) {
+			MappedByteBuffer buffer = getBuffer( now, timestamp, HEADER_SIZE + bytes.length );
+			int position = buffer.position();
+			buffer.putInt( position + 8, amount.scale() ).putInt( position + 12, bytes.length );
+			buffer.position( position + HEADER_SIZE );
+			buffer.put( bytes );
+			commit( buffer, position, timestamp, HEADER_SIZE + bytes.length );
+		}
+	}
+
+	/**
+	 * Writes the timestamp of a record whose body was already written, and moves past it. The replay stops at the
+	 * first zeroed timestamp, so a record the process was killed in the middle of appending is never replayed
+	 */
+	private static void commit( MappedByteBuffer buffer, int position, long timestamp, int recordSize ) {
+		buffer.putLong( position, timestamp );
+		buffer.position( position + recordSize );
+	}
+
+	/**
+	 * Deletes every segment, of this run and of previous ones
+	 */
+	void clear() throws IOException {
+		synchronized ( this ) {
+			for ( Segment segment : this.segments ) segment.delete();
+			this.segments.clear();
+			for ( Path path : this.previousSegments ) Files.deleteIfExists( path );
+			this.previousSegments.clear();
+		}
+	}
+
+	/**
+	 * Returns the buffer of the current segment, starting a new one if the current one doesn't have room for the
+	 * record or its period is over
+	 */
+	private MappedByteBuffer getBuffer( long now, long timestamp, int recordSize ) {
+		this.appendedAt = Math.max( this.appendedAt, Math.max( now, timestamp ) );
+		now = this.appendedAt;
+
+		Segment current = this.segments.peekLast();
+		if ( current == null || current.buffer == null || current.buffer.remaining() < recordSize || now - current.startedAt >= this.segmentPeriodNanos ) {
+			if ( recordSize > this.segmentSize ) throw new IllegalArgumentException( "The amount is too big for the segments of the log" );
+			current = startSegment( now );
+		}
+		current.dirty = true;
+		return current.buffer;
+	}
+
+	private Segment startSegment( long now ) {
+		// Segments started in the same nano (only possible if one filled up that fast) get the next name
+		Segment previous = this.segments.peekLast();
+		long startedAt = previous != null && previous.startedAt >= now ? previous.startedAt + 1 : now;
+
+		Path path = this.directory.resolve( String.format( "%020d%s", startedAt, EXTENSION ) );
+		try {
+			FileChannel channel = FileChannel.open( path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE );
+			Segment segment = new Segment( path, startedAt, channel, channel.map( FileChannel.MapMode.READ_WRITE, 0, this.segmentSize ) );
+			this.segments.addLast( segment );
+			return segment;
+		} catch ( IOException e ) {
+			throw new UncheckedIOException( e );
+		}
+	}
+
+	/**
+	 * Forces the segments that were appended to since the last flush, and deletes the ones that expired
+	 */
+	public void flush() {
+		List<Segment> dirty = new ArrayList<>( 2 );
+		List<Segment> expired = new ArrayList<>();
+		synchronized ( this ) {
+			for ( Segment segment : this.segments ) {
+				if ( ! segment.dirty ) continue;
+				segment.dirty = false;
+				dirty.add( segment );
+			}
+
+			long oldest = this.clock.nanos() - this.samplingPeriodNanos;
+			while ( this.segments.size() > 1 ) {
+				Segment first = this.segments.pollFirst();
+				// Every transaction of a segment is older than the moment the next one was started
+				if ( this.segments.peekFirst().startedAt >= oldest ) {
+					this.segments.addFirst( first );
+					break;
+				}
+				expired.add( first );
+			}
+		}
+
+		// Forcing takes milliseconds, so it's done without blocking the appends
+		for ( Segment segment : dirty ) segment.buffer.force();
+		for ( Segment segment : expired ) {
+			try {
+				segment.delete();
+			} catch ( IOException e ) {
+				// Tried again on the next run, when it's found among the previous segments
+			}
+		}
+	}
+}
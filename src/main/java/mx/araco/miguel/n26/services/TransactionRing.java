@@ -0,0 +1,177 @@
+package mx.araco.miguel.n26.services;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated ring of transactions with several producers and a single consumer (see
+ * {@link PipelinedStatisticsService}).
+ * <p>
+ * Producers claim sequences with a single atomic increment (or a range of them, for batches), write the
+ * transaction in the slot {@code sequence & mask} and then publish the slot by storing its sequence, so the
+ * consumer reads every published transaction in order without any lock. Transactions are stored in parallel
+ * primitive arrays, so publishing one doesn't allocate. If the ring is full, producers wait for the consumer to
+ * release slots.
+ *
+ * @author MiguelAraCo
+ */
+final class TransactionRing {
+	/**
+	 * Times the consumer checks for new transactions before parking
+	 */
+	private static final int SPINS = 1000;
+	private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos( 10 );
+
+	private final int capacity;
+	private final int mask;
+
+	/**
+	 * Epoch nanos of the transactions
+	 */
+	private final long[] timestamps;
+	private final long[] amounts;
+	private final int[] scales;
+	/**
+	 * Amounts that don't fit in an unscaled long, null for the rest
+	 */
+	private final BigDecimal[] decimals;
+	/**
+	 * Sequence of the transaction each slot holds, once it can be read
+	 */
+	private final AtomicLongArray published;
+
+	/**
+	 * Next sequence to claim
+	 */
+	private final AtomicLong claimed = new AtomicLong();
+	/**
+	 * Last sequence the consumer is done with, its slot (and the ones before it) can be reused
+	 */
+	private final AtomicLong released = new AtomicLong( - 1 );
+
+	private volatile Thread consumer;
+	private volatile boolean consumerParked;
+
+	/**
+	 * @param capacity
+	 * 	number of slots, a power of two
+	 */
+	TransactionRing( int capacity ) {
+		if ( capacity <= 0 || Integer.bitCount( capacity ) != 1 ) throw new IllegalArgumentException( "The size of the ring needs to be a power of two" );
+
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.timestamps = new long[ capacity ];
+		this.amounts = new long[ capacity ];
+		this.scales = new int[ capacity ];
+		this.decimals = new BigDecimal[ capacity ];
+		this.published = new AtomicLongArray( capacity );
+		for ( int i = 0; i < capacity; i++ ) this.published.set( i, - 1 );
+	}
+
+	int getCapacity() { return capacity; }
+
+	/**
+	 * @return the next sequence that will be claimed, so every sequence before it was already claimed
+	 */
+	long getClaimed() { return this.claimed.get(); }
+
+	/**
+	 * Claims consecutive sequences, waiting until their slots are released if the ring is full
+	 *
+	 * @param count
+	 * 	number of sequences, up to the capacity of the ring
+	 * @return the first sequence claimed
+	 */
+	long claim( int count ) {
+		long first = this.claimed.getAndAdd( count );
+		// The slot of the last sequence is free once the sequence a whole ring before it was released
+		long wrapPoint = first + count - 1 - this.capacity;
+		while ( this.released.get() < wrapPoint ) {
+			wakeUpConsumer();
+			LockSupport.parkNanos( PRODUCER_PARK_NANOS );
+		}
+		return first;
+	}
+
+	void publish( long sequence, long timestamp, long amount, int scale ) {
+		int index = (int) ( sequence & this.mask );
+		this.timestamps[ index ] = timestamp;
+		this.amounts[ index ] = amount;
+		this.scales[ index ] = scale;
+		published( index, sequence );
+	}
+
+	void publish( long sequence, long timestamp, BigDecimal amount ) {
+		int index = (int) ( sequence & this.mask );
+		this.timestamps[ index ] = timestamp;
+		this.decimals[ index ] = amount;
+		published( index, sequence );
+	}
+
+	private void published( int index, long sequence ) {
+		// A volatile write followed by a volatile read, so the consumer can't miss it after parking
+		this.published.set( index, sequence );
+		if ( this.consumerParked ) wakeUpConsumer();
+	}
+
+	private void wakeUpConsumer() {
+		Thread consumer = this.consumer;
+		if ( consumer != null ) LockSupport.unpark( consumer );
+	}
+
+	/**
+	 * Returns the last sequence of the transactions that can be read in order from the one provided on. Only
+	 * called by the consumer
+	 *
+	 * @param max
+	 * 	max number of transactions to return
+	 * @return {@code next - 1} if the next transaction wasn't published yet
+	 */
+	long getAvailable( long next, int max ) {
+		long last = next - 1;
+		long limit = next + Math.min( max, this.capacity );
+		while ( last + 1 < limit && this.published.get( (int) ( ( last + 1 ) & this.mask ) ) == last + 1 ) last++;
+		return last;
+	}
+
+	/**
+	 * Waits until the next transaction is published, or the timeout elapses. Only called by the consumer
+	 */
+	void await( long next, long timeoutNanos ) {
+		int index = (int) ( next & this.mask );
+		for ( int i = 0; i < SPINS; i++ ) {
+			if ( this.published.get( index ) == next ) return;
+		}
+
+		this.consumer = Thread.currentThread();
+		this.consumerParked = true;
+		try {
+			if ( this.published.get( index ) != next ) LockSupport.parkNanos( this, timeoutNanos );
+		} finally {
+			this.consumerParked = false;
+		}
+	}
+
+	long getTimestamp( long sequence ) { return this.timestamps[ (int) ( sequence & this.mask ) ]; }
+
+	long getAmount( long sequence ) { return this.amounts[ (int) ( sequence & this.mask ) ]; }
+
+	int getScale( long sequence ) { return this.scales[ (int) ( sequence & this.mask ) ]; }
+
+	/**
+	 * @return the amount of the transaction if it doesn't fit in an unscaled long, null otherwise
+	 */
+	BigDecimal getDecimal( long sequence ) { return this.decimals[ (int) ( sequence & this.mask ) ]; }
+
+	/**
+	 * Lets producers reuse the slots of the transactions up to the one provided. Only called by the consumer
+	 */
+	void release( long sequence ) {
+		for ( long released = this.released.get() + 1; released <= sequence; released++ ) this.decimals[ (int) ( released & this.mask ) ] = null;
+		this.released.lazySet( sequence );
+	}
+}
@@ -0,0 +1,57 @@
+package mx.araco.miguel.n26.services;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * {@link EpochClock} that only moves when it's told to, so the services can be driven through hours of simulated
+ * time in a few seconds, and deterministically. Meant for tests and simulations, with the background rotation
+ * disabled (it's scheduled on real time)
+ *
+ * @author MiguelAraCo
+ */
+public class VirtualEpochClock implements EpochClock {
+	private volatile long nanos;
+	private volatile long preciseLeadNanos;
+
+	public VirtualEpochClock( Instant start ) {
+		this.nanos = EpochNanos.of( start );
+	}
+
+	@Override
+	public long nanos() {
+		return this.nanos;
+	}
+
+	@Override
+	public long preciseNanos() {
+		return this.nanos + this.preciseLeadNanos;
+	}
+
+	/**
+	 * @return milliseconds since the epoch, the resolution of the timestamps of the transactions
+	 */
+	public long millis() {
+		return Math.floorDiv( this.nanos, 1_000_000L );
+	}
+
+	public void advance( Duration duration ) {
+		advanceNanos( duration.toNanos() );
+	}
+
+	public void advanceNanos( long nanos ) {
+		if ( nanos < 0 ) throw new IllegalArgumentException( "The clock can't go back" );
+
+		this.nanos += nanos;
+	}
+
+	/**
+	 * Makes {@link #preciseNanos()} read a moment ahead of {@link #nanos()}, like a {@link CoarseEpochClock} whose
+	 * ticker is late
+	 */
+	public void setPreciseLead( Duration lead ) {
+		if ( lead.isNegative() ) throw new IllegalArgumentException( "The precise clock can't be behind" );
+
+		this.preciseLeadNanos = lead.toNanos();
+	}
+}
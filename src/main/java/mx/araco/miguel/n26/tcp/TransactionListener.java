@@ -0,0 +1,264 @@
+package mx.araco.miguel.n26.tcp;
+
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.StatisticsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Registers transactions received through a raw TCP protocol, for producers that can't afford an HTTP request
+ * (and a JSON document) per transaction. Enabled by setting {@code mx.araco.miguel.n26.tcp.enabled=true}.
+ * <p>
+ * Clients send a stream of fixed-size frames of {@link TransactionListener#FRAME_SIZE} bytes, each one with two
+ * big-endian longs: the amount of the transaction in minor units (e.g. 1265 for 12.65, see
+ * {@link Statistics#SCALE}) and its timestamp in epoch millis. For every frame the listener answers with a single
+ * byte, in the same order: {@link TransactionListener#REGISTERED}, {@link TransactionListener#DISCARDED} or
+ * {@link TransactionListener#REJECTED} (the same results as {@code POST /transactions}). Clients can pipeline as
+ * many frames as they want, and read the answers whenever it suits them (e.g. once per batch).
+ * <p>
+ * Connections are spread across a fixed number of workers, each one with its own {@link Selector}, so no thread is
+ * needed per connection. Every read takes as many frames as fit in the direct buffer of the connection, and the
+ * answers of all of them are written at once. If a client stops reading its answers, the listener stops reading its
+ * frames until it does.
+ *
+ * @author MiguelAraCo
+ */
+@Component
+@ConditionalOnProperty( prefix = "mx.araco.miguel.n26.tcp", name = "enabled", havingValue = "true" )
+public class TransactionListener {
+	public static final int FRAME_SIZE = 2 * Long.BYTES;
+
+	public static final byte REGISTERED = 0;
+	public static final byte DISCARDED = 1;
+	/**
+	 * The transaction has a timestamp of the future
+	 */
+	public static final byte REJECTED = 2;
+
+	private final StatisticsService statisticsService;
+	private final int port;
+	private final int bufferSize;
+	private final Worker[] workers;
+
+	private ServerSocketChannel server;
+	private Thread acceptor;
+
+	@Autowired
+	public TransactionListener( StatisticsService statisticsService, SamplingStatisticsServiceConfiguration configuration ) {
+		SamplingStatisticsServiceConfiguration.Tcp tcp = configuration.getTcp();
+		if ( tcp.getBufferSize() < FRAME_SIZE ) throw new IllegalArgumentException( "The buffers need to fit at least one frame" );
+
+		this.statisticsService = statisticsService;
+		this.port = tcp.getPort();
+		this.bufferSize = tcp.getBufferSize();
+		this.workers = new Worker[ tcp.getWorkers() ];
+	}
+
+	/**
+	 * @return the port the listener is bound to (e.g. when it was configured with port 0)
+	 */
+	public int getPort() { return this.server.socket().getLocalPort(); }
+
+	@PostConstruct
+	public void start() throws IOException {
+		if ( this.server != null ) return;
+
+		this.server = ServerSocketChannel.open();
+		this.server.bind( new InetSocketAddress( this.port ) );
+
+		for ( int i = 0; i < this.workers.length; i++ ) {
+			this.workers[ i ] = new Worker();
+			startThread( this.workers[ i ], "tcp-worker-" + i );
+		}
+		this.acceptor = startThread( this::accept, "tcp-acceptor" );
+	}
+
+	private static Thread startThread( Runnable runnable, String name ) {
+		Thread thread = new Thread( runnable, name );
+		thread.setDaemon( true );
+		thread.start();
+		return thread;
+	}
+
+	@PreDestroy
+	public void stop() throws IOException, InterruptedException {
+		if ( this.server == null ) return;
+
+		this.server.close();
+		this.acceptor.join();
+		for ( Worker worker : this.workers ) worker.close();
+		this.server = null;
+	}
+
+	private void accept() {
+		int next = 0;
+		while ( true ) {
+			SocketChannel channel;
+			try {
+				channel = this.server.accept();
+			} catch ( IOException e ) {
+				// Closed by stop()
+				return;
+			}
+
+			try {
+				channel.configureBlocking( false );
+				channel.socket().setTcpNoDelay( true );
+			} catch ( IOException e ) {
+				close( channel );
+				continue;
+			}
+			this.workers[ next ].add( channel );
+			next = ( next + 1 ) % this.workers.length;
+		}
+	}
+
+	private static void close( SocketChannel channel ) {
+		try {
+			channel.close();
+		} catch ( IOException e ) {
+			// Nothing else to do
+		}
+	}
+
+	/**
+	 * Buffers of a connection, attached to its {@link SelectionKey}
+	 */
+	private final class Connection {
+		private final SocketChannel channel;
+		private final ByteBuffer frames = ByteBuffer.allocateDirect( bufferSize );
+		/**
+		 * One byte per frame read, so the answers of a whole buffer of frames always fit
+		 */
+		private final ByteBuffer answers = ByteBuffer.allocateDirect( bufferSize / FRAME_SIZE );
+
+		Connection( SocketChannel channel ) {
+			this.channel = channel;
+		}
+
+		/**
+		 * @return false if the client closed the connection
+		 */
+		boolean read() throws IOException {
+			if ( this.channel.read( this.frames ) < 0 ) return false;
+
+			this.frames.flip();
+			while ( this.frames.remaining() >= FRAME_SIZE ) this.answers.put( register( this.frames.getLong(), this.frames.getLong() ) );
+			this.frames.compact();
+			return true;
+		}
+
+		/**
+		 * @return false if some answers couldn't be written yet
+		 */
+		boolean write() throws IOException {
+			this.answers.flip();
+			this.channel.write( this.answers );
+			this.answers.compact();
+			return this.answers.position() == 0;
+		}
+	}
+
+	private byte register( long amount, long timestamp ) {
+		try {
+			switch ( this.statisticsService.register( amount, Statistics.SCALE, timestamp ) ) {
+				case REGISTERED:
+					return REGISTERED;
+				case DISCARDED:
+					return DISCARDED;
+				default:
+					throw new IllegalStateException();
+			}
+		} catch ( IllegalArgumentException e ) {
+			return REJECTED;
+		}
+	}
+
+	private final class Worker implements Runnable {
+		private final Selector selector;
+		/**
+		 * Connections accepted but not registered in the selector yet
+		 */
+		private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+		Worker() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		void add( SocketChannel channel ) {
+			this.pending.add( channel );
+			this.selector.wakeup();
+		}
+
+		void close() throws IOException {
+			for ( SelectionKey key : this.selector.keys() ) key.channel().close();
+			this.selector.close();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while ( true ) {
+					this.selector.select();
+					registerPending();
+
+					Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+					while ( keys.hasNext() ) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						handle( key );
+					}
+				}
+			} catch ( ClosedSelectorException | IOException e ) {
+				// Closed by stop()
+			}
+		}
+
+		private void registerPending() throws ClosedChannelException {
+			SocketChannel channel;
+			while ( ( channel = this.pending.poll() ) != null ) {
+				channel.register( this.selector, SelectionKey.OP_READ, new Connection( channel ) );
+			}
+		}
+
+		private void handle( SelectionKey key ) {
+			Connection connection = (Connection) key.attachment();
+			try {
+				if ( key.isWritable() && connection.write() ) {
+					// Every answer was written, so frames can be read again
+					key.interestOps( SelectionKey.OP_READ );
+				}
+				if ( key.isValid() && ( key.interestOps() & SelectionKey.OP_READ ) != 0 && key.isReadable() ) {
+					if ( ! connection.read() ) {
+						connection.write();
+						key.cancel();
+						TransactionListener.close( connection.channel );
+					} else if ( ! connection.write() ) {
+						// The client isn't reading its answers, stop reading its frames until it does
+						key.interestOps( SelectionKey.OP_WRITE );
+					}
+				}
+			} catch ( IOException e ) {
+				key.cancel();
+				TransactionListener.close( connection.channel );
+			}
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package mx.araco.miguel.n26.web;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.StatisticsServiceMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sheds requests that register transactions when the node is overloaded, so they're rejected right away with a
+ * {@code 429} instead of piling up on the lock of the statistics service (and taking every worker thread, which
+ * would stall {@code GET /statistics} too). Enabled by setting {@code mx.araco.miguel.n26.admission.enabled=true}.
+ * <p>
+ * A request is shed if:
+ * <ul>
+ * <li>There are already {@code max-in-flight} requests registering transactions. By default every worker thread
+ * of Undertow but {@code reserved-threads}, which are then always left for the rest of the requests.</li>
+ * <li>The recent waits for the lock of the statistics service average more than {@code max-lock-wait} (see
+ * {@link StatisticsServiceMetrics#getAverageLockWaitNanos()}), and other requests are registering transactions
+ * already. A request is always let through when there are none, so the average recovers once the load drops.</li>
+ * </ul>
+ * Shed requests are counted by {@code statistics.admission.shed}, tagged by {@code reason} ({@code in_flight} or
+ * {@code lock_wait}), and the requests registering transactions by {@code statistics.admission.in_flight}.
+ *
+ * @author MiguelAraCo
+ */
+@Component
+@ConditionalOnProperty( prefix = "mx.araco.miguel.n26.admission", name = "enabled", havingValue = "true" )
+public class AdmissionControl {
+	/**
+	 * Worker threads Undertow creates per IO thread when they aren't configured
+	 */
+	private static final int WORKER_THREADS_PER_IO_THREAD = 8;
+
+	private final StatisticsServiceMetrics metrics;
+	private final int maxInFlight;
+	private final long maxLockWaitNanos;
+	private final long retryAfterSeconds;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final Counter inFlightShedCounter;
+	private final Counter lockWaitShedCounter;
+
+	@Autowired
+	public AdmissionControl( SamplingStatisticsServiceConfiguration configuration, ServerProperties serverProperties, StatisticsServiceMetrics metrics, MeterRegistry registry ) {
+		SamplingStatisticsServiceConfiguration.Admission admission = configuration.getAdmission();
+
+		this.metrics = metrics;
+		this.maxInFlight = admission.getMaxInFlight() > 0
+			? admission.getMaxInFlight()
+			: Math.max( 1, getWorkerThreads( serverProperties ) - admission.getReservedThreads() );
+		this.maxLockWaitNanos = admission.getMaxLockWait().toNanos();
+		// Retry-After only takes whole seconds
+		this.retryAfterSeconds = Math.max( 1, ( admission.getRetryAfter().toMillis() + 999 ) / 1000 );
+
+		this.inFlightShedCounter = shedCounter( registry, "in_flight" );
+		this.lockWaitShedCounter = shedCounter( registry, "lock_wait" );
+		Gauge
+			.builder( "statistics.admission.in_flight", this.inFlight, AtomicInteger::get )
+			.description( "Requests registering transactions" )
+			.register( registry );
+	}
+
+	private static int getWorkerThreads( ServerProperties serverProperties ) {
+		ServerProperties.Undertow undertow = serverProperties.getUndertow();
+		if ( undertow.getWorkerThreads() != null ) return undertow.getWorkerThreads();
+
+		int ioThreads = undertow.getIoThreads() != null ? undertow.getIoThreads() : Math.max( Runtime.getRuntime().availableProcessors(), 2 );
+		return ioThreads * WORKER_THREADS_PER_IO_THREAD;
+	}
+
+	private static Counter shedCounter( MeterRegistry registry, String reason ) {
+		return Counter
+			.builder( "statistics.admission.shed" )
+			.description( "Requests rejected because the node was overloaded" )
+			.tag( "reason", reason )
+			.register( registry );
+	}
+
+	public int getMaxInFlight() { return this.maxInFlight; }
+
+	/**
+	 * @return seconds clients should wait before retrying a request that was shed
+	 */
+	public long getRetryAfterSeconds() { return this.retryAfterSeconds; }
+
+	/**
+	 * Admits a request that registers transactions, which needs to call {@link AdmissionControl#release()} once
+	 * it's done
+	 *
+	 * @return false if the request needs to be shed
+	 */
+	public boolean tryAcquire() {
+		int inFlight = this.inFlight.incrementAndGet();
+		if ( inFlight > this.maxInFlight ) {
+			this.inFlight.decrementAndGet();
+			this.inFlightShedCounter.increment();
+			return false;
+		}
+		if ( inFlight > 1 && this.metrics.getAverageLockWaitNanos() > this.maxLockWaitNanos ) {
+			this.inFlight.decrementAndGet();
+			this.lockWaitShedCounter.increment();
+			return false;
+		}
+		return true;
+	}
+
+	public void release() {
+		this.inFlight.decrementAndGet();
+	}
+}
@@ -0,0 +1,66 @@
+package mx.araco.miguel.n26.web;
+
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.services.ClusterStatisticsService;
+import mx.araco.miguel.n26.services.StatisticsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Endpoints used to aggregate the statistics of several nodes (see {@link ClusterStatisticsService})
+ *
+ * @author MiguelAraCo
+ */
+@RestController
+public class ClusterController {
+	/**
+	 * Number of peers whose statistics were included, out of the peers configured (e.g. {@code 2/3})
+	 */
+	public static final String PEERS_HEADER = "X-Cluster-Peers";
+	/**
+	 * Age, in milliseconds, of the oldest snapshot of a peer included in the statistics
+	 */
+	public static final String STALENESS_HEADER = "X-Cluster-Staleness";
+
+	private StatisticsService statisticsService;
+	private ClusterStatisticsService clusterStatisticsService;
+
+	/**
+	 * Returns the statistics of each sample of the node in a compact binary form, for the nodes that aggregate them
+	 */
+	@GetMapping( value = "cluster/buckets", produces = ClusterStatisticsService.BUCKETS_MEDIA_TYPE )
+	public ResponseEntity<byte[]> getBuckets() throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		this.statisticsService.getBuckets().writeTo( body );
+		return ResponseEntity.ok()
+			.contentType( MediaType.parseMediaType( ClusterStatisticsService.BUCKETS_MEDIA_TYPE ) )
+			.body( body.toByteArray() );
+	}
+
+	/**
+	 * Returns the statistics of the whole cluster, or a {@code 404} if the node doesn't aggregate them
+	 */
+	@GetMapping( value = "cluster/statistics", produces = MediaType.APPLICATION_JSON_VALUE )
+	public ResponseEntity<Statistics> getClusterStatistics() {
+		if ( this.clusterStatisticsService == null ) return new ResponseEntity<>( HttpStatus.NOT_FOUND );
+
+		ClusterStatisticsService.Aggregate aggregate = this.clusterStatisticsService.get();
+		return ResponseEntity.ok()
+			.header( PEERS_HEADER, aggregate.getPeers() + "/" + aggregate.getTotalPeers() )
+			.header( STALENESS_HEADER, String.valueOf( aggregate.getStalenessMillis() ) )
+			.body( aggregate.getStatistics() );
+	}
+
+	@Autowired
+	public void setStatisticsService( StatisticsService statisticsService ) { this.statisticsService = statisticsService; }
+
+	@Autowired( required = false )
+	public void setClusterStatisticsService( ClusterStatisticsService clusterStatisticsService ) { this.clusterStatisticsService = clusterStatisticsService; }
+}
@@ -0,0 +1,139 @@
+package mx.araco.miguel.n26.web;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import io.undertow.util.StatusCodes;
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.Transaction;
+import mx.araco.miguel.n26.services.StatisticsService;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.Deque;
+
+/**
+ * Serves {@code GET /statistics} and {@code POST /transactions} straight on Undertow, without Spring MVC, for
+ * {@link mx.araco.miguel.n26.FastStartApplication}. It follows the same contract as
+ * {@link StatisticsController#getLatestStatistics(String)}, {@link StatisticsController#getWindowStatistics(String)}
+ * and {@link TransactionsController#addTransaction(java.io.InputStream)}: the same status codes, headers and JSON.
+ * Every other path returns a {@code 404}, and other methods on those paths a {@code 405}.
+ * <p>
+ * Requests need to be dispatched to a worker thread in blocking mode (see
+ * {@link io.undertow.server.handlers.BlockingHandler}), like servlets are.
+ *
+ * @author MiguelAraCo
+ */
+public class FastStartHandler implements HttpHandler {
+	private static final String STATISTICS_PATH = "/statistics";
+	private static final String TRANSACTIONS_PATH = "/transactions";
+
+	private static final String APPLICATION_JSON_VALUE = "application/json";
+	private static final String APPLICATION_JSON_UTF8_VALUE = "application/json;charset=UTF-8";
+
+	private static final ThreadLocal<TransactionParser> parsers = ThreadLocal.withInitial( TransactionParser::new );
+
+	private final StatisticsService statisticsService;
+	private final StatisticsSnapshotPublisher snapshotPublisher;
+	private final ObjectMapper objectMapper;
+	private final ObjectReader transactionReader;
+
+	public FastStartHandler( StatisticsService statisticsService, StatisticsSnapshotPublisher snapshotPublisher, ObjectMapper objectMapper ) {
+		this.statisticsService = statisticsService;
+		this.snapshotPublisher = snapshotPublisher;
+		this.objectMapper = objectMapper;
+		this.transactionReader = objectMapper.readerFor( Transaction.class );
+	}
+
+	@Override
+	public void handleRequest( HttpServerExchange exchange ) throws IOException {
+		switch ( exchange.getRequestPath() ) {
+			case STATISTICS_PATH:
+				if ( ! exchange.getRequestMethod().equals( Methods.GET ) ) exchange.setStatusCode( StatusCodes.METHOD_NOT_ALLOWED );
+				else if ( exchange.getQueryParameters().containsKey( "window" ) ) getWindowStatistics( exchange );
+				else getLatestStatistics( exchange );
+				break;
+			case TRANSACTIONS_PATH:
+				if ( ! exchange.getRequestMethod().equals( Methods.POST ) ) exchange.setStatusCode( StatusCodes.METHOD_NOT_ALLOWED );
+				else if ( ! isJson( exchange.getRequestHeaders().getFirst( Headers.CONTENT_TYPE ) ) ) exchange.setStatusCode( StatusCodes.UNSUPPORTED_MEDIA_TYPE );
+				else addTransaction( exchange );
+				break;
+			default:
+				exchange.setStatusCode( StatusCodes.NOT_FOUND );
+		}
+	}
+
+	private static boolean isJson( String contentType ) {
+		if ( contentType == null ) return false;
+
+		int parameters = contentType.indexOf( ';' );
+		String mediaType = parameters < 0 ? contentType : contentType.substring( 0, parameters );
+		return mediaType.trim().equalsIgnoreCase( APPLICATION_JSON_VALUE );
+	}
+
+	private void getLatestStatistics( HttpServerExchange exchange ) {
+		StatisticsSnapshotPublisher.Snapshot snapshot = this.snapshotPublisher.get();
+		exchange.getResponseHeaders().put( Headers.ETAG, snapshot.getETag() );
+
+		if ( snapshot.matches( exchange.getRequestHeaders().getFirst( Headers.IF_NONE_MATCH ) ) ) {
+			exchange.setStatusCode( StatusCodes.NOT_MODIFIED );
+			return;
+		}
+
+		exchange.getResponseHeaders().put( Headers.CONTENT_TYPE, APPLICATION_JSON_VALUE );
+		exchange.getResponseSender().send( ByteBuffer.wrap( snapshot.getBody() ) );
+	}
+
+	private void getWindowStatistics( HttpServerExchange exchange ) throws JsonProcessingException {
+		Deque<String> window = exchange.getQueryParameters().get( "window" );
+
+		Statistics statistics;
+		try {
+			statistics = this.statisticsService.get( Duration.parse( window.getFirst() ) );
+		} catch ( DateTimeParseException | IllegalArgumentException e ) {
+			exchange.setStatusCode( StatusCodes.BAD_REQUEST );
+			return;
+		}
+
+		exchange.getResponseHeaders().put( Headers.CONTENT_TYPE, APPLICATION_JSON_UTF8_VALUE );
+		exchange.getResponseSender().send( ByteBuffer.wrap( this.objectMapper.writeValueAsBytes( statistics ) ) );
+	}
+
+	private void addTransaction( HttpServerExchange exchange ) throws IOException {
+		TransactionParser parser = parsers.get();
+
+		StatisticsService.RegisterResult result;
+		try {
+			if ( parser.parse( exchange.getInputStream() ) ) {
+				result = this.statisticsService.register( parser.getAmount(), parser.getScale(), parser.getTimestamp() );
+			} else {
+				Transaction transaction = this.transactionReader.readValue( parser.replay( exchange.getInputStream() ) );
+				if ( transaction == null || transaction.getAmount() == null || transaction.getTimestamp() == null ) {
+					exchange.setStatusCode( StatusCodes.BAD_REQUEST );
+					return;
+				}
+				result = this.statisticsService.register( transaction );
+			}
+		} catch ( JsonProcessingException | IllegalArgumentException e ) {
+			exchange.setStatusCode( StatusCodes.BAD_REQUEST );
+			return;
+		}
+
+		switch ( result ) {
+			case REGISTERED:
+				exchange.setStatusCode( StatusCodes.CREATED );
+				break;
+			case DISCARDED:
+				exchange.setStatusCode( StatusCodes.NO_CONTENT );
+				break;
+			default:
+				throw new IllegalStateException();
+		}
+	}
+}
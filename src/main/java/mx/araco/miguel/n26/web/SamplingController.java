@@ -0,0 +1,50 @@
+package mx.araco.miguel.n26.web;
+
+import mx.araco.miguel.n26.models.SamplingLayout;
+import mx.araco.miguel.n26.services.Resampler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Endpoints to read and change the sample and sampling periods while the node runs (see {@link Resampler})
+ *
+ * @author MiguelAraCo
+ */
+@RestController
+public class SamplingController {
+	private Resampler resampler;
+
+	/**
+	 * Returns the current periods, or a {@code 404} if they can't be changed
+	 */
+	@GetMapping( value = "admin/sampling", produces = MediaType.APPLICATION_JSON_VALUE )
+	public ResponseEntity<SamplingLayout> getLayout() {
+		if ( this.resampler == null ) return new ResponseEntity<>( HttpStatus.NOT_FOUND );
+
+		return new ResponseEntity<>( this.resampler.getLayout(), HttpStatus.OK );
+	}
+
+	/**
+	 * Changes the periods (and the adaptive mode) provided, keeping the transactions registered, and returns the new
+	 * ones. Returns a {@code 400} if the statistics service can't use them, and a {@code 404} if they can't be changed
+	 */
+	@PutMapping( value = "admin/sampling", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE )
+	public ResponseEntity<SamplingLayout> changeLayout( @RequestBody SamplingLayout layout ) {
+		if ( this.resampler == null ) return new ResponseEntity<>( HttpStatus.NOT_FOUND );
+
+		try {
+			return new ResponseEntity<>( this.resampler.change( layout ), HttpStatus.OK );
+		} catch ( IllegalArgumentException e ) {
+			return new ResponseEntity<>( HttpStatus.BAD_REQUEST );
+		}
+	}
+
+	@Autowired( required = false )
+	public void setResampler( Resampler resampler ) { this.resampler = resampler; }
+}
@@ -1,26 +1,107 @@
 package mx.araco.miguel.n26.web;
 
-import mx.araco.miguel.n26.services.StatisticsService;
+import mx.araco.miguel.n26.models.KeyedStatistics;
 import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.services.KeyedStatisticsService;
+import mx.araco.miguel.n26.services.StatisticsService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
 /**
  * @author MiguelAraCo
  */
 @RestController
 public class StatisticsController {
 	private StatisticsService statisticsService;
+	private StatisticsSnapshotPublisher snapshotPublisher;
+	private KeyedStatisticsService keyedStatisticsService;
+	private StatisticsStream statisticsStream;
+
+	/**
+	 * Returns the latest statistics. The response is served from an already serialized snapshot, and carries an
+	 * {@code ETag} so clients polling the endpoint receive a {@code 304} while the statistics don't change
+	 */
+	@GetMapping( value = "statistics", produces = MediaType.APPLICATION_JSON_VALUE )
+	public ResponseEntity<byte[]> getLatestStatistics( @RequestHeader( value = HttpHeaders.IF_NONE_MATCH, required = false ) String ifNoneMatch ) {
+		StatisticsSnapshotPublisher.Snapshot snapshot = this.snapshotPublisher.get();
+
+		if ( snapshot.matches( ifNoneMatch ) ) {
+			return ResponseEntity.status( HttpStatus.NOT_MODIFIED ).eTag( snapshot.getETag() ).build();
+		}
 
-	@GetMapping( "statistics" )
-	public ResponseEntity<Statistics> getLatestStatistics() {
-		Statistics statistics = this.statisticsService.get();
+		return ResponseEntity.ok()
+			.contentType( MediaType.APPLICATION_JSON )
+			.eTag( snapshot.getETag() )
+			.body( snapshot.getBody() );
+	}
+
+	/**
+	 * Returns the statistics of the window of time requested (an ISO 8601 duration, e.g. {@code PT10S}), or a
+	 * {@code 400} if the window isn't valid or the service doesn't support it
+	 */
+	@GetMapping( value = "statistics", params = "window", produces = MediaType.APPLICATION_JSON_VALUE )
+	public ResponseEntity<Statistics> getWindowStatistics( @RequestParam( "window" ) String window ) {
+		Statistics statistics;
+		try {
+			statistics = this.statisticsService.get( Duration.parse( window ) );
+		} catch ( DateTimeParseException | IllegalArgumentException e ) {
+			return new ResponseEntity<>( HttpStatus.BAD_REQUEST );
+		}
 		return new ResponseEntity<>( statistics, HttpStatus.OK );
 	}
 
+	/**
+	 * Streams the latest statistics as server-sent events (see {@link StatisticsStream}), or returns a {@code 503}
+	 * if there are too many subscribers already
+	 */
+	@GetMapping( value = "statistics/stream", produces = StatisticsStream.TEXT_EVENT_STREAM_VALUE )
+	public void streamStatistics( HttpServletRequest request, HttpServletResponse response ) throws IOException {
+		if ( ! this.statisticsStream.subscribe( request, response ) ) response.sendError( HttpStatus.SERVICE_UNAVAILABLE.value() );
+	}
+
+	/**
+	 * Returns the statistics of the transactions of a key, empty if the key didn't receive any transactions
+	 * during the sampling period. Keys have their own prefix, so any key (e.g. {@code stream}) can be queried
+	 */
+	@GetMapping( value = "statistics/keys/{key:.+}", produces = MediaType.APPLICATION_JSON_VALUE )
+	public Statistics getKeyStatistics( @PathVariable( "key" ) String key ) {
+		return this.keyedStatisticsService.get( key );
+	}
+
+	/**
+	 * Returns the {@code k} keys with the highest sum during the sampling period, or a {@code 400} if {@code k}
+	 * isn't positive
+	 */
+	@GetMapping( value = "statistics/top/{k}", produces = MediaType.APPLICATION_JSON_VALUE )
+	public ResponseEntity<List<KeyedStatistics>> getTopKeys( @PathVariable( "k" ) int k ) {
+		if ( k <= 0 ) return new ResponseEntity<>( HttpStatus.BAD_REQUEST );
+		return new ResponseEntity<>( this.keyedStatisticsService.getTop( k ), HttpStatus.OK );
+	}
+
 	@Autowired
 	public void setStatisticsService( StatisticsService statisticsService ) { this.statisticsService = statisticsService; }
+
+	@Autowired
+	public void setSnapshotPublisher( StatisticsSnapshotPublisher snapshotPublisher ) { this.snapshotPublisher = snapshotPublisher; }
+
+	@Autowired
+	public void setKeyedStatisticsService( KeyedStatisticsService keyedStatisticsService ) { this.keyedStatisticsService = keyedStatisticsService; }
+
+	@Autowired
+	public void setStatisticsStream( StatisticsStream statisticsStream ) { this.statisticsStream = statisticsStream; }
 }
@@ -0,0 +1,146 @@
+package mx.araco.miguel.n26.web;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import mx.araco.miguel.n26.services.EpochClock;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.StatisticsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the latest statistics already serialized as JSON, so {@code GET /statistics} doesn't need to calculate nor
+ * serialize them on every request.
+ * <p>
+ * A snapshot is reused while the version of the {@link StatisticsService} doesn't change and it isn't older than a
+ * sample period (the statistics can't change in less time than that unless a transaction is registered, and the
+ * age check covers services that only expire their samples when they are used), or a millisecond with the exact
+ * edge.
+ * <p>
+ * Under continuous writes the version changes all the time, so a snapshot younger than
+ * {@code snapshot-min-age} is served anyway, and only one request at a time calculates a new one: the rest keep
+ * getting the published snapshot meanwhile, so requests don't queue on the lock of the service nor serialize the
+ * same statistics over and over. The statistics served are then at most {@code snapshot-min-age} (plus the time
+ * it takes to calculate them) behind the transactions registered.
+ *
+ * @author MiguelAraCo
+ */
+@Component
+public class StatisticsSnapshotPublisher {
+	/**
+	 * Serialized statistics with the information needed to know if they are still valid
+	 */
+	public static final class Snapshot {
+		private final long version;
+		/**
+		 * Epoch nanos of the moment the statistics were calculated
+		 */
+		private final long createdAt;
+		private final byte[] body;
+		private final String eTag;
+
+		Snapshot( long version, long createdAt, byte[] body ) {
+			this.version = version;
+			this.createdAt = createdAt;
+			this.body = body;
+
+			CRC32 checksum = new CRC32();
+			checksum.update( body, 0, body.length );
+			this.eTag = "\"" + Long.toHexString( version ) + "-" + Long.toHexString( checksum.getValue() ) + "\"";
+		}
+
+		/**
+		 * @return the JSON representation of the statistics. It must not be modified
+		 */
+		public byte[] getBody() { return this.body; }
+
+		/**
+		 * @return the (strong) entity tag of the snapshot, already quoted
+		 */
+		public String getETag() { return this.eTag; }
+
+		/**
+		 * @param ifNoneMatch value of the {@code If-None-Match} header of a request, can be {@code null}
+		 * @return whether the client that sent the header already has this snapshot
+		 */
+		public boolean matches( String ifNoneMatch ) {
+			if ( ifNoneMatch == null ) return false;
+			if ( ifNoneMatch.trim().equals( "*" ) ) return true;
+
+			for ( String tag : ifNoneMatch.split( "," ) ) {
+				tag = tag.trim();
+				if ( tag.startsWith( "W/" ) ) tag = tag.substring( 2 );
+				if ( tag.equals( this.eTag ) ) return true;
+			}
+			return false;
+		}
+	}
+
+	private final StatisticsService statisticsService;
+	private final ObjectMapper objectMapper;
+	private final EpochClock clock;
+	private final long maxAgeNanos;
+	private final long minAgeNanos;
+
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+	/**
+	 * Whether a request is calculating a new snapshot
+	 */
+	private final AtomicBoolean publishing = new AtomicBoolean();
+
+	@Autowired
+	public StatisticsSnapshotPublisher(
+		StatisticsService statisticsService,
+		ObjectMapper objectMapper,
+		SamplingStatisticsServiceConfiguration configuration
+	) {
+		this.statisticsService = statisticsService;
+		this.objectMapper = objectMapper;
+		this.clock = configuration.getEpochClock();
+		// With the exact edge, the oldest sample is trimmed every millisecond
+		this.maxAgeNanos = configuration.isExactEdge()
+			? Math.min( configuration.getSamplePeriod().toNanos(), TimeUnit.MILLISECONDS.toNanos( 1 ) )
+			: configuration.getSamplePeriod().toNanos();
+		this.minAgeNanos = Math.min( configuration.getSnapshotMinAge().toNanos(), this.maxAgeNanos );
+	}
+
+	/**
+	 * Returns the latest snapshot of the statistics, calculating a new one if the published one is outdated and no
+	 * other request is already calculating it
+	 *
+	 * @return the latest snapshot
+	 */
+	public Snapshot get() {
+		long now = this.clock.nanos();
+		long version = this.statisticsService.getVersion();
+
+		Snapshot current = this.snapshot.get();
+		if ( current != null ) {
+			long age = now - current.createdAt;
+			if ( age < this.minAgeNanos || ( current.version == version && age < this.maxAgeNanos ) ) return current;
+			if ( ! this.publishing.compareAndSet( false, true ) ) return current;
+		}
+
+		try {
+			Snapshot latest = new Snapshot( version, now, this.serialize() );
+			this.snapshot.set( latest );
+			return latest;
+		} finally {
+			if ( current != null ) this.publishing.set( false );
+		}
+	}
+
+	private byte[] serialize() {
+		try {
+			return this.objectMapper.writeValueAsBytes( this.statisticsService.get() );
+		} catch ( JsonProcessingException e ) {
+			// Statistics are always serializable
+			throw new IllegalStateException( e );
+		}
+	}
+}
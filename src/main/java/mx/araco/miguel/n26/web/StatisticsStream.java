@@ -0,0 +1,244 @@
+package mx.araco.miguel.n26.web;
+
+import mx.araco.miguel.n26.services.EpochClock;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes the statistics to the subscribers of {@code GET /statistics/stream} as server-sent events, so dashboards
+ * don't need to poll them.
+ * <p>
+ * A single thread ticks once per interval (aligned with the samples), takes the latest
+ * {@link StatisticsSnapshotPublisher.Snapshot} and writes the same event, serialized once, to every subscriber. If
+ * the stream is configured to only send changes, ticks in which the statistics didn't change only send a comment
+ * once per heartbeat interval, to keep the connections alive.
+ * <p>
+ * Subscribers are served with asynchronous, non blocking servlet responses, so an idle connection doesn't take a
+ * thread. A subscriber that still hasn't received the previous event when the next one is due is dropped, so at most
+ * one event is buffered per connection (dashboards can reconnect, and get the latest statistics right away).
+ *
+ * @author MiguelAraCo
+ */
+@Component
+public class StatisticsStream {
+	public static final String TEXT_EVENT_STREAM_VALUE = "text/event-stream";
+
+	private static final byte[] HEARTBEAT = ": heartbeat\n\n".getBytes( StandardCharsets.UTF_8 );
+
+	/**
+	 * Event already serialized, and the snapshot it was built from
+	 */
+	private static final class Event {
+		private final StatisticsSnapshotPublisher.Snapshot snapshot;
+		private final byte[] bytes;
+
+		Event( StatisticsSnapshotPublisher.Snapshot snapshot ) {
+			this.snapshot = snapshot;
+
+			byte[] id = ( "id: " + snapshot.getETag().replace( "\"", "" ) + "\ndata: " ).getBytes( StandardCharsets.UTF_8 );
+			byte[] body = snapshot.getBody();
+			this.bytes = new byte[ id.length + body.length + 2 ];
+			System.arraycopy( id, 0, this.bytes, 0, id.length );
+			System.arraycopy( body, 0, this.bytes, id.length, body.length );
+			this.bytes[ this.bytes.length - 2 ] = '\n';
+			this.bytes[ this.bytes.length - 1 ] = '\n';
+		}
+	}
+
+	private final class Subscriber implements WriteListener, AsyncListener {
+		private final AsyncContext context;
+		private final ServletOutputStream output;
+		/**
+		 * Whether the first event was sent, the container tells when the response can be written for the first time
+		 */
+		private boolean started;
+
+		Subscriber( AsyncContext context ) throws IOException {
+			this.context = context;
+			this.output = context.getResponse().getOutputStream();
+		}
+
+		/**
+		 * Writes the data if the previous one was already sent, otherwise drops the subscriber
+		 */
+		synchronized void send( byte[] data ) {
+			if ( ! this.started ) return;
+
+			try {
+				if ( ! this.output.isReady() ) {
+					drop();
+					return;
+				}
+				this.output.write( data );
+				if ( this.output.isReady() ) this.output.flush();
+			} catch ( IOException | IllegalStateException e ) {
+				drop();
+			}
+		}
+
+		void drop() {
+			if ( ! subscribers.remove( this ) ) return;
+			try {
+				this.context.complete();
+			} catch ( IllegalStateException e ) {
+				// Already completed
+			}
+		}
+
+		/**
+		 * Sends the latest statistics the first time, afterwards events are only written by the ticks
+		 */
+		@Override
+		public synchronized void onWritePossible() {
+			if ( this.started ) return;
+
+			this.started = true;
+			send( getLatestEvent().bytes );
+		}
+
+		@Override
+		public void onError( Throwable throwable ) { drop(); }
+
+		@Override
+		public void onComplete( AsyncEvent event ) { subscribers.remove( this ); }
+
+		@Override
+		public void onTimeout( AsyncEvent event ) { drop(); }
+
+		@Override
+		public void onError( AsyncEvent event ) { drop(); }
+
+		@Override
+		public void onStartAsync( AsyncEvent event ) {}
+	}
+
+	private final StatisticsSnapshotPublisher snapshotPublisher;
+	private final EpochClock clock;
+	private final long intervalNanos;
+	private final boolean onlyChanges;
+	private final long heartbeatIntervalNanos;
+	private final int maxSubscribers;
+
+	private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+	private volatile Event lastEvent;
+	/**
+	 * {@link System#nanoTime()} of the last tick that wrote something to the subscribers
+	 */
+	private long lastSent;
+
+	private ScheduledExecutorService ticker;
+
+	@Autowired
+	public StatisticsStream( StatisticsSnapshotPublisher snapshotPublisher, SamplingStatisticsServiceConfiguration configuration ) {
+		SamplingStatisticsServiceConfiguration.Stream stream = configuration.getStream();
+
+		this.snapshotPublisher = snapshotPublisher;
+		this.clock = configuration.getEpochClock();
+		long samplePeriodNanos = configuration.getSamplePeriod().toNanos();
+		long intervalNanos = stream.getInterval() != null ? stream.getInterval().toNanos() : samplePeriodNanos;
+		// Whole samples, so every event sees the samples that expired since the previous one
+		this.intervalNanos = Math.max( 1, intervalNanos / samplePeriodNanos ) * samplePeriodNanos;
+		this.onlyChanges = stream.isOnlyChanges();
+		this.heartbeatIntervalNanos = stream.getHeartbeatInterval().toNanos();
+		this.maxSubscribers = stream.getMaxSubscribers();
+	}
+
+	@PostConstruct
+	public void start() {
+		if ( this.ticker != null ) return;
+
+		this.ticker = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread thread = new Thread( runnable, "statistics-stream" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+
+		long epochNanos = this.clock.nanos();
+		this.ticker.scheduleAtFixedRate( this::tick, this.intervalNanos - epochNanos % this.intervalNanos, this.intervalNanos, TimeUnit.NANOSECONDS );
+	}
+
+	@PreDestroy
+	public void stop() {
+		if ( this.ticker == null ) return;
+
+		this.ticker.shutdownNow();
+		this.ticker = null;
+		for ( Subscriber subscriber : this.subscribers ) subscriber.drop();
+	}
+
+	public int getSubscribers() { return this.subscribers.size(); }
+
+	/**
+	 * Starts streaming the statistics through the response of the request provided, starting with the latest ones
+	 *
+	 * @return false if there are too many subscribers already, so the response wasn't touched
+	 */
+	public boolean subscribe( HttpServletRequest request, HttpServletResponse response ) throws IOException {
+		if ( this.subscribers.size() >= this.maxSubscribers ) return false;
+
+		response.setContentType( TEXT_EVENT_STREAM_VALUE );
+		response.setCharacterEncoding( StandardCharsets.UTF_8.name() );
+		response.setHeader( "Cache-Control", "no-cache" );
+
+		AsyncContext context = request.startAsync( request, response );
+		context.setTimeout( 0 );
+
+		Subscriber subscriber = new Subscriber( context );
+		this.subscribers.add( subscriber );
+		context.addListener( subscriber );
+		subscriber.output.setWriteListener( subscriber );
+		return true;
+	}
+
+	/**
+	 * @return the event of the latest statistics, reusing the last one if they didn't change
+	 */
+	private Event getLatestEvent() {
+		StatisticsSnapshotPublisher.Snapshot snapshot = this.snapshotPublisher.get();
+		Event event = this.lastEvent;
+		return event != null && event.snapshot == snapshot ? event : new Event( snapshot );
+	}
+
+	private void tick() {
+		if ( this.subscribers.isEmpty() ) return;
+
+		StatisticsSnapshotPublisher.Snapshot snapshot = this.snapshotPublisher.get();
+		Event event = this.lastEvent;
+		long now = System.nanoTime();
+
+		byte[] data;
+		if ( event == null || event.snapshot != snapshot ) {
+			event = new Event( snapshot );
+			boolean changed = this.lastEvent == null || ! this.lastEvent.snapshot.getETag().equals( snapshot.getETag() );
+			this.lastEvent = event;
+			data = changed || ! this.onlyChanges ? event.bytes : null;
+		} else {
+			data = this.onlyChanges ? null : event.bytes;
+		}
+		if ( data == null ) {
+			if ( now - this.lastSent < this.heartbeatIntervalNanos ) return;
+			data = HEARTBEAT;
+		}
+
+		for ( Subscriber subscriber : this.subscribers ) subscriber.send( data );
+		this.lastSent = now;
+	}
+}
@@ -0,0 +1,472 @@
+package mx.araco.miguel.n26.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import mx.araco.miguel.n26.models.BatchResult;
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.StatisticsBuckets;
+import mx.araco.miguel.n26.models.Transaction;
+import mx.araco.miguel.n26.services.EpochClock;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.StatisticsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Registers the transactions of an export (e.g. to replay them after an outage) much faster than posting them.
+ * Enabled by setting {@code mx.araco.miguel.n26.backfill.enabled=true}.
+ * <p>
+ * Files are read from the backfill directory, either as CSV ({@code .csv}, with an amount and a timestamp in epoch
+ * millis per row, and an optional header) or as newline delimited JSON ({@code .ndjson} or {@code .jsonl}, with a
+ * transaction per line). The file is split in chunks on line boundaries, and each chunk is memory-mapped and parsed
+ * on its own in a {@link ForkJoinPool}, straight into the statistics of each sample: rows are decoded into
+ * primitives (see {@link TransactionParser}), and the ones outside the sampling period are discarded by their
+ * timestamp before their amount is even parsed. The statistics of the chunks are merged with
+ * {@link Statistics#add(Statistics)}, and then into the ones of the {@link StatisticsService} (see
+ * {@link StatisticsService#merge(StatisticsBuckets)}).
+ * <p>
+ * The statistics by key and the quantiles don't include the transactions of a backfill, and they aren't appended
+ * to the transaction log.
+ *
+ * @author MiguelAraCo
+ */
+@Component
+@ConditionalOnProperty( prefix = "mx.araco.miguel.n26.backfill", name = "enabled", havingValue = "true" )
+public class TransactionBackfill {
+	private static final long NANOS_PER_MILLI = 1_000_000L;
+	private static final long MAX_MILLIS = Long.MAX_VALUE / NANOS_PER_MILLI;
+	/**
+	 * Bytes read at a time to look for the end of a line, when splitting the file
+	 */
+	private static final int SCAN_SIZE = 4096;
+	/**
+	 * Amounts with more digits than this are parsed as {@link BigDecimal}s
+	 */
+	private static final int MAX_LONG_DIGITS = 18;
+
+	enum Format {
+		CSV,
+		NDJSON;
+
+		static Format of( Path file ) {
+			String name = file.getFileName().toString().toLowerCase();
+			if ( name.endsWith( ".csv" ) ) return CSV;
+			if ( name.endsWith( ".ndjson" ) || name.endsWith( ".jsonl" ) ) return NDJSON;
+			throw new IllegalArgumentException( "Only .csv, .ndjson and .jsonl files can be backfilled" );
+		}
+	}
+
+	private final StatisticsService statisticsService;
+	private final EpochClock clock;
+	private final ObjectReader transactionReader;
+	private final Path directory;
+	private final long samplingPeriodNanos;
+	private final long samplePeriodNanos;
+	private final int sampleSize;
+	private final long chunkSize;
+	private final ForkJoinPool pool;
+
+	@Autowired
+	public TransactionBackfill( StatisticsService statisticsService, ObjectMapper objectMapper, SamplingStatisticsServiceConfiguration configuration ) {
+		SamplingStatisticsServiceConfiguration.Backfill backfill = configuration.getBackfill();
+
+		this.statisticsService = statisticsService;
+		this.clock = configuration.getEpochClock();
+		this.transactionReader = objectMapper.readerFor( Transaction.class );
+		this.directory = Paths.get( backfill.getDirectory() ).toAbsolutePath().normalize();
+		this.samplingPeriodNanos = configuration.getSamplingPeriod().toNanos();
+		this.samplePeriodNanos = configuration.getSamplePeriod().toNanos();
+		this.sampleSize = ( (int) ( this.samplingPeriodNanos / this.samplePeriodNanos ) ) + 1;
+		this.chunkSize = backfill.getChunkSize();
+		this.pool = new ForkJoinPool( backfill.getParallelism() > 0 ? backfill.getParallelism() : Runtime.getRuntime().availableProcessors() );
+	}
+
+	@PreDestroy
+	public void close() {
+		this.pool.shutdownNow();
+	}
+
+	/**
+	 * @param file
+	 * 	path of the file, relative to the backfill directory
+	 * @throws IllegalArgumentException
+	 * 	if the file is outside the backfill directory, or it isn't in a known format
+	 * @throws java.nio.file.NoSuchFileException
+	 * 	if the file doesn't exist
+	 */
+	public BatchResult backfill( String file ) throws IOException {
+		Path path = this.directory.resolve( file ).normalize();
+		if ( ! path.startsWith( this.directory ) ) throw new IllegalArgumentException( "Only files of the backfill directory can be backfilled" );
+
+		return backfill( path );
+	}
+
+	private BatchResult backfill( Path file ) throws IOException {
+		Format format = Format.of( file );
+
+		// Every row is checked against the same moment, read precisely since it's read once
+		Window window = new Window( this.clock.preciseNanos() );
+
+		Chunk result;
+		try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) ) {
+			List<Long> boundaries = split( channel );
+			result = this.pool.invoke( new ChunkTask( channel, boundaries, 0, boundaries.size() - 1, format, window ) );
+		}
+
+		BatchResult batch = result.result;
+		long merged = this.statisticsService.merge( result.buckets );
+		batch.addRegistered( merged );
+		// Samples that expired while the file was parsed
+		batch.addDiscarded( result.count - merged );
+		return batch;
+	}
+
+	/**
+	 * @return offsets of the start of each chunk, plus the size of the file. Every chunk (except maybe the last
+	 * one) ends right after a line break
+	 */
+	private List<Long> split( FileChannel channel ) throws IOException {
+		long size = channel.size();
+		List<Long> boundaries = new ArrayList<>();
+		boundaries.add( 0L );
+
+		ByteBuffer scan = ByteBuffer.allocate( SCAN_SIZE );
+		long position = this.chunkSize;
+		while ( position < size ) {
+			long lineEnd = findLineEnd( channel, position, scan );
+			if ( lineEnd + 1 >= size ) break;
+
+			boundaries.add( lineEnd + 1 );
+			position = lineEnd + 1 + this.chunkSize;
+		}
+		boundaries.add( size );
+		return boundaries;
+	}
+
+	/**
+	 * @return the offset of the first line break from the position provided on, or the size of the file
+	 */
+	private static long findLineEnd( FileChannel channel, long position, ByteBuffer scan ) throws IOException {
+		while ( true ) {
+			scan.clear();
+			int read = channel.read( scan, position );
+			if ( read < 0 ) return channel.size();
+
+			for ( int i = 0; i < read; i++ ) {
+				if ( scan.get( i ) == '\n' ) return position + i;
+			}
+			position += read;
+		}
+	}
+
+	/**
+	 * Decides which sample each row belongs to, with the same rules the engines use
+	 */
+	private final class Window {
+		private final long now;
+		private final long oldestSample;
+
+		Window( long now ) {
+			this.now = now;
+			this.oldestSample = now / samplePeriodNanos - sampleSize + 1;
+		}
+
+		/**
+		 * @return the index of the sample of the row (from the oldest one), -1 if it's discarded
+		 * @throws IllegalArgumentException
+		 * 	if the row has a timestamp of the future
+		 */
+		int getSample( long timestamp ) {
+			if ( timestamp > MAX_MILLIS ) throw new IllegalArgumentException();
+
+			long nanos = timestamp * NANOS_PER_MILLI;
+			if ( nanos > this.now ) throw new IllegalArgumentException();
+			if ( nanos < this.now - samplingPeriodNanos ) return - 1;
+
+			long sample = nanos / samplePeriodNanos;
+			return sample < this.oldestSample ? - 1 : (int) ( sample - this.oldestSample );
+		}
+
+		long getSampleNumber( int index ) {
+			return this.oldestSample + index;
+		}
+	}
+
+	/**
+	 * Statistics of one or more chunks
+	 */
+	private static final class Chunk {
+		private final StatisticsBuckets buckets;
+		private final BatchResult result;
+		/**
+		 * Number of transactions in the buckets, not counted in the result yet
+		 */
+		private long count;
+
+		Chunk( StatisticsBuckets buckets, BatchResult result, long count ) {
+			this.buckets = buckets;
+			this.result = result;
+			this.count = count;
+		}
+
+		Chunk add( Chunk other ) {
+			this.buckets.add( other.buckets );
+			this.result.add( other.result );
+			this.count += other.count;
+			return this;
+		}
+	}
+
+	// Inner task of a single backfill, never serialized
+	@SuppressWarnings( "serial" )
+	private final class ChunkTask extends RecursiveTask<Chunk> {
+		private final FileChannel channel;
+		private final List<Long> boundaries;
+		private final int from;
+		private final int to;
+		private final Format format;
+		private final Window window;
+
+		/**
+		 * @param from
+		 * 	index of the first chunk
+		 * @param to
+		 * 	index of the chunk after the last one
+		 */
+		ChunkTask( FileChannel channel, List<Long> boundaries, int from, int to, Format format, Window window ) {
+			this.channel = channel;
+			this.boundaries = boundaries;
+			this.from = from;
+			this.to = to;
+			this.format = format;
+			this.window = window;
+		}
+
+		@Override
+		protected Chunk compute() {
+			if ( this.to - this.from > 1 ) {
+				int middle = ( this.from + this.to ) >>> 1;
+				ChunkTask second = new ChunkTask( this.channel, this.boundaries, middle, this.to, this.format, this.window );
+				second.fork();
+				Chunk first = new ChunkTask( this.channel, this.boundaries, this.from, middle, this.format, this.window ).compute();
+				return first.add( second.join() );
+			}
+
+			long start = this.boundaries.get( this.from );
+			long end = this.boundaries.get( this.to );
+			try {
+				MappedByteBuffer buffer = this.channel.map( FileChannel.MapMode.READ_ONLY, start, end - start );
+				return new ChunkParser( this.format, this.window, start == 0 ).parse( buffer );
+			} catch ( IOException e ) {
+				throw new UncheckedIOException( e );
+			}
+		}
+	}
+
+	/**
+	 * Parses the rows of a single chunk into the statistics of each sample
+	 */
+	private final class ChunkParser {
+		private final Format format;
+		private final Window window;
+		/**
+		 * Whether the chunk starts the file, so its first line may be a header
+		 */
+		private final boolean first;
+
+		private final Statistics[] samples = new Statistics[ sampleSize ];
+		private final BatchResult result = new BatchResult();
+		private final TransactionParser parser = new TransactionParser();
+		private final byte[] line = new byte[ TransactionParser.BUFFER_SIZE ];
+
+		// Fields of the last CSV row parsed
+		private long amount;
+		private int scale;
+		private BigDecimal decimal;
+
+		ChunkParser( Format format, Window window, boolean first ) {
+			this.format = format;
+			this.window = window;
+			this.first = first;
+		}
+
+		Chunk parse( ByteBuffer buffer ) {
+			int limit = buffer.limit();
+			int start = 0;
+			boolean header = this.first && this.format == Format.CSV;
+			while ( start < limit ) {
+				int end = start;
+				while ( end < limit && buffer.get( end ) != '\n' ) end++;
+
+				int lineEnd = end > start && buffer.get( end - 1 ) == '\r' ? end - 1 : end;
+				if ( lineEnd > start ) {
+					if ( header && isHeader( buffer, start, lineEnd ) ) header = false;
+					else if ( this.format == Format.CSV ) parseRow( buffer, start, lineEnd );
+					else parseLine( buffer, start, lineEnd );
+				}
+				start = end + 1;
+			}
+
+			StatisticsBuckets buckets = new StatisticsBuckets( samplePeriodNanos );
+			long count = 0;
+			for ( int i = 0; i < this.samples.length; i++ ) {
+				if ( this.samples[ i ] == null ) continue;
+
+				buckets.add( this.window.getSampleNumber( i ), this.samples[ i ] );
+				count += this.samples[ i ].getCount();
+			}
+			return new Chunk( buckets, this.result, count );
+		}
+
+		private boolean isHeader( ByteBuffer buffer, int start, int end ) {
+			byte character = buffer.get( start );
+			return character != '-' && ( character < '0' || character > '9' );
+		}
+
+		/**
+		 * Parses a CSV row, {@code amount,timestamp}. The timestamp is parsed first, so the amounts of rows outside
+		 * the sampling period aren't
+		 */
+		private void parseRow( ByteBuffer buffer, int start, int end ) {
+			int comma = start;
+			while ( comma < end && buffer.get( comma ) != ',' ) comma++;
+
+			long timestamp = parseTimestamp( buffer, comma + 1, end );
+			if ( timestamp < 0 ) {
+				this.result.addRejected();
+				return;
+			}
+			int sample = getSample( timestamp );
+			if ( sample < 0 ) return;
+
+			if ( ! parseAmount( buffer, start, comma ) ) {
+				this.result.addRejected();
+				return;
+			}
+
+			if ( this.decimal != null ) getStatistics( sample ).add( this.decimal );
+			else getStatistics( sample ).add( this.amount, this.scale );
+		}
+
+		/**
+		 * @return the epoch millis, or -1 if they aren't a non negative integer
+		 */
+		private long parseTimestamp( ByteBuffer buffer, int start, int end ) {
+			if ( start >= end || end - start > TransactionParser.MAX_TIMESTAMP_DIGITS ) return - 1;
+
+			long value = 0;
+			for ( int i = start; i < end; i++ ) {
+				byte digit = buffer.get( i );
+				if ( digit < '0' || digit > '9' ) return - 1;
+				value = value * 10 + ( digit - '0' );
+			}
+			return value;
+		}
+
+		/**
+		 * Parses an amount into an unscaled long and its scale, or into a {@link BigDecimal} if it has too many
+		 * digits
+		 *
+		 * @return false if it isn't a decimal number
+		 */
+		private boolean parseAmount( ByteBuffer buffer, int start, int end ) {
+			this.decimal = null;
+			int position = start;
+			boolean negative = position < end && buffer.get( position ) == '-';
+			if ( negative ) position++;
+
+			long value = 0;
+			int digits = 0;
+			int decimals = - 1;
+			for ( ; position < end; position++ ) {
+				byte character = buffer.get( position );
+				if ( character == '.' && decimals < 0 ) {
+					decimals = 0;
+				} else if ( character >= '0' && character <= '9' ) {
+					value = value * 10 + ( character - '0' );
+					digits++;
+					if ( decimals >= 0 ) decimals++;
+				} else {
+					return false;
+				}
+			}
+			if ( digits == 0 || decimals == 0 ) return false;
+
+			if ( digits > MAX_LONG_DIGITS ) {
+				byte[] characters = new byte[ end - start ];
+				for ( int i = 0; i < characters.length; i++ ) characters[ i ] = buffer.get( start + i );
+				this.decimal = new BigDecimal( new String( characters, StandardCharsets.US_ASCII ) );
+				return true;
+			}
+			this.amount = negative ? - value : value;
+			this.scale = Math.max( decimals, 0 );
+			return true;
+		}
+
+		/**
+		 * Parses a JSON line with a {@link TransactionParser}, or with Jackson if the parser doesn't recognize it
+		 */
+		private void parseLine( ByteBuffer buffer, int start, int end ) {
+			int length = end - start;
+			if ( length <= this.line.length ) {
+				for ( int i = 0; i < length; i++ ) this.line[ i ] = buffer.get( start + i );
+				if ( this.parser.parse( this.line, length ) ) {
+					int sample = getSample( this.parser.getTimestamp() );
+					if ( sample >= 0 ) getStatistics( sample ).add( this.parser.getAmount(), this.parser.getScale() );
+					return;
+				}
+			}
+
+			byte[] json = new byte[ length ];
+			for ( int i = 0; i < length; i++ ) json[ i ] = buffer.get( start + i );
+			try {
+				Transaction transaction = transactionReader.readValue( json );
+				if ( transaction == null || transaction.getAmount() == null || transaction.getTimestamp() == null ) {
+					this.result.addRejected();
+					return;
+				}
+				int sample = getSample( transaction.getTimestamp().toEpochMilli() );
+				if ( sample >= 0 ) getStatistics( sample ).add( transaction.getAmount() );
+			} catch ( IOException | ArithmeticException e ) {
+				this.result.addRejected();
+			}
+		}
+
+		/**
+		 * @return the index of the sample of the row, -1 if it was discarded or rejected (which is already counted)
+		 */
+		private int getSample( long timestamp ) {
+			int sample;
+			try {
+				sample = this.window.getSample( timestamp );
+			} catch ( IllegalArgumentException e ) {
+				this.result.addRejected();
+				return - 1;
+			}
+			if ( sample < 0 ) this.result.addDiscarded();
+			return sample;
+		}
+
+		private Statistics getStatistics( int sample ) {
+			if ( this.samples[ sample ] == null ) this.samples[ sample ] = new Statistics();
+			return this.samples[ sample ];
+		}
+	}
+}
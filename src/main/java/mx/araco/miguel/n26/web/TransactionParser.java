@@ -0,0 +1,218 @@
+package mx.araco.miguel.n26.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+/**
+ * Decoder for the usual shape of a transaction, {@code {"amount": 12.65, "timestamp": 1529822905186}}, that
+ * parses it straight into primitives: the amount as an unscaled {@code long} plus its scale, and the timestamp
+ * as epoch millis. It doesn't allocate, so each thread can reuse the same parser (and its buffer).
+ * <p>
+ * It only recognizes a subset of JSON: an object with exactly those two members (in any order), an amount
+ * with at most {@link TransactionParser#MAX_AMOUNT_DIGITS} digits and two decimals, and a timestamp that's a
+ * non negative integer. Anything else (strings, exponents, more members, malformed JSON...) makes
+ * {@link TransactionParser#parse(InputStream)} return false, so the caller can fall back to a full JSON parser,
+ * which will decide if the body is valid.
+ *
+ * @author MiguelAraCo
+ */
+public final class TransactionParser {
+	/**
+	 * Bodies bigger than this aren't parsed
+	 */
+	static final int BUFFER_SIZE = 512;
+	/**
+	 * Amounts with more digits than this may not fit in a long once they are converted to minor units
+	 */
+	static final int MAX_AMOUNT_DIGITS = 16;
+	static final int MAX_AMOUNT_DECIMALS = 2;
+	static final int MAX_TIMESTAMP_DIGITS = 18;
+
+	private static final byte[] AMOUNT = { 'a', 'm', 'o', 'u', 'n', 't' };
+	private static final byte[] TIMESTAMP = { 't', 'i', 'm', 'e', 's', 't', 'a', 'm', 'p' };
+
+	// One extra byte to know if the input didn't fit
+	private final byte[] buffer = new byte[ BUFFER_SIZE + 1 ];
+	private int length;
+
+	// Parsing state
+	private int position;
+	private boolean hasAmount;
+	private boolean hasTimestamp;
+
+	private long amount;
+	private int scale;
+	private long timestamp;
+
+	/**
+	 * Reads the whole input (if it fits in the parser's buffer) and parses it
+	 *
+	 * @return true if the input is a transaction the parser recognizes, false if it needs to be parsed by a
+	 * full JSON parser (see {@link TransactionParser#replay(InputStream)})
+	 */
+	public boolean parse( InputStream input ) throws IOException {
+		this.length = 0;
+		int read;
+		while ( this.length < this.buffer.length && ( read = input.read( this.buffer, this.length, this.buffer.length - this.length ) ) != - 1 ) {
+			this.length += read;
+		}
+		if ( this.length > BUFFER_SIZE ) return false;
+
+		return parse( this.buffer, this.length );
+	}
+
+	/**
+	 * Returns a stream with the whole input, including the part consumed by the last call to
+	 * {@link TransactionParser#parse(InputStream)}
+	 *
+	 * @param input
+	 * 	the same stream passed to {@link TransactionParser#parse(InputStream)}
+	 */
+	public InputStream replay( InputStream input ) {
+		return new SequenceInputStream( new ByteArrayInputStream( this.buffer, 0, this.length ), input );
+	}
+
+	/**
+	 * Parses a transaction
+	 *
+	 * @param json
+	 * 	bytes of the JSON document (UTF-8)
+	 * @param length
+	 * 	number of bytes to parse
+	 * @return true if the JSON is a transaction the parser recognizes, false otherwise
+	 */
+	public boolean parse( byte[] json, int length ) {
+		this.position = 0;
+		this.hasAmount = false;
+		this.hasTimestamp = false;
+
+		skipWhitespace( json, length );
+		if ( ! consume( json, length, '{' ) ) return false;
+
+		do {
+			skipWhitespace( json, length );
+			if ( ! consume( json, length, '"' ) ) return false;
+
+			if ( consumeName( json, length, AMOUNT ) ) {
+				if ( this.hasAmount || ! consumeSeparator( json, length ) || ! parseAmount( json, length ) ) return false;
+				this.hasAmount = true;
+			} else if ( consumeName( json, length, TIMESTAMP ) ) {
+				if ( this.hasTimestamp || ! consumeSeparator( json, length ) || ! parseTimestamp( json, length ) ) return false;
+				this.hasTimestamp = true;
+			} else {
+				return false;
+			}
+
+			skipWhitespace( json, length );
+		} while ( consume( json, length, ',' ) );
+
+		if ( ! consume( json, length, '}' ) ) return false;
+		skipWhitespace( json, length );
+
+		return this.position == length && this.hasAmount && this.hasTimestamp;
+	}
+
+	private boolean parseAmount( byte[] json, int length ) {
+		boolean negative = consume( json, length, '-' );
+
+		int start = this.position;
+		long value = 0;
+		while ( this.position < length && isDigit( json[ this.position ] ) ) {
+			value = value * 10 + ( json[ this.position ] - '0' );
+			this.position++;
+		}
+		int integerDigits = this.position - start;
+		// Leading zeros aren't valid JSON
+		if ( integerDigits == 0 || ( integerDigits > 1 && json[ start ] == '0' ) ) return false;
+
+		int decimals = 0;
+		if ( consume( json, length, '.' ) ) {
+			while ( this.position < length && isDigit( json[ this.position ] ) ) {
+				if ( ++decimals > MAX_AMOUNT_DECIMALS ) return false;
+				value = value * 10 + ( json[ this.position ] - '0' );
+				this.position++;
+			}
+			if ( decimals == 0 ) return false;
+		}
+		if ( integerDigits + decimals > MAX_AMOUNT_DIGITS ) return false;
+		// Exponents aren't common enough to be worth handling
+		if ( this.position < length && ( json[ this.position ] == 'e' || json[ this.position ] == 'E' ) ) return false;
+
+		this.amount = negative ? - value : value;
+		this.scale = decimals;
+		return true;
+	}
+
+	private boolean parseTimestamp( byte[] json, int length ) {
+		int start = this.position;
+		long value = 0;
+		while ( this.position < length && isDigit( json[ this.position ] ) ) {
+			value = value * 10 + ( json[ this.position ] - '0' );
+			this.position++;
+		}
+		int digits = this.position - start;
+		if ( digits == 0 || digits > MAX_TIMESTAMP_DIGITS || ( digits > 1 && json[ start ] == '0' ) ) return false;
+		// Fractions (seconds with nanos) are left to the full parser
+		if ( this.position < length && ( json[ this.position ] == '.' || json[ this.position ] == 'e' || json[ this.position ] == 'E' ) ) return false;
+
+		this.timestamp = value;
+		return true;
+	}
+
+	/**
+	 * Consumes a member name (without the opening quote, which was already consumed) and its closing quote
+	 */
+	private boolean consumeName( byte[] json, int length, byte[] name ) {
+		if ( length - this.position < name.length + 1 ) return false;
+		for ( int i = 0; i < name.length; i++ ) {
+			if ( json[ this.position + i ] != name[ i ] ) return false;
+		}
+		if ( json[ this.position + name.length ] != '"' ) return false;
+
+		this.position += name.length + 1;
+		return true;
+	}
+
+	private boolean consumeSeparator( byte[] json, int length ) {
+		skipWhitespace( json, length );
+		if ( ! consume( json, length, ':' ) ) return false;
+		skipWhitespace( json, length );
+		return true;
+	}
+
+	private boolean consume( byte[] json, int length, char expected ) {
+		if ( this.position >= length || json[ this.position ] != expected ) return false;
+
+		this.position++;
+		return true;
+	}
+
+	private void skipWhitespace( byte[] json, int length ) {
+		while ( this.position < length ) {
+			byte current = json[ this.position ];
+			if ( current != ' ' && current != '\n' && current != '\r' && current != '\t' ) return;
+			this.position++;
+		}
+	}
+
+	private static boolean isDigit( byte character ) {
+		return character >= '0' && character <= '9';
+	}
+
+	/**
+	 * @return unscaled value of the amount of the last transaction parsed
+	 */
+	public long getAmount() { return amount; }
+
+	/**
+	 * @return number of decimals of the amount of the last transaction parsed
+	 */
+	public int getScale() { return scale; }
+
+	/**
+	 * @return epoch millis of the last transaction parsed
+	 */
+	public long getTimestamp() { return timestamp; }
+}
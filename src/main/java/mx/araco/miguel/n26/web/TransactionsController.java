@@ -1,30 +1,86 @@
 package mx.araco.miguel.n26.web;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import mx.araco.miguel.n26.models.BatchResult;
 import mx.araco.miguel.n26.models.Transaction;
+import mx.araco.miguel.n26.services.KeyedStatisticsService;
 import mx.araco.miguel.n26.services.StatisticsService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
-import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 
-import javax.validation.Valid;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author MiguelAraCo
  */
 @Controller
 public class TransactionsController {
+	public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
+	/**
+	 * Max number of transactions registered at once when receiving a batch
+	 */
+	static final int BATCH_SIZE = 1024;
+
+	/**
+	 * Parsers are reused by the threads that handle the requests, so decoding a transaction doesn't allocate
+	 */
+	private static final ThreadLocal<TransactionParser> parsers = ThreadLocal.withInitial( TransactionParser::new );
+
 	private StatisticsService statisticsService;
+	private KeyedStatisticsService keyedStatisticsService;
+	private ObjectReader transactionReader;
+	private TransactionBackfill transactionBackfill;
+	private AdmissionControl admissionControl;
+
+	/**
+	 * Registers a transaction. Bodies with the usual shape are decoded by a {@link TransactionParser} straight
+	 * into primitives, anything else goes through Jackson (which decides whether the body is valid). Transactions
+	 * with a key are also registered in the statistics of their key, their amount is checked for it first so a
+	 * {@code 400} always means nothing was registered. Returns a {@code 429} if the node is overloaded (see
+	 * {@link AdmissionControl})
+	 */
+	@RequestMapping( value = "transactions", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE )
+	public ResponseEntity<Void> addTransaction( InputStream body ) throws IOException {
+		if ( ! admit() ) return shed();
+		try {
+			return registerTransaction( body );
+		} finally {
+			release();
+		}
+	}
+
+	private ResponseEntity<Void> registerTransaction( InputStream body ) throws IOException {
+		TransactionParser parser = parsers.get();
 
-	@RequestMapping( value = "transactions", method = RequestMethod.POST )
-	public ResponseEntity<Void> addTransaction( @Valid @RequestBody Transaction transaction ) {
 		StatisticsService.RegisterResult result;
 		try {
-			result = this.statisticsService.register( transaction );
-		} catch ( IllegalArgumentException e ) {
+			if ( parser.parse( body ) ) {
+				result = this.statisticsService.register( parser.getAmount(), parser.getScale(), parser.getTimestamp() );
+			} else {
+				Transaction transaction = this.transactionReader.readValue( parser.replay( body ) );
+				if ( transaction == null || transaction.getAmount() == null || transaction.getTimestamp() == null ) {
+					return new ResponseEntity<>( HttpStatus.BAD_REQUEST );
+				}
+				if ( transaction.getKey() != null ) this.keyedStatisticsService.checkAmount( transaction.getAmount() );
+				result = this.statisticsService.register( transaction );
+				if ( transaction.getKey() != null ) registerKeyed( transaction );
+			}
+		} catch ( JsonProcessingException | IllegalArgumentException e ) {
 			return new ResponseEntity<>( HttpStatus.BAD_REQUEST );
 		}
 
@@ -38,6 +94,117 @@ public class TransactionsController {
 		}
 	}
 
+	/**
+	 * Registers a transaction already registered in the global statistics in the ones of its key
+	 */
+	private void registerKeyed( Transaction transaction ) {
+		try {
+			this.keyedStatisticsService.register( transaction );
+		} catch ( IllegalArgumentException e ) {
+			// The sum of the key overflows, the response still has to tell the transaction was registered
+		}
+	}
+
+	/**
+	 * Registers a batch of transactions, received either as a JSON array or as newline delimited JSON. The body
+	 * is parsed incrementally and registered in chunks of {@link TransactionsController#BATCH_SIZE} transactions.
+	 * <p>
+	 * Transactions without an amount or a timestamp are counted as rejected. If the body isn't valid JSON a 400
+	 * is returned, although the chunks parsed before the error will have been registered already. Returns a
+	 * {@code 429} if the node is overloaded (see {@link AdmissionControl}).
+	 */
+	@RequestMapping(
+		value = "transactions/batch",
+		method = RequestMethod.POST,
+		consumes = { MediaType.APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE },
+		produces = MediaType.APPLICATION_JSON_VALUE
+	)
+	public ResponseEntity<BatchResult> addTransactions( InputStream body ) throws IOException {
+		if ( ! admit() ) return shed();
+		try {
+			return registerTransactions( body );
+		} finally {
+			release();
+		}
+	}
+
+	private ResponseEntity<BatchResult> registerTransactions( InputStream body ) throws IOException {
+		BatchResult result = new BatchResult();
+		List<Transaction> batch = new ArrayList<>( BATCH_SIZE );
+
+		try ( MappingIterator<Transaction> transactions = this.transactionReader.readValues( body ) ) {
+			while ( transactions.hasNextValue() ) {
+				Transaction transaction = transactions.nextValue();
+				if ( transaction == null || transaction.getAmount() == null || transaction.getTimestamp() == null ) {
+					result.addRejected();
+					continue;
+				}
+
+				batch.add( transaction );
+				if ( batch.size() == BATCH_SIZE ) {
+					register( batch, result );
+					batch.clear();
+				}
+			}
+		} catch ( JsonProcessingException e ) {
+			return new ResponseEntity<>( HttpStatus.BAD_REQUEST );
+		}
+
+		if ( ! batch.isEmpty() ) register( batch, result );
+
+		return new ResponseEntity<>( result, HttpStatus.OK );
+	}
+
+	/**
+	 * Registers the transactions of a file of the backfill directory (see {@link TransactionBackfill}). Returns a
+	 * {@code 404} if the file doesn't exist or backfills aren't enabled, and a {@code 400} if the file is outside
+	 * the directory or it isn't in a known format
+	 */
+	@RequestMapping( value = "transactions/backfill", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE )
+	public ResponseEntity<BatchResult> backfill( @RequestParam( "file" ) String file ) throws IOException {
+		if ( this.transactionBackfill == null ) return new ResponseEntity<>( HttpStatus.NOT_FOUND );
+
+		try {
+			return new ResponseEntity<>( this.transactionBackfill.backfill( file ), HttpStatus.OK );
+		} catch ( NoSuchFileException e ) {
+			return new ResponseEntity<>( HttpStatus.NOT_FOUND );
+		} catch ( IllegalArgumentException e ) {
+			return new ResponseEntity<>( HttpStatus.BAD_REQUEST );
+		}
+	}
+
+	private boolean admit() {
+		return this.admissionControl == null || this.admissionControl.tryAcquire();
+	}
+
+	private void release() {
+		if ( this.admissionControl != null ) this.admissionControl.release();
+	}
+
+	private <T> ResponseEntity<T> shed() {
+		return ResponseEntity
+			.status( HttpStatus.TOO_MANY_REQUESTS )
+			.header( HttpHeaders.RETRY_AFTER, Long.toString( this.admissionControl.getRetryAfterSeconds() ) )
+			.build();
+	}
+
+	private void register( List<Transaction> batch, BatchResult result ) {
+		result.add( this.statisticsService.registerAll( batch ) );
+		this.keyedStatisticsService.registerAll( batch );
+	}
+
 	@Autowired
 	public void setStatisticsService( StatisticsService statisticsService ) { this.statisticsService = statisticsService; }
+
+	@Autowired
+	public void setKeyedStatisticsService( KeyedStatisticsService keyedStatisticsService ) { this.keyedStatisticsService = keyedStatisticsService; }
+
+	@Autowired( required = false )
+	public void setTransactionBackfill( TransactionBackfill transactionBackfill ) { this.transactionBackfill = transactionBackfill; }
+
+	@Autowired( required = false )
+	public void setAdmissionControl( AdmissionControl admissionControl ) { this.admissionControl = admissionControl; }
+
+	@Autowired
+	public void setObjectMapper( ObjectMapper objectMapper ) { this.transactionReader = objectMapper.readerFor( Transaction.class ); }
 }
@@ -0,0 +1,38 @@
+package mx.araco.miguel.models;
+
+import mx.araco.miguel.n26.models.MinorUnits;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author MiguelAraCo
+ */
+public class MinorUnitsTest {
+	@Test
+	public void convertsAmountsWithUpToTwoDecimals() {
+		assertEquals( "The amount wasn't converted as expected", 1000L, MinorUnits.of( new BigDecimal( "10" ) ) );
+		assertEquals( "The amount wasn't converted as expected", 650L, MinorUnits.of( new BigDecimal( "6.5" ) ) );
+		assertEquals( "The amount wasn't converted as expected", - 240L, MinorUnits.of( - 240L, 2 ) );
+		assertEquals( "The amount wasn't converted back as expected", new BigDecimal( "6.5" ), MinorUnits.toBigDecimal( 650L, 1 ) );
+	}
+
+	@Test
+	public void doesNotConvertAmountsThatCantBeRepresented() {
+		assertEquals( "An amount with more decimals was converted", MinorUnits.NO_UNITS, MinorUnits.of( new BigDecimal( "0.125" ) ) );
+		assertEquals( "A negative scale was converted", MinorUnits.NO_UNITS, MinorUnits.of( new BigDecimal( "1E+3" ) ) );
+		assertEquals( "An amount too big was converted", MinorUnits.NO_UNITS, MinorUnits.of( Long.MAX_VALUE / 10, 0 ) );
+		assertEquals( "An amount too big was converted", MinorUnits.NO_UNITS, MinorUnits.of( new BigDecimal( "123456789012345678" ) ) );
+	}
+
+	@Test
+	public void detectsSumsThatOverflow() {
+		assertTrue( "The overflow wasn't detected", MinorUnits.overflows( Long.MAX_VALUE, 1, Long.MAX_VALUE + 1 ) );
+		assertTrue( "The overflow wasn't detected", MinorUnits.overflows( Long.MIN_VALUE, - 1, Long.MIN_VALUE - 1 ) );
+		assertFalse( "A sum that fits was taken as an overflow", MinorUnits.overflows( Long.MAX_VALUE, - 1, Long.MAX_VALUE - 1 ) );
+	}
+}
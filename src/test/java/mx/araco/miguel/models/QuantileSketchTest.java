@@ -0,0 +1,73 @@
+package mx.araco.miguel.models;
+
+import mx.araco.miguel.n26.models.QuantileSketch;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author MiguelAraCo
+ */
+public class QuantileSketchTest {
+	private static final double[] QUANTILES = { 0, 0.25, 0.5, 0.75, 0.95, 0.99, 1 };
+
+	@Test
+	public void estimatesQuantilesWithinTheRelativeAccuracy() {
+		Random random = new Random( 42 );
+		double[] amounts = new double[ 10_000 ];
+		QuantileSketch sketch = new QuantileSketch();
+		for ( int i = 0; i < amounts.length; i++ ) {
+			// Skewed, from cents to thousands, and some negative amounts
+			amounts[ i ] = Math.round( Math.exp( random.nextGaussian() * 3 ) * 100 ) / 100.0 * ( random.nextInt( 10 ) == 0 ? - 1 : 1 );
+			sketch.add( amounts[ i ] );
+		}
+		Arrays.sort( amounts );
+
+		assertEquals( amounts.length, sketch.getCount() );
+		for ( double quantile : QUANTILES ) {
+			double expected = amounts[ (int) ( quantile * ( amounts.length - 1 ) ) ];
+			double estimated = sketch.getQuantile( quantile );
+			assertTrue( "The quantile " + quantile + " was " + estimated + " instead of " + expected,
+				Math.abs( estimated - expected ) <= Math.abs( expected ) * QuantileSketch.RELATIVE_ACCURACY + 1e-9 );
+		}
+	}
+
+	@Test
+	public void mergesAndUnmergesSketches() {
+		Random random = new Random( 7 );
+		QuantileSketch all = new QuantileSketch();
+		QuantileSketch merged = new QuantileSketch();
+		QuantileSketch[] parts = new QuantileSketch[ 3 ];
+		for ( int part = 0; part < parts.length; part++ ) {
+			parts[ part ] = new QuantileSketch();
+			for ( int i = 0; i < 1000; i++ ) {
+				long amount = 1 + random.nextInt( 100_000 );
+				parts[ part ].add( amount, 2 );
+				if ( part > 0 ) all.add( amount, 2 );
+			}
+			merged.add( parts[ part ] );
+		}
+		merged.remove( parts[ 0 ] );
+
+		assertEquals( all.getCount(), merged.getCount() );
+		for ( double quantile : QUANTILES ) assertEquals( all.getQuantile( quantile ), merged.getQuantile( quantile ), 0 );
+	}
+
+	@Test
+	public void reusesItsMemoryWhenReset() {
+		QuantileSketch sketch = new QuantileSketch();
+		for ( int i = 1; i <= 1000; i++ ) sketch.add( i );
+		long footprint = sketch.getFootprint();
+
+		sketch.reset();
+		assertTrue( Double.isNaN( sketch.getQuantile( 0.5 ) ) );
+		for ( int i = 1; i <= 1000; i++ ) sketch.add( i );
+
+		assertEquals( "The sketch allocated again", footprint, sketch.getFootprint() );
+		assertEquals( 0, sketch.getQuantile( 0 ) - 1, 0.01 );
+	}
+}
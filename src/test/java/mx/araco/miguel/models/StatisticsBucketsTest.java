@@ -0,0 +1,91 @@
+package mx.araco.miguel.models;
+
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.StatisticsBuckets;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author MiguelAraCo
+ */
+public class StatisticsBucketsTest {
+	@Test
+	public void readsTheBucketsItWrites() throws Exception {
+		StatisticsBuckets buckets = new StatisticsBuckets( 50_000_000L );
+		for ( long bucket = 31_000_000_000L; bucket < 31_000_001_200L; bucket++ ) {
+			buckets.add( bucket, createStatistics( "12.65", "-3.5", "1000000" ) );
+		}
+		buckets.add( 31_000_001_200L, createStatistics( "0.125", "12345678901234567890.12" ) );
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		buckets.writeTo( output );
+		StatisticsBuckets read = StatisticsBuckets.readFrom( new ByteArrayInputStream( output.toByteArray() ) );
+
+		assertTrue( "The buckets took " + output.size() + " bytes", output.size() < 20 * 1201 );
+		assertEquals( "The period wasn't read", buckets.getPeriodNanos(), read.getPeriodNanos() );
+		assertEquals( "The buckets weren't read", buckets.getBuckets().keySet(), read.getBuckets().keySet() );
+
+		Statistics expected = buckets.getStatistics( 0 );
+		Statistics actual = read.getStatistics( 0 );
+		assertEquals( "The count wasn't read", expected.getCount(), actual.getCount() );
+		assertEquals( "The sum wasn't read", 0, expected.getSum().compareTo( actual.getSum() ) );
+		assertEquals( "The min wasn't read", 0, expected.getMin().compareTo( actual.getMin() ) );
+		assertEquals( "The max wasn't read", 0, expected.getMax().compareTo( actual.getMax() ) );
+	}
+
+	@Test
+	public void keepsTheDecimalsOfTheAmounts() throws Exception {
+		StatisticsBuckets buckets = new StatisticsBuckets( 100 );
+		buckets.add( 1, createStatistics( "10", "5" ) );
+		buckets.add( 2, createStatistics( "10", "4.5" ) );
+		buckets.add( 3, createStatistics( "1.25", "3" ) );
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		buckets.writeTo( output );
+		StatisticsBuckets read = StatisticsBuckets.readFrom( new ByteArrayInputStream( output.toByteArray() ) );
+
+		for ( long bucket = 1; bucket <= 3; bucket++ ) {
+			Statistics expected = buckets.getBuckets().get( bucket );
+			Statistics actual = read.getBuckets().get( bucket );
+			assertEquals( "The decimals of the sum weren't read", expected.getSum().toString(), actual.getSum().toString() );
+			assertEquals( "The decimals of the min weren't read", expected.getMin().toString(), actual.getMin().toString() );
+			assertEquals( "The decimals of the max weren't read", expected.getMax().toString(), actual.getMax().toString() );
+		}
+		assertEquals( "15", read.getBuckets().get( 1L ).getSum().toString() );
+		assertEquals( "4.5", read.getBuckets().get( 2L ).getMin().toString() );
+		assertEquals( "3", read.getBuckets().get( 3L ).getMax().toString() );
+	}
+
+	@Test
+	public void mergesBucketByBucket() {
+		StatisticsBuckets first = new StatisticsBuckets( 100 );
+		first.add( 1, createStatistics( "1" ) );
+		first.add( 2, createStatistics( "2" ) );
+
+		StatisticsBuckets second = new StatisticsBuckets( 100 );
+		second.add( 2, createStatistics( "5" ) );
+		second.add( 3, createStatistics( "7" ) );
+
+		first.add( second );
+		assertEquals( "The buckets weren't aligned", 3, first.getBuckets().size() );
+		assertEquals( "The buckets weren't merged", 0, new BigDecimal( "7" ).compareTo( first.getBuckets().get( 2L ).getSum() ) );
+		assertEquals( "The oldest bucket wasn't excluded", 0, new BigDecimal( "14" ).compareTo( first.getStatistics( 2 ).getSum() ) );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void doesNotMergeBucketsOfDifferentPeriods() {
+		new StatisticsBuckets( 100 ).add( new StatisticsBuckets( 200 ) );
+	}
+
+	private static Statistics createStatistics( String... amounts ) {
+		Statistics statistics = new Statistics();
+		for ( String amount : amounts ) statistics.add( new BigDecimal( amount ) );
+		return statistics;
+	}
+}
@@ -0,0 +1,155 @@
+package mx.araco.miguel.models;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import mx.araco.miguel.n26.models.Statistics;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author MiguelAraCo
+ */
+public class StatisticsTest {
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	@Test
+	public void serializesEmptyStatistics() throws Exception {
+		assertEquals( "The statistics weren't serialized as expected", "{\"avg\":0,\"sum\":0,\"min\":null,\"max\":null,\"count\":0}", this.objectMapper.writeValueAsString( new Statistics() ) );
+	}
+
+	@Test
+	public void keepsTheDecimalsOfTheAmounts() throws Exception {
+		Statistics statistics = new Statistics();
+		statistics.add( new BigDecimal( "10" ) );
+		statistics.add( new BigDecimal( "2.40" ) );
+		statistics.add( new BigDecimal( "6.5" ) );
+
+		assertEquals( "The statistics weren't serialized as expected", "{\"avg\":6.30,\"sum\":18.90,\"min\":2.40,\"max\":10,\"count\":3}", this.objectMapper.writeValueAsString( statistics ) );
+	}
+
+	@Test
+	public void roundsTheAverageHalfEven() {
+		Statistics statistics = new Statistics();
+		statistics.add( new BigDecimal( "0.01" ) );
+		statistics.add( new BigDecimal( "0.04" ) );
+		assertEquals( "The average wasn't rounded as expected", new BigDecimal( "0.02" ), statistics.getAvg() ); // 0.025
+
+		statistics = new Statistics();
+		statistics.add( new BigDecimal( "-0.01" ) );
+		statistics.add( new BigDecimal( "-0.06" ) );
+		assertEquals( "The average wasn't rounded as expected", new BigDecimal( "-0.04" ), statistics.getAvg() ); // -0.035
+	}
+
+	@Test
+	public void fallsBackToBigDecimalForAmountsWithMoreDecimals() {
+		Statistics statistics = new Statistics();
+		statistics.add( new BigDecimal( "1.50" ) );
+		statistics.add( new BigDecimal( "0.125" ) );
+
+		assertEquals( "The returned statistics didn't have the expected sum", new BigDecimal( "1.625" ), statistics.getSum() );
+		assertEquals( "The returned statistics didn't have the expected min", new BigDecimal( "0.125" ), statistics.getMin() );
+		assertEquals( "The returned statistics didn't have the expected max", new BigDecimal( "1.50" ), statistics.getMax() );
+		assertEquals( "The returned statistics didn't have the expected avg", new BigDecimal( "0.81" ), statistics.getAvg() );
+	}
+
+	@Test
+	public void fallsBackToBigDecimalWhenTheSumOverflows() {
+		BigDecimal amount = new BigDecimal( "9999999999999999" );
+
+		Statistics statistics = new Statistics();
+		for ( int i = 0; i < 1000; i++ ) statistics.add( amount );
+
+		assertEquals( "The returned statistics didn't have the expected sum", amount.multiply( new BigDecimal( "1000" ) ), statistics.getSum() );
+		assertEquals( "The returned statistics didn't have the expected avg", amount.setScale( 2 ), statistics.getAvg() );
+		assertEquals( "The returned statistics didn't have the expected count", 1000, (long) statistics.getCount() );
+	}
+
+	@Test
+	public void mergesSamples() {
+		Statistics first = new Statistics();
+		first.add( new BigDecimal( "4.32" ) );
+		first.add( new BigDecimal( "10.25" ) );
+
+		Statistics second = new Statistics();
+		second.addUnits( 2, 890, 240, 650 );
+
+		Statistics third = new Statistics();
+		third.add( new BigDecimal( "0.001" ) );
+
+		Statistics aggregate = new Statistics();
+		aggregate.add( first );
+		aggregate.add( new Statistics() );
+		aggregate.add( second );
+		assertEquals( "The returned statistics didn't have the expected sum", new BigDecimal( "23.47" ), aggregate.getSum() );
+
+		aggregate.add( third );
+		assertEquals( "The returned statistics didn't have the expected sum", new BigDecimal( "23.471" ), aggregate.getSum() );
+		assertEquals( "The returned statistics didn't have the expected min", new BigDecimal( "0.001" ), aggregate.getMin() );
+		assertEquals( "The returned statistics didn't have the expected max", new BigDecimal( "10.25" ), aggregate.getMax() );
+		assertEquals( "The returned statistics didn't have the expected count", 5, (long) aggregate.getCount() );
+	}
+
+	@Test
+	public void removesSamples() {
+		Statistics first = new Statistics();
+		first.add( new BigDecimal( "4.32" ) );
+		first.add( new BigDecimal( "10.25" ) );
+
+		Statistics second = new Statistics();
+		second.add( new BigDecimal( "6.52" ) );
+
+		Statistics aggregate = new Statistics();
+		aggregate.add( first );
+		aggregate.add( second );
+		aggregate.remove( first );
+		aggregate.setExtremes( second, second );
+
+		assertEquals( "The returned statistics didn't have the expected sum", new BigDecimal( "6.52" ), aggregate.getSum() );
+		assertEquals( "The returned statistics didn't have the expected count", 1, (long) aggregate.getCount() );
+		assertEquals( "The returned statistics didn't have the expected min", new BigDecimal( "6.52" ), aggregate.getMin() );
+		assertEquals( "The returned statistics didn't have the expected max", new BigDecimal( "6.52" ), aggregate.getMax() );
+		assertEquals( "The returned statistics didn't have the expected avg", new BigDecimal( "6.52" ), aggregate.getAvg() );
+	}
+
+	@Test
+	public void returnsToTheDecimalsOfTheAmountsLeft() {
+		Statistics whole = new Statistics();
+		whole.add( new BigDecimal( "10" ) );
+
+		Statistics cents = new Statistics();
+		cents.add( new BigDecimal( "1.25" ) );
+
+		Statistics thousandths = new Statistics();
+		thousandths.add( new BigDecimal( "0.125" ) );
+
+		Statistics aggregate = new Statistics();
+		aggregate.add( whole );
+		aggregate.add( cents );
+		aggregate.add( thousandths );
+		assertEquals( "The returned statistics didn't have the expected sum", new BigDecimal( "11.375" ), aggregate.getSum() );
+
+		aggregate.remove( thousandths );
+		assertEquals( "The returned statistics didn't have the expected sum", new BigDecimal( "11.25" ), aggregate.getSum() );
+
+		aggregate.remove( cents );
+		assertEquals( "The returned statistics didn't have the expected sum", new BigDecimal( "10" ), aggregate.getSum() );
+
+		aggregate.remove( whole );
+		assertEquals( "The returned statistics didn't have the expected sum", BigDecimal.ZERO, aggregate.getSum() );
+		assertEquals( "The returned statistics didn't have the expected count", 0, (long) aggregate.getCount() );
+	}
+
+	@Test
+	public void canBeReset() {
+		Statistics statistics = new Statistics();
+		statistics.add( new BigDecimal( "0.125" ) );
+		statistics.reset();
+
+		assertEquals( "The returned statistics didn't have the expected sum", BigDecimal.ZERO, statistics.getSum() );
+		assertEquals( "The returned statistics didn't have the expected count", 0, (long) statistics.getCount() );
+		assertNull( "The returned statistics didn't have the expected min", statistics.getMin() );
+	}
+}
@@ -0,0 +1,230 @@
+package mx.araco.miguel.services;
+
+import mx.araco.miguel.n26.Application;
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.Transaction;
+import mx.araco.miguel.n26.services.ConcurrentSamplingStatisticsService;
+import mx.araco.miguel.n26.services.StatisticsService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author MiguelAraCo
+ */
+@RunWith( SpringRunner.class )
+@SpringBootTest(
+	properties = {
+		"mx.araco.miguel.n26.sampling-period=PT1S",
+		"mx.araco.miguel.n26.sample-period=PT0.1S",
+		"mx.araco.miguel.n26.engine=concurrent"
+	},
+	classes = {
+		Application.class
+	}
+)
+public class ConcurrentSamplingStatisticsServiceTest {
+	@Autowired
+	private ConcurrentSamplingStatisticsService statisticsService;
+
+	@Before
+	public void resetStatisticsService() {
+		this.statisticsService.reset();
+	}
+
+	@Test
+	public void returnsREGISTEREDForTransactionsInsideSamplingPeriod() {
+		Transaction transaction = new Transaction( new BigDecimal( "10.25" ), Instant.now() );
+
+		assertEquals( "The service didn't return the expected result", StatisticsService.RegisterResult.REGISTERED, this.statisticsService.register( transaction ) );
+	}
+
+	@Test
+	public void returnsDISCARDEDForTransactionsOutsideSamplingPeriod() {
+		Transaction transaction = new Transaction( new BigDecimal( "10.25" ), Instant.now().minus( Duration.parse( "PT2S" ) ) );
+
+		assertEquals( "The service didn't return the expected result", StatisticsService.RegisterResult.DISCARDED, this.statisticsService.register( transaction ) );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void throwsExceptionForTransactionsInTheFuture() {
+		Transaction transaction = new Transaction( new BigDecimal( "10.25" ), Instant.now().plus( Duration.parse( "PT2S" ) ) );
+		this.statisticsService.register( transaction );
+	}
+
+	@Test
+	public void calculatesStatisticsCorrectly() throws Exception {
+		List<Transaction> transactions = new ArrayList<>();
+		transactions.add( new Transaction( new BigDecimal( "10.25" ), Instant.now().minus( Duration.parse( "PT0.1S" ) ) ) );
+		transactions.add( new Transaction( new BigDecimal( "6.52" ), Instant.now().minus( Duration.parse( "PT0.2S" ) ) ) );
+		transactions.add( new Transaction( new BigDecimal( "4.32" ), Instant.now().minus( Duration.parse( "PT0.2S" ) ) ) );
+		transactions.add( new Transaction( new BigDecimal( "10" ), Instant.now().minus( Duration.parse( "PT0.3S" ) ) ) );
+		transactions.add( new Transaction( new BigDecimal( "6.43" ), Instant.now().minus( Duration.parse( "PT0.15S" ) ) ) );
+		transactions.add( new Transaction( new BigDecimal( "2.40" ), Instant.now().minus( Duration.parse( "PT0.13S" ) ) ) );
+		transactions.add( new Transaction( new BigDecimal( "5.50" ), Instant.now().minus( Duration.parse( "PT0.2S" ) ) ) );
+		transactions.add( new Transaction( new BigDecimal( "4.23" ), Instant.now().minus( Duration.parse( "PT0.8S" ) ) ) );
+
+		ForkJoinPool myPool = new ForkJoinPool( 8 );
+		myPool.submit( () ->
+			transactions.parallelStream().forEach( this.statisticsService::register )
+		).get();
+
+		Statistics statistics = this.statisticsService.get();
+
+		assertEquals( "The returned statistics didn't have the expected max", 0, statistics.getMax().compareTo( new BigDecimal( "10.25" ) ) );
+		assertEquals( "The returned statistics didn't have the expected min", 0, statistics.getMin().compareTo( new BigDecimal( "2.4" ) ) );
+		assertEquals( "The returned statistics didn't have the expected sum", 0, statistics.getSum().compareTo( new BigDecimal( "49.65" ) ) );
+		assertEquals( "The returned statistics didn't have the expected count", 8, (long) statistics.getCount() );
+		assertEquals( "The returned statistics didn't have the expected avg", 0, statistics.getAvg().compareTo( new BigDecimal( "6.21" ) ) ); // 6.20625 rounded up
+	}
+
+	@Test
+	public void calculatesStatisticsOfAmountsWithMoreDecimals() {
+		this.statisticsService.register( new Transaction( new BigDecimal( "0.125" ), Instant.now() ) );
+		this.statisticsService.register( new Transaction( new BigDecimal( "1.50" ), Instant.now() ) );
+
+		Statistics statistics = this.statisticsService.get();
+
+		assertEquals( "The returned statistics didn't have the expected max", 0, statistics.getMax().compareTo( new BigDecimal( "1.5" ) ) );
+		assertEquals( "The returned statistics didn't have the expected min", 0, statistics.getMin().compareTo( new BigDecimal( "0.125" ) ) );
+		assertEquals( "The returned statistics didn't have the expected sum", 0, statistics.getSum().compareTo( new BigDecimal( "1.625" ) ) );
+		assertEquals( "The returned statistics didn't have the expected count", 2, (long) statistics.getCount() );
+	}
+
+	@Test
+	public void keepsTheDecimalsOfTheAmounts() {
+		this.statisticsService.register( new Transaction( new BigDecimal( "10" ), Instant.now() ) );
+		this.statisticsService.register( 4, 0, Instant.now().toEpochMilli() );
+
+		Statistics statistics = this.statisticsService.get();
+		assertEquals( "10", statistics.getMax().toString() );
+		assertEquals( "4", statistics.getMin().toString() );
+		assertEquals( "14", statistics.getSum().toString() );
+
+		this.statisticsService.register( new Transaction( new BigDecimal( "1.5" ), Instant.now() ) );
+
+		statistics = this.statisticsService.get();
+		assertEquals( "1.5", statistics.getMin().toString() );
+		assertEquals( "15.5", statistics.getSum().toString() );
+		assertEquals( "5.17", statistics.getAvg().toString() );
+	}
+
+	@Test
+	public void discardsOldStatistics() throws Exception {
+		List<Transaction> transactions = new ArrayList<>();
+		// Transactions of which statistics are going to be discarded after sleeping
+		transactions.add( new Transaction( new BigDecimal( "10.25" ), Instant.now().minus( Duration.parse( "PT0.8S" ) ) ) );
+		transactions.add( new Transaction( new BigDecimal( "6.52" ), Instant.now().minus( Duration.parse( "PT0.8S" ) ) ) );
+		transactions.add( new Transaction( new BigDecimal( "2.40" ), Instant.now().minus( Duration.parse( "PT0.8S" ) ) ) );
+		transactions.add( new Transaction( new BigDecimal( "10" ), Instant.now().minus( Duration.parse( "PT0.8S" ) ) ) );
+
+		// Transactions of which statistics will be left
+		transactions.add( new Transaction( new BigDecimal( "6.43" ), Instant.now().minus( Duration.parse( "PT0.1S" ) ) ) );
+		transactions.add( new Transaction( new BigDecimal( "4" ), Instant.now().minus( Duration.parse( "PT0.1S" ) ) ) );
+		transactions.add( new Transaction( new BigDecimal( "5.50" ), Instant.now().minus( Duration.parse( "PT0.1S" ) ) ) );
+		transactions.add( new Transaction( new BigDecimal( "4.23" ), Instant.now().minus( Duration.parse( "PT0.1S" ) ) ) );
+
+		ForkJoinPool myPool = new ForkJoinPool( 8 );
+		myPool.submit( () ->
+			transactions.parallelStream().forEach( this.statisticsService::register )
+		).get();
+
+		Thread.sleep( 500 );
+
+		Statistics statistics = this.statisticsService.get();
+
+		assertEquals( "The returned statistics didn't have the expected max", 0, statistics.getMax().compareTo( new BigDecimal( "6.43" ) ) );
+		assertEquals( "The returned statistics didn't have the expected min", 0, statistics.getMin().compareTo( new BigDecimal( "4" ) ) );
+		assertEquals( "The returned statistics didn't have the expected sum", 0, statistics.getSum().compareTo( new BigDecimal( "20.16" ) ) );
+		assertEquals( "The returned statistics didn't have the expected count", 4, (long) statistics.getCount() );
+		assertEquals( "The returned statistics didn't have the expected avg", 0, statistics.getAvg().compareTo( new BigDecimal( "5.04" ) ) );
+	}
+
+	@Test
+	public void keepsStatisticsConsistentUnderConcurrentWrites() throws Exception {
+		int threads = 8;
+		int transactionsPerThread = 10_000;
+		Instant timestamp = Instant.now();
+
+		ExecutorService executor = Executors.newFixedThreadPool( threads );
+		CountDownLatch start = new CountDownLatch( 1 );
+		List<Future<?>> writers = new ArrayList<>();
+		for ( int thread = 0; thread < threads; thread++ ) {
+			writers.add( executor.submit( () -> {
+				start.await();
+				for ( int i = 1; i <= transactionsPerThread; i++ ) {
+					// Amounts go from 0.01 to 100.00
+					BigDecimal amount = BigDecimal.valueOf( i, 2 );
+					this.statisticsService.register( new Transaction( amount, timestamp ) );
+				}
+				return null;
+			} ) );
+		}
+
+		start.countDown();
+		for ( Future<?> writer : writers ) writer.get();
+		executor.shutdown();
+
+		Statistics statistics = this.statisticsService.get();
+
+		// threads * (0.01 + 0.02 + ... + 100.00)
+		BigDecimal expectedSum = BigDecimal.valueOf( (long) transactionsPerThread * ( transactionsPerThread + 1 ) / 2, 2 ).multiply( BigDecimal.valueOf( threads ) );
+
+		assertEquals( "The returned statistics didn't have the expected count", threads * transactionsPerThread, (long) statistics.getCount() );
+		assertEquals( "The returned statistics didn't have the expected sum", 0, statistics.getSum().compareTo( expectedSum ) );
+		assertEquals( "The returned statistics didn't have the expected min", 0, statistics.getMin().compareTo( new BigDecimal( "0.01" ) ) );
+		assertEquals( "The returned statistics didn't have the expected max", 0, statistics.getMax().compareTo( new BigDecimal( "100" ) ) );
+	}
+
+	@Test
+	public void returnsConsistentStatisticsWhileTransactionsAreRegistered() throws Exception {
+		int threads = 4;
+		int transactionsPerThread = 50_000;
+		BigDecimal minAmount = new BigDecimal( "0.01" );
+		BigDecimal maxAmount = new BigDecimal( "100" );
+
+		ExecutorService executor = Executors.newFixedThreadPool( threads );
+		CountDownLatch start = new CountDownLatch( 1 );
+		List<Future<?>> writers = new ArrayList<>();
+		for ( int thread = 0; thread < threads; thread++ ) {
+			writers.add( executor.submit( () -> {
+				start.await();
+				for ( int i = 1; i <= transactionsPerThread; i++ ) {
+					this.statisticsService.register( new Transaction( BigDecimal.valueOf( 1 + i % 10_000, 2 ), Instant.now() ) );
+				}
+				return null;
+			} ) );
+		}
+
+		start.countDown();
+		long reads = 0;
+		while ( reads == 0 || ! writers.stream().allMatch( Future::isDone ) ) {
+			Statistics statistics = this.statisticsService.get();
+			reads++;
+			if ( statistics.getCount() == 0 ) continue;
+
+			assertTrue( "The returned statistics had a min out of the amounts registered", statistics.getMin().compareTo( minAmount ) >= 0 && statistics.getMin().compareTo( maxAmount ) <= 0 );
+			assertTrue( "The returned statistics had a max out of the amounts registered", statistics.getMax().compareTo( minAmount ) >= 0 && statistics.getMax().compareTo( maxAmount ) <= 0 );
+			assertTrue( "The returned statistics had a min bigger than the max", statistics.getMin().compareTo( statistics.getMax() ) <= 0 );
+		}
+		for ( Future<?> writer : writers ) writer.get();
+		executor.shutdown();
+	}
+}
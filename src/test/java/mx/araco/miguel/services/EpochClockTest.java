@@ -0,0 +1,49 @@
+package mx.araco.miguel.services;
+
+import mx.araco.miguel.n26.services.CoarseEpochClock;
+import mx.araco.miguel.n26.services.EpochClock;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author MiguelAraCo
+ */
+public class EpochClockTest {
+	@Test
+	public void coarseClockRunsAheadOfTheSystemClockByUpToOneTick() throws Exception {
+		long tick = Duration.ofMillis( 5 ).toNanos();
+		CoarseEpochClock clock = new CoarseEpochClock( Duration.ofNanos( tick ) );
+		try {
+			long first = clock.nanos();
+			for ( int i = 0; i < 50; i++ ) {
+				long before = EpochClock.SYSTEM.nanos();
+				long nanos = clock.nanos();
+				// Allows for a late tick, there's no guarantee of when the ticker runs
+				assertTrue( "The clock is behind the system clock", nanos >= before - tick );
+				assertTrue( "The clock is more than one tick ahead of the system clock", nanos <= EpochClock.SYSTEM.nanos() + tick );
+				Thread.sleep( 2 );
+			}
+			assertTrue( "The clock didn't move", clock.nanos() > first );
+		} finally {
+			clock.stop();
+		}
+	}
+
+	@Test
+	public void configurationSharesTheClockItCreates() {
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.getClock().setType( SamplingStatisticsServiceConfiguration.Clock.Type.COARSE );
+
+		EpochClock clock = configuration.getEpochClock();
+		assertTrue( clock instanceof CoarseEpochClock );
+		assertSame( clock, configuration.getEpochClock() );
+		configuration.stopEpochClock();
+
+		assertSame( EpochClock.SYSTEM, new SamplingStatisticsServiceConfiguration().getEpochClock() );
+	}
+}
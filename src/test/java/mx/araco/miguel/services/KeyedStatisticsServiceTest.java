@@ -0,0 +1,141 @@
+package mx.araco.miguel.services;
+
+import mx.araco.miguel.n26.models.KeyedStatistics;
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.Transaction;
+import mx.araco.miguel.n26.services.KeyedStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.StatisticsService;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author MiguelAraCo
+ */
+public class KeyedStatisticsServiceTest {
+	@Test
+	public void calculatesTheStatisticsOfEachKey() {
+		KeyedStatisticsService service = createService( 100 );
+
+		Instant now = Instant.now();
+		service.register( new Transaction( new BigDecimal( "10.25" ), now, "a" ) );
+		service.register( new Transaction( new BigDecimal( "4.32" ), now.minusMillis( 300 ), "a" ) );
+		service.register( new Transaction( new BigDecimal( "7" ), now, "b" ) );
+
+		Statistics a = service.get( "a" );
+		assertEquals( "The count of the key isn't correct", 2L, (long) a.getCount() );
+		assertEquals( "The sum of the key isn't correct", new BigDecimal( "14.57" ), a.getSum() );
+		assertEquals( "The min of the key isn't correct", new BigDecimal( "4.32" ), a.getMin() );
+		assertEquals( "The max of the key isn't correct", new BigDecimal( "10.25" ), a.getMax() );
+
+		assertEquals( "The sum of the key isn't correct", 0, new BigDecimal( "7" ).compareTo( service.get( "b" ).getSum() ) );
+		assertEquals( "An unknown key doesn't have empty statistics", 0L, (long) service.get( "c" ).getCount() );
+	}
+
+	@Test
+	public void followsTheRulesOfTheSamplingPeriod() {
+		KeyedStatisticsService service = createService( 100 );
+
+		Transaction old = new Transaction( BigDecimal.ONE, Instant.now().minusSeconds( 2 ), "a" );
+		assertEquals( "The service didn't return the expected result", StatisticsService.RegisterResult.DISCARDED, service.register( old ) );
+		assertEquals( "A discarded transaction created the key", 0, service.getKeyCount() );
+
+		try {
+			service.register( new Transaction( BigDecimal.ONE, Instant.now().plusSeconds( 2 ), "a" ) );
+			throw new AssertionError( "A transaction in the future was accepted" );
+		} catch ( IllegalArgumentException e ) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void evictsExpiredKeys() throws Exception {
+		KeyedStatisticsService service = createService( 100 );
+
+		service.register( new Transaction( BigDecimal.ONE, Instant.now(), "a" ) );
+		service.register( new Transaction( BigDecimal.ONE, Instant.now(), "b" ) );
+		assertEquals( "The keys weren't kept", 2, service.getKeyCount() );
+
+		// The sampling period plus a bucket period, so the whole ring expires
+		Thread.sleep( 1300 );
+
+		assertEquals( "An expired key still has statistics", 0L, (long) service.get( "a" ).getCount() );
+		assertEquals( "Expired keys were returned", 0, service.getTop( 10 ).size() );
+		assertEquals( "Expired keys weren't evicted", 0, service.getKeyCount() );
+	}
+
+	@Test
+	public void evictsTheLeastRecentlyUsedKeysWhenFull() {
+		KeyedStatisticsService service = createService( 2 );
+
+		Instant now = Instant.now();
+		service.register( new Transaction( BigDecimal.ONE, now, "a" ) );
+		service.register( new Transaction( BigDecimal.ONE, now, "b" ) );
+		service.get( "a" );
+		service.register( new Transaction( BigDecimal.ONE, now, "c" ) );
+
+		assertEquals( "The max number of keys was exceeded", 2, service.getKeyCount() );
+		assertEquals( "The least recently used key wasn't evicted", 0L, (long) service.get( "b" ).getCount() );
+		assertEquals( "A recently used key was evicted", 1L, (long) service.get( "a" ).getCount() );
+	}
+
+	@Test
+	public void returnsTheKeysWithTheHighestSum() {
+		KeyedStatisticsService service = createService( 100 );
+
+		Instant now = Instant.now();
+		for ( int i = 0; i < 20; i++ ) {
+			service.registerAll( Arrays.asList(
+				new Transaction( BigDecimal.valueOf( i ), now, "key-" + i ),
+				new Transaction( BigDecimal.valueOf( i ), now, "key-" + i ),
+				new Transaction( BigDecimal.valueOf( 1000 ), now, null )
+			) );
+		}
+
+		List<KeyedStatistics> top = service.getTop( 3 );
+		assertEquals( "The expected number of keys wasn't returned", 3, top.size() );
+		assertEquals( "The keys weren't ordered by their sum", "key-19", top.get( 0 ).getKey() );
+		assertEquals( "The keys weren't ordered by their sum", "key-18", top.get( 1 ).getKey() );
+		assertEquals( "The keys weren't ordered by their sum", "key-17", top.get( 2 ).getKey() );
+		assertEquals( "The statistics of the key weren't returned", 0, new BigDecimal( "38" ).compareTo( top.get( 0 ).getStatistics().getSum() ) );
+	}
+
+	@Test
+	public void rejectsAmountsThatOverflowTheSumOfTheirBucket() {
+		KeyedStatisticsService service = createService( 100 );
+		BigDecimal amount = new BigDecimal( "90000000000000000" );
+
+		Instant now = Instant.now();
+		// Keeps the sum of the window in range, in another bucket
+		service.register( new Transaction( amount.negate(), now.minusMillis( 400 ), "a" ) );
+		service.register( new Transaction( amount, now, "a" ) );
+		try {
+			service.register( new Transaction( amount, now, "a" ) );
+			throw new AssertionError( "An amount that overflows the sum of its bucket was accepted" );
+		} catch ( IllegalArgumentException e ) {
+			// Expected
+		}
+
+		Statistics statistics = service.get( "a" );
+		assertEquals( "The rejected amount was counted", 2L, (long) statistics.getCount() );
+		assertEquals( "The sum of the key isn't correct", 0, BigDecimal.ZERO.compareTo( statistics.getSum() ) );
+	}
+
+	private static KeyedStatisticsService createService( int maxKeys ) {
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.ofSeconds( 1 ) );
+		configuration.setSamplePeriod( Duration.ofMillis( 100 ) );
+		configuration.getKeyed().setBucketPeriod( Duration.ofMillis( 100 ) );
+		configuration.getKeyed().setMaxKeys( maxKeys );
+		// A single shard, so the max number of keys is exact
+		configuration.getKeyed().setShards( 1 );
+		return new KeyedStatisticsService( configuration );
+	}
+}
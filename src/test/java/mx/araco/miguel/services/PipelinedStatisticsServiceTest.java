@@ -0,0 +1,194 @@
+package mx.araco.miguel.services;
+
+import mx.araco.miguel.n26.Application;
+import mx.araco.miguel.n26.models.BatchResult;
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.Transaction;
+import mx.araco.miguel.n26.services.PipelinedStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.StatisticsService;
+import mx.araco.miguel.n26.services.VirtualEpochClock;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author MiguelAraCo
+ */
+@RunWith( SpringRunner.class )
+@SpringBootTest(
+	properties = {
+		"mx.araco.miguel.n26.sampling-period=PT1S",
+		"mx.araco.miguel.n26.sample-period=PT0.1S",
+		"mx.araco.miguel.n26.engine=pipelined",
+		// A small ring, so the writers wrap around it
+		"mx.araco.miguel.n26.pipeline.ring-size=64"
+	},
+	classes = {
+		Application.class
+	}
+)
+public class PipelinedStatisticsServiceTest {
+	@Autowired
+	private PipelinedStatisticsService statisticsService;
+
+	@Before
+	public void resetStatisticsService() {
+		this.statisticsService.reset();
+	}
+
+	@Test
+	public void returnsREGISTEREDForTransactionsInsideSamplingPeriod() {
+		Transaction transaction = new Transaction( new BigDecimal( "10.25" ), Instant.now() );
+
+		assertEquals( "The service didn't return the expected result", StatisticsService.RegisterResult.REGISTERED, this.statisticsService.register( transaction ) );
+	}
+
+	@Test
+	public void returnsDISCARDEDForTransactionsOutsideSamplingPeriod() {
+		Transaction transaction = new Transaction( new BigDecimal( "10.25" ), Instant.now().minus( Duration.parse( "PT2S" ) ) );
+
+		assertEquals( "The service didn't return the expected result", StatisticsService.RegisterResult.DISCARDED, this.statisticsService.register( transaction ) );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void throwsExceptionForTransactionsInTheFuture() {
+		Transaction transaction = new Transaction( new BigDecimal( "10.25" ), Instant.now().plus( Duration.parse( "PT2S" ) ) );
+		this.statisticsService.register( transaction );
+	}
+
+	@Test
+	public void calculatesStatisticsOfAmountsThatDoNotFitInALong() {
+		this.statisticsService.register( new Transaction( new BigDecimal( "0.125" ), Instant.now() ) );
+		this.statisticsService.register( new Transaction( new BigDecimal( "12345678901234567890.12" ), Instant.now() ) );
+		this.statisticsService.register( 150, 2, System.currentTimeMillis() );
+		this.statisticsService.flush();
+
+		Statistics statistics = this.statisticsService.get();
+
+		assertEquals( "The returned statistics didn't have the expected max", 0, statistics.getMax().compareTo( new BigDecimal( "12345678901234567890.12" ) ) );
+		assertEquals( "The returned statistics didn't have the expected min", 0, statistics.getMin().compareTo( new BigDecimal( "0.125" ) ) );
+		assertEquals( "The returned statistics didn't have the expected sum", 0, statistics.getSum().compareTo( new BigDecimal( "12345678901234567891.745" ) ) );
+		assertEquals( "The returned statistics didn't have the expected count", 3, (long) statistics.getCount() );
+	}
+
+	@Test
+	public void registersBatches() {
+		BatchResult result = this.statisticsService.registerAll( Arrays.asList(
+			new Transaction( new BigDecimal( "10" ), Instant.now() ),
+			new Transaction( new BigDecimal( "20" ), Instant.now().minus( Duration.parse( "PT2S" ) ) ),
+			new Transaction( new BigDecimal( "30" ), Instant.now().plus( Duration.parse( "PT2S" ) ) ),
+			new Transaction( new BigDecimal( "40" ), Instant.now() )
+		) );
+		this.statisticsService.flush();
+
+		assertEquals( "The batch wasn't registered", 2, result.getRegistered() );
+		assertEquals( "The batch wasn't discarded", 1, result.getDiscarded() );
+		assertEquals( "The batch wasn't rejected", 1, result.getRejected() );
+		assertEquals( "The returned statistics didn't have the expected sum", 0, this.statisticsService.get().getSum().compareTo( new BigDecimal( "50" ) ) );
+	}
+
+	@Test
+	public void discardsOldStatisticsWithoutNewTransactions() throws Exception {
+		this.statisticsService.register( new Transaction( new BigDecimal( "10.25" ), Instant.now().minus( Duration.parse( "PT0.8S" ) ) ) );
+		this.statisticsService.register( new Transaction( new BigDecimal( "6.43" ), Instant.now().minus( Duration.parse( "PT0.1S" ) ) ) );
+		this.statisticsService.flush();
+		assertEquals( "The returned statistics didn't have the expected count", 2, (long) this.statisticsService.get().getCount() );
+
+		// The consumer publishes new statistics once per sample period on its own
+		Thread.sleep( 500 );
+
+		Statistics statistics = this.statisticsService.get();
+		assertEquals( "The returned statistics didn't have the expected count", 1, (long) statistics.getCount() );
+		assertEquals( "The returned statistics didn't have the expected sum", 0, statistics.getSum().compareTo( new BigDecimal( "6.43" ) ) );
+	}
+
+	@Test
+	public void keepsStatisticsConsistentUnderConcurrentWrites() throws Exception {
+		int threads = 8;
+		int transactionsPerThread = 10_000;
+		Instant timestamp = Instant.now();
+
+		ExecutorService executor = Executors.newFixedThreadPool( threads );
+		CountDownLatch start = new CountDownLatch( 1 );
+		List<Future<?>> writers = new ArrayList<>();
+		for ( int thread = 0; thread < threads; thread++ ) {
+			writers.add( executor.submit( () -> {
+				start.await();
+				for ( int i = 1; i <= transactionsPerThread; i++ ) {
+					// Amounts go from 0.01 to 100.00
+					BigDecimal amount = BigDecimal.valueOf( i, 2 );
+					this.statisticsService.register( new Transaction( amount, timestamp ) );
+				}
+				return null;
+			} ) );
+		}
+
+		start.countDown();
+		for ( Future<?> writer : writers ) writer.get();
+		executor.shutdown();
+		this.statisticsService.flush();
+
+		Statistics statistics = this.statisticsService.get();
+
+		// threads * (0.01 + 0.02 + ... + 100.00)
+		BigDecimal expectedSum = BigDecimal.valueOf( (long) transactionsPerThread * ( transactionsPerThread + 1 ) / 2, 2 ).multiply( BigDecimal.valueOf( threads ) );
+
+		assertEquals( "The returned statistics didn't have the expected count", threads * transactionsPerThread, (long) statistics.getCount() );
+		assertEquals( "The returned statistics didn't have the expected sum", 0, statistics.getSum().compareTo( expectedSum ) );
+		assertEquals( "The returned statistics didn't have the expected min", 0, statistics.getMin().compareTo( new BigDecimal( "0.01" ) ) );
+		assertEquals( "The returned statistics didn't have the expected max", 0, statistics.getMax().compareTo( new BigDecimal( "100" ) ) );
+	}
+
+	@Test
+	public void rotatesTheSamplesToTransactionsAheadOfTheCoarseClock() throws Exception {
+		VirtualEpochClock clock = new VirtualEpochClock( Instant.parse( "2018-06-24T00:00:00.050Z" ) );
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.parse( "PT1S" ) );
+		configuration.setSamplePeriod( Duration.parse( "PT0.1S" ) );
+		configuration.setEpochClock( clock );
+		PipelinedStatisticsService statisticsService = new PipelinedStatisticsService( configuration );
+		statisticsService.start();
+		try {
+			// In the oldest sample still in use
+			statisticsService.register( 1000, 2, clock.millis() - 990 );
+			statisticsService.flush();
+
+			// In the next sample, which takes the place of the oldest one
+			clock.setPreciseLead( Duration.ofMillis( 70 ) );
+			statisticsService.register( 500, 2, clock.millis() + 60 );
+			statisticsService.flush();
+
+			Statistics statistics = statisticsService.get();
+			assertEquals( "The returned statistics didn't have the expected count", 1, (long) statistics.getCount() );
+			assertEquals( "The returned statistics didn't have the expected sum", 0, statistics.getSum().compareTo( new BigDecimal( "5" ) ) );
+
+			clock.setPreciseLead( Duration.ZERO );
+			clock.advance( Duration.ofMillis( 1020 ) );
+			statisticsService.register( 200, 2, clock.millis() );
+			statisticsService.flush();
+
+			statistics = statisticsService.get();
+			assertEquals( "The returned statistics didn't have the expected count", 2, (long) statistics.getCount() );
+			assertEquals( "The returned statistics didn't have the expected sum", 0, statistics.getSum().compareTo( new BigDecimal( "7" ) ) );
+		} finally {
+			statisticsService.stop();
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package mx.araco.miguel.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mx.araco.miguel.n26.models.SamplingLayout;
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.StatisticsBuckets;
+import mx.araco.miguel.n26.services.Resampler;
+import mx.araco.miguel.n26.services.SamplingStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.VirtualEpochClock;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Changes the sample and sampling periods of {@link SamplingStatisticsService} in the middle of the traffic, and
+ * compares the statistics with the ones of services that were never changed
+ *
+ * @author MiguelAraCo
+ */
+public class ResamplingTest {
+	private final VirtualEpochClock clock = new VirtualEpochClock( Instant.parse( "2018-06-24T00:00:00Z" ) );
+	private final Random random = new Random( 26 );
+
+	@Test
+	public void keepsTheTransactionsWhenTheSamplesGetFiner() {
+		SamplingStatisticsService resampled = createService( "PT1S", "PT60S" );
+		SamplingStatisticsService coarse = createService( "PT1S", "PT60S" );
+		SamplingStatisticsService fine = createService( "PT0.1S", "PT60S" );
+		registerTransactions( 60_000, 60_000, resampled, coarse, fine );
+
+		resampled.reconfigure( Duration.ofMillis( 100 ), Duration.ofSeconds( 60 ) );
+		assertEquals( Duration.ofMillis( 100 ), resampled.getSamplePeriod() );
+		assertSameStatistics( "Right after the change", coarse.get(), resampled.get() );
+
+		// Transactions expire as they do with finer samples, or later (only the ones of the newest sample expire
+		// sooner than they used to)
+		for ( int i = 1; i <= 700; i++ ) {
+			this.clock.advance( Duration.ofMillis( 100 ) );
+			assertCountBetween( "After " + i * 100 + "ms", fine.get(), resampled.get(), coarse.get() );
+			assertSameStatistics( "The window of 10m after " + i * 100 + "ms", coarse.get( Duration.ofMinutes( 10 ) ), resampled.get( Duration.ofMinutes( 10 ) ) );
+		}
+		assertEquals( 0, (long) resampled.get().getCount() );
+	}
+
+	@Test
+	public void keepsTheTransactionsWhenTheSamplesGetCoarser() {
+		SamplingStatisticsService resampled = createService( "PT0.1S", "PT60S" );
+		SamplingStatisticsService fine = createService( "PT0.1S", "PT60S" );
+		SamplingStatisticsService coarse = createService( "PT1S", "PT60S" );
+		registerTransactions( 60_000, 60_000, resampled, fine, coarse );
+
+		resampled.reconfigure( Duration.ofSeconds( 1 ), Duration.ofSeconds( 60 ) );
+		assertSameStatistics( "Right after the change", fine.get(), resampled.get() );
+
+		// Merged samples expire with the coarser sample they're in, never before the transactions would have
+		for ( int i = 1; i <= 700; i++ ) {
+			this.clock.advance( Duration.ofMillis( 100 ) );
+			assertCountBetween( "After " + i * 100 + "ms", fine.get(), resampled.get(), coarse.get() );
+		}
+		assertEquals( 0, (long) resampled.get().getCount() );
+	}
+
+	@Test
+	public void keepsTheEdgeExactWhenTheSamplesGetCoarser() {
+		SamplingStatisticsService resampled = createService( "PT0.1S", "PT60S", true );
+		SamplingStatisticsService fine = createService( "PT0.1S", "PT60S", true );
+		registerTransactions( 60_000, 60_000, resampled, fine );
+
+		// The records are merged along with the samples, so the oldest one is still trimmed to the millisecond
+		resampled.reconfigure( Duration.ofSeconds( 1 ), Duration.ofSeconds( 60 ) );
+		for ( int i = 1; i <= 700; i++ ) {
+			this.clock.advance( Duration.ofMillis( 100 ) );
+			assertSameAggregates( "After " + i * 100 + "ms", fine.get(), resampled.get() );
+		}
+	}
+
+	@Test
+	public void leavesOutTheSamplesOutsideAShorterSamplingPeriod() {
+		SamplingStatisticsService resampled = createService( "PT0.5S", "PT60S" );
+		SamplingStatisticsService shorter = createService( "PT0.5S", "PT10S" );
+		// Without delay, so both keep the same ones (the oldest sample is partially outside the sampling period)
+		registerTransactions( 60_000, 0, resampled, shorter );
+
+		resampled.reconfigure( Duration.ofMillis( 500 ), Duration.ofSeconds( 10 ) );
+		assertSameStatistics( "Right after the change", shorter.get(), resampled.get() );
+
+		// New transactions follow the new sampling period
+		registerTransactions( 10_000, 60_000, resampled, shorter );
+		assertSameStatistics( "After more transactions", shorter.get(), resampled.get() );
+	}
+
+	@Test
+	public void rejectsLayoutsTheWindowsCantUse() {
+		SamplingStatisticsService statisticsService = createService( "PT0.5S", "PT60S" );
+		registerTransactions( 1_000, 60_000, statisticsService );
+		Statistics before = statisticsService.get();
+
+		for ( String[] layout : new String[][]{ { "PT0.3S", "PT60S" }, { "PT0.5S", "PT2H" }, { "PT0S", "PT60S" }, { "PT2M", "PT60S" } } ) {
+			try {
+				statisticsService.reconfigure( Duration.parse( layout[ 0 ] ), Duration.parse( layout[ 1 ] ) );
+				fail( "The layout " + Arrays.toString( layout ) + " was accepted" );
+			} catch ( IllegalArgumentException e ) {
+				// Expected
+			}
+		}
+		assertEquals( Duration.ofMillis( 500 ), statisticsService.getSamplePeriod() );
+		assertSameStatistics( "After the rejected layouts", before, statisticsService.get() );
+	}
+
+	@Test
+	public void mergesBucketsOfTheSamplePeriodItHadBefore() {
+		SamplingStatisticsService statisticsService = createService( "PT0.5S", "PT60S" );
+		SamplingStatisticsService source = createService( "PT0.5S", "PT60S" );
+		registerTransactions( 10_000, 60_000, source );
+		StatisticsBuckets buckets = source.getBuckets();
+
+		statisticsService.reconfigure( Duration.ofMillis( 100 ), Duration.ofSeconds( 60 ) );
+		assertEquals( (long) source.get().getCount(), statisticsService.merge( buckets ) );
+		// The quantiles don't include the amounts merged
+		assertSameAggregates( "After merging", source.get(), statisticsService.get() );
+	}
+
+	@Test
+	public void adaptsTheSamplePeriodToTheRate() {
+		SamplingStatisticsServiceConfiguration configuration = createConfiguration( "PT0.05S", "PT60S" );
+		configuration.getResampling().setTargetPerSample( 100 );
+		configuration.getResampling().setMinSamplePeriod( Duration.ofMillis( 10 ) );
+		configuration.getResampling().setMaxSamplePeriod( Duration.ofSeconds( 1 ) );
+		SamplingStatisticsService statisticsService = new SamplingStatisticsService( configuration );
+		MeterRegistry registry = new SimpleMeterRegistry();
+		Resampler resampler = new Resampler( statisticsService, configuration, registry );
+
+		// 10 transactions per second: 100 of them take 10s, so the samples get as coarse as allowed
+		for ( int i = 0; i < 600; i++ ) {
+			this.clock.advance( Duration.ofMillis( 100 ) );
+			statisticsService.register( 100, 2, this.clock.millis() );
+		}
+		assertTrue( "The sample period wasn't changed", resampler.adapt() );
+		assertEquals( Duration.ofSeconds( 1 ), statisticsService.getSamplePeriod() );
+		assertFalse( "The sample period was changed for the same rate", resampler.adapt() );
+
+		// 5000 transactions per second, once the previous ones expired: 100 of them take 20ms
+		this.clock.advance( Duration.ofSeconds( 2 ) );
+		for ( int i = 0; i < 300_000; i++ ) {
+			if ( i % 5 == 0 ) this.clock.advance( Duration.ofMillis( 1 ) );
+			statisticsService.register( 100, 2, this.clock.millis() );
+		}
+		assertTrue( "The sample period wasn't changed", resampler.adapt() );
+		assertEquals( Duration.ofMillis( 20 ), statisticsService.getSamplePeriod() );
+		assertEquals( "Transactions were lost", 300_000L, (long) statisticsService.get().getCount() );
+
+		assertEquals( 0.02, registry.get( "statistics.sample_period" ).gauge().value(), 0 );
+		assertEquals( 2, registry.get( "statistics.resampling.changes" ).tag( "trigger", "adaptive" ).counter().count(), 0 );
+
+		SamplingLayout layout = resampler.change( new SamplingLayout( null, Duration.ofSeconds( 30 ), false ) );
+		assertEquals( Duration.ofMillis( 20 ), layout.getSamplePeriod() );
+		assertEquals( Duration.ofSeconds( 30 ), layout.getSamplingPeriod() );
+		assertFalse( layout.getAdaptive() );
+	}
+
+	private SamplingStatisticsServiceConfiguration createConfiguration( String samplePeriod, String samplingPeriod ) {
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplePeriod( Duration.parse( samplePeriod ) );
+		configuration.setSamplingPeriod( Duration.parse( samplingPeriod ) );
+		configuration.setMaxWindow( Duration.ofHours( 1 ) );
+		configuration.setWindowResolutions( Arrays.asList( Duration.ofSeconds( 2 ), Duration.ofMinutes( 1 ) ) );
+		configuration.setQuantiles( Arrays.asList( 0.5, 0.99 ) );
+		configuration.setEpochClock( this.clock );
+		return configuration;
+	}
+
+	private SamplingStatisticsService createService( String samplePeriod, String samplingPeriod ) {
+		return createService( samplePeriod, samplingPeriod, false );
+	}
+
+	private SamplingStatisticsService createService( String samplePeriod, String samplingPeriod, boolean exactEdge ) {
+		SamplingStatisticsServiceConfiguration configuration = createConfiguration( samplePeriod, samplingPeriod );
+		configuration.setExactEdge( exactEdge );
+		return new SamplingStatisticsService( configuration );
+	}
+
+	/**
+	 * Registers the same transactions in every service, a few milliseconds apart
+	 *
+	 * @param maxAgeMillis
+	 * 	how old the timestamps of the transactions can be
+	 */
+	private void registerTransactions( int count, int maxAgeMillis, SamplingStatisticsService... services ) {
+		for ( int i = 0; i < count; i++ ) {
+			this.clock.advance( Duration.ofMillis( this.random.nextInt( 3 ) ) );
+			long timestamp = this.clock.millis() - ( maxAgeMillis > 0 ? this.random.nextInt( maxAgeMillis ) : 0 );
+			long amount = 1 + this.random.nextInt( 100_000 );
+			for ( SamplingStatisticsService service : services ) service.register( amount, 2, timestamp );
+		}
+	}
+
+	private static void assertSameStatistics( String message, Statistics expected, Statistics actual ) {
+		assertSameAggregates( message, expected, actual );
+		assertEquals( message + ", quantiles", expected.getQuantiles(), actual.getQuantiles() );
+	}
+
+	private static void assertCountBetween( String message, Statistics lower, Statistics actual, Statistics upper ) {
+		long count = actual.getCount();
+		assertTrue( message + ", " + count + " transactions instead of " + lower.getCount() + " to " + upper.getCount(), count >= lower.getCount() && count <= upper.getCount() );
+	}
+
+	private static void assertSameAggregates( String message, Statistics expected, Statistics actual ) {
+		assertEquals( message + ", count", expected.getCount(), actual.getCount() );
+		assertEquals( message + ", sum", 0, expected.getSum().compareTo( actual.getSum() ) );
+		if ( expected.getCount() == 0 ) return;
+
+		assertEquals( message + ", min", 0, expected.getMin().compareTo( actual.getMin() ) );
+		assertEquals( message + ", max", 0, expected.getMax().compareTo( actual.getMax() ) );
+	}
+}
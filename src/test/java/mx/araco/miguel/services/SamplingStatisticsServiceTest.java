@@ -1,10 +1,15 @@
 package mx.araco.miguel.services;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import mx.araco.miguel.n26.Application;
+import mx.araco.miguel.n26.models.BatchResult;
 import mx.araco.miguel.n26.models.Statistics;
 import mx.araco.miguel.n26.models.Transaction;
 import mx.araco.miguel.n26.services.SamplingStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
 import mx.araco.miguel.n26.services.StatisticsService;
+import mx.araco.miguel.n26.services.VirtualEpochClock;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -16,7 +21,9 @@ import java.math.BigDecimal;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.assertEquals;
@@ -38,6 +45,9 @@ public class SamplingStatisticsServiceTest {
 	@Autowired
 	private SamplingStatisticsService statisticsService;
 
+	@Autowired
+	private MeterRegistry meterRegistry;
+
 	@Before
 	public void resetStatisticsService() {
 		this.statisticsService.reset();
@@ -145,4 +155,200 @@ public class SamplingStatisticsServiceTest {
 		assertEquals( "The returned statistics didn't have the expected count", 4, (long) statistics.getCount() );
 		assertEquals( "The returned statistics didn't have the expected avg", 0, statistics.getAvg().compareTo( new BigDecimal( "5.04" ) ) );
 	}
+
+	@Test
+	public void registersParsedTransactionsLikeTransactions() throws Exception {
+		long now = Instant.now().toEpochMilli();
+		this.statisticsService.register( new Transaction( new BigDecimal( "10.25" ), Instant.ofEpochMilli( now ) ) );
+		this.statisticsService.register( new Transaction( new BigDecimal( "2.4" ), Instant.ofEpochMilli( now ) ) );
+		String expected = new ObjectMapper().writeValueAsString( this.statisticsService.get() );
+
+		this.statisticsService.reset();
+		assertEquals( StatisticsService.RegisterResult.REGISTERED, this.statisticsService.register( 1025L, 2, now ) );
+		assertEquals( StatisticsService.RegisterResult.REGISTERED, this.statisticsService.register( 24L, 1, now ) );
+		assertEquals( StatisticsService.RegisterResult.DISCARDED, this.statisticsService.register( 100L, 0, now - 2000 ) );
+
+		assertEquals( "The statistics don't match", expected, new ObjectMapper().writeValueAsString( this.statisticsService.get() ) );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void throwsExceptionForParsedTransactionsInTheFuture() {
+		this.statisticsService.register( 1025L, 2, Instant.now().toEpochMilli() + 2000 );
+	}
+
+	@Test
+	public void estimatesQuantiles() throws Exception {
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.parse( "PT1S" ) );
+		configuration.setSamplePeriod( Duration.parse( "PT0.1S" ) );
+		configuration.setQuantiles( Arrays.asList( 0.5, 0.99, 0.999 ) );
+		SamplingStatisticsService statisticsService = new SamplingStatisticsService( configuration );
+
+		assertEquals( "{\"p50\":null,\"p99\":null,\"p99.9\":null}", new ObjectMapper().writeValueAsString( statisticsService.get().getQuantiles() ) );
+
+		long now = Instant.now().toEpochMilli();
+		for ( int i = 1; i <= 1000; i++ ) statisticsService.register( i * 100L, 2, now );
+		statisticsService.register( new Transaction( new BigDecimal( "-5000" ), Instant.ofEpochMilli( now ) ) );
+
+		Map<String, BigDecimal> quantiles = statisticsService.get().getQuantiles();
+		assertEquals( 500, quantiles.get( "p50" ).doubleValue(), 5 );
+		assertEquals( 990, quantiles.get( "p99" ).doubleValue(), 9.9 );
+		assertEquals( 999, quantiles.get( "p99.9" ).doubleValue(), 9.99 );
+		assertEquals( "The quantiles weren't rounded to the decimals of the amounts", 2, quantiles.get( "p50" ).scale() );
+	}
+
+	@Test
+	public void registersBatchesOfTransactions() {
+		List<Transaction> transactions = new ArrayList<>();
+		transactions.add( new Transaction( new BigDecimal( "10.25" ), Instant.now().minus( Duration.parse( "PT2S" ) ) ) ); // Outside
+		transactions.add( new Transaction( new BigDecimal( "6.43" ), Instant.now().minus( Duration.parse( "PT0.1S" ) ) ) ); // Inside
+		transactions.add( new Transaction( new BigDecimal( "4" ), Instant.now().minus( Duration.parse( "PT0.3S" ) ) ) ); // Inside
+		transactions.add( new Transaction( new BigDecimal( "5.50" ), Instant.now().plus( Duration.parse( "PT2S" ) ) ) ); // Future
+
+		BatchResult result = this.statisticsService.registerAll( transactions );
+
+		assertEquals( "The service didn't return the expected number of registered transactions", 2, result.getRegistered() );
+		assertEquals( "The service didn't return the expected number of discarded transactions", 1, result.getDiscarded() );
+		assertEquals( "The service didn't return the expected number of rejected transactions", 1, result.getRejected() );
+
+		Statistics statistics = this.statisticsService.get();
+
+		assertEquals( "The returned statistics didn't have the expected sum", 0, statistics.getSum().compareTo( new BigDecimal( "10.43" ) ) );
+		assertEquals( "The returned statistics didn't have the expected count", 2, (long) statistics.getCount() );
+	}
+
+	@Test
+	public void recordsMetrics() {
+		double registered = this.meterRegistry.get( "statistics.transactions" ).tag( "result", "registered" ).counter().count();
+		double discarded = this.meterRegistry.get( "statistics.transactions" ).tag( "result", "discarded" ).counter().count();
+		double rejected = this.meterRegistry.get( "statistics.transactions" ).tag( "result", "rejected" ).counter().count();
+		long gets = this.meterRegistry.get( "statistics.get" ).timer().count();
+
+		this.statisticsService.register( new Transaction( new BigDecimal( "10.25" ), Instant.now() ) );
+		this.statisticsService.register( new Transaction( new BigDecimal( "6.52" ), Instant.now() ) );
+		this.statisticsService.register( new Transaction( new BigDecimal( "4" ), Instant.now().minus( Duration.parse( "PT2S" ) ) ) );
+		try {
+			this.statisticsService.register( new Transaction( new BigDecimal( "4" ), Instant.now().plus( Duration.parse( "PT2S" ) ) ) );
+		} catch ( IllegalArgumentException ignored ) {}
+		this.statisticsService.get();
+
+		assertEquals( "The registered transactions weren't counted", registered + 2, this.meterRegistry.get( "statistics.transactions" ).tag( "result", "registered" ).counter().count(), 0 );
+		assertEquals( "The discarded transactions weren't counted", discarded + 1, this.meterRegistry.get( "statistics.transactions" ).tag( "result", "discarded" ).counter().count(), 0 );
+		assertEquals( "The rejected transactions weren't counted", rejected + 1, this.meterRegistry.get( "statistics.transactions" ).tag( "result", "rejected" ).counter().count(), 0 );
+		assertEquals( "The get call wasn't timed", gets + 1, this.meterRegistry.get( "statistics.get" ).timer().count() );
+		assertEquals( "The window occupancy wasn't published", 2, this.meterRegistry.get( "statistics.window.transactions" ).gauge().value(), 0 );
+	}
+
+	@Test
+	public void rotatesSamplesInTheBackground() throws Exception {
+		this.statisticsService.register( new Transaction( new BigDecimal( "10.25" ), Instant.now() ) );
+		assertEquals( "The transaction wasn't included in the window", 1, this.meterRegistry.get( "statistics.window.transactions" ).gauge().value(), 0 );
+
+		// No requests are made while the transaction expires
+		Thread.sleep( 1300 );
+
+		assertEquals( "The samples weren't rotated", 0, this.meterRegistry.get( "statistics.window.transactions" ).gauge().value(), 0 );
+	}
+
+	@Test
+	public void returnsTheDecimalsOfTheAmountsLeftOnceOthersExpire() throws Exception {
+		VirtualEpochClock clock = new VirtualEpochClock( Instant.parse( "2018-06-24T00:00:00Z" ) );
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.parse( "PT1S" ) );
+		configuration.setSamplePeriod( Duration.parse( "PT0.1S" ) );
+		configuration.setEpochClock( clock );
+		SamplingStatisticsService statisticsService = new SamplingStatisticsService( configuration );
+		ObjectMapper mapper = new ObjectMapper();
+
+		statisticsService.register( new Transaction( new BigDecimal( "1.25" ), Instant.ofEpochMilli( clock.millis() ) ) );
+		statisticsService.register( new Transaction( new BigDecimal( "0.125" ), Instant.ofEpochMilli( clock.millis() ) ) );
+		clock.advance( Duration.ofMillis( 500 ) );
+		statisticsService.register( new Transaction( new BigDecimal( "10" ), Instant.ofEpochMilli( clock.millis() ) ) );
+		assertEquals( "{\"avg\":3.79,\"sum\":11.375,\"min\":0.125,\"max\":10,\"count\":3}", mapper.writeValueAsString( statisticsService.get() ) );
+
+		clock.advance( Duration.ofMillis( 600 ) );
+		assertEquals( "{\"avg\":10.00,\"sum\":10,\"min\":10,\"max\":10,\"count\":1}", mapper.writeValueAsString( statisticsService.get() ) );
+
+		clock.advance( Duration.ofMillis( 600 ) );
+		assertEquals( "{\"avg\":0,\"sum\":0,\"min\":null,\"max\":null,\"count\":0}", mapper.writeValueAsString( statisticsService.get() ) );
+	}
+
+	@Test
+	public void trimsTheOldestSampleWithTheExactEdge() {
+		VirtualEpochClock clock = new VirtualEpochClock( Instant.parse( "2018-06-24T00:00:00Z" ) );
+		SamplingStatisticsService statisticsService = createExactEdgeService( clock );
+		long start = clock.millis();
+
+		clock.advance( Duration.ofMillis( 600 ) );
+		statisticsService.register( 500, 2, start );
+		statisticsService.register( 10000, 2, start + 50 );
+		statisticsService.register( 3000, 2, start + 60 );
+		statisticsService.register( new Transaction( new BigDecimal( "1000" ), Instant.ofEpochMilli( start + 500 ) ) );
+
+		// The oldest sample starts 30ms before the sampling period
+		clock.advance( Duration.ofMillis( 430 ) );
+		assertStatistics( statisticsService.get(), 3, "1130", "30", "1000" );
+
+		clock.advance( Duration.ofMillis( 25 ) );
+		assertStatistics( statisticsService.get(), 2, "1030", "30", "1000" );
+
+		// The sample expired
+		clock.advance( Duration.ofMillis( 50 ) );
+		assertStatistics( statisticsService.get(), 1, "1000", "1000", "1000" );
+	}
+
+	@Test
+	public void includesTheWholeOldestSampleWhenItsAmountsHaveMoreDecimals() {
+		VirtualEpochClock clock = new VirtualEpochClock( Instant.parse( "2018-06-24T00:00:00Z" ) );
+		SamplingStatisticsService statisticsService = createExactEdgeService( clock );
+		long start = clock.millis();
+
+		clock.advance( Duration.ofMillis( 600 ) );
+		statisticsService.register( new Transaction( new BigDecimal( "0.125" ), Instant.ofEpochMilli( start ) ) );
+		statisticsService.register( 3000, 2, start + 60 );
+
+		clock.advance( Duration.ofMillis( 430 ) );
+		assertStatistics( statisticsService.get(), 2, "30.125", "0.125", "30" );
+	}
+
+	@Test
+	public void keepsTheDecimalsOfTheAmountsWhenTheOldestSampleIsTrimmed() throws Exception {
+		VirtualEpochClock clock = new VirtualEpochClock( Instant.parse( "2018-06-24T00:00:00Z" ) );
+		SamplingStatisticsService exactStatisticsService = createExactEdgeService( clock );
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.parse( "PT1S" ) );
+		configuration.setSamplePeriod( Duration.parse( "PT0.1S" ) );
+		configuration.setEpochClock( clock );
+		SamplingStatisticsService statisticsService = new SamplingStatisticsService( configuration );
+		ObjectMapper mapper = new ObjectMapper();
+		long start = clock.millis();
+
+		clock.advance( Duration.ofMillis( 600 ) );
+		exactStatisticsService.register( new Transaction( new BigDecimal( "10" ), Instant.ofEpochMilli( start ) ) );
+		exactStatisticsService.register( 5, 0, start + 60 );
+		statisticsService.register( new Transaction( new BigDecimal( "10" ), Instant.ofEpochMilli( start ) ) );
+		statisticsService.register( 5, 0, start + 60 );
+		assertEquals( "{\"avg\":7.50,\"sum\":15,\"min\":5,\"max\":10,\"count\":2}", mapper.writeValueAsString( exactStatisticsService.get() ) );
+		assertEquals( mapper.writeValueAsString( statisticsService.get() ), mapper.writeValueAsString( exactStatisticsService.get() ) );
+
+		// Only the amount of the oldest sample that's still inside the sampling period is left
+		clock.advance( Duration.ofMillis( 430 ) );
+		assertEquals( "{\"avg\":5.00,\"sum\":5,\"min\":5,\"max\":5,\"count\":1}", mapper.writeValueAsString( exactStatisticsService.get() ) );
+	}
+
+	private static SamplingStatisticsService createExactEdgeService( VirtualEpochClock clock ) {
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.parse( "PT1S" ) );
+		configuration.setSamplePeriod( Duration.parse( "PT0.1S" ) );
+		configuration.setExactEdge( true );
+		configuration.setEpochClock( clock );
+		return new SamplingStatisticsService( configuration );
+	}
+
+	private static void assertStatistics( Statistics statistics, long count, String sum, String min, String max ) {
+		assertEquals( count, (long) statistics.getCount() );
+		assertEquals( "sum", 0, new BigDecimal( sum ).compareTo( statistics.getSum() ) );
+		assertEquals( "min", 0, new BigDecimal( min ).compareTo( statistics.getMin() ) );
+		assertEquals( "max", 0, new BigDecimal( max ).compareTo( statistics.getMax() ) );
+	}
 }
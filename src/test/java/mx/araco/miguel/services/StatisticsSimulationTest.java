@@ -0,0 +1,229 @@
+package mx.araco.miguel.services;
+
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.Transaction;
+import mx.araco.miguel.n26.services.SamplingStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.StatisticsService;
+import mx.araco.miguel.n26.services.VirtualEpochClock;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives {@link SamplingStatisticsService} through hours of simulated time with a {@link VirtualEpochClock}, and
+ * checks every result against a brute-force oracle: the transactions registered so far, filtered and aggregated
+ * one by one. With the exact edge, the statistics need to be the ones of exactly the sampling period.
+ * <p>
+ * The simulation is seeded, so a failure can be replayed with {@code -Dsimulation.seed=<seed>}, and its length can
+ * be changed with {@code -Dsimulation.transactions=<number>}.
+ *
+ * @author MiguelAraCo
+ */
+public class StatisticsSimulationTest {
+	private static final long SEED = Long.getLong( "simulation.seed", 26L );
+	private static final long TRANSACTIONS = Long.getLong( "simulation.transactions", 1_000_000L );
+
+	private static final long NANOS_PER_MILLI = 1_000_000L;
+	// Not a multiple of the sample period, so the oldest sample is partially outside the sampling period
+	private static final Duration SAMPLING_PERIOD = Duration.parse( "PT10.01S" );
+	private static final Duration SAMPLE_PERIOD = Duration.parse( "PT0.04S" );
+	private static final Duration MAX_WINDOW = Duration.parse( "PT1H" );
+	private static final Duration COARSEST_RESOLUTION = Duration.parse( "PT1M" );
+
+	private static final int SAMPLES_CHECK_INTERVAL = 1_000;
+	private static final int WINDOWS_CHECK_INTERVAL = 50_000;
+	private static final int IDLE_GAP_INTERVAL = 200_000;
+	private static final String[] WINDOWS = { "PT0.5S", "PT10S", "PT45S", "PT5M", "PT59M" };
+
+	/**
+	 * Transactions registered, in the order they were registered: the moment they were registered, their timestamp
+	 * (both in epoch nanos) and their amount (in cents)
+	 */
+	private static final class Registered {
+		private long[] registeredAt = new long[ 1024 ];
+		private long[] timestamps = new long[ 1024 ];
+		private long[] amounts = new long[ 1024 ];
+		private int start;
+		private int end;
+
+		void add( long now, long timestamp, long amount ) {
+			if ( this.end == this.timestamps.length ) {
+				// Compacts the ones pruned, and grows if that's not enough
+				int size = this.end - this.start;
+				int capacity = size * 2 > this.timestamps.length ? this.timestamps.length * 2 : this.timestamps.length;
+				this.registeredAt = Arrays.copyOfRange( this.registeredAt, this.start, this.start + capacity );
+				this.timestamps = Arrays.copyOfRange( this.timestamps, this.start, this.start + capacity );
+				this.amounts = Arrays.copyOfRange( this.amounts, this.start, this.start + capacity );
+				this.start = 0;
+				this.end = size;
+			}
+			this.registeredAt[ this.end ] = now;
+			this.timestamps[ this.end ] = timestamp;
+			this.amounts[ this.end ] = amount;
+			this.end++;
+		}
+
+		/**
+		 * Forgets the transactions registered before the moment provided (their timestamps are even older)
+		 */
+		void prune( long before ) {
+			while ( this.start < this.end && this.registeredAt[ this.start ] < before ) this.start++;
+		}
+	}
+
+	private final SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+	private final VirtualEpochClock clock = new VirtualEpochClock( Instant.parse( "2018-06-24T00:00:00Z" ) );
+	private final Random random = new Random( SEED );
+
+	private final long samplePeriodNanos = SAMPLE_PERIOD.toNanos();
+	private final long sampleSize = SAMPLING_PERIOD.toNanos() / this.samplePeriodNanos + 1;
+
+	@Test
+	public void matchesTheOracleThroughHoursOfTransactions() {
+		simulate( false );
+	}
+
+	@Test
+	public void matchesTheOracleOfTheSamplingPeriodWithTheExactEdge() {
+		simulate( true );
+	}
+
+	private void simulate( boolean exactEdge ) {
+		this.configuration.setSamplingPeriod( SAMPLING_PERIOD );
+		this.configuration.setSamplePeriod( SAMPLE_PERIOD );
+		this.configuration.setMaxWindow( MAX_WINDOW );
+		this.configuration.setWindowResolutions( Arrays.asList( Duration.parse( "PT1S" ), COARSEST_RESOLUTION ) );
+		this.configuration.setEpochClock( this.clock );
+		this.configuration.setExactEdge( exactEdge );
+		SamplingStatisticsService statisticsService = new SamplingStatisticsService( this.configuration );
+
+		Registered registered = new Registered();
+		long start = this.clock.nanos();
+
+		for ( long i = 1; i <= TRANSACTIONS; i++ ) {
+			// Mostly a few milliseconds apart, sometimes at the same moment, and sometimes after a long idle gap
+			if ( i % IDLE_GAP_INTERVAL == 0 ) this.clock.advance( Duration.ofSeconds( 5 + this.random.nextInt( 600 ) ) );
+			else this.clock.advanceNanos( this.random.nextInt( 4 ) == 0 ? 0 : this.random.nextInt( 10 * (int) NANOS_PER_MILLI ) );
+
+			long now = this.clock.nanos();
+			long timestampMillis = nextTimestampMillis( now );
+			long timestamp = timestampMillis * NANOS_PER_MILLI;
+			long amount = 1 + this.random.nextInt( 100_000 );
+
+			StatisticsService.RegisterResult result;
+			try {
+				result = this.random.nextBoolean()
+					? statisticsService.register( amount, 2, timestampMillis )
+					: statisticsService.register( new Transaction( BigDecimal.valueOf( amount, 2 ), Instant.ofEpochMilli( timestampMillis ) ) );
+			} catch ( IllegalArgumentException e ) {
+				assertTrue( describe( i ) + "A transaction in the past was rejected", timestamp > now );
+				continue;
+			}
+			assertTrue( describe( i ) + "A transaction of the future wasn't rejected", timestamp <= now );
+			assertEquals( describe( i ) + "Unexpected result for a transaction " + ( now - timestamp ) + "ns old", isInsideTheSamples( timestamp, now ) && timestamp >= now - SAMPLING_PERIOD.toNanos() ? StatisticsService.RegisterResult.REGISTERED : StatisticsService.RegisterResult.DISCARDED, result );
+
+			if ( result == StatisticsService.RegisterResult.REGISTERED ) registered.add( now, timestamp, amount );
+
+			if ( i % SAMPLES_CHECK_INTERVAL == 0 ) {
+				// Nothing older than the max window (and the bucket its edge may fall in) can be included anymore
+				registered.prune( now - MAX_WINDOW.toNanos() - COARSEST_RESOLUTION.toNanos() );
+				checkSamples( i, statisticsService.get(), registered, exactEdge );
+			}
+			if ( i % WINDOWS_CHECK_INTERVAL == 0 ) {
+				for ( String window : WINDOWS ) checkWindow( i, Duration.parse( window ), statisticsService.get( Duration.parse( window ) ), registered );
+			}
+		}
+
+		assertTrue( "The simulation didn't last hours", this.clock.nanos() - start > Duration.ofHours( 1 ).toNanos() );
+	}
+
+	/**
+	 * @return a timestamp that's usually inside the sampling period, but sometimes right outside it or in the future
+	 */
+	private long nextTimestampMillis( long now ) {
+		long nowMillis = Math.floorDiv( now, NANOS_PER_MILLI );
+		long samplingPeriodMillis = SAMPLING_PERIOD.toMillis();
+		switch ( this.random.nextInt( 20 ) ) {
+			case 0:
+				return nowMillis + 1 + this.random.nextInt( 1000 );
+			case 1:
+				return nowMillis - samplingPeriodMillis - this.random.nextInt( 100 ) + this.random.nextInt( 100 );
+			default:
+				return nowMillis - this.random.nextInt( (int) samplingPeriodMillis );
+		}
+	}
+
+	private boolean isInsideTheSamples( long timestamp, long now ) {
+		return timestamp / this.samplePeriodNanos > now / this.samplePeriodNanos - this.sampleSize;
+	}
+
+	/**
+	 * @param exactEdge
+	 * 	whether the part of the oldest sample that's older than the sampling period is left out
+	 */
+	private void checkSamples( long transaction, Statistics actual, Registered registered, boolean exactEdge ) {
+		long now = this.clock.nanos();
+		long from = now - SAMPLING_PERIOD.toNanos();
+
+		long count = 0;
+		long sum = 0;
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for ( int i = registered.start; i < registered.end; i++ ) {
+			if ( ! isInsideTheSamples( registered.timestamps[ i ], now ) ) continue;
+			if ( exactEdge && registered.timestamps[ i ] < from ) continue;
+
+			long amount = registered.amounts[ i ];
+			count++;
+			sum += amount;
+			min = Math.min( min, amount );
+			max = Math.max( max, amount );
+		}
+
+		String message = describe( transaction );
+		assertEquals( message + "count", count, (long) actual.getCount() );
+		assertEquals( message + "sum", BigDecimal.valueOf( sum, 2 ), actual.getSum().setScale( 2 ) );
+		if ( count == 0 ) return;
+
+		assertEquals( message + "min", BigDecimal.valueOf( min, 2 ), actual.getMin().setScale( 2 ) );
+		assertEquals( message + "max", BigDecimal.valueOf( max, 2 ), actual.getMax().setScale( 2 ) );
+		assertEquals( message + "avg", BigDecimal.valueOf( sum, 2 ).divide( BigDecimal.valueOf( count ), 2, RoundingMode.HALF_EVEN ), actual.getAvg() );
+	}
+
+	/**
+	 * A window needs to include every transaction inside it, and may include up to one bucket of the coarsest
+	 * resolution more
+	 */
+	private void checkWindow( long transaction, Duration window, Statistics actual, Registered registered ) {
+		long now = this.clock.nanos();
+		long from = now - window.toNanos();
+		long coarsestFrom = Math.floorDiv( from, COARSEST_RESOLUTION.toNanos() ) * COARSEST_RESOLUTION.toNanos();
+
+		long lowerBound = 0;
+		long upperBound = 0;
+		for ( int i = registered.start; i < registered.end; i++ ) {
+			long timestamp = registered.timestamps[ i ];
+			if ( timestamp >= from ) lowerBound++;
+			if ( timestamp >= coarsestFrom ) upperBound++;
+		}
+
+		long count = actual.getCount();
+		if ( count < lowerBound || count > upperBound ) {
+			fail( describe( transaction ) + "The window " + window + " has " + count + " transactions instead of " + lowerBound + " to " + upperBound );
+		}
+	}
+
+	private String describe( long transaction ) {
+		return "Seed " + SEED + ", transaction " + transaction + " at " + Instant.ofEpochSecond( 0, this.clock.nanos() ) + ": ";
+	}
+}
@@ -0,0 +1,115 @@
+package mx.araco.miguel.services;
+
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.Transaction;
+import mx.araco.miguel.n26.services.SamplingStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.VirtualEpochClock;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the windows calculated by {@link SamplingStatisticsService#get(Duration)} against the transactions
+ * actually registered, allowing for the margin of error of the resolutions
+ *
+ * @author MiguelAraCo
+ */
+public class StatisticsWindowsTest {
+	private static final long COARSEST_RESOLUTION_MILLIS = 500;
+
+	@Test
+	public void calculatesWindowsLongerThanTheSamplingPeriod() throws Exception {
+		SamplingStatisticsService statisticsService = new SamplingStatisticsService( createConfiguration( "PT0.1S", "PT0.5S" ) );
+
+		// Transactions of 1 every few milliseconds for longer than the max window
+		List<Long> timestamps = new ArrayList<>();
+		long end = System.currentTimeMillis() + 2300;
+		while ( System.currentTimeMillis() < end ) {
+			Instant now = Instant.now();
+			statisticsService.register( new Transaction( BigDecimal.ONE, now ) );
+			timestamps.add( now.toEpochMilli() );
+			Thread.sleep( 5 );
+		}
+
+		for ( String window : new String[]{ "PT0.05S", "PT0.2S", "PT0.5S", "PT0.75S", "PT1.3S", "PT2S" } ) {
+			long windowMillis = Duration.parse( window ).toMillis();
+
+			long before = System.currentTimeMillis();
+			Statistics statistics = statisticsService.get( Duration.parse( window ) );
+			long after = System.currentTimeMillis();
+
+			// Everything inside the window needs to be included, and at most one bucket more
+			long lowerBound = timestamps.stream().filter( timestamp -> timestamp >= after - windowMillis ).count();
+			long upperBound = timestamps.stream().filter( timestamp -> timestamp >= before - windowMillis - COARSEST_RESOLUTION_MILLIS ).count();
+
+			long count = statistics.getCount();
+			assertTrue( "The window " + window + " has " + count + " transactions instead of " + lowerBound + " to " + upperBound, count >= lowerBound && count <= upperBound );
+			assertEquals( "The sum of the window " + window + " doesn't match its count", 0, BigDecimal.valueOf( count ).compareTo( statistics.getSum() ) );
+		}
+	}
+
+	@Test
+	public void keepsTheSameWindowsOutsideTheHeap() {
+		VirtualEpochClock clock = new VirtualEpochClock( Instant.parse( "2018-06-24T00:00:00Z" ) );
+		SamplingStatisticsServiceConfiguration heapConfiguration = createConfiguration( "PT0.1S", "PT0.5S" );
+		heapConfiguration.setEpochClock( clock );
+		SamplingStatisticsServiceConfiguration offHeapConfiguration = createConfiguration( "PT0.1S", "PT0.5S" );
+		offHeapConfiguration.setEpochClock( clock );
+		offHeapConfiguration.setWindowStorage( SamplingStatisticsServiceConfiguration.WindowStorage.OFF_HEAP );
+
+		SamplingStatisticsService heap = new SamplingStatisticsService( heapConfiguration );
+		SamplingStatisticsService offHeap = new SamplingStatisticsService( offHeapConfiguration );
+
+		// Several laps of the rings, with amounts that don't fit in minor units every now and then
+		Random random = new Random( 42 );
+		for ( int i = 0; i < 20_000; i++ ) {
+			clock.advance( Duration.ofMillis( random.nextInt( 2 ) ) );
+			Instant timestamp = Instant.ofEpochMilli( clock.millis() - random.nextInt( 400 ) );
+			BigDecimal amount = i % 1000 == 0 ? new BigDecimal( "0.125" ) : BigDecimal.valueOf( 1 + random.nextInt( 100_000 ), 2 );
+			heap.register( new Transaction( amount, timestamp ) );
+			offHeap.register( new Transaction( amount, timestamp ) );
+
+			if ( i % 500 != 0 ) continue;
+			for ( String window : new String[]{ "PT0.05S", "PT0.35S", "PT1.3S", "PT2S" } ) {
+				Statistics expected = heap.get( Duration.parse( window ) );
+				Statistics actual = offHeap.get( Duration.parse( window ) );
+				String message = "The window " + window + " at " + i + " has a different ";
+				assertEquals( message + "count", expected.getCount(), actual.getCount() );
+				assertEquals( message + "sum", 0, expected.getSum().compareTo( actual.getSum() ) );
+				if ( expected.getCount() == 0 ) continue;
+				assertEquals( message + "min", 0, expected.getMin().compareTo( actual.getMin() ) );
+				assertEquals( message + "max", 0, expected.getMax().compareTo( actual.getMax() ) );
+			}
+		}
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void rejectsWindowsLongerThanTheMaxWindow() {
+		new SamplingStatisticsService( createConfiguration( "PT0.1S", "PT0.5S" ) ).get( Duration.parse( "PT2.5S" ) );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void rejectsResolutionsThatAreNotMultiples() {
+		new SamplingStatisticsService( createConfiguration( "PT0.1S", "PT0.25S" ) );
+	}
+
+	private static SamplingStatisticsServiceConfiguration createConfiguration( String... resolutions ) {
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.parse( "PT0.5S" ) );
+		configuration.setSamplePeriod( Duration.parse( "PT0.05S" ) );
+		configuration.setMaxWindow( Duration.parse( "PT2S" ) );
+		List<Duration> durations = new ArrayList<>();
+		for ( String resolution : resolutions ) durations.add( Duration.parse( resolution ) );
+		configuration.setWindowResolutions( durations );
+		return configuration;
+	}
+}
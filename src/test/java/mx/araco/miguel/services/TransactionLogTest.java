@@ -0,0 +1,179 @@
+package mx.araco.miguel.services;
+
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.models.Transaction;
+import mx.araco.miguel.n26.services.SamplingStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.TransactionLog;
+import mx.araco.miguel.n26.services.VirtualEpochClock;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author MiguelAraCo
+ */
+public class TransactionLogTest {
+	private static final int TRANSACTIONS = 200_000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void recoversTheStatisticsAfterARestart() throws Exception {
+		SamplingStatisticsServiceConfiguration configuration = createConfiguration( "PT2S", "PT0.5S" );
+
+		TransactionLog log = new TransactionLog( configuration );
+		SamplingStatisticsService statisticsService = new SamplingStatisticsService( configuration );
+		statisticsService.setTransactionLog( log );
+		statisticsService.recover();
+
+		long now = System.currentTimeMillis();
+		for ( int i = 0; i < TRANSACTIONS; i++ ) {
+			statisticsService.register( 1 + i % 100_000, 2, now - i % 1000 );
+		}
+		statisticsService.register( new Transaction( new BigDecimal( "10.125" ), Instant.now() ) );
+		statisticsService.register( new Transaction( new BigDecimal( "12345678901234567890123.45" ), Instant.now() ) );
+		Statistics expected = statisticsService.get();
+		log.close();
+		assertTrue( "The log wasn't split in segments", folder.getRoot().listFiles().length > 1 );
+
+		TransactionLog restartedLog = new TransactionLog( configuration );
+		SamplingStatisticsService restartedService = new SamplingStatisticsService( configuration );
+		restartedService.setTransactionLog( restartedLog );
+
+		long recovered = restartedService.recover();
+
+		Statistics actual = restartedService.get();
+		assertEquals( "Not every transaction was recovered", TRANSACTIONS + 2, recovered );
+		assertEquals( "The count wasn't recovered", expected.getCount(), actual.getCount() );
+		assertEquals( "The sum wasn't recovered", expected.getSum(), actual.getSum() );
+		assertEquals( "The min wasn't recovered", expected.getMin(), actual.getMin() );
+		assertEquals( "The max wasn't recovered", expected.getMax(), actual.getMax() );
+
+		restartedLog.close();
+	}
+
+	@Test
+	public void discardsExpiredSegments() throws Exception {
+		VirtualEpochClock clock = new VirtualEpochClock( Instant.parse( "2018-06-24T00:00:00Z" ) );
+		SamplingStatisticsServiceConfiguration configuration = createConfiguration( "PT0.5S", "PT0.1S" );
+		configuration.setEpochClock( clock );
+
+		TransactionLog log = new TransactionLog( configuration );
+		SamplingStatisticsService statisticsService = new SamplingStatisticsService( configuration );
+		statisticsService.setTransactionLog( log );
+
+		// A segment per transaction
+		for ( int i = 0; i < 10; i++ ) {
+			statisticsService.register( 100, 2, clock.millis() );
+			clock.advance( Duration.ofMillis( 100 ) );
+		}
+		log.flush();
+		// The segments after the ones started more than a sampling period ago, and the last of those
+		assertEquals( "Expired segments weren't deleted: " + Arrays.toString( folder.getRoot().list() ), 6, folder.getRoot().list().length );
+		log.close();
+
+		// Every transaction expires
+		clock.advance( Duration.ofMillis( 600 ) );
+
+		TransactionLog restartedLog = new TransactionLog( configuration );
+		SamplingStatisticsService restartedService = new SamplingStatisticsService( configuration );
+		restartedService.setTransactionLog( restartedLog );
+		assertEquals( "Expired transactions were recovered", 0, restartedService.recover() );
+		assertEquals( "Expired segments weren't deleted", 0, folder.getRoot().list().length );
+		restartedLog.close();
+	}
+
+	@Test
+	public void keepsSegmentsWithTransactionsAheadOfTheCoarseClock() throws Exception {
+		VirtualEpochClock clock = new VirtualEpochClock( Instant.parse( "2018-06-24T00:00:00Z" ) );
+		SamplingStatisticsServiceConfiguration configuration = createConfiguration( "PT0.5S", "PT1S" );
+		configuration.setEpochClock( clock );
+		// Two transactions per segment
+		configuration.getPersistence().setSegmentSize( 48 );
+
+		TransactionLog log = new TransactionLog( configuration );
+		SamplingStatisticsService statisticsService = new SamplingStatisticsService( configuration );
+		statisticsService.setTransactionLog( log );
+
+		statisticsService.register( 100, 2, clock.millis() );
+		// Accepted with the precise clock, 50ms ahead of the coarse one
+		clock.setPreciseLead( Duration.ofMillis( 50 ) );
+		statisticsService.register( 200, 2, clock.millis() + 50 );
+		clock.setPreciseLead( Duration.ZERO );
+		// Starts the next segment, with the coarse clock behind the previous transaction
+		clock.advance( Duration.ofMillis( 10 ) );
+		statisticsService.register( 300, 2, clock.millis() );
+
+		// Only the transaction ahead of the coarse clock is still in the sampling period
+		clock.advance( Duration.ofMillis( 510 ) );
+		log.flush();
+		log.close();
+
+		TransactionLog restartedLog = new TransactionLog( configuration );
+		SamplingStatisticsService restartedService = new SamplingStatisticsService( configuration );
+		restartedService.setTransactionLog( restartedLog );
+		assertEquals( "The transaction ahead of the coarse clock wasn't recovered", 1, restartedService.recover() );
+		assertEquals( "The sum wasn't recovered", new BigDecimal( "2.00" ), restartedService.get().getSum() );
+		restartedLog.close();
+	}
+
+	@Test
+	public void stopsReplayingAtADamagedRecord() throws Exception {
+		VirtualEpochClock clock = new VirtualEpochClock( Instant.parse( "2018-06-24T00:00:00Z" ) );
+		SamplingStatisticsServiceConfiguration configuration = createConfiguration( "PT1S", "PT1S" );
+		configuration.setEpochClock( clock );
+
+		TransactionLog log = new TransactionLog( configuration );
+		SamplingStatisticsService statisticsService = new SamplingStatisticsService( configuration );
+		statisticsService.setTransactionLog( log );
+		statisticsService.register( 100, 2, clock.millis() );
+		statisticsService.register( 300, 2, clock.millis() );
+		log.close();
+
+		// A record after the two appended, with a length the segment doesn't have room for
+		File[] segments = folder.getRoot().listFiles();
+		assertEquals( "The log wasn't written in a single segment", 1, segments.length );
+		try ( FileChannel channel = FileChannel.open( segments[ 0 ].toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+			ByteBuffer damaged = ByteBuffer.allocate( 16 ).putLong( clock.nanos() ).putInt( 2 ).putInt( Integer.MAX_VALUE );
+			damaged.flip();
+			channel.write( damaged, 2 * 24 );
+		}
+
+		TransactionLog restartedLog = new TransactionLog( configuration );
+		SamplingStatisticsService restartedService = new SamplingStatisticsService( configuration );
+		restartedService.setTransactionLog( restartedLog );
+		assertEquals( "The damaged record wasn't left out", 2, restartedService.recover() );
+
+		Statistics statistics = restartedService.get();
+		assertEquals( "The count wasn't recovered", 2, (long) statistics.getCount() );
+		assertEquals( "The min wasn't recovered", new BigDecimal( "1.00" ), statistics.getMin() );
+		restartedLog.close();
+	}
+
+	private SamplingStatisticsServiceConfiguration createConfiguration( String samplingPeriod, String segmentPeriod ) {
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.parse( samplingPeriod ) );
+		configuration.setSamplePeriod( Duration.ofMillis( 100 ) );
+
+		SamplingStatisticsServiceConfiguration.Persistence persistence = configuration.getPersistence();
+		persistence.setEnabled( true );
+		persistence.setDirectory( folder.getRoot().getPath() );
+		persistence.setSegmentSize( 1024 * 1024 );
+		persistence.setSegmentPeriod( Duration.parse( segmentPeriod ) );
+		return configuration;
+	}
+}
@@ -0,0 +1,129 @@
+package mx.araco.miguel.tcp;
+
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.services.SamplingStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.tcp.TransactionListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author MiguelAraCo
+ */
+public class TransactionListenerTest {
+	private SamplingStatisticsService statisticsService;
+	private TransactionListener listener;
+
+	@Before
+	public void startListener() throws IOException {
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.ofSeconds( 60 ) );
+		configuration.setSamplePeriod( Duration.ofSeconds( 1 ) );
+		configuration.getTcp().setPort( 0 );
+		// Small buffers, so frames get split across reads
+		configuration.getTcp().setBufferSize( 1000 );
+		configuration.getTcp().setWorkers( 2 );
+
+		this.statisticsService = new SamplingStatisticsService( configuration );
+		this.listener = new TransactionListener( this.statisticsService, configuration );
+		this.listener.start();
+	}
+
+	@After
+	public void stopListener() throws Exception {
+		this.listener.stop();
+	}
+
+	@Test
+	public void answersEveryFrame() throws IOException {
+		try ( SocketChannel channel = connect() ) {
+			long now = System.currentTimeMillis();
+			ByteBuffer frames = ByteBuffer.allocate( 3 * TransactionListener.FRAME_SIZE );
+			frames.putLong( 1265 ).putLong( now );
+			frames.putLong( 500 ).putLong( now - 61_000 );
+			frames.putLong( 700 ).putLong( now + 60_000 );
+			frames.flip();
+			while ( frames.hasRemaining() ) channel.write( frames );
+
+			ByteBuffer answers = read( channel, 3 );
+			assertEquals( "The transaction wasn't registered", TransactionListener.REGISTERED, answers.get( 0 ) );
+			assertEquals( "The old transaction wasn't discarded", TransactionListener.DISCARDED, answers.get( 1 ) );
+			assertEquals( "The future transaction wasn't rejected", TransactionListener.REJECTED, answers.get( 2 ) );
+		}
+
+		Statistics statistics = this.statisticsService.get();
+		assertEquals( "The returned statistics didn't have the expected count", 1, (long) statistics.getCount() );
+		assertEquals( "The returned statistics didn't have the expected sum", 0, statistics.getSum().compareTo( new BigDecimal( "12.65" ) ) );
+	}
+
+	@Test
+	public void registersPipelinedFramesOfSeveralConnections() throws Exception {
+		int connections = 3;
+		int frames = 100_000;
+
+		ExecutorService executor = Executors.newFixedThreadPool( 2 * connections );
+		try {
+			Future<?>[] readers = new Future<?>[ connections ];
+			for ( int i = 0; i < connections; i++ ) {
+				SocketChannel channel = connect();
+				// Frames are written without waiting for their answers, which are read by another thread
+				executor.submit( () -> {
+					ByteBuffer buffer = ByteBuffer.allocate( 64 * TransactionListener.FRAME_SIZE );
+					long now = System.currentTimeMillis();
+					for ( int frame = 1; frame <= frames; frame++ ) {
+						buffer.putLong( frame ).putLong( now );
+						if ( ! buffer.hasRemaining() || frame == frames ) {
+							buffer.flip();
+							while ( buffer.hasRemaining() ) channel.write( buffer );
+							buffer.clear();
+						}
+					}
+					return null;
+				} );
+				readers[ i ] = executor.submit( () -> {
+					try ( SocketChannel closing = channel ) {
+						ByteBuffer answers = read( closing, frames );
+						for ( int frame = 0; frame < frames; frame++ ) assertEquals( "A frame wasn't registered", TransactionListener.REGISTERED, answers.get( frame ) );
+					}
+					return null;
+				} );
+			}
+			for ( Future<?> reader : readers ) reader.get();
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// connections * (0.01 + 0.02 + ... + 1000.00)
+		BigDecimal expectedSum = BigDecimal.valueOf( (long) frames * ( frames + 1 ) / 2, 2 ).multiply( BigDecimal.valueOf( connections ) );
+
+		Statistics statistics = this.statisticsService.get();
+		assertEquals( "The returned statistics didn't have the expected count", connections * frames, (long) statistics.getCount() );
+		assertEquals( "The returned statistics didn't have the expected sum", 0, statistics.getSum().compareTo( expectedSum ) );
+	}
+
+	private SocketChannel connect() throws IOException {
+		return SocketChannel.open( new InetSocketAddress( "localhost", this.listener.getPort() ) );
+	}
+
+	private static ByteBuffer read( SocketChannel channel, int answers ) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate( answers );
+		while ( buffer.hasRemaining() ) {
+			if ( channel.read( buffer ) < 0 ) throw new IOException( "The listener closed the connection" );
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,125 @@
+package web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mx.araco.miguel.n26.models.Transaction;
+import mx.araco.miguel.n26.services.KeyedStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.StatisticsService;
+import mx.araco.miguel.n26.services.StatisticsServiceMetrics;
+import mx.araco.miguel.n26.web.AdmissionControl;
+import mx.araco.miguel.n26.web.TransactionsController;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author MiguelAraCo
+ */
+public class AdmissionControlTest {
+	private final MeterRegistry registry = new SimpleMeterRegistry();
+	private final StatisticsServiceMetrics metrics = new StatisticsServiceMetrics( this.registry );
+
+	@Test
+	public void shedsRequestsBeyondTheMaxInFlight() {
+		AdmissionControl admissionControl = createAdmissionControl( 2 );
+
+		assertTrue( admissionControl.tryAcquire() );
+		assertTrue( admissionControl.tryAcquire() );
+		assertFalse( "The request wasn't shed", admissionControl.tryAcquire() );
+
+		admissionControl.release();
+		assertTrue( "The request wasn't admitted once there was room", admissionControl.tryAcquire() );
+		assertEquals( 1, getShed( "in_flight" ), 0 );
+		assertEquals( 2, this.registry.get( "statistics.admission.in_flight" ).gauge().value(), 0 );
+	}
+
+	@Test
+	public void derivesTheMaxInFlightFromTheWorkerThreads() {
+		SamplingStatisticsServiceConfiguration configuration = createConfiguration( 0 );
+		configuration.getAdmission().setReservedThreads( 3 );
+		ServerProperties serverProperties = new ServerProperties();
+		serverProperties.getUndertow().setWorkerThreads( 10 );
+
+		AdmissionControl admissionControl = new AdmissionControl( configuration, serverProperties, this.metrics, this.registry );
+		assertEquals( "The reserved threads weren't left out", 7, admissionControl.getMaxInFlight() );
+	}
+
+	@Test
+	public void shedsRequestsWhileTheLockWaitsAreTooLong() throws Exception {
+		AdmissionControl admissionControl = createAdmissionControl( 10 );
+		SamplingStatisticsService statisticsService = new SamplingStatisticsService( createConfiguration( 10 ), this.metrics );
+
+		Transaction transaction = new Transaction( BigDecimal.ONE, Instant.now() );
+		Thread writer = new Thread( () -> statisticsService.register( transaction ) );
+		synchronized ( statisticsService ) {
+			writer.start();
+			Thread.sleep( 100 );
+		}
+		writer.join();
+
+		// Requests are still let through one at a time
+		assertTrue( admissionControl.tryAcquire() );
+		assertFalse( "The request wasn't shed", admissionControl.tryAcquire() );
+		assertEquals( 1, getShed( "lock_wait" ), 0 );
+	}
+
+	@Test
+	public void returns429WithRetryAfterWhenShed() throws Exception {
+		AdmissionControl admissionControl = createAdmissionControl( 1 );
+		StatisticsService statisticsService = Mockito.mock( StatisticsService.class );
+
+		TransactionsController controller = new TransactionsController();
+		controller.setStatisticsService( statisticsService );
+		controller.setKeyedStatisticsService( Mockito.mock( KeyedStatisticsService.class ) );
+		controller.setObjectMapper( new ObjectMapper() );
+		controller.setAdmissionControl( admissionControl );
+		MockMvc mvc = MockMvcBuilders.standaloneSetup( controller ).build();
+
+		assertTrue( admissionControl.tryAcquire() );
+		MockHttpServletResponse response = mvc.perform(
+			MockMvcRequestBuilders
+				.post( "/transactions" )
+				.contentType( MediaType.APPLICATION_JSON )
+				.content( "{ \"amount\": 12.65, \"timestamp\": " + System.currentTimeMillis() + " }" )
+		).andReturn().getResponse();
+
+		assertEquals( 429, response.getStatus() );
+		assertEquals( "2", response.getHeader( HttpHeaders.RETRY_AFTER ) );
+		Mockito.verifyZeroInteractions( statisticsService );
+	}
+
+	private AdmissionControl createAdmissionControl( int maxInFlight ) {
+		return new AdmissionControl( createConfiguration( maxInFlight ), new ServerProperties(), this.metrics, this.registry );
+	}
+
+	private static SamplingStatisticsServiceConfiguration createConfiguration( int maxInFlight ) {
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.parse( "PT60S" ) );
+		configuration.setSamplePeriod( Duration.parse( "PT0.05S" ) );
+		configuration.getAdmission().setMaxInFlight( maxInFlight );
+		configuration.getAdmission().setMaxLockWait( Duration.ofMillis( 1 ) );
+		configuration.getAdmission().setRetryAfter( Duration.ofMillis( 1500 ) );
+		return configuration;
+	}
+
+	private double getShed( String reason ) {
+		return this.registry.get( "statistics.admission.shed" ).tag( "reason", reason ).counter().count();
+	}
+}
@@ -0,0 +1,82 @@
+package web;
+
+import mx.araco.miguel.n26.Application;
+import mx.araco.miguel.n26.services.ClusterStatisticsService;
+import mx.araco.miguel.n26.web.ClusterController;
+import org.junit.Test;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestTemplate;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs several nodes in the same JVM, on random ports of localhost
+ *
+ * @author MiguelAraCo
+ */
+public class ClusterStatisticsTest {
+	private final RestTemplate restTemplate = new RestTemplate();
+
+	@Test
+	public void aggregatesTheStatisticsOfThePeers() throws Exception {
+		ConfigurableApplicationContext first = startNode();
+		ConfigurableApplicationContext second = startNode();
+		ConfigurableApplicationContext aggregator = startNode(
+			"--mx.araco.miguel.n26.cluster.enabled=true",
+			"--mx.araco.miguel.n26.cluster.peers=" + getUrl( first ) + "," + getUrl( second ),
+			"--mx.araco.miguel.n26.cluster.max-staleness=PT0.5S"
+		);
+		try {
+			postTransaction( first, "10.25" );
+			postTransaction( first, "4.75" );
+			postTransaction( second, "100" );
+			postTransaction( aggregator, "1" );
+
+			ClusterStatisticsService clusterStatisticsService = aggregator.getBean( ClusterStatisticsService.class );
+			clusterStatisticsService.poll();
+
+			ResponseEntity<String> response = this.restTemplate.getForEntity( getUrl( aggregator ) + "/cluster/statistics", String.class );
+			assertEquals( "The peers weren't included", "2/2", response.getHeaders().getFirst( ClusterController.PEERS_HEADER ) );
+			JSONAssert.assertEquals( "The statistics weren't aggregated", "{ sum: 116, min: 1, max: 100, count: 4 }", response.getBody(), false );
+
+			// A peer that goes down is left out once its snapshot gets too old
+			second.close();
+			clusterStatisticsService.stopPolling();
+			Thread.sleep( 600 );
+			clusterStatisticsService.poll();
+
+			response = this.restTemplate.getForEntity( getUrl( aggregator ) + "/cluster/statistics", String.class );
+			assertEquals( "The stale peer was included", "1/2", response.getHeaders().getFirst( ClusterController.PEERS_HEADER ) );
+			JSONAssert.assertEquals( "The statistics weren't aggregated", "{ sum: 16, count: 3 }", response.getBody(), false );
+		} finally {
+			aggregator.close();
+			second.close();
+			first.close();
+		}
+	}
+
+	private static ConfigurableApplicationContext startNode( String... arguments ) {
+		String[] defaults = { "--server.port=0", "--spring.jmx.enabled=false", "--spring.main.banner-mode=off" };
+		String[] all = new String[ defaults.length + arguments.length ];
+		System.arraycopy( defaults, 0, all, 0, defaults.length );
+		System.arraycopy( arguments, 0, all, defaults.length, arguments.length );
+		return new SpringApplicationBuilder( Application.class ).run( all );
+	}
+
+	private static String getUrl( ConfigurableApplicationContext node ) {
+		return "http://localhost:" + node.getEnvironment().getProperty( "local.server.port" );
+	}
+
+	private void postTransaction( ConfigurableApplicationContext node, String amount ) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType( MediaType.APPLICATION_JSON );
+		String body = "{ \"amount\": " + amount + ", \"timestamp\": " + System.currentTimeMillis() + " }";
+		this.restTemplate.postForEntity( getUrl( node ) + "/transactions", new HttpEntity<>( body, headers ), Void.class );
+	}
+}
@@ -0,0 +1,135 @@
+package web;
+
+import mx.araco.miguel.n26.Application;
+import mx.araco.miguel.n26.FastStartApplication;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Sends the same requests to {@link FastStartApplication} and {@link Application}, and expects the same responses
+ *
+ * @author MiguelAraCo
+ */
+public class FastStartApplicationTest {
+	private static ConfigurableApplicationContext springNode;
+	private static FastStartApplication fastStartNode;
+
+	@BeforeClass
+	public static void startNodes() throws IOException {
+		springNode = new SpringApplicationBuilder( Application.class ).run( "--server.port=0", "--spring.jmx.enabled=false", "--spring.main.banner-mode=off" );
+		fastStartNode = new FastStartApplication( "--server.port=0" );
+		fastStartNode.start();
+	}
+
+	@AfterClass
+	public static void stopNodes() {
+		fastStartNode.stop();
+		springNode.close();
+	}
+
+	private static final class Response {
+		private final int status;
+		private final String contentType;
+		private final String eTag;
+		private final String body;
+
+		Response( HttpURLConnection connection ) throws IOException {
+			this.status = connection.getResponseCode();
+			this.contentType = connection.getContentType();
+			this.eTag = connection.getHeaderField( "ETag" );
+
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			InputStream input = this.status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if ( input != null ) {
+				byte[] buffer = new byte[ 1024 ];
+				int read;
+				while ( ( read = input.read( buffer ) ) != - 1 ) body.write( buffer, 0, read );
+				input.close();
+			}
+			this.body = new String( body.toByteArray(), StandardCharsets.UTF_8 );
+		}
+	}
+
+	@Test
+	public void registersTransactionsLikeTheSpringApplication() throws Exception {
+		long now = System.currentTimeMillis();
+		String[] bodies = {
+			"{ \"amount\": 12.65, \"timestamp\": " + now + " }",
+			"{ \"amount\": \"7.35\", \"timestamp\": \"" + Instant.ofEpochMilli( now ).toString() + "\" }",
+			"{ \"amount\": 1, \"timestamp\": 1529822905186 }",
+			"{ \"amount\": 1, \"timestamp\": " + ( now + 60_000 ) + " }",
+			"{ \"amount\": 1 }",
+			"{ \"amount\": ",
+			""
+		};
+		for ( String body : bodies ) {
+			Response expected = post( getSpringUrl(), "application/json", body );
+			Response actual = post( getFastStartUrl(), "application/json", body );
+			assertEquals( "Different status for " + body, expected.status, actual.status );
+		}
+
+		assertEquals( post( getSpringUrl(), "text/plain", bodies[ 0 ] ).status, post( getFastStartUrl(), "text/plain", bodies[ 0 ] ).status );
+
+		Response expected = get( getSpringUrl() + "/statistics", null );
+		Response actual = get( getFastStartUrl() + "/statistics", null );
+		assertEquals( 200, actual.status );
+		assertEquals( expected.contentType, actual.contentType );
+		JSONAssert.assertEquals( "{ sum: 20.00, avg: 10.00, max: 12.65, min: 7.35, count: 2 }", actual.body, true );
+		JSONAssert.assertEquals( expected.body, actual.body, true );
+
+		assertEquals( 304, get( getFastStartUrl() + "/statistics", actual.eTag ).status );
+
+		expected = get( getSpringUrl() + "/statistics?window=PT10S", null );
+		actual = get( getFastStartUrl() + "/statistics?window=PT10S", null );
+		assertEquals( expected.status, actual.status );
+		assertEquals( expected.contentType, actual.contentType );
+		JSONAssert.assertEquals( expected.body, actual.body, true );
+		assertEquals( get( getSpringUrl() + "/statistics?window=10", null ).status, get( getFastStartUrl() + "/statistics?window=10", null ).status );
+	}
+
+	@Test
+	public void rejectsOtherRoutesLikeTheSpringApplication() throws Exception {
+		assertEquals( get( getSpringUrl() + "/unknown", null ).status, get( getFastStartUrl() + "/unknown", null ).status );
+		assertEquals( get( getSpringUrl() + "/transactions", null ).status, get( getFastStartUrl() + "/transactions", null ).status );
+	}
+
+	private static String getSpringUrl() {
+		return "http://localhost:" + springNode.getEnvironment().getProperty( "local.server.port" );
+	}
+
+	private static String getFastStartUrl() {
+		return "http://localhost:" + fastStartNode.getPort();
+	}
+
+	private static Response get( String url, String ifNoneMatch ) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL( url ).openConnection();
+		if ( ifNoneMatch != null ) connection.setRequestProperty( "If-None-Match", ifNoneMatch );
+		return new Response( connection );
+	}
+
+	private static Response post( String url, String contentType, String body ) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL( url + "/transactions" ).openConnection();
+		connection.setRequestMethod( "POST" );
+		connection.setRequestProperty( "Content-Type", contentType );
+		connection.setDoOutput( true );
+		try ( OutputStream output = connection.getOutputStream() ) {
+			output.write( body.getBytes( StandardCharsets.UTF_8 ) );
+		}
+		return new Response( connection );
+	}
+}
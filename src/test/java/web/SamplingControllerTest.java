@@ -0,0 +1,87 @@
+package web;
+
+import mx.araco.miguel.n26.Application;
+import mx.araco.miguel.n26.models.SamplingLayout;
+import mx.araco.miguel.n26.services.Resampler;
+import mx.araco.miguel.n26.web.SamplingController;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author MiguelAraCo
+ */
+@RunWith( SpringRunner.class )
+@WebMvcTest( controllers = SamplingController.class, secure = false )
+@ContextConfiguration(
+	classes = {
+		Application.class
+	}
+)
+public class SamplingControllerTest {
+	@Autowired
+	private MockMvc mvc;
+
+	@MockBean
+	private Resampler resampler;
+
+	@Test
+	public void returnsTheCurrentLayout() throws Exception {
+		Mockito.when( this.resampler.getLayout() ).thenReturn( new SamplingLayout( Duration.ofMillis( 50 ), Duration.ofSeconds( 60 ), true ) );
+
+		MockHttpServletResponse response = this.mvc.perform( MockMvcRequestBuilders.get( "/admin/sampling" ) ).andReturn().getResponse();
+		assertEquals( 200, response.getStatus() );
+		JSONAssert.assertEquals( "{ samplePeriod: \"PT0.05S\", samplingPeriod: \"PT1M\", adaptive: true }", response.getContentAsString(), true );
+	}
+
+	@Test
+	public void changesTheLayout() throws Exception {
+		ArgumentCaptor<SamplingLayout> layout = ArgumentCaptor.forClass( SamplingLayout.class );
+		Mockito.when( this.resampler.change( layout.capture() ) ).thenReturn( new SamplingLayout( Duration.ofMillis( 10 ), Duration.ofSeconds( 60 ), false ) );
+
+		MockHttpServletResponse response = this.mvc.perform( put( "{ \"samplePeriod\": \"PT0.01S\" }" ) ).andReturn().getResponse();
+		assertEquals( 200, response.getStatus() );
+		JSONAssert.assertEquals( "{ samplePeriod: \"PT0.01S\", samplingPeriod: \"PT1M\", adaptive: false }", response.getContentAsString(), true );
+		assertEquals( Duration.ofMillis( 10 ), layout.getValue().getSamplePeriod() );
+		assertNull( "A period that wasn't provided was changed", layout.getValue().getSamplingPeriod() );
+		assertNull( "The adaptive mode was changed", layout.getValue().getAdaptive() );
+	}
+
+	@Test
+	public void rejectsLayoutsTheServiceCantUse() throws Exception {
+		Mockito.when( this.resampler.change( Mockito.any() ) ).thenThrow( new IllegalArgumentException() );
+
+		assertEquals( 400, this.mvc.perform( put( "{ \"samplePeriod\": \"PT0.03S\" }" ) ).andReturn().getResponse().getStatus() );
+		assertEquals( 400, this.mvc.perform( put( "{ \"samplePeriod\": \"50ms\" }" ) ).andReturn().getResponse().getStatus() );
+	}
+
+	@Test
+	public void returnsNotFoundWhenResamplingIsDisabled() throws Exception {
+		MockMvc mvc = MockMvcBuilders.standaloneSetup( new SamplingController() ).build();
+
+		assertEquals( 404, mvc.perform( MockMvcRequestBuilders.get( "/admin/sampling" ) ).andReturn().getResponse().getStatus() );
+		assertEquals( 404, mvc.perform( put( "{ \"samplePeriod\": \"PT0.01S\" }" ) ).andReturn().getResponse().getStatus() );
+	}
+
+	private static MockHttpServletRequestBuilder put( String body ) {
+		return MockMvcRequestBuilders.put( "/admin/sampling" ).contentType( MediaType.APPLICATION_JSON ).content( body );
+	}
+}
@@ -1,27 +1,45 @@
 package web;
 
 import mx.araco.miguel.n26.Application;
+import mx.araco.miguel.n26.models.KeyedStatistics;
 import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.services.KeyedStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
 import mx.araco.miguel.n26.services.StatisticsService;
+import mx.araco.miguel.n26.services.VirtualEpochClock;
 import mx.araco.miguel.n26.web.StatisticsController;
+import mx.araco.miguel.n26.web.StatisticsSnapshotPublisher;
+import mx.araco.miguel.n26.web.StatisticsStream;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 import org.skyscreamer.jsonassert.JSONAssert;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.RequestBuilder;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
 import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 
 /**
  * @author MiguelAraCo
@@ -33,13 +51,51 @@ import static org.junit.Assert.assertEquals;
 		Application.class
 	}
 )
+@Import( { StatisticsSnapshotPublisher.class, StatisticsControllerTest.VirtualClockConfiguration.class } )
+// Each test changes the statistics right before requesting them
+@TestPropertySource( properties = "mx.araco.miguel.n26.snapshot-min-age=PT0S" )
 public class StatisticsControllerTest {
+	/**
+	 * The snapshot publisher outlives the mocks, so each test uses a different version to avoid getting the
+	 * snapshot of another test
+	 */
+	private static final AtomicLong versions = new AtomicLong();
+	/**
+	 * Only moves when a test advances it, so the snapshots don't get old while a test runs
+	 */
+	private static final VirtualEpochClock clock = new VirtualEpochClock( Instant.parse( "2018-06-24T00:00:00Z" ) );
+
+	@TestConfiguration
+	static class VirtualClockConfiguration {
+		@Bean
+		@ConfigurationProperties( "mx.araco.miguel.n26" )
+		public SamplingStatisticsServiceConfiguration samplingStatisticsServiceConfiguration() {
+			SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+			configuration.setEpochClock( clock );
+			return configuration;
+		}
+	}
+
 	@Autowired
 	private MockMvc mvc;
 
+	@Autowired
+	private SamplingStatisticsServiceConfiguration configuration;
+
 	@MockBean
 	private StatisticsService statisticsService;
 
+	@MockBean
+	private KeyedStatisticsService keyedStatisticsService;
+
+	@MockBean
+	private StatisticsStream statisticsStream;
+
+	@Before
+	public void setUp() {
+		Mockito.when( statisticsService.getVersion() ).thenReturn( versions.incrementAndGet() );
+	}
+
 	@Test
 	public void returns200WithJSON() throws Exception {
 		Statistics statistics = new Statistics();
@@ -70,4 +126,117 @@ public class StatisticsControllerTest {
 		JSONAssert.assertEquals( "/statistics didn't return the expected JSON", expected, response.getContentAsString(), false );
 	}
 
+	@Test
+	public void returns304WhenTheStatisticsDidNotChange() throws Exception {
+		Mockito.when( statisticsService.get() ).thenReturn( new Statistics() );
+
+		MockHttpServletResponse first = mvc.perform( MockMvcRequestBuilders.get( "/statistics" ) ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 200, first.getStatus() );
+
+		String eTag = first.getHeader( HttpHeaders.ETAG );
+		assertNotNull( "The response didn't include an ETag", eTag );
+
+		MockHttpServletResponse second = mvc.perform(
+			MockMvcRequestBuilders.get( "/statistics" ).header( HttpHeaders.IF_NONE_MATCH, eTag )
+		).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 304, second.getStatus() );
+		assertEquals( "The response body of a 304 wasn't empty", 0, second.getContentLength() );
+		assertEquals( "The ETag of the statistics changed", eTag, second.getHeader( HttpHeaders.ETAG ) );
+	}
+
+	@Test
+	public void reusesTheSnapshotWhileTheVersionDoesNotChange() throws Exception {
+		Statistics statistics = new Statistics();
+		statistics.add( new BigDecimal( "5" ) );
+		Mockito.when( statisticsService.get() ).thenReturn( statistics );
+
+		MockHttpServletResponse first = mvc.perform( MockMvcRequestBuilders.get( "/statistics" ) ).andReturn().getResponse();
+		MockHttpServletResponse second = mvc.perform( MockMvcRequestBuilders.get( "/statistics" ) ).andReturn().getResponse();
+
+		assertEquals( "The snapshot wasn't reused", first.getContentAsString(), second.getContentAsString() );
+		Mockito.verify( statisticsService, Mockito.times( 1 ) ).get();
+
+		// Snapshots older than a sample period are renewed even if the version didn't change
+		clock.advance( configuration.getSamplePeriod() );
+		mvc.perform( MockMvcRequestBuilders.get( "/statistics" ) ).andReturn().getResponse();
+		Mockito.verify( statisticsService, Mockito.times( 2 ) ).get();
+
+		Mockito.when( statisticsService.getVersion() ).thenReturn( versions.incrementAndGet() );
+		statistics.add( new BigDecimal( "7" ) );
+
+		MockHttpServletResponse third = mvc.perform( MockMvcRequestBuilders.get( "/statistics" ) ).andReturn().getResponse();
+		JSONAssert.assertEquals( "The snapshot wasn't renewed", "{ sum: 12, count: 2 }", third.getContentAsString(), false );
+		assertEquals( "The ETag didn't change", false, first.getHeader( HttpHeaders.ETAG ).equals( third.getHeader( HttpHeaders.ETAG ) ) );
+	}
+
+	@Test
+	public void returnsTheStatisticsOfTheWindowRequested() throws Exception {
+		Statistics statistics = new Statistics();
+		statistics.add( new BigDecimal( "5" ) );
+		Mockito.when( statisticsService.get( Duration.parse( "PT10S" ) ) ).thenReturn( statistics );
+		Mockito.when( statisticsService.get( Duration.parse( "PT2H" ) ) ).thenThrow( new IllegalArgumentException() );
+
+		MockHttpServletResponse response = mvc.perform( MockMvcRequestBuilders.get( "/statistics" ).param( "window", "PT10S" ) ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 200, response.getStatus() );
+		JSONAssert.assertEquals( "The statistics of the window weren't returned", "{ sum: 5, count: 1 }", response.getContentAsString(), false );
+
+		response = mvc.perform( MockMvcRequestBuilders.get( "/statistics" ).param( "window", "PT2H" ) ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 400, response.getStatus() );
+
+		response = mvc.perform( MockMvcRequestBuilders.get( "/statistics" ).param( "window", "10 seconds" ) ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 400, response.getStatus() );
+	}
+
+	@Test
+	public void returnsTheStatisticsOfAKey() throws Exception {
+		Statistics statistics = new Statistics();
+		statistics.add( new BigDecimal( "5" ) );
+		Mockito.when( keyedStatisticsService.get( "merchant.example.com" ) ).thenReturn( statistics );
+
+		MockHttpServletResponse response = mvc.perform( MockMvcRequestBuilders.get( "/statistics/keys/merchant.example.com" ) ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 200, response.getStatus() );
+		JSONAssert.assertEquals( "The statistics of the key weren't returned", "{ sum: 5, count: 1 }", response.getContentAsString(), false );
+	}
+
+	@Test
+	public void returnsTheStatisticsOfKeysNamedLikeOtherEndpoints() throws Exception {
+		Statistics stream = new Statistics();
+		stream.add( new BigDecimal( "5" ) );
+		Mockito.when( keyedStatisticsService.get( "stream" ) ).thenReturn( stream );
+		Statistics top = new Statistics();
+		top.add( new BigDecimal( "7" ) );
+		Mockito.when( keyedStatisticsService.get( "top" ) ).thenReturn( top );
+
+		MockHttpServletResponse response = mvc.perform( MockMvcRequestBuilders.get( "/statistics/keys/stream" ) ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 200, response.getStatus() );
+		JSONAssert.assertEquals( "The statistics of the key weren't returned", "{ sum: 5, count: 1 }", response.getContentAsString(), false );
+
+		response = mvc.perform( MockMvcRequestBuilders.get( "/statistics/keys/top" ) ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 200, response.getStatus() );
+		JSONAssert.assertEquals( "The statistics of the key weren't returned", "{ sum: 7, count: 1 }", response.getContentAsString(), false );
+	}
+
+	@Test
+	public void returnsTheTopKeys() throws Exception {
+		Statistics first = new Statistics();
+		first.add( new BigDecimal( "20" ) );
+		Statistics second = new Statistics();
+		second.add( new BigDecimal( "10" ) );
+		Mockito.when( keyedStatisticsService.getTop( 2 ) ).thenReturn( Arrays.asList(
+			new KeyedStatistics( "a", first ),
+			new KeyedStatistics( "b", second )
+		) );
+
+		MockHttpServletResponse response = mvc.perform( MockMvcRequestBuilders.get( "/statistics/top/2" ) ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 200, response.getStatus() );
+		JSONAssert.assertEquals(
+			"The top keys weren't returned",
+			"[ { key: a, statistics: { sum: 20 } }, { key: b, statistics: { sum: 10 } } ]",
+			response.getContentAsString(),
+			false
+		);
+
+		response = mvc.perform( MockMvcRequestBuilders.get( "/statistics/top/0" ) ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 400, response.getStatus() );
+	}
 }
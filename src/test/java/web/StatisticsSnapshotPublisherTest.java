@@ -0,0 +1,79 @@
+package web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.services.StatisticsService;
+import mx.araco.miguel.n26.web.StatisticsSnapshotPublisher;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author MiguelAraCo
+ */
+public class StatisticsSnapshotPublisherTest {
+	private final StatisticsService statisticsService = Mockito.mock( StatisticsService.class );
+	// A transaction is registered between every request
+	private final AtomicLong versions = new AtomicLong();
+
+	@Test
+	public void servesTheSnapshotUntilItsMinAgeUnderContinuousWrites() {
+		Mockito.when( this.statisticsService.getVersion() ).thenAnswer( invocation -> this.versions.incrementAndGet() );
+		Mockito.when( this.statisticsService.get() ).thenReturn( new Statistics() );
+		StatisticsSnapshotPublisher publisher = createPublisher( Duration.ofHours( 1 ) );
+
+		StatisticsSnapshotPublisher.Snapshot first = publisher.get();
+		for ( int i = 0; i < 1000; i++ ) assertSame( "A new snapshot was calculated before the min age", first, publisher.get() );
+		Mockito.verify( this.statisticsService, Mockito.times( 1 ) ).get();
+	}
+
+	@Test
+	public void calculatesOneSnapshotAtATime() throws Exception {
+		Mockito.when( this.statisticsService.getVersion() ).thenAnswer( invocation -> this.versions.incrementAndGet() );
+		StatisticsSnapshotPublisher publisher = createPublisher( Duration.ZERO );
+		Mockito.when( this.statisticsService.get() ).thenReturn( new Statistics() );
+		StatisticsSnapshotPublisher.Snapshot first = publisher.get();
+
+		CountDownLatch calculating = new CountDownLatch( 1 );
+		CountDownLatch release = new CountDownLatch( 1 );
+		Mockito.when( this.statisticsService.get() ).thenAnswer( invocation -> {
+			calculating.countDown();
+			release.await();
+			return new Statistics();
+		} );
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<StatisticsSnapshotPublisher.Snapshot> publishing = executor.submit( publisher::get );
+			assertTrue( "The snapshot wasn't calculated", calculating.await( 5, TimeUnit.SECONDS ) );
+
+			// The other requests get the published snapshot instead of waiting for the service
+			for ( int i = 0; i < 100; i++ ) assertSame( "A request calculated the snapshot at the same time", first, publisher.get() );
+
+			release.countDown();
+			StatisticsSnapshotPublisher.Snapshot latest = publishing.get( 5, TimeUnit.SECONDS );
+			assertTrue( "The new snapshot wasn't published", latest != first );
+		} finally {
+			executor.shutdownNow();
+		}
+		Mockito.verify( this.statisticsService, Mockito.times( 2 ) ).get();
+	}
+
+	private StatisticsSnapshotPublisher createPublisher( Duration minAge ) {
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplePeriod( Duration.ofHours( 1 ) );
+		configuration.setSnapshotMinAge( minAge );
+		return new StatisticsSnapshotPublisher( this.statisticsService, new ObjectMapper(), configuration );
+	}
+}
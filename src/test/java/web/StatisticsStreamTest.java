@@ -0,0 +1,110 @@
+package web;
+
+import mx.araco.miguel.n26.Application;
+import mx.araco.miguel.n26.web.StatisticsStream;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author MiguelAraCo
+ */
+public class StatisticsStreamTest {
+	private static ConfigurableApplicationContext node;
+
+	private final RestTemplate restTemplate = new RestTemplate();
+
+	@BeforeClass
+	public static void startNode() {
+		node = new SpringApplicationBuilder( Application.class ).run(
+			"--server.port=0",
+			"--spring.jmx.enabled=false",
+			"--spring.main.banner-mode=off",
+			"--mx.araco.miguel.n26.stream.interval=PT0.1S",
+			"--mx.araco.miguel.n26.stream.max-subscribers=1"
+		);
+	}
+
+	@AfterClass
+	public static void stopNode() {
+		node.close();
+	}
+
+	@Test
+	public void streamsTheStatistics() throws Exception {
+		HttpURLConnection connection = subscribe();
+		try {
+			assertEquals( 200, connection.getResponseCode() );
+			assertTrue( connection.getContentType().startsWith( StatisticsStream.TEXT_EVENT_STREAM_VALUE ) );
+
+			BufferedReader reader = new BufferedReader( new InputStreamReader( connection.getInputStream(), StandardCharsets.UTF_8 ) );
+			// The latest statistics are sent right away
+			JSONAssert.assertEquals( "{ count: 0 }", readData( reader ), false );
+
+			// Only one subscriber is allowed
+			assertEquals( 503, subscribe().getResponseCode() );
+
+			postTransaction( "10.25" );
+			String data;
+			do {
+				data = readData( reader );
+			} while ( data.contains( "\"count\":0" ) );
+			JSONAssert.assertEquals( "The transaction wasn't streamed", "{ sum: 10.25, count: 1 }", data, false );
+		} finally {
+			connection.disconnect();
+		}
+
+		// The subscriber is dropped once the next event can't be written
+		StatisticsStream stream = node.getBean( StatisticsStream.class );
+		long deadline = System.currentTimeMillis() + 5_000;
+		while ( stream.getSubscribers() > 0 && System.currentTimeMillis() < deadline ) Thread.sleep( 50 );
+		assertEquals( "The subscriber wasn't dropped", 0, stream.getSubscribers() );
+	}
+
+	private static HttpURLConnection subscribe() throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL( getUrl() + "/statistics/stream" ).openConnection();
+		connection.setReadTimeout( 5_000 );
+		return connection;
+	}
+
+	/**
+	 * @return the data of the next event, skipping heartbeats
+	 */
+	private static String readData( BufferedReader reader ) throws IOException {
+		String data = null;
+		String line;
+		while ( ( line = reader.readLine() ) != null ) {
+			if ( line.startsWith( "data: " ) ) data = line.substring( "data: ".length() );
+			else if ( line.isEmpty() && data != null ) return data;
+		}
+		throw new IOException( "The stream ended" );
+	}
+
+	private static String getUrl() {
+		return "http://localhost:" + node.getEnvironment().getProperty( "local.server.port" );
+	}
+
+	private void postTransaction( String amount ) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType( MediaType.APPLICATION_JSON );
+		String body = "{ \"amount\": " + amount + ", \"timestamp\": " + System.currentTimeMillis() + " }";
+		this.restTemplate.postForEntity( getUrl() + "/transactions", new HttpEntity<>( body, headers ), Void.class );
+	}
+}
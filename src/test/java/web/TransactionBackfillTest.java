@@ -0,0 +1,134 @@
+package web;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import mx.araco.miguel.n26.models.BatchResult;
+import mx.araco.miguel.n26.models.Statistics;
+import mx.araco.miguel.n26.services.SamplingStatisticsService;
+import mx.araco.miguel.n26.services.SamplingStatisticsServiceConfiguration;
+import mx.araco.miguel.n26.web.TransactionBackfill;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author MiguelAraCo
+ */
+public class TransactionBackfillTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SamplingStatisticsService statisticsService;
+	private TransactionBackfill backfill;
+
+	@Before
+	public void createBackfill() {
+		SamplingStatisticsServiceConfiguration configuration = new SamplingStatisticsServiceConfiguration();
+		configuration.setSamplingPeriod( Duration.ofSeconds( 60 ) );
+		configuration.setSamplePeriod( Duration.ofSeconds( 1 ) );
+		configuration.getBackfill().setDirectory( this.folder.getRoot().getPath() );
+		// Tiny chunks, so rows are split across many of them
+		configuration.getBackfill().setChunkSize( 100 );
+		configuration.getBackfill().setParallelism( 4 );
+
+		this.statisticsService = new SamplingStatisticsService( configuration );
+		// Configured like the application's, see application.properties
+		ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules().disable( DeserializationFeature.READ_DATE_TIMESTAMPS_AS_NANOSECONDS );
+		this.backfill = new TransactionBackfill( this.statisticsService, objectMapper, configuration );
+	}
+
+	@After
+	public void closeBackfill() {
+		this.backfill.close();
+	}
+
+	@Test
+	public void backfillsCsvFiles() throws Exception {
+		long now = System.currentTimeMillis();
+		Random random = new Random( 42 );
+
+		StringBuilder csv = new StringBuilder( "amount,timestamp\r\n" );
+		Statistics expected = new Statistics();
+		for ( int i = 0; i < 5000; i++ ) {
+			BigDecimal amount = BigDecimal.valueOf( 1 + random.nextInt( 100_000 ), 2 );
+			csv.append( amount.toPlainString() ).append( ',' ).append( now - random.nextInt( 50_000 ) ).append( "\r\n" );
+			expected.add( amount );
+		}
+		csv.append( "12345678901234567890.5," ).append( now ).append( '\n' );
+		expected.add( new BigDecimal( "12345678901234567890.5" ) );
+		// Discarded
+		csv.append( "10," ).append( now - 70_000 ).append( '\n' );
+		csv.append( "not an amount," ).append( now - 70_000 ).append( '\n' );
+		// Rejected
+		csv.append( "10," ).append( now + 60_000 ).append( '\n' );
+		csv.append( "10,yesterday\n" );
+		csv.append( "1.2.3," ).append( now ).append( '\n' );
+		// The last row doesn't need a line break
+		csv.append( "-2.5," ).append( now );
+		expected.add( new BigDecimal( "-2.5" ) );
+
+		BatchResult result = this.backfill.backfill( write( "export.csv", csv.toString() ) );
+
+		assertEquals( "Not every row was registered", 5002, result.getRegistered() );
+		assertEquals( "Old rows weren't discarded", 2, result.getDiscarded() );
+		assertEquals( "Invalid rows weren't rejected", 3, result.getRejected() );
+		assertStatistics( expected, this.statisticsService.get() );
+	}
+
+	@Test
+	public void backfillsNdjsonFiles() throws Exception {
+		long now = System.currentTimeMillis();
+
+		String ndjson = "" +
+			"{ \"amount\": 12.65, \"timestamp\": " + now + " }\n" +
+			"{\"timestamp\":" + ( now - 1000 ) + ",\"amount\":\"7.35\",\"key\":\"merchant-1\"}\n" +
+			"{ \"amount\": 100, \"timestamp\": \"" + Instant.ofEpochMilli( now - 2000 ) + "\" }\n" +
+			"\n" +
+			"{ \"amount\": 1, \"timestamp\": " + ( now - 70_000 ) + " }\n" +
+			"{ \"amount\": 1, \"timestamp\": " + ( now + 60_000 ) + " }\n" +
+			"{ \"amount\": 1 }\n" +
+			"not json\n";
+
+		BatchResult result = this.backfill.backfill( write( "export.ndjson", ndjson ) );
+
+		assertEquals( "Not every transaction was registered", 3, result.getRegistered() );
+		assertEquals( "Old transactions weren't discarded", 1, result.getDiscarded() );
+		assertEquals( "Invalid transactions weren't rejected", 3, result.getRejected() );
+
+		Statistics expected = new Statistics();
+		expected.add( new BigDecimal( "12.65" ) );
+		expected.add( new BigDecimal( "7.35" ) );
+		expected.add( new BigDecimal( "100" ) );
+		assertStatistics( expected, this.statisticsService.get() );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void doesNotBackfillFilesOutsideTheDirectory() throws Exception {
+		this.backfill.backfill( "../export.csv" );
+	}
+
+	private String write( String name, String content ) throws Exception {
+		File file = new File( this.folder.getRoot(), name );
+		Files.write( file.toPath(), content.getBytes( StandardCharsets.UTF_8 ) );
+		return name;
+	}
+
+	private static void assertStatistics( Statistics expected, Statistics actual ) {
+		assertEquals( "The returned statistics didn't have the expected count", expected.getCount(), actual.getCount() );
+		assertEquals( "The returned statistics didn't have the expected sum", 0, expected.getSum().compareTo( actual.getSum() ) );
+		assertEquals( "The returned statistics didn't have the expected min", 0, expected.getMin().compareTo( actual.getMin() ) );
+		assertEquals( "The returned statistics didn't have the expected max", 0, expected.getMax().compareTo( actual.getMax() ) );
+	}
+}
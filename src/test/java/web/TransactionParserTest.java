@@ -0,0 +1,80 @@
+package web;
+
+import mx.araco.miguel.n26.web.TransactionParser;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author MiguelAraCo
+ */
+public class TransactionParserTest {
+	private final TransactionParser parser = new TransactionParser();
+
+	@Test
+	public void parsesTransactions() throws Exception {
+		assertParses( "{\"amount\":12.65,\"timestamp\":1529822905186}", 1265L, 2, 1529822905186L );
+		assertParses( " {\n\t\"timestamp\" : 1529822905186 ,\r\n \"amount\" : 7 }\n", 7L, 0, 1529822905186L );
+		assertParses( "{ \"amount\": -0.5, \"timestamp\": 0 }", - 5L, 1, 0L );
+		assertParses( "{ \"amount\": 9999999999999999, \"timestamp\": 1529822905186 }", 9999999999999999L, 0, 1529822905186L );
+	}
+
+	@Test
+	public void leavesEverythingElseToTheFullParser() throws Exception {
+		String[] bodies = {
+			"",
+			"[]",
+			"{ \"amount\": 12.65 }",
+			"{ \"amount\": 12.65, \"timestamp\": 1529822905186",
+			"{ \"amount\": 12.65, \"timestamp\": 1529822905186 } {}",
+			"{ \"amount\": 12.65, \"amount\": 12.65, \"timestamp\": 1529822905186 }",
+			"{ \"amount\": 12.65, \"timestamp\": 1529822905186, \"currency\": \"EUR\" }",
+			"{ \"amount\": 12.655, \"timestamp\": 1529822905186 }",
+			"{ \"amount\": 1.2e1, \"timestamp\": 1529822905186 }",
+			"{ \"amount\": 012.65, \"timestamp\": 1529822905186 }",
+			"{ \"amount\": 12., \"timestamp\": 1529822905186 }",
+			"{ \"amount\": 99999999999999999, \"timestamp\": 1529822905186 }",
+			"{ \"amount\": \"12.65\", \"timestamp\": 1529822905186 }",
+			"{ \"amount\": null, \"timestamp\": 1529822905186 }",
+			"{ \"amount\": 12.65, \"timestamp\": \"2018-06-24T06:48:25.186Z\" }",
+			"{ \"amount\": 12.65, \"timestamp\": 1529822905.186 }",
+			"{ \"amount\": 12.65, \"timestamp\": -1 }",
+			"{ \"amounts\": 12.65, \"timestamp\": 1529822905186 }",
+		};
+		for ( String body : bodies ) {
+			assertFalse( "The body was parsed: " + body, parser.parse( stream( body ) ) );
+		}
+	}
+
+	@Test
+	public void replaysBodiesThatDoNotFitInTheBuffer() throws Exception {
+		StringBuilder body = new StringBuilder( "{ \"amount\": 12.65, \"timestamp\": 1529822905186" );
+		while ( body.length() < 2048 ) body.append( ' ' );
+		body.append( '}' );
+
+		InputStream input = stream( body.toString() );
+		assertFalse( parser.parse( input ) );
+
+		try ( Scanner replayed = new Scanner( parser.replay( input ), "UTF-8" ) ) {
+			assertEquals( "The body wasn't replayed completely", body.toString(), replayed.useDelimiter( "\\A" ).next() );
+		}
+	}
+
+	private void assertParses( String body, long amount, int scale, long timestamp ) throws Exception {
+		assertTrue( "The body wasn't parsed: " + body, parser.parse( stream( body ) ) );
+		assertEquals( amount, parser.getAmount() );
+		assertEquals( scale, parser.getScale() );
+		assertEquals( timestamp, parser.getTimestamp() );
+	}
+
+	private static InputStream stream( String body ) {
+		return new ByteArrayInputStream( body.getBytes( StandardCharsets.UTF_8 ) );
+	}
+}
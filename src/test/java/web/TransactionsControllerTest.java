@@ -1,11 +1,16 @@
 package web;
 
 import mx.araco.miguel.n26.Application;
+import mx.araco.miguel.n26.models.BatchResult;
+import mx.araco.miguel.n26.models.Transaction;
+import mx.araco.miguel.n26.services.KeyedStatisticsService;
 import mx.araco.miguel.n26.services.StatisticsService;
 import mx.araco.miguel.n26.web.TransactionsController;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.skyscreamer.jsonassert.JSONAssert;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
@@ -17,6 +22,10 @@ import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.RequestBuilder;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Collection;
+
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -36,9 +45,12 @@ public class TransactionsControllerTest {
 	@MockBean
 	private StatisticsService statisticsService;
 
+	@MockBean
+	private KeyedStatisticsService keyedStatisticsService;
+
 	@Test
 	public void returns201WhenTransactionIsRegistered() throws Exception {
-		Mockito.when( statisticsService.register( Mockito.any() ) ).thenReturn( StatisticsService.RegisterResult.REGISTERED );
+		mockRegister( StatisticsService.RegisterResult.REGISTERED );
 
 		RequestBuilder requestBuilder = MockMvcRequestBuilders
 			.post( "/transactions" )
@@ -56,7 +68,7 @@ public class TransactionsControllerTest {
 
 	@Test
 	public void returns204WhenTransactionIsDiscarded() throws Exception {
-		Mockito.when( statisticsService.register( Mockito.any() ) ).thenReturn( StatisticsService.RegisterResult.DISCARDED );
+		mockRegister( StatisticsService.RegisterResult.DISCARDED );
 
 		RequestBuilder requestBuilder = MockMvcRequestBuilders
 			.post( "/transactions" )
@@ -75,6 +87,7 @@ public class TransactionsControllerTest {
 	@Test
 	public void returns400OnIllegalArgumentException() throws Exception {
 		Mockito.when( statisticsService.register( Mockito.any() ) ).thenThrow( new IllegalArgumentException() );
+		Mockito.when( statisticsService.register( Mockito.anyLong(), Mockito.anyInt(), Mockito.anyLong() ) ).thenThrow( new IllegalArgumentException() );
 
 		RequestBuilder requestBuilder = MockMvcRequestBuilders
 			.post( "/transactions" )
@@ -145,4 +158,179 @@ public class TransactionsControllerTest {
 		response = mvc.perform( requestBuilder ).andReturn().getResponse();
 		assertEquals( "The expected status code wasn't returned", 400, response.getStatus() );
 	}
+
+	@Test
+	public void decodesTheUsualTransactionsIntoPrimitives() throws Exception {
+		mockRegister( StatisticsService.RegisterResult.REGISTERED );
+
+		RequestBuilder requestBuilder = MockMvcRequestBuilders
+			.post( "/transactions" )
+			.contentType( MediaType.APPLICATION_JSON )
+			.content( "{ \"timestamp\": 1529822905186, \"amount\": -12.5 }" );
+
+		MockHttpServletResponse response = mvc.perform( requestBuilder ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 201, response.getStatus() );
+
+		Mockito.verify( statisticsService ).register( - 125L, 1, 1529822905186L );
+		Mockito.verify( statisticsService, Mockito.never() ).register( Mockito.any() );
+	}
+
+	@Test
+	public void fallsBackToJacksonForOtherTransactions() throws Exception {
+		mockRegister( StatisticsService.RegisterResult.REGISTERED );
+
+		RequestBuilder requestBuilder = MockMvcRequestBuilders
+			.post( "/transactions" )
+			.contentType( MediaType.APPLICATION_JSON )
+			.content( "{ \"amount\": 12.655, \"timestamp\": \"2018-06-24T06:48:25.186Z\", \"currency\": \"EUR\" }" );
+
+		MockHttpServletResponse response = mvc.perform( requestBuilder ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 201, response.getStatus() );
+
+		ArgumentCaptor<Transaction> transaction = ArgumentCaptor.forClass( Transaction.class );
+		Mockito.verify( statisticsService ).register( transaction.capture() );
+		assertEquals( new BigDecimal( "12.655" ), transaction.getValue().getAmount() );
+		assertEquals( Instant.ofEpochMilli( 1529822905186L ), transaction.getValue().getTimestamp() );
+	}
+
+	@Test
+	public void returns400OnMalformedJSON() throws Exception {
+		mockRegister( StatisticsService.RegisterResult.REGISTERED );
+
+		for ( String body : new String[]{ "", "{ \"amount\": 12.65, \"timestamp\": 1529822905186", "{ \"amount\": 012.65, \"timestamp\": 1529822905186 }" } ) {
+			RequestBuilder requestBuilder = MockMvcRequestBuilders
+				.post( "/transactions" )
+				.contentType( MediaType.APPLICATION_JSON )
+				.content( body );
+
+			MockHttpServletResponse response = mvc.perform( requestBuilder ).andReturn().getResponse();
+			assertEquals( "The expected status code wasn't returned for: " + body, 400, response.getStatus() );
+		}
+	}
+
+	@Test
+	public void registersTransactionsWithAKeyInTheStatisticsOfTheKey() throws Exception {
+		mockRegister( StatisticsService.RegisterResult.REGISTERED );
+
+		RequestBuilder requestBuilder = MockMvcRequestBuilders
+			.post( "/transactions" )
+			.contentType( MediaType.APPLICATION_JSON )
+			.content( "{ \"amount\": 12.65, \"timestamp\": 1529822905186, \"key\": \"merchant-1\" }" );
+
+		MockHttpServletResponse response = mvc.perform( requestBuilder ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 201, response.getStatus() );
+
+		ArgumentCaptor<Transaction> captor = ArgumentCaptor.forClass( Transaction.class );
+		Mockito.verify( keyedStatisticsService ).register( captor.capture() );
+		assertEquals( "The key of the transaction wasn't read", "merchant-1", captor.getValue().getKey() );
+		Mockito.verify( statisticsService ).register( Mockito.any( Transaction.class ) );
+	}
+
+	@Test
+	public void rejectsAmountsTheStatisticsOfTheKeyCantKeepBeforeRegisteringThem() throws Exception {
+		mockRegister( StatisticsService.RegisterResult.REGISTERED );
+		Mockito.doThrow( new IllegalArgumentException() ).when( keyedStatisticsService ).checkAmount( Mockito.any() );
+
+		RequestBuilder requestBuilder = MockMvcRequestBuilders
+			.post( "/transactions" )
+			.contentType( MediaType.APPLICATION_JSON )
+			.content( "{ \"amount\": 1e30, \"timestamp\": 1529822905186, \"key\": \"merchant-1\" }" );
+
+		assertEquals( "The expected status code wasn't returned", 400, mvc.perform( requestBuilder ).andReturn().getResponse().getStatus() );
+		Mockito.verify( statisticsService, Mockito.never() ).register( Mockito.any( Transaction.class ) );
+	}
+
+	@Test
+	public void returnsTheGlobalResultWhenTheStatisticsOfTheKeyOverflow() throws Exception {
+		mockRegister( StatisticsService.RegisterResult.REGISTERED );
+		Mockito.when( keyedStatisticsService.register( Mockito.any() ) ).thenThrow( new IllegalArgumentException() );
+
+		RequestBuilder requestBuilder = MockMvcRequestBuilders
+			.post( "/transactions" )
+			.contentType( MediaType.APPLICATION_JSON )
+			.content( "{ \"amount\": 12.65, \"timestamp\": 1529822905186, \"key\": \"merchant-1\" }" );
+
+		assertEquals( "The expected status code wasn't returned", 201, mvc.perform( requestBuilder ).andReturn().getResponse().getStatus() );
+	}
+
+	@Test
+	public void registersBatchesOfTransactions() throws Exception {
+		mockRegisterAll();
+
+		RequestBuilder requestBuilder = MockMvcRequestBuilders
+			.post( "/transactions/batch" )
+			.contentType( MediaType.APPLICATION_JSON )
+			.content( "" +
+				"[" +
+				"   { \"amount\": 12.65, \"timestamp\": 1529822905186 }," +
+				"   { \"amount\": 12.65, \"timestamp\": 1529822905187 }," +
+				"   { \"amount\": 12.65 }" +
+				"]"
+			);
+
+		MockHttpServletResponse response = mvc.perform( requestBuilder ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 200, response.getStatus() );
+		JSONAssert.assertEquals( "/transactions/batch didn't return the expected JSON", "{ registered: 2, discarded: 0, rejected: 1 }", response.getContentAsString(), true );
+	}
+
+	@Test
+	public void registersStreamsOfTransactions() throws Exception {
+		mockRegisterAll();
+
+		StringBuilder body = new StringBuilder();
+		int transactions = 2500;
+		for ( int i = 0; i < transactions; i++ ) body.append( "{ \"amount\": 12.65, \"timestamp\": 1529822905186 }\n" );
+
+		RequestBuilder requestBuilder = MockMvcRequestBuilders
+			.post( "/transactions/batch" )
+			.contentType( "application/x-ndjson" )
+			.content( body.toString() );
+
+		MockHttpServletResponse response = mvc.perform( requestBuilder ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 200, response.getStatus() );
+		JSONAssert.assertEquals( "/transactions/batch didn't return the expected JSON", "{ registered: " + transactions + ", discarded: 0, rejected: 0 }", response.getContentAsString(), true );
+
+		// 1024 + 1024 + 452
+		Mockito.verify( statisticsService, Mockito.times( 3 ) ).registerAll( Mockito.any() );
+	}
+
+	@Test
+	public void returns404WhenBackfillsAreDisabled() throws Exception {
+		RequestBuilder requestBuilder = MockMvcRequestBuilders.post( "/transactions/backfill" ).param( "file", "export.csv" );
+
+		MockHttpServletResponse response = mvc.perform( requestBuilder ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 404, response.getStatus() );
+	}
+
+	@Test
+	public void returns400OnMalformedBatches() throws Exception {
+		mockRegisterAll();
+
+		RequestBuilder requestBuilder = MockMvcRequestBuilders
+			.post( "/transactions/batch" )
+			.contentType( MediaType.APPLICATION_JSON )
+			.content( "" +
+				"[" +
+				"   { \"amount\": 12.65, \"timestamp\": 1529822905186 }," +
+				"   { \"amount\": 12.65, \"timestamp\": " +
+				"]"
+			);
+
+		MockHttpServletResponse response = mvc.perform( requestBuilder ).andReturn().getResponse();
+		assertEquals( "The expected status code wasn't returned", 400, response.getStatus() );
+	}
+
+	private void mockRegister( StatisticsService.RegisterResult result ) {
+		Mockito.when( statisticsService.register( Mockito.any() ) ).thenReturn( result );
+		Mockito.when( statisticsService.register( Mockito.anyLong(), Mockito.anyInt(), Mockito.anyLong() ) ).thenReturn( result );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private void mockRegisterAll() {
+		Mockito.when( statisticsService.registerAll( Mockito.any() ) ).thenAnswer( invocation -> {
+			BatchResult result = new BatchResult();
+			for ( Transaction ignored : (Collection<Transaction>) invocation.getArgument( 0 ) ) result.addRegistered();
+			return result;
+		} );
+	}
 }